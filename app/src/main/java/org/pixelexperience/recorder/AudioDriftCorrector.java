@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder;
+
+/**
+ * Timestamps captured audio by counting frames and keeps the count locked to the
+ * wall clock the video frames are stamped with.
+ * <p>
+ * The difference between wall clock and counted time is smoothed to filter out
+ * read scheduling jitter and corrected by nudging the timestamps by at most
+ * {@code maxSlewPpm} of each buffer's duration, so there are never audible jumps.
+ * Errors beyond {@code resyncThresholdUs} (capture gaps too long to be filled with
+ * silence by the {@link CaptureClock}) resync hard.
+ * <p>
+ * Pure Java and driven only by its inputs. Updated from the capture thread,
+ * stats may be read from any thread.
+ */
+class AudioDriftCorrector {
+    // exponential moving average over 2^4 buffers
+    private static final int SMOOTHING_SHIFT = 4;
+
+    private final int mSampleRate;
+    private final long mMaxSlewPpm;
+    private final long mResyncThresholdUs;
+    private long mBaseUs;
+    private long mFrames;
+    private boolean mStarted;
+    private long mSmoothedErrorUs;
+    private long mLastWallUs;
+    // continuously captured time, excludes resyncs and resets
+    private long mCapturedUs;
+
+    private volatile long mMaxSkewUs;
+    private volatile long mTotalCorrectionUs;
+    private volatile int mResyncCount;
+    private volatile long mDriftPpm;
+
+    /**
+     * @param sampleRate        frames per second
+     * @param maxSlewPpm        maximum correction relative to the buffer duration
+     * @param resyncThresholdUs errors at least this large restart counting at the wall clock
+     */
+    AudioDriftCorrector(int sampleRate, long maxSlewPpm, long resyncThresholdUs) {
+        mSampleRate = sampleRate;
+        mMaxSlewPpm = maxSlewPpm;
+        mResyncThresholdUs = resyncThresholdUs;
+    }
+
+    /**
+     * @param frames number of frames in the buffer
+     * @param wallUs wall clock time the first frame of the buffer was captured at
+     * @return presentation time of the buffer
+     */
+    long timestamp(int frames, long wallUs) {
+        long countedUs = mBaseUs + mFrames * 1000_000L / mSampleRate;
+        long errorUs = wallUs - countedUs;
+        if (!mStarted) {
+            mStarted = true;
+            restart(wallUs);
+            countedUs = wallUs;
+        } else if (Math.abs(errorUs) >= mResyncThresholdUs) {
+            mResyncCount++;
+            restart(wallUs);
+            countedUs = wallUs;
+        } else {
+            mSmoothedErrorUs += (errorUs - mSmoothedErrorUs) >> SMOOTHING_SHIFT;
+            long maxStepUs = Math.max(1, frames * mMaxSlewPpm / mSampleRate);
+            long stepUs = Math.max(-maxStepUs, Math.min(maxStepUs, mSmoothedErrorUs));
+            mBaseUs += stepUs;
+            countedUs += stepUs;
+            mSmoothedErrorUs -= stepUs;
+            mTotalCorrectionUs += stepUs;
+            mCapturedUs += wallUs - mLastWallUs;
+            long skewUs = Math.abs(mSmoothedErrorUs);
+            if (skewUs > mMaxSkewUs) {
+                mMaxSkewUs = skewUs;
+            }
+            if (mCapturedUs > 0) {
+                mDriftPpm = mTotalCorrectionUs * 1000_000L / mCapturedUs;
+            }
+        }
+        mFrames += frames;
+        mLastWallUs = wallUs;
+        return countedUs;
+    }
+
+    /**
+     * Restarts counting at the next buffer, e.g. after capture was paused on purpose.
+     * Doesn't count as a resync and keeps the stats.
+     */
+    void reset() {
+        mStarted = false;
+    }
+
+    /**
+     * @return largest smoothed difference between counted and wall clock time
+     */
+    long getMaxSkewUs() {
+        return mMaxSkewUs;
+    }
+
+    /**
+     * @return sum of all slew corrections, positive if the audio clock runs slow
+     */
+    long getTotalCorrectionUs() {
+        return mTotalCorrectionUs;
+    }
+
+    /**
+     * @return correction rate over the continuously captured time
+     */
+    long getDriftPpm() {
+        return mDriftPpm;
+    }
+
+    int getResyncCount() {
+        return mResyncCount;
+    }
+
+    private void restart(long wallUs) {
+        mBaseUs = wallUs;
+        mFrames = 0;
+        mSmoothedErrorUs = 0;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+/**
+ * Sums two interleaved 16 bit PCM streams with a gain per source. Peaks beyond
+ * {@link #KNEE} of full scale are compressed smoothly towards full scale instead of
+ * clipping hard, below it the sum passes unchanged.
+ * <p>
+ * Pure Java, works on primitive arrays and never allocates.
+ */
+class AudioMixer {
+    // soft clipping starts at this fraction of full scale
+    static final float KNEE = 0.75f;
+    private static final float FULL_SCALE = 32767f;
+
+    private final float mScale0;
+    private final float mScale1;
+    private long mCompressedSamples;
+
+    /**
+     * @param gain0 linear gain of the first source
+     * @param gain1 linear gain of the second source
+     */
+    AudioMixer(float gain0, float gain1) {
+        mScale0 = gain0 / FULL_SCALE;
+        mScale1 = gain1 / FULL_SCALE;
+    }
+
+    /**
+     * Writes {@code source0 * gain0 + source1 * gain1}, soft clipped, to {@code out}.
+     */
+    void mix(short[] source0, short[] source1, short[] out, int samples) {
+        long compressed = 0;
+        for (int i = 0; i < samples; i++) {
+            float x = source0[i] * mScale0 + source1[i] * mScale1;
+            float abs = Math.abs(x);
+            if (abs > KNEE) {
+                compressed++;
+                // d / (1 + d) leaves the knee with slope 1 and never reaches full scale
+                float d = (abs - KNEE) / (1 - KNEE);
+                abs = KNEE + (1 - KNEE) * d / (1 + d);
+                x = x < 0 ? -abs : abs;
+            }
+            out[i] = (short) (x * FULL_SCALE);
+        }
+        mCompressedSamples += compressed;
+    }
+
+    /**
+     * @return number of output samples that were compressed by the soft clipper
+     */
+    long getCompressedSamples() {
+        return mCompressedSamples;
+    }
+}
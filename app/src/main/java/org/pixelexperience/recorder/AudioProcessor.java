@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+
+/**
+ * A stage processing interleaved 16 bit PCM in place, between capture and encoder.
+ * Stages keep their state from one call to the next and must not allocate while
+ * processing, they run for every buffer fed to the encoder.
+ */
+interface AudioProcessor {
+    /**
+     * Processes {@code frames} frames starting at sample {@code offset} of {@code buffer}.
+     * Only absolute get and put are used, the position of {@code buffer} is left alone.
+     */
+    void process(ShortBuffer buffer, int offset, int frames);
+
+    /**
+     * @return frames the output lags behind the input
+     */
+    int getLatencyFrames();
+
+    /**
+     * Forgets the audio seen so far, e.g. after a pause.
+     */
+    void reset();
+}
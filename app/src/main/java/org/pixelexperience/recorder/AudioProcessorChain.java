@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Runs {@link AudioProcessor} stages one after the other.
+ */
+class AudioProcessorChain implements AudioProcessor {
+    private final AudioProcessor[] mStages;
+
+    AudioProcessorChain(AudioProcessor... stages) {
+        mStages = stages;
+    }
+
+    @Override
+    public void process(ShortBuffer buffer, int offset, int frames) {
+        for (AudioProcessor stage : mStages) {
+            stage.process(buffer, offset, frames);
+        }
+    }
+
+    @Override
+    public int getLatencyFrames() {
+        int latency = 0;
+        for (AudioProcessor stage : mStages) {
+            latency += stage.getLatencyFrames();
+        }
+        return latency;
+    }
+
+    @Override
+    public void reset() {
+        for (AudioProcessor stage : mStages) {
+            stage.reset();
+        }
+    }
+}
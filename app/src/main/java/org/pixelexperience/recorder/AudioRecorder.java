@@ -21,16 +21,17 @@ import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioPlaybackCaptureConfiguration;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.SystemClock;
+import android.os.Process;
 import android.util.Log;
-import android.util.SparseLongArray;
 
 import org.pixelexperience.recorder.encoders.AudioEncodeConfig;
 import org.pixelexperience.recorder.encoders.AudioEncoder;
@@ -39,12 +40,13 @@ import org.pixelexperience.recorder.encoders.Encoder;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
 import static android.media.MediaCodec.BUFFER_FLAG_KEY_FRAME;
 import static android.media.MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
 
@@ -53,36 +55,127 @@ public class AudioRecorder implements Encoder {
     private static final boolean VERBOSE = false;
     private static final int MSG_PREPARE = 0;
     private static final int MSG_FEED_INPUT = 1;
-    private static final int MSG_DRAIN_OUTPUT = 2;
     private static final int MSG_RELEASE_OUTPUT = 3;
     private static final int MSG_STOP = 4;
     private static final int MSG_RELEASE = 5;
-    private static final int LAST_FRAME_ID = -1;
+    private static final int MSG_PAUSE = 6;
+    private static final int MSG_RESUME = 7;
+    // nudge audio timestamps by at most 0.5% towards the wall clock
+    private static final long MAX_CLOCK_SLEW_PPM = 5000;
+    private static final long CLOCK_RESYNC_THRESHOLD_US = 100_000;
+    // more than the output buffers of any AAC encoder
+    private static final int RING_CAPACITY = 32;
+    // captured audio waiting for the encoder, long enough to ride out encoder stalls
+    private static final int PCM_RING_MS = 1000;
+    private static final int CAPTURE_CHUNK_MS = 10;
+    // capture timestamps this much later than counted are lost audio, filled with silence
+    private static final long CAPTURE_GAP_THRESHOLD_US = 20_000;
+    private static final long MAX_CAPTURE_GAP_US = PCM_RING_MS * 1000L / 2;
+    // leave headroom for the narration
+    private static final float INTERNAL_MIX_GAIN = 0.7f;
+    private static final float MIC_MIX_GAIN = 1.0f;
+    private static final int MIX_MAX_FRAMES = 4096;
+    // capture time differences the mixer doesn't correct
+    private static final int MIX_ALIGN_TOLERANCE_MS = 20;
     private final AudioEncoder mEncoder;
     private final HandlerThread mRecordThread;
+    private final boolean mQuitRecordThread;
     private RecordHandler mRecordHandler;
-    private AudioRecord mMic; // access in mRecordThread only!
+    private Capture mCapture; // internal audio, access in mRecordThread only!
+    private final PcmRing mPcmRing;
+    private final CaptureClock mCaptureClock;
+    private boolean mRecordMicrophone;
+    // microphone mixed into the internal audio, null if not recorded
+    private Capture mMicCapture; // access in mRecordThread only!
+    private PcmRing mMicRing;
+    private AudioMixer mMixer;
+    private short[] mMixInternal;
+    private short[] mMixMic;
+    private short[] mMixOut;
+    private ShortBuffer mMixInternalView;
+    private ShortBuffer mMixMicView;
+    private ShortBuffer mMixOutView;
+    // run on the captured audio before it is mixed and encoded, null if none
+    private AudioProcessor mProcessor;
+    private AudioProcessor mMicProcessor;
+    private long mProcessorLatencyUs;
+    // measures what is fed to the encoder, null if nothing
+    private LoudnessMeter mLoudnessMeter;
+    // ShortBuffer views of the encoder input buffers, created once per buffer
+    private ByteBuffer[] mInputBuffers = new ByteBuffer[0];
+    private ShortBuffer[] mInputViews = new ShortBuffer[0];
+    private long mMicSkippedFrames;
+    private long mMicPaddedFrames;
     private int mSampleRate;
+    // differs from mSampleRate if the encoder doesn't take the rate of the audio mixer
+    private final int mCaptureSampleRate;
     private int mChannelConfig;
     private int mFormat = AudioFormat.ENCODING_PCM_16BIT;
     private AtomicBoolean mForceStop = new AtomicBoolean(false);
+    private boolean mPaused; // access in mRecordThread only!
     private BaseEncoder.Callback mCallback;
     private CallbackDelegate mCallbackDelegate;
     private int mChannelsSampleRate;
+    private final int mChannelCount;
+    private final AudioDriftCorrector mDriftCorrector;
     private MediaProjection mMediaProjection;
-    private SparseLongArray mFramesUsCache = new SparseLongArray(2);
+    // encoded buffers on their way to the callback thread
+    private final SampleRing mOutputRing = new SampleRing(RING_CAPACITY);
+    // indices of muxed buffers on their way back to mRecordThread
+    private final SampleRing mReleaseRing = new SampleRing(RING_CAPACITY);
+    private final AtomicBoolean mReleaseSignaled = new AtomicBoolean(false);
 
 
+    /**
+     * @param mediaProjection records the playback of other apps, null to record the microphone
+     */
     public AudioRecorder(AudioEncodeConfig config, MediaProjection mediaProjection) {
-        mEncoder = new AudioEncoder(config);
+        this(config, new AudioEncoder(config), new HandlerThread(TAG), true, mediaProjection);
+    }
+
+    /**
+     * @param encoder      encoder for {@code config}, maybe already configured
+     * @param recordThread thread to capture and encode on, maybe already started and
+     *                     shared with other recorders. The caller quits it after
+     *                     {@link #release()}.
+     */
+    AudioRecorder(AudioEncodeConfig config, AudioEncoder encoder, HandlerThread recordThread,
+                  MediaProjection mediaProjection) {
+        this(config, encoder, recordThread, false, mediaProjection);
+    }
+
+    private AudioRecorder(AudioEncodeConfig config, AudioEncoder encoder, HandlerThread recordThread,
+                          boolean quitRecordThread, MediaProjection mediaProjection) {
+        mEncoder = encoder;
         mSampleRate = config.sampleRate;
+        mCaptureSampleRate = config.captureSampleRate;
         mChannelsSampleRate = mSampleRate * config.channelCount;
+        mChannelCount = config.channelCount;
+        mDriftCorrector = new AudioDriftCorrector(mSampleRate, MAX_CLOCK_SLEW_PPM,
+                CLOCK_RESYNC_THRESHOLD_US);
         if (VERBOSE) Log.i(TAG, "in bitrate " + mChannelsSampleRate * 16 /* PCM_16BIT*/);
         mChannelConfig = config.channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
-        mRecordThread = new HandlerThread(TAG);
+        mRecordThread = recordThread;
+        mQuitRecordThread = quitRecordThread;
         mMediaProjection = mediaProjection;
+        mPcmRing = new PcmRing(PCM_RING_MS, mSampleRate, mChannelCount * 2 /* PCM_16BIT */);
+        mCaptureClock = createCaptureClock();
     }
 
+    private CaptureClock createCaptureClock() {
+        return new CaptureClock(mCaptureSampleRate, CAPTURE_GAP_THRESHOLD_US, MAX_CAPTURE_GAP_US);
+    }
+
+    private Capture createCapture(AudioRecord record, PcmRing ring, CaptureClock clock) {
+        int chunkFrames = mCaptureSampleRate * CAPTURE_CHUNK_MS / 1000;
+        Resampler resampler = mCaptureSampleRate == mSampleRate ? null
+                : new Resampler(mCaptureSampleRate, mSampleRate, mChannelCount, chunkFrames);
+        return new Capture(record, ring, clock, chunkFrames, resampler);
+    }
+
+    /**
+     * @param mediaProjection records the playback of other apps, null to record the microphone
+     */
     private static AudioRecord createAudioRecord(int sampleRateInHz, int channelConfig, int audioFormat, MediaProjection mediaProjection) {
         int minBytes = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
         if (minBytes <= 0) {
@@ -99,6 +192,11 @@ public class AudioRecorder implements Encoder {
                         .build())
                 .setBufferSizeInBytes(minBytes * 2);
 
+        if (mediaProjection == null) {
+            builder = builder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            return checkAudioRecord(builder.build(), sampleRateInHz, channelConfig, audioFormat, minBytes);
+        }
+
         // Set up internal audio recording
         AudioPlaybackCaptureConfiguration config =
                 new AudioPlaybackCaptureConfiguration.Builder(mediaProjection)
@@ -109,11 +207,15 @@ public class AudioRecorder implements Encoder {
                         .addMatchingUsage(AudioAttributes.USAGE_UNKNOWN)
                         .build();
         builder = builder.setAudioPlaybackCaptureConfig(config);
+        return checkAudioRecord(builder.build(), sampleRateInHz, channelConfig, audioFormat, minBytes);
+    }
 
-        AudioRecord record = builder.build();
+    private static AudioRecord checkAudioRecord(AudioRecord record, int sampleRateInHz,
+                                                int channelConfig, int audioFormat, int minBytes) {
         if (record.getState() == AudioRecord.STATE_UNINITIALIZED) {
             Log.e(TAG, String.format(Locale.US, "Bad arguments to new AudioRecord %d, %d, %d",
                     sampleRateInHz, channelConfig, audioFormat));
+            record.release();
             return null;
         }
         if (VERBOSE) {
@@ -132,12 +234,48 @@ public class AudioRecorder implements Encoder {
         this.mCallback = callback;
     }
 
+    /**
+     * Mix the microphone into the recorded internal audio, e.g. to narrate. Ignored
+     * when recording the microphone only. Must be called before {@link #prepare()}.
+     */
+    public void setMicrophoneEnabled(boolean enabled) {
+        mRecordMicrophone = enabled;
+    }
+
+    /**
+     * Runs {@code processor} on the recorded audio, before the microphone is mixed in.
+     * Its latency is taken off the timestamps. Must be called before {@link #prepare()}.
+     */
+    void setProcessor(AudioProcessor processor) {
+        mProcessor = processor;
+        mProcessorLatencyUs = processor != null
+                ? processor.getLatencyFrames() * 1000_000L / mSampleRate : 0;
+    }
+
+    /**
+     * Runs {@code processor} on the microphone mixed in, see {@link #setMicrophoneEnabled}.
+     * Must be called before {@link #prepare()}.
+     */
+    void setMicrophoneProcessor(AudioProcessor processor) {
+        mMicProcessor = processor;
+    }
+
+    /**
+     * Measures the audio fed to the encoder, after processing and mixing.
+     * Must be called before {@link #prepare()}.
+     */
+    void setLoudnessMeter(LoudnessMeter meter) {
+        mLoudnessMeter = meter;
+    }
+
     @Override
     public void prepare() throws IOException {
         Looper myLooper = Objects.requireNonNull(Looper.myLooper(), "Should prepare in HandlerThread");
         // run callback in caller thread
-        mCallbackDelegate = new CallbackDelegate(myLooper, mCallback);
-        mRecordThread.start();
+        mCallbackDelegate = new CallbackDelegate(myLooper, mCallback, mEncoder, mOutputRing);
+        if (!mRecordThread.isAlive()) {
+            mRecordThread.start();
+        }
         mRecordHandler = new RecordHandler(mRecordThread.getLooper());
         mRecordHandler.sendEmptyMessage(MSG_PREPARE);
     }
@@ -155,88 +293,365 @@ public class AudioRecorder implements Encoder {
     @Override
     public void release() {
         if (mRecordHandler != null) mRecordHandler.sendEmptyMessage(MSG_RELEASE);
-        mRecordThread.quitSafely();
+        if (mQuitRecordThread) mRecordThread.quitSafely();
+    }
+
+    /**
+     * Stops capturing, no input is fed to the encoder until {@link #resume()}.
+     */
+    public void pause() {
+        if (mRecordHandler != null) mRecordHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    /**
+     * Restarts capturing, timestamps continue from the capture clock.
+     */
+    public void resume() {
+        if (mRecordHandler != null) mRecordHandler.sendEmptyMessage(MSG_RESUME);
     }
 
+    /**
+     * Must be called from the thread that called {@link #prepare()}.
+     */
     public void releaseOutputBuffer(int index) {
         if (VERBOSE) Log.d(TAG, "audio encoder released output buffer index=" + index);
-        Message.obtain(mRecordHandler, MSG_RELEASE_OUTPUT, index, 0).sendToTarget();
+        if (!mReleaseRing.offer(index)) {
+            // can't happen, no more buffers than the ring holds are handed out
+            throw new IllegalStateException("Too many released output buffers");
+        }
+        if (mReleaseSignaled.compareAndSet(false, true)) {
+            mRecordHandler.sendEmptyMessage(MSG_RELEASE_OUTPUT);
+        }
+    }
+
+    AudioDriftCorrector getDriftCorrector() {
+        return mDriftCorrector;
+    }
+
+    /**
+     * @return number of captured buffers that didn't fit into the PCM ring completely
+     */
+    public long getOverrunCount() {
+        return mPcmRing.getOverrunCount();
+    }
+
+    /**
+     * @return number of captured frames lost because the encoder didn't keep up
+     */
+    public long getOverrunFrames() {
+        return mPcmRing.getOverrunFrames();
+    }
+
+    /**
+     * @return number of times the encoder wanted input and nothing was captured
+     */
+    public long getUnderrunCount() {
+        return mPcmRing.getUnderrunCount();
+    }
+
+    /**
+     * @return number of capture gaps filled with silence
+     */
+    public int getCaptureGapCount() {
+        return mCaptureClock.getGapCount();
+    }
+
+    /**
+     * @return frames of silence inserted for lost capture
+     */
+    public long getCaptureGapFrames() {
+        return mCaptureClock.getFilledFrames();
     }
 
     public ByteBuffer getOutputBuffer(int index) {
         return mEncoder.getOutputBuffer(index);
     }
 
+    // @RecordThread
+    private void startCapture() {
+        mCapture.start(TAG + (mMediaProjection != null ? "-Capture" : "-Mic"));
+        if (mMicCapture != null) {
+            mMicCapture.start(TAG + "-Mic");
+        }
+    }
+
+    // @RecordThread
+    private void stopCapture() {
+        mCapture.stop();
+        if (mMicCapture != null) {
+            mMicCapture.stop();
+        }
+    }
+
+    // @RecordThread
+    private void prepareMicrophone() {
+        AudioRecord record = createAudioRecord(mCaptureSampleRate, mChannelConfig, mFormat, null);
+        if (record == null) {
+            // still record the internal audio
+            Log.e(TAG, "create microphone record failure");
+            return;
+        }
+        mMicRing = new PcmRing(PCM_RING_MS, mSampleRate, mChannelCount * 2);
+        mMicCapture = createCapture(record, mMicRing, createCaptureClock());
+        mMixer = new AudioMixer(INTERNAL_MIX_GAIN, MIC_MIX_GAIN);
+        mMixInternal = new short[MIX_MAX_FRAMES * mChannelCount];
+        mMixMic = new short[MIX_MAX_FRAMES * mChannelCount];
+        mMixOut = new short[MIX_MAX_FRAMES * mChannelCount];
+        mMixInternalView = ShortBuffer.wrap(mMixInternal);
+        mMixMicView = ShortBuffer.wrap(mMixMic);
+        mMixOutView = ShortBuffer.wrap(mMixOut);
+    }
+
     /**
-     * NOTE: Should waiting all output buffer disappear queue input buffer
+     * Fills input buffer {@code index} from the PCM ring.
+     *
+     * @return false if nothing was captured, the buffer is kept
      */
-    private void feedAudioEncoder(int index) {
-        if (index < 0 || mForceStop.get()) return;
-        final AudioRecord r = Objects.requireNonNull(mMic, "maybe release");
-        final boolean eos = r.getRecordingState() == AudioRecord.RECORDSTATE_STOPPED;
+    private boolean feedAudioEncoder(int index) {
+        if (mMixer != null) {
+            return feedMixed(index);
+        }
         final ByteBuffer frame = mEncoder.getInputBuffer(index);
         int offset = frame.position();
-        int limit = frame.limit();
-        int read = 0;
-        if (!eos) {
-            read = r.read(frame, limit);
-            if (VERBOSE) Log.d(TAG, "Read frame data size " + read + " for index "
-                    + index + " buffer : " + offset + ", " + limit);
-            if (read < 0) {
-                read = 0;
+        long position = mPcmRing.getReadPosition();
+        int read = mPcmRing.read(frame);
+        if (read == 0) {
+            return false;
+        }
+        if (VERBOSE) Log.d(TAG, "Read frame data size " + read + " for index " + index);
+        if (mProcessor != null || mLoudnessMeter != null) {
+            ShortBuffer view = getInputView(index, frame);
+            int frames = read / (mChannelCount * 2);
+            if (mProcessor != null) {
+                mProcessor.process(view, offset >> 1, frames);
+            }
+            if (mLoudnessMeter != null) {
+                mLoudnessMeter.process(view, offset >> 1, frames);
             }
         }
 
-        long pstTs = calculateFrameTimestamp(read << 3);
+        long pstTs = calculateFrameTimestamp(read,
+                mPcmRing.getCaptureTimeNanos(position) / 1000 - mProcessorLatencyUs);
         int flags = BUFFER_FLAG_KEY_FRAME;
-
-        if (eos) {
-            flags = BUFFER_FLAG_END_OF_STREAM;
-        }
         // feed frame to encoder
         if (VERBOSE) Log.d(TAG, "Feed codec index=" + index + ", presentationTimeUs="
                 + pstTs + ", flags=" + flags);
         mEncoder.queueInputBuffer(index, offset, read, pstTs, flags);
+        return true;
     }
 
     /**
-     * Gets presentation time (us) of polled frame.
-     * 1 sample = 16 bit
+     * Fills input buffer {@code index} with internal audio and the microphone audio
+     * captured at the same time, mixed.
+     *
+     * @return false if no internal audio was captured, the buffer is kept
      */
-    private long calculateFrameTimestamp(int totalBits) {
-        int samples = totalBits >> 4;
-        long frameUs = mFramesUsCache.get(samples, -1);
-        if (frameUs == -1) {
-            frameUs = samples * 1000_000 / mChannelsSampleRate;
-            mFramesUsCache.put(samples, frameUs);
-        }
-        long timeUs = SystemClock.elapsedRealtimeNanos() / 1000;
-        // accounts the delay of polling the audio sample data
-        timeUs -= frameUs;
-        long currentUs;
-        long lastFrameUs = mFramesUsCache.get(LAST_FRAME_ID, -1);
-        if (lastFrameUs == -1) { // it's the first frame
-            currentUs = timeUs;
-        } else {
-            currentUs = lastFrameUs;
+    private boolean feedMixed(int index) {
+        final ByteBuffer frame = mEncoder.getInputBuffer(index);
+        int offset = frame.position();
+        long position = mPcmRing.getReadPosition();
+        int frames = mPcmRing.read(mMixInternal, 0,
+                Math.min((frame.limit() - offset) / (mChannelCount * 2), MIX_MAX_FRAMES));
+        if (frames == 0) {
+            return false;
         }
-        if (VERBOSE)
-            Log.i(TAG, "count samples pts: " + currentUs + ", time pts: " + timeUs + ", samples: " + samples);
-        // maybe too late to acquire sample data
-        if (timeUs - currentUs >= (frameUs << 1)) {
-            // reset
-            currentUs = timeUs;
+        long timeUs = mPcmRing.getCaptureTimeNanos(position) / 1000;
+        readAlignedMicrophone(timeUs, frames);
+        if (mProcessor != null) {
+            mProcessor.process(mMixInternalView, 0, frames);
+        }
+        if (mMicProcessor != null) {
+            // within MIX_ALIGN_TOLERANCE_MS, the latencies of both are not compensated
+            mMicProcessor.process(mMixMicView, 0, frames);
+        }
+        int samples = frames * mChannelCount;
+        mMixer.mix(mMixInternal, mMixMic, mMixOut, samples);
+        if (mLoudnessMeter != null) {
+            mLoudnessMeter.process(mMixOutView, 0, frames);
         }
-        mFramesUsCache.put(LAST_FRAME_ID, currentUs + frameUs);
+        frame.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < samples; i++) {
+            frame.putShort(offset + i * 2, mMixOut[i]);
+        }
+
+        long pstTs = calculateFrameTimestamp(samples * 2, timeUs - mProcessorLatencyUs);
+        if (VERBOSE) Log.d(TAG, "Feed codec index=" + index + ", presentationTimeUs="
+                + pstTs + ", mixed frames=" + frames);
+        mEncoder.queueInputBuffer(index, offset, samples * 2, pstTs, BUFFER_FLAG_KEY_FRAME);
+        return true;
+    }
+
+    /**
+     * @return native order view of input buffer {@code index} from its start
+     */
+    private ShortBuffer getInputView(int index, ByteBuffer buffer) {
+        if (index >= mInputViews.length) {
+            mInputBuffers = Arrays.copyOf(mInputBuffers, index + 1);
+            mInputViews = Arrays.copyOf(mInputViews, index + 1);
+        }
+        // the codec hands out the same buffer for an index until it's reconfigured
+        if (mInputBuffers[index] != buffer) {
+            ByteBuffer view = buffer.duplicate().order(ByteOrder.nativeOrder());
+            view.clear();
+            mInputBuffers[index] = buffer;
+            mInputViews[index] = view.asShortBuffer();
+        }
+        return mInputViews[index];
+    }
+
+    /**
+     * Reads the microphone frames captured along with {@code frames} internal frames
+     * from {@code timeUs} on into {@link #mMixMic}, silence where there are none.
+     */
+    private void readAlignedMicrophone(long timeUs, int frames) {
+        long micUs = mMicRing.getCaptureTimeNanos(mMicRing.getReadPosition()) / 1000;
+        long offsetFrames = (timeUs - micUs) * mSampleRate / 1000_000;
+        int lead = 0;
+        if (offsetFrames > (long) mSampleRate * MIX_ALIGN_TOLERANCE_MS / 1000) {
+            // the microphone is behind, drop what was captured before timeUs
+            mMicSkippedFrames += mMicRing.skip((int) Math.min(offsetFrames, Integer.MAX_VALUE));
+        } else if (-offsetFrames > (long) mSampleRate * MIX_ALIGN_TOLERANCE_MS / 1000) {
+            // the microphone starts later, pad with silence
+            lead = (int) Math.min(-offsetFrames, frames);
+            mMicPaddedFrames += lead;
+        }
+        int read = lead < frames ? mMicRing.read(mMixMic, lead * mChannelCount, frames - lead) : 0;
+        Arrays.fill(mMixMic, 0, lead * mChannelCount, (short) 0);
+        Arrays.fill(mMixMic, (lead + read) * mChannelCount, frames * mChannelCount, (short) 0);
+    }
+
+    /**
+     * Gets presentation time (us) of {@code bytes} of audio captured at {@code timeUs},
+     * in the {@link System#nanoTime()} clock video frames are stamped with.
+     * 1 sample = 16 bit
+     */
+    private long calculateFrameTimestamp(int bytes, long timeUs) {
+        int frames = (bytes >> 1) / mChannelCount;
+        long currentUs = mDriftCorrector.timestamp(frames, timeUs);
+        if (VERBOSE)
+            Log.i(TAG, "count samples pts: " + currentUs + ", time pts: " + timeUs + ", frames: " + frames);
         return currentUs;
     }
 
-    private static class CallbackDelegate extends Handler {
-        private BaseEncoder.Callback mCallback;
+    /**
+     * Reads one {@link AudioRecord} blocking into a PCM ring on its own thread, whether
+     * the encoder has input buffers or not. Captured audio is stamped by a
+     * {@link CaptureClock}, lost audio is replaced with silence. With a {@link Resampler}
+     * the ring gets audio at the encoder rate.
+     */
+    private static final class Capture implements Runnable {
+        final AudioRecord record;
+        private final PcmRing mRing;
+        private final CaptureClock mClock;
+        private final int mChunkFrames;
+        private final Resampler mResampler; // null if capturing at the encoder rate
+        private final AudioTimestamp mTimestamp = new AudioTimestamp();
+        private Thread mThread;
+        private volatile boolean mRunning;
+
+        Capture(AudioRecord record, PcmRing ring, CaptureClock clock, int chunkFrames,
+                Resampler resampler) {
+            this.record = record;
+            this.mRing = ring;
+            this.mClock = clock;
+            this.mChunkFrames = chunkFrames;
+            this.mResampler = resampler;
+        }
+
+        void start(String name) {
+            // the time paused isn't a gap
+            mClock.restart();
+            if (mResampler != null) {
+                mResampler.reset();
+            }
+            record.startRecording();
+            mRunning = true;
+            mThread = new Thread(this, name);
+            mThread.start();
+        }
+
+        void stop() {
+            final Thread thread = mThread;
+            if (thread == null) return;
+            mRunning = false;
+            // unblocks the pending read
+            record.stop();
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            mThread = null;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            final int frameSize = record.getChannelCount() * 2;
+            final int chunkBytes = mChunkFrames * frameSize;
+            final long sampleRate = record.getSampleRate();
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.nativeOrder());
+            final ShortBuffer chunkSamples = chunk.asShortBuffer();
+            final short[] input = mResampler == null ? null : new short[mChunkFrames * record.getChannelCount()];
+            final short[] output = mResampler == null ? null
+                    : new short[mResampler.getMaxOutputFrames() * record.getChannelCount()];
+            while (mRunning) {
+                chunk.clear();
+                int read = record.read(chunk, chunkBytes);
+                if (read < 0) {
+                    if (mRunning) Log.e(TAG, "Failed to read audio: " + read);
+                    break;
+                }
+                // read() doesn't move the position
+                chunk.limit(read);
+                int frames = read / frameSize;
+                mClock.onRead(frames, System.nanoTime());
+                if (record.getTimestamp(mTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                        == AudioRecord.SUCCESS) {
+                    mClock.onTimestamp(mTimestamp.framePosition, mTimestamp.nanoTime);
+                }
+                long endNanos = mClock.getReadEndNanos();
+                int gapFrames = mClock.takeGapFrames();
+                if (gapFrames > 0) {
+                    // lost right before this read, at most one read off
+                    mRing.writeSilence(mResampler == null ? gapFrames
+                                    : (int) (gapFrames * mRing.getSampleRate() / sampleRate),
+                            endNanos - frames * 1000_000_000L / sampleRate);
+                }
+                if (mResampler == null) {
+                    mRing.write(chunk, endNanos);
+                } else {
+                    chunkSamples.clear();
+                    chunkSamples.get(input, 0, read / 2);
+                    mRing.write(output, mResampler.process(input, frames, output), endNanos);
+                }
+            }
+        }
+    }
 
-        CallbackDelegate(Looper l, BaseEncoder.Callback callback) {
+    /**
+     * Runs the callback on the thread that prepared the recorder. Output buffers are
+     * handed over in a {@link SampleRing}, the message only wakes that thread up, so
+     * nothing is allocated per buffer.
+     */
+    private static class CallbackDelegate extends Handler {
+        private static final int MSG_OUTPUT_AVAILABLE = 0;
+        private final BaseEncoder.Callback mCallback;
+        private final BaseEncoder mEncoder;
+        private final SampleRing mOutputRing;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private final AtomicBoolean mSignaled = new AtomicBoolean(false);
+
+        CallbackDelegate(Looper l, BaseEncoder.Callback callback, BaseEncoder encoder,
+                         SampleRing outputRing) {
             super(l);
             this.mCallback = callback;
+            this.mEncoder = encoder;
+            this.mOutputRing = outputRing;
         }
 
 
@@ -256,21 +671,43 @@ public class AudioRecorder implements Encoder {
             }).sendToTarget();
         }
 
-        void onOutputBufferAvailable(BaseEncoder encoder, int index, MediaCodec.BufferInfo info) {
-            Message.obtain(this, () -> {
+        /**
+         * Called from the record thread after offering to the output ring.
+         */
+        void signalOutputAvailable() {
+            if (mSignaled.compareAndSet(false, true)) {
+                sendEmptyMessage(MSG_OUTPUT_AVAILABLE);
+            }
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_OUTPUT_AVAILABLE) {
+                return;
+            }
+            // clear first, buffers offered from now on signal again
+            mSignaled.set(false);
+            while (!mOutputRing.isEmpty()) {
+                int index = mOutputRing.peekIndex();
+                mInfo.set(mOutputRing.peekOffset(), mOutputRing.peekSize(),
+                        mOutputRing.peekPresentationTimeUs(), mOutputRing.peekFlags());
+                mOutputRing.remove();
                 if (mCallback != null) {
-                    mCallback.onOutputBufferAvailable(encoder, index, info);
+                    mCallback.onOutputBufferAvailable(mEncoder, index, mInfo);
                 }
-            }).sendToTarget();
+            }
         }
 
     }
 
     private class RecordHandler extends Handler {
 
-        private LinkedList<MediaCodec.BufferInfo> mCachedInfos = new LinkedList<>();
-        private LinkedList<Integer> mMuxingOutputBufferIndices = new LinkedList<>();
-        private int mPollRate = 2048_000 / mSampleRate; // poll per 2048 samples
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        // output buffers handed to the callback and not released yet
+        private int mMuxingOutputBuffers;
+        // input buffer waiting for captured audio
+        private int mInputIndex = -1;
+        private int mPollRate = 1024_000 / mSampleRate; // poll per 1024 samples
 
         RecordHandler(Looper l) {
             super(l);
@@ -280,14 +717,17 @@ public class AudioRecorder implements Encoder {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_PREPARE:
-                    AudioRecord r = createAudioRecord(mSampleRate, mChannelConfig, mFormat, mMediaProjection);
+                    AudioRecord r = createAudioRecord(mCaptureSampleRate, mChannelConfig, mFormat, mMediaProjection);
                     if (r == null) {
                         Log.e(TAG, "create audio record failure");
                         mCallbackDelegate.onError(AudioRecorder.this, new IllegalArgumentException());
                         break;
                     } else {
-                        r.startRecording();
-                        mMic = r;
+                        mCapture = createCapture(r, mPcmRing, mCaptureClock);
+                        if (mRecordMicrophone && mMediaProjection != null) {
+                            prepareMicrophone();
+                        }
+                        startCapture();
                     }
                     try {
                         mEncoder.prepare();
@@ -296,42 +736,72 @@ public class AudioRecorder implements Encoder {
                         break;
                     }
                 case MSG_FEED_INPUT:
-                    if (!mForceStop.get()) {
-                        int index = pollInput();
-                        if (VERBOSE)
-                            Log.d(TAG, "audio encoder returned input buffer index=" + index);
-                        if (index >= 0) {
-                            feedAudioEncoder(index);
-                            // tell encoder to eat the fresh meat!
-                            if (!mForceStop.get()) sendEmptyMessage(MSG_DRAIN_OUTPUT);
-                        } else {
-                            // try later...
-                            if (VERBOSE) Log.i(TAG, "try later to poll input buffer");
-                            sendEmptyMessageDelayed(MSG_FEED_INPUT, mPollRate);
-                        }
+                    removeMessages(MSG_FEED_INPUT);
+                    if (!mForceStop.get() && !mPaused) {
+                        feedInput();
+                        // tell encoder to eat the fresh meat!
+                        offerOutput();
+                        sendEmptyMessageDelayed(MSG_FEED_INPUT, mPollRate);
                     }
                     break;
-                case MSG_DRAIN_OUTPUT:
+                case MSG_RELEASE_OUTPUT:
+                    mReleaseSignaled.set(false);
+                    while (!mReleaseRing.isEmpty()) {
+                        mEncoder.releaseOutputBuffer(mReleaseRing.peekIndex());
+                        mReleaseRing.remove();
+                        mMuxingOutputBuffers--;
+                    }
+                    if (VERBOSE) Log.d(TAG, "audio encoder released output buffers, remaining="
+                            + mMuxingOutputBuffers);
                     offerOutput();
-                    pollInputIfNeed();
                     break;
-                case MSG_RELEASE_OUTPUT:
-                    mEncoder.releaseOutputBuffer(msg.arg1);
-                    mMuxingOutputBufferIndices.poll(); // Nobody care what it exactly is.
-                    if (VERBOSE) Log.d(TAG, "audio encoder released output buffer index="
-                            + msg.arg1 + ", remaining=" + mMuxingOutputBufferIndices.size());
-                    pollInputIfNeed();
+                case MSG_PAUSE:
+                    if (mPaused || mCapture == null) break;
+                    mPaused = true;
+                    removeMessages(MSG_FEED_INPUT);
+                    stopCapture();
+                    break;
+                case MSG_RESUME:
+                    if (!mPaused || mCapture == null || mForceStop.get()) break;
+                    // audio from before the pause
+                    mPcmRing.clear();
+                    if (mMicRing != null) {
+                        mMicRing.clear();
+                    }
+                    if (mProcessor != null) {
+                        mProcessor.reset();
+                    }
+                    if (mMicProcessor != null) {
+                        mMicProcessor.reset();
+                    }
+                    if (mLoudnessMeter != null) {
+                        mLoudnessMeter.reset();
+                    }
+                    startCapture();
+                    // don't count the pause as lost samples
+                    mDriftCorrector.reset();
+                    mPaused = false;
+                    sendEmptyMessage(MSG_FEED_INPUT);
                     break;
                 case MSG_STOP:
-                    if (mMic != null) {
-                        mMic.stop();
+                    if (mCapture != null) {
+                        stopCapture();
                     }
                     mEncoder.stop();
                     break;
                 case MSG_RELEASE:
-                    if (mMic != null) {
-                        mMic.release();
-                        mMic = null;
+                    if (mCapture != null) {
+                        stopCapture();
+                        mCapture.record.release();
+                        mCapture = null;
+                    }
+                    if (mMicCapture != null) {
+                        mMicCapture.record.release();
+                        mMicCapture = null;
+                        Log.i(TAG, "Mixer stats: compressed=" + mMixer.getCompressedSamples()
+                                + ", micSkipped=" + mMicSkippedFrames
+                                + ", micPadded=" + mMicPaddedFrames
+                                + ", micOverrunFrames=" + mMicRing.getOverrunFrames());
                     }
                     mEncoder.release();
                     break;
@@ -339,37 +809,49 @@ public class AudioRecorder implements Encoder {
         }
 
         private void offerOutput() {
-            while (!mForceStop.get()) {
-                MediaCodec.BufferInfo info = mCachedInfos.poll();
-                if (info == null) {
-                    info = new MediaCodec.BufferInfo();
-                }
-                int index = mEncoder.getEncoder().dequeueOutputBuffer(info, 1);
+            // never hand out more buffers than the rings hold
+            while (!mForceStop.get() && mMuxingOutputBuffers < RING_CAPACITY) {
+                int index = mEncoder.getEncoder().dequeueOutputBuffer(mInfo, 1);
                 if (VERBOSE) Log.d(TAG, "audio encoder returned output buffer index=" + index);
                 if (index == INFO_OUTPUT_FORMAT_CHANGED) {
                     mCallbackDelegate.onOutputFormatChanged(mEncoder, mEncoder.getEncoder().getOutputFormat());
                 }
                 if (index < 0) {
-                    info.set(0, 0, 0, 0);
-                    mCachedInfos.offer(info);
                     break;
                 }
-                mMuxingOutputBufferIndices.offer(index);
-                mCallbackDelegate.onOutputBufferAvailable(mEncoder, index, info);
+                mOutputRing.offer(index, mInfo.offset, mInfo.size, mInfo.presentationTimeUs, mInfo.flags);
+                mMuxingOutputBuffers++;
+                mCallbackDelegate.signalOutputAvailable();
 
             }
         }
 
-        private int pollInput() {
-            return mEncoder.getEncoder().dequeueInputBuffer(0);
+        /**
+         * Moves everything captured so far into as many input buffers as the encoder has.
+         */
+        private void feedInput() {
+            boolean fed = false;
+            while (!fed || mPcmRing.available() > 0) {
+                if (mInputIndex < 0) {
+                    mInputIndex = pollInput();
+                    if (VERBOSE)
+                        Log.d(TAG, "audio encoder returned input buffer index=" + mInputIndex);
+                }
+                if (mInputIndex < 0) {
+                    // encoder is busy, the ring keeps capturing meanwhile
+                    break;
+                }
+                if (!feedAudioEncoder(mInputIndex)) {
+                    // nothing captured since the last poll, counted as underrun
+                    break;
+                }
+                mInputIndex = -1;
+                fed = true;
+            }
         }
 
-        private void pollInputIfNeed() {
-            if (mMuxingOutputBufferIndices.size() <= 1 && !mForceStop.get()) {
-                // need fresh data, right now!
-                removeMessages(MSG_FEED_INPUT);
-                sendEmptyMessageDelayed(MSG_FEED_INPUT, 0);
-            }
+        private int pollInput() {
+            return mEncoder.getEncoder().dequeueInputBuffer(0);
         }
     }
 
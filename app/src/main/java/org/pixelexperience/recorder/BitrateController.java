@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder;
+
+/**
+ * Picks the video bitrate once per interval of encoded media from what the encoder
+ * produced and how far the sink is behind.
+ * <p>
+ * An encoder spending far less than its budget, or whose predicted frames are tiny
+ * compared to its key frames, is looking at a mostly static screen: the target is
+ * lowered towards twice the spent rate. An encoder using up its budget with sizeable
+ * predicted frames is looking at motion: the target is raised. A sink falling behind
+ * always lowers the target. Targets stay within the configured bounds.
+ * <p>
+ * Each change moves the target by a step and is then held for some intervals. The
+ * encoder's rate control averages over about a second, so the interval after a change
+ * still mixes the old and new target and says nothing about the new one; with the
+ * default single held interval the next decision is made on one clean interval. A
+ * step of 20% every two seconds takes a 4x ramp-up about 16 seconds: bigger steps or
+ * no hold overshoot on short bursts of motion and, with a backlogged sink, oscillate.
+ * <p>
+ * Pure Java and driven only by its inputs, so recorded traces replay identically.
+ * Not thread safe.
+ */
+class BitrateController {
+    static final long INTERVAL_US = 1000_000;
+    static final int DEFAULT_STEP_PERCENT = 20;
+    static final int DEFAULT_HOLD_INTERVALS = 1;
+    // spent below this share of the target: the content is easy
+    private static final int LOW_UTILIZATION_PERCENT = 40;
+    // spent at least this share of the target: the encoder wants more
+    private static final int HIGH_UTILIZATION_PERCENT = 90;
+    // average key frame at least this many times a predicted frame: static content
+    private static final int STATIC_KEY_FRAME_RATIO = 12;
+    private static final int STATIC_UTILIZATION_PERCENT = 70;
+    // sink queue filled beyond this share of its capacity backs off
+    private static final int BACKLOG_PERCENT = 50;
+    // ignore changes smaller than this share of the target
+    private static final int MIN_CHANGE_PERCENT = 5;
+
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final int mStepPercent;
+    private final int mHoldIntervals;
+    private int mBitrate;
+    private long mIntervalStartUs = -1;
+    private long mBytes;
+    private long mKeyFrameBytes;
+    private int mKeyFrames;
+    private long mPredictedBytes;
+    private int mPredictedFrames;
+    private int mMaxBacklogPercent;
+    private int mHold;
+
+    private int mIncreases;
+    private int mDecreases;
+
+    BitrateController(int initialBitrate, int minBitrate, int maxBitrate) {
+        this(initialBitrate, minBitrate, maxBitrate, DEFAULT_STEP_PERCENT, DEFAULT_HOLD_INTERVALS);
+    }
+
+    /**
+     * @param stepPercent   how much a single change moves the target, 1..99
+     * @param holdIntervals intervals to wait after a change before the next one
+     */
+    BitrateController(int initialBitrate, int minBitrate, int maxBitrate, int stepPercent,
+            int holdIntervals) {
+        if (minBitrate <= 0 || minBitrate > maxBitrate) {
+            throw new IllegalArgumentException("Invalid bounds: " + minBitrate + ".." + maxBitrate);
+        }
+        if (stepPercent <= 0 || stepPercent >= 100 || holdIntervals < 0) {
+            throw new IllegalArgumentException("Invalid step: " + stepPercent + "% held "
+                    + holdIntervals);
+        }
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mStepPercent = stepPercent;
+        mHoldIntervals = holdIntervals;
+        mBitrate = clamp(initialBitrate);
+    }
+
+    /**
+     * @param ptsUs              presentation time of an encoded video frame, non decreasing
+     * @param sinkBacklogPercent how full the sink queue is, 0..100
+     * @return the bitrate to switch to, or 0 to keep the current one
+     */
+    int onFrame(long ptsUs, int size, boolean keyFrame, int sinkBacklogPercent) {
+        if (mIntervalStartUs < 0) {
+            mIntervalStartUs = ptsUs;
+        }
+        int bitrate = 0;
+        long elapsedUs = ptsUs - mIntervalStartUs;
+        if (elapsedUs >= INTERVAL_US) {
+            bitrate = evaluate(elapsedUs);
+            mIntervalStartUs = ptsUs;
+            mBytes = 0;
+            mKeyFrameBytes = 0;
+            mKeyFrames = 0;
+            mPredictedBytes = 0;
+            mPredictedFrames = 0;
+            mMaxBacklogPercent = 0;
+        }
+        mBytes += size;
+        if (keyFrame) {
+            mKeyFrameBytes += size;
+            mKeyFrames++;
+        } else {
+            mPredictedBytes += size;
+            mPredictedFrames++;
+        }
+        mMaxBacklogPercent = Math.max(mMaxBacklogPercent, sinkBacklogPercent);
+        return bitrate;
+    }
+
+    private int evaluate(long elapsedUs) {
+        long spent = mBytes * 8 * 1000_000 / elapsedUs;
+        long utilization = spent * 100 / mBitrate;
+        // in long, a step up from a high bitrate overflows an int
+        long target = mBitrate;
+        if (mMaxBacklogPercent >= BACKLOG_PERCENT) {
+            // the sink can't keep up, even if on hold
+            target = (long) mBitrate * (100 - mStepPercent) / 100;
+        } else if (mHold > 0) {
+            mHold--;
+            return 0;
+        } else if (utilization < LOW_UTILIZATION_PERCENT
+                || (isStatic() && utilization < STATIC_UTILIZATION_PERCENT)) {
+            target = Math.max(spent * 2, (long) mBitrate * (100 - mStepPercent) / 100);
+        } else if (utilization >= HIGH_UTILIZATION_PERCENT && !isStatic()) {
+            target = (long) mBitrate * (100 + mStepPercent) / 100;
+        }
+        int bitrate = clamp(target);
+        if (Math.abs((long) bitrate - mBitrate) * 100 < (long) mBitrate * MIN_CHANGE_PERCENT) {
+            return 0;
+        }
+        if (bitrate > mBitrate) {
+            mIncreases++;
+        } else {
+            mDecreases++;
+        }
+        mBitrate = bitrate;
+        mHold = mHoldIntervals;
+        return bitrate;
+    }
+
+    private boolean isStatic() {
+        if (mKeyFrames == 0 || mPredictedFrames == 0) {
+            return false;
+        }
+        long keyAverage = mKeyFrameBytes / mKeyFrames;
+        long predictedAverage = Math.max(1, mPredictedBytes / mPredictedFrames);
+        return keyAverage >= predictedAverage * STATIC_KEY_FRAME_RATIO;
+    }
+
+    private int clamp(long bitrate) {
+        return (int) Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+    }
+
+    int getBitrate() {
+        return mBitrate;
+    }
+
+    int getIncreases() {
+        return mIncreases;
+    }
+
+    int getDecreases() {
+        return mDecreases;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder;
+
+/**
+ * Capture time of recorded audio, anchored on the timestamps the audio HAL reports
+ * ({@code AudioRecord.getTimestamp()} in the monotonic time base, the clock of
+ * {@link System#nanoTime()}) and advanced by counting frames.
+ * <p>
+ * Every timestamp is compared against the line through the previous ones. Small
+ * differences are jitter and only move the line by a fraction, so capture times stay
+ * smooth. A timestamp later than the line by {@code gapThresholdUs} or more means the
+ * capture lost frames: the missing time is handed out by {@link #takeGapFrames()} to
+ * be filled with silence, which keeps counted time in step with the capture. Gaps
+ * longer than {@code maxGapUs}, and timestamps earlier than the line, only move it.
+ * <p>
+ * Until the first timestamp arrives the times reads return at stand in, without gap
+ * detection.
+ * <p>
+ * Pure Java and driven only by its inputs. Updated from the capture thread,
+ * stats may be read from any thread.
+ */
+class CaptureClock {
+    // exponential moving average over 2^3 timestamps
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final int mSampleRate;
+    private final long mGapThresholdNanos;
+    private final long mMaxGapNanos;
+    // frames read since the record was created, counted like the timestamp positions
+    private long mFrames;
+    // capture time of frame mAnchorPosition
+    private long mAnchorPosition;
+    private long mAnchorNanos;
+    private boolean mAnchored;
+    private boolean mTimestamped;
+    private int mGapFrames;
+
+    private volatile int mGapCount;
+    private volatile long mFilledFrames;
+    private volatile long mMaxJitterNanos;
+
+    /**
+     * @param sampleRate     frames per second
+     * @param gapThresholdUs timestamps at least this much later than expected are gaps
+     * @param maxGapUs       longest gap filled with silence
+     */
+    CaptureClock(int sampleRate, long gapThresholdUs, long maxGapUs) {
+        mSampleRate = sampleRate;
+        mGapThresholdNanos = gapThresholdUs * 1000;
+        mMaxGapNanos = maxGapUs * 1000;
+    }
+
+    /**
+     * Forgets the line, e.g. when capturing restarts after a pause, so the pause isn't
+     * taken for a gap. Frames keep counting.
+     */
+    void restart() {
+        mAnchored = false;
+        mTimestamped = false;
+        mGapFrames = 0;
+    }
+
+    /**
+     * @param frames   frames just read
+     * @param nowNanos when the read returned
+     */
+    void onRead(int frames, long nowNanos) {
+        mFrames += frames;
+        if (mTimestamped) {
+            return;
+        }
+        if (!mAnchored) {
+            anchor(mFrames, nowNanos);
+        } else {
+            update(mFrames, nowNanos, false);
+        }
+    }
+
+    /**
+     * @param framePosition position of the frame captured at {@code nanoTime}, in frames
+     *                      read since the record was created
+     */
+    void onTimestamp(long framePosition, long nanoTime) {
+        if (!mTimestamped) {
+            // the read times are late by the buffered audio at most, timestamps that
+            // disagree more don't count frames like the reads do
+            if (mAnchored && Math.abs(nanoTime - timeOf(framePosition)) > mMaxGapNanos) {
+                return;
+            }
+            mTimestamped = true;
+            anchor(framePosition, nanoTime);
+            return;
+        }
+        update(framePosition, nanoTime, true);
+    }
+
+    /**
+     * @return capture time of the end of the frames read so far
+     */
+    long getReadEndNanos() {
+        return timeOf(mFrames);
+    }
+
+    /**
+     * @return frames of silence that belong in front of the last read, once
+     */
+    int takeGapFrames() {
+        int frames = mGapFrames;
+        mGapFrames = 0;
+        return frames;
+    }
+
+    boolean isTimestamped() {
+        return mTimestamped;
+    }
+
+    /**
+     * @return number of gaps filled with silence
+     */
+    int getGapCount() {
+        return mGapCount;
+    }
+
+    long getFilledFrames() {
+        return mFilledFrames;
+    }
+
+    /**
+     * @return largest difference between a timestamp and the line that was smoothed out
+     */
+    long getMaxJitterUs() {
+        return mMaxJitterNanos / 1000;
+    }
+
+    private long timeOf(long position) {
+        return mAnchorNanos + (position - mAnchorPosition) * 1000_000_000L / mSampleRate;
+    }
+
+    private void anchor(long position, long nanos) {
+        mAnchorPosition = position;
+        mAnchorNanos = nanos;
+        mAnchored = true;
+    }
+
+    private void update(long position, long nanos, boolean detectGaps) {
+        long expectedNanos = timeOf(position);
+        long diffNanos = nanos - expectedNanos;
+        if (Math.abs(diffNanos) >= mGapThresholdNanos) {
+            if (detectGaps && diffNanos > 0 && diffNanos <= mMaxGapNanos) {
+                int frames = (int) (diffNanos * mSampleRate / 1000_000_000L);
+                mGapFrames += frames;
+                mFilledFrames += frames;
+                mGapCount++;
+            }
+            anchor(position, nanos);
+            return;
+        }
+        if (Math.abs(diffNanos) > mMaxJitterNanos) {
+            mMaxJitterNanos = Math.abs(diffNanos);
+        }
+        anchor(position, expectedNanos + (diffNanos >> SMOOTHING_SHIFT));
+    }
+}
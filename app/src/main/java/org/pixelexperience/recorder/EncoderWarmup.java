@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import org.pixelexperience.recorder.encoders.AudioEncodeConfig;
+import org.pixelexperience.recorder.encoders.AudioEncoder;
+import org.pixelexperience.recorder.encoders.EncoderConfig;
+import org.pixelexperience.recorder.encoders.Encoder;
+import org.pixelexperience.recorder.encoders.VideoEncodeConfig;
+import org.pixelexperience.recorder.encoders.VideoEncoder;
+import org.pixelexperience.recorder.utils.PreferenceUtils;
+import org.pixelexperience.recorder.utils.Utils;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Configures the encoders of the next recording ahead of time, while the user is
+ * still at the tile or the capture consent dialog, so starting a recording only has
+ * to start the codecs. Encoders nobody claims are released after {@link #IDLE_TIMEOUT_MS}.
+ * <p>
+ * Call from the main thread.
+ */
+final class EncoderWarmup {
+    private static final String TAG = "EncoderWarmup";
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sReleaseIdle = () -> {
+        Encoders encoders = take();
+        if (encoders != null) {
+            Log.i(TAG, "Releasing idle encoders");
+            encoders.release();
+        }
+    };
+    private static Encoders sWarm;
+
+    private EncoderWarmup() {
+    }
+
+    /**
+     * Starts configuring encoders for the current display if there are none yet,
+     * and restarts the idle timeout.
+     */
+    static void warmUp(Context context) {
+        if (Utils.isRecording()) {
+            return;
+        }
+        sMainHandler.removeCallbacks(sReleaseIdle);
+        sMainHandler.postDelayed(sReleaseIdle, IDLE_TIMEOUT_MS);
+        synchronized (EncoderWarmup.class) {
+            if (sWarm == null) {
+                sWarm = new Encoders(context.getApplicationContext());
+            }
+        }
+    }
+
+    /**
+     * Hands over the warm encoders if they are configured already, for exactly
+     * {@code video} and {@code audio}, otherwise releases them. Never waits for
+     * encoders still being configured, the recording then starts cold.
+     *
+     * @return null if there are no usable warm encoders
+     */
+    static Encoders claim(VideoEncodeConfig video, AudioEncodeConfig audio) {
+        sMainHandler.removeCallbacks(sReleaseIdle);
+        Encoders encoders = take();
+        if (encoders == null) {
+            return null;
+        }
+        if (!encoders.isReady()) {
+            // released on the worker once configured
+            Log.i(TAG, "Warm encoders not ready yet");
+            encoders.release();
+            return null;
+        }
+        if (!video.equals(encoders.videoConfig) || !Objects.equals(audio, encoders.audioConfig)) {
+            // e.g. the display was rotated since
+            Log.i(TAG, "Warm encoders don't match " + video + ", " + audio);
+            encoders.release();
+            return null;
+        }
+        return encoders;
+    }
+
+    private static synchronized Encoders take() {
+        Encoders encoders = sWarm;
+        sWarm = null;
+        return encoders;
+    }
+
+    /**
+     * Configured but not started encoders and the threads they belong to.
+     */
+    static final class Encoders {
+        // the recorder worker, video codec callbacks are delivered on its looper
+        final HandlerThread worker = new HandlerThread(ScreenRecorder.class.getSimpleName());
+        final HandlerThread audioThread = new HandlerThread(AudioRecorder.class.getSimpleName());
+        VideoEncodeConfig videoConfig;
+        AudioEncodeConfig audioConfig;
+        VideoEncoder video;
+        AudioEncoder audio;
+        // set once configured, publishes the fields above
+        private volatile boolean mReady;
+        private boolean mFailed;
+
+        private Encoders(Context context) {
+            worker.start();
+            audioThread.start();
+            new Handler(worker.getLooper()).post(() -> configure(context));
+        }
+
+        private void configure(Context context) {
+            long startNanos = System.nanoTime();
+            try {
+                // probing the codecs is slow the first time, keep it off the main thread
+                EncoderConfig config = new EncoderConfig(context);
+                PreferenceUtils prefs = new PreferenceUtils(context);
+                config.setVariableFrameRate(prefs.getVariableFrameRate());
+                config.setOutputFormat(prefs.getOutputFormat());
+                config.setAvcOnly(prefs.getFragmentedOutput() || prefs.getJournaledOutput());
+                videoConfig = config.getVideoConfig();
+                audioConfig = config.getAudioConfig();
+                video = new VideoEncoder(videoConfig);
+                // replaced by the recorder before the codec is started
+                video.setCallback(new VideoEncoder.Callback() {
+                    @Override
+                    public void onError(Encoder encoder, Exception exception) {
+                        Log.w(TAG, "Warm video encoder failed", exception);
+                    }
+                });
+                video.configure();
+                audio = new AudioEncoder(audioConfig);
+                audio.configure();
+                Log.i(TAG, "Encoders configured in "
+                        + (System.nanoTime() - startNanos) / 1000_000 + "ms");
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to configure encoders", e);
+                mFailed = true;
+            }
+            mReady = true;
+        }
+
+        private boolean isReady() {
+            return mReady && !mFailed;
+        }
+
+        void release() {
+            new Handler(worker.getLooper()).post(() -> {
+                if (video != null) {
+                    video.release();
+                }
+                if (audio != null) {
+                    audio.release();
+                }
+            });
+            worker.quitSafely();
+            audioThread.quitSafely();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Scales the samples by a gain, saturating at full scale. Gain changes are ramped over
+ * one buffer to avoid clicks. Put a {@link LookaheadLimiter} with a ceiling lowered by
+ * the gain in front of it to boost without clipping.
+ */
+class GainProcessor implements AudioProcessor {
+    private final int mChannels;
+    private float mGain;
+    private float mTargetGain;
+
+    GainProcessor(int channels, float gainDb) {
+        mChannels = channels;
+        mGain = mTargetGain = dbToGain(gainDb);
+    }
+
+    static float dbToGain(float db) {
+        return (float) Math.pow(10, db / 20);
+    }
+
+    /**
+     * Changes the gain from the next buffer on. Call on the processing thread.
+     */
+    void setGainDb(float gainDb) {
+        mTargetGain = dbToGain(gainDb);
+    }
+
+    @Override
+    public void process(ShortBuffer buffer, int offset, int frames) {
+        if (mGain == mTargetGain) {
+            if (mGain == 1f) return;
+            int end = offset + frames * mChannels;
+            for (int i = offset; i < end; i++) {
+                buffer.put(i, saturate(buffer.get(i) * mGain));
+            }
+            return;
+        }
+        float step = (mTargetGain - mGain) / frames;
+        float gain = mGain;
+        for (int f = 0, i = offset; f < frames; f++) {
+            gain += step;
+            for (int c = 0; c < mChannels; c++, i++) {
+                buffer.put(i, saturate(buffer.get(i) * gain));
+            }
+        }
+        mGain = mTargetGain;
+    }
+
+    private static short saturate(float sample) {
+        if (sample >= Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (sample <= Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) sample;
+    }
+
+    @Override
+    public int getLatencyFrames() {
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        mGain = mTargetGain;
+    }
+}
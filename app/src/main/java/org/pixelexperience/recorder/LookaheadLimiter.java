@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps peaks below a ceiling without clipping. The audio is delayed by the lookahead,
+ * so the gain can glide down before a peak arrives instead of cutting it.
+ * <p>
+ * Per frame the gain bringing its peak down to the ceiling is computed. The minimum of
+ * that gain over the lookahead window is averaged over the lookahead, which reaches the
+ * gain a peak needs exactly when it leaves the delay line. Once the peak is gone the
+ * gain recovers with the release time.
+ */
+class LookaheadLimiter implements AudioProcessor {
+    private final int mChannels;
+    private final int mLookahead;
+    private float mCeiling;
+    private final float mReleaseCoeff;
+    // the last mLookahead input frames, the oldest at mDelayFrame
+    private final short[] mDelay;
+    private int mDelayFrame;
+    // sliding minimum of the required gain over mLookahead + 1 frames, increasing
+    // from head to tail
+    private final float[] mMinGains;
+    private final long[] mMinFrames;
+    private int mMinHead;
+    private int mMinSize;
+    private long mFrame;
+    // moving average of the sliding minimum over mLookahead frames
+    private final float[] mAverageGains;
+    private int mAverageIndex;
+    private double mAverageSum;
+    private float mGain;
+
+    /**
+     * @param ceilingDb highest output level, in dB of full scale
+     */
+    LookaheadLimiter(int sampleRate, int channels, float lookaheadMs, float releaseMs,
+                     float ceilingDb) {
+        mChannels = channels;
+        mLookahead = Math.max(1, (int) (lookaheadMs * sampleRate / 1000));
+        mCeiling = GainProcessor.dbToGain(ceilingDb) * Short.MAX_VALUE;
+        mReleaseCoeff = (float) (1 - Math.exp(-1000 / (releaseMs * sampleRate)));
+        mDelay = new short[mLookahead * channels];
+        mMinGains = new float[mLookahead + 1];
+        mMinFrames = new long[mLookahead + 1];
+        mAverageGains = new float[mLookahead];
+        reset();
+    }
+
+    /**
+     * Changes the ceiling from the next buffer on. Call on the processing thread.
+     */
+    void setCeilingDb(float ceilingDb) {
+        mCeiling = GainProcessor.dbToGain(ceilingDb) * Short.MAX_VALUE;
+    }
+
+    @Override
+    public void process(ShortBuffer buffer, int offset, int frames) {
+        float gain = mGain;
+        int capacity = mMinGains.length;
+        for (int f = 0, i = offset; f < frames; f++, i += mChannels) {
+            int peak = 0;
+            for (int c = 0; c < mChannels; c++) {
+                peak = Math.max(peak, Math.abs(buffer.get(i + c)));
+            }
+            float required = peak > mCeiling ? mCeiling / peak : 1f;
+
+            // sliding minimum: drop what's too old, and what's larger than the new gain
+            if (mMinSize > 0 && mMinFrames[mMinHead] <= mFrame - capacity) {
+                if (++mMinHead == capacity) mMinHead = 0;
+                mMinSize--;
+            }
+            int tail = mMinHead + mMinSize;
+            if (tail >= capacity) tail -= capacity;
+            while (mMinSize > 0) {
+                int last = tail == 0 ? capacity - 1 : tail - 1;
+                if (mMinGains[last] < required) break;
+                tail = last;
+                mMinSize--;
+            }
+            mMinGains[tail] = required;
+            mMinFrames[tail] = mFrame;
+            mMinSize++;
+            float minimum = mMinGains[mMinHead];
+            mFrame++;
+
+            mAverageSum += minimum - mAverageGains[mAverageIndex];
+            mAverageGains[mAverageIndex] = minimum;
+            if (++mAverageIndex == mLookahead) mAverageIndex = 0;
+            float target = (float) (mAverageSum / mLookahead);
+            // attack instantly, the average already ramps, release smoothly
+            gain = target < gain ? target : gain + (target - gain) * mReleaseCoeff;
+
+            // swap the frame with the one leaving the delay line
+            int d = mDelayFrame * mChannels;
+            for (int c = 0; c < mChannels; c++) {
+                short in = buffer.get(i + c);
+                buffer.put(i + c, (short) (mDelay[d + c] * gain));
+                mDelay[d + c] = in;
+            }
+            if (++mDelayFrame == mLookahead) mDelayFrame = 0;
+        }
+        mGain = gain;
+    }
+
+    @Override
+    public int getLatencyFrames() {
+        return mLookahead;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mDelay, (short) 0);
+        mDelayFrame = 0;
+        mMinHead = 0;
+        mMinSize = 0;
+        mFrame = 0;
+        Arrays.fill(mAverageGains, 1f);
+        mAverageIndex = 0;
+        mAverageSum = mLookahead;
+        mGain = 1f;
+    }
+}
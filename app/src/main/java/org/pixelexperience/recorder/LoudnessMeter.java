@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures the loudness of the audio passing through as specified by ITU-R BS.1770-4
+ * and EBU R 128, without changing it: momentary, short-term and gated integrated
+ * loudness in LUFS, sample and true peak in dB of full scale.
+ * <p>
+ * The audio is K-weighted and its mean square summed in 100ms steps. Each step ends a
+ * 400ms block, whose loudness goes into a histogram of 0.1 LU bins for the gating, so
+ * the memory doesn't grow with the length of the program. The true peak is found by
+ * oversampling 4 times with a polyphase FIR below 96kHz.
+ * <p>
+ * {@link #reset()} forgets the filter and block state, e.g. when a pause splices the
+ * audio, but keeps the integrated loudness and peaks of the whole program.
+ */
+class LoudnessMeter implements AudioProcessor {
+    private static final double ABSOLUTE_GATE_LUFS = -70;
+    private static final double RELATIVE_GATE_LU = -10;
+    private static final int STEP_MS = 100;
+    private static final int MOMENTARY_STEPS = 4;
+    private static final int SHORT_TERM_STEPS = 30;
+    private static final double HISTOGRAM_BIN_LU = 0.1;
+    private static final double HISTOGRAM_MAX_LUFS = 10;
+    private static final int HISTOGRAM_BINS =
+            (int) ((HISTOGRAM_MAX_LUFS - ABSOLUTE_GATE_LUFS) / HISTOGRAM_BIN_LU);
+    private static final int TRUE_PEAK_TAPS = 12;
+
+    private final int mChannels;
+    private final int mStepFrames;
+    // K-weighting: high shelf then high pass, same coefficients for all channels
+    private final double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+    private final double mPassA1, mPassA2;
+    // per channel: shelf z1, shelf z2, high pass z1, high pass z2
+    private final double[] mFilterState;
+    // mean square of the last SHORT_TERM_STEPS steps, the latest at mStepIndex - 1
+    private final double[] mSteps = new double[SHORT_TERM_STEPS];
+    private int mStepIndex;
+    private int mStepCount;
+    private double mStepSum;
+    private int mStepFramesDone;
+    // blocks above the absolute gate: count and summed mean square per loudness bin
+    private final int[] mBlockCounts = new int[HISTOGRAM_BINS];
+    private final double[] mBlockEnergies = new double[HISTOGRAM_BINS];
+    private long mGatedBlocks;
+    private double mGatedEnergy;
+    // interpolation filter, mOversampling phases of TRUE_PEAK_TAPS taps each
+    private final int mOversampling;
+    private final float[] mInterpolator;
+    // per channel: the last TRUE_PEAK_TAPS samples twice, so they are contiguous from
+    // mHistoryIndex on
+    private final float[] mHistory;
+    private int mHistoryIndex;
+    private volatile float mSamplePeak;
+    private volatile float mTruePeak;
+
+    LoudnessMeter(int sampleRate, int channels) {
+        mChannels = channels;
+        mStepFrames = sampleRate * STEP_MS / 1000;
+
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double q = 0.7071752369554196;
+        double a0 = 1 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2 * (k * k - 1) / a0;
+        mShelfA2 = (1 - k / q + k * k) / a0;
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        mPassA1 = 2 * (k * k - 1) / a0;
+        mPassA2 = (1 - k / q + k * k) / a0;
+        mFilterState = new double[channels * 4];
+
+        mOversampling = sampleRate < 96000 ? 4 : sampleRate < 192000 ? 2 : 1;
+        mInterpolator = createInterpolator(mOversampling);
+        mHistory = new float[channels * TRUE_PEAK_TAPS * 2];
+    }
+
+    /**
+     * Windowed sinc low pass at the original Nyquist frequency, phase p at
+     * {@code p * TRUE_PEAK_TAPS}, taps in the order of the history, oldest first.
+     */
+    private static float[] createInterpolator(int phases) {
+        int length = phases * TRUE_PEAK_TAPS;
+        float[] taps = new float[length];
+        double center = (length - 1) / 2.0;
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            double[] phase = new double[TRUE_PEAK_TAPS];
+            for (int t = 0; t < TRUE_PEAK_TAPS; t++) {
+                // tap t of phase p weights the sample TRUE_PEAK_TAPS - 1 - t before the newest
+                int n = (TRUE_PEAK_TAPS - 1 - t) * phases + p;
+                double x = (n - center) / phases;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+                // Blackman
+                double w = 0.42 - 0.5 * Math.cos(2 * Math.PI * (n + 0.5) / length)
+                        + 0.08 * Math.cos(4 * Math.PI * (n + 0.5) / length);
+                phase[t] = sinc * w;
+                sum += phase[t];
+            }
+            // unity gain at DC for every phase
+            for (int t = 0; t < TRUE_PEAK_TAPS; t++) {
+                taps[p * TRUE_PEAK_TAPS + t] = (float) (phase[t] / sum);
+            }
+        }
+        return taps;
+    }
+
+    @Override
+    public void process(ShortBuffer buffer, int offset, int frames) {
+        float samplePeak = mSamplePeak;
+        float truePeak = mTruePeak;
+        for (int f = 0, i = offset; f < frames; f++, i += mChannels) {
+            for (int c = 0; c < mChannels; c++) {
+                float x = buffer.get(i + c) / 32768f;
+                samplePeak = Math.max(samplePeak, Math.abs(x));
+                truePeak = Math.max(truePeak, interpolatePeak(c, x));
+                mStepSum += kWeight(c, x);
+            }
+            if (++mHistoryIndex == TRUE_PEAK_TAPS) mHistoryIndex = 0;
+            if (++mStepFramesDone == mStepFrames) {
+                endStep();
+            }
+        }
+        mSamplePeak = samplePeak;
+        mTruePeak = Math.max(truePeak, samplePeak);
+    }
+
+    /**
+     * @return squared K-weighted {@code x} of channel {@code c}
+     */
+    private double kWeight(int c, double x) {
+        int s = c * 4;
+        double[] z = mFilterState;
+        double y = mShelfB0 * x + z[s];
+        z[s] = mShelfB1 * x - mShelfA1 * y + z[s + 1];
+        z[s + 1] = mShelfB2 * x - mShelfA2 * y;
+        double out = y + z[s + 2];
+        z[s + 2] = -2 * y - mPassA1 * out + z[s + 3];
+        z[s + 3] = y - mPassA2 * out;
+        return out * out;
+    }
+
+    /**
+     * Adds {@code x} to the history of channel {@code c}.
+     *
+     * @return highest absolute value of the samples interpolated up to {@code x}
+     */
+    private float interpolatePeak(int c, float x) {
+        if (mOversampling == 1) {
+            return Math.abs(x);
+        }
+        int base = c * TRUE_PEAK_TAPS * 2;
+        mHistory[base + mHistoryIndex] = x;
+        mHistory[base + mHistoryIndex + TRUE_PEAK_TAPS] = x;
+        int start = base + mHistoryIndex + 1;
+        float peak = 0;
+        for (int p = 0, t = 0; p < mOversampling; p++) {
+            float y = 0;
+            for (int h = start; h < start + TRUE_PEAK_TAPS; h++, t++) {
+                y += mInterpolator[t] * mHistory[h];
+            }
+            peak = Math.max(peak, Math.abs(y));
+        }
+        return peak;
+    }
+
+    private void endStep() {
+        mSteps[mStepIndex] = mStepSum / mStepFrames;
+        if (++mStepIndex == SHORT_TERM_STEPS) mStepIndex = 0;
+        mStepSum = 0;
+        mStepFramesDone = 0;
+        if (++mStepCount >= MOMENTARY_STEPS) {
+            addBlock(meanSquare(MOMENTARY_STEPS));
+        }
+    }
+
+    private synchronized void addBlock(double meanSquare) {
+        double loudness = toLoudness(meanSquare);
+        if (loudness <= ABSOLUTE_GATE_LUFS) {
+            return;
+        }
+        int bin = Math.min(HISTOGRAM_BINS - 1,
+                (int) ((loudness - ABSOLUTE_GATE_LUFS) / HISTOGRAM_BIN_LU));
+        mBlockCounts[bin]++;
+        mBlockEnergies[bin] += meanSquare;
+        mGatedBlocks++;
+        mGatedEnergy += meanSquare;
+    }
+
+    /**
+     * @return mean square of the last {@code steps} steps
+     */
+    private double meanSquare(int steps) {
+        double sum = 0;
+        int index = mStepIndex;
+        for (int s = 0; s < steps; s++) {
+            if (--index < 0) index = SHORT_TERM_STEPS - 1;
+            sum += mSteps[index];
+        }
+        return sum / steps;
+    }
+
+    private static double toLoudness(double meanSquare) {
+        return -0.691 + 10 * Math.log10(meanSquare);
+    }
+
+    /**
+     * Loudness of the last 400ms. Call on the processing thread.
+     *
+     * @return LUFS, negative infinity until 400ms were measured
+     */
+    double getMomentaryLoudness() {
+        return mStepCount < MOMENTARY_STEPS ? Double.NEGATIVE_INFINITY
+                : toLoudness(meanSquare(MOMENTARY_STEPS));
+    }
+
+    /**
+     * Loudness of the last 3s, or of what was measured so far if that's less, in
+     * steps of 100ms. Call on the processing thread.
+     *
+     * @return LUFS, negative infinity until 100ms were measured
+     */
+    double getShortTermLoudness() {
+        int steps = Math.min(mStepCount, SHORT_TERM_STEPS);
+        return steps == 0 ? Double.NEGATIVE_INFINITY : toLoudness(meanSquare(steps));
+    }
+
+    /**
+     * Gated loudness of everything measured so far.
+     *
+     * @return LUFS, negative infinity if nothing was louder than the absolute gate
+     */
+    synchronized double getIntegratedLoudness() {
+        if (mGatedBlocks == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double gate = toLoudness(mGatedEnergy / mGatedBlocks) + RELATIVE_GATE_LU;
+        int first = Math.max(0, (int) ((gate - ABSOLUTE_GATE_LUFS) / HISTOGRAM_BIN_LU));
+        long blocks = 0;
+        double energy = 0;
+        for (int bin = first; bin < HISTOGRAM_BINS; bin++) {
+            blocks += mBlockCounts[bin];
+            energy += mBlockEnergies[bin];
+        }
+        return blocks == 0 ? Double.NEGATIVE_INFINITY : toLoudness(energy / blocks);
+    }
+
+    /**
+     * @return highest absolute sample, in dB of full scale
+     */
+    double getSamplePeak() {
+        return 20 * Math.log10(mSamplePeak);
+    }
+
+    /**
+     * @return highest absolute value of the signal between the samples too, in dBTP
+     */
+    double getTruePeak() {
+        return 20 * Math.log10(mTruePeak);
+    }
+
+    @Override
+    public int getLatencyFrames() {
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mFilterState, 0);
+        Arrays.fill(mHistory, 0);
+        mHistoryIndex = 0;
+        mStepIndex = 0;
+        mStepCount = 0;
+        mStepSum = 0;
+        mStepFramesDone = 0;
+    }
+}
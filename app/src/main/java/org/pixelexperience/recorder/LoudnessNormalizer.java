@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Drives the gain towards a loudness target. The short-term loudness of the input is
+ * measured by a {@link LoudnessMeter} and the gain glides towards the difference to
+ * the target, so the level follows the program slowly instead of pumping, lowering it
+ * faster than raising it. A {@link LookaheadLimiter} in front of the gain keeps the
+ * peaks below the ceiling.
+ * <p>
+ * Audio quieter than {@link #SILENCE_LUFS} keeps the gain, pauses in speech and
+ * silence aren't brought up to the target.
+ */
+class LoudnessNormalizer implements AudioProcessor {
+    private static final double SILENCE_LUFS = -50;
+    // a loud app shouldn't ride on the limiter for long
+    private static final float ATTENUATE_SPEEDUP = 4;
+    private final LoudnessMeter mMeter;
+    private final LookaheadLimiter mLimiter;
+    private final GainProcessor mGain;
+    private final float mTargetLufs;
+    private final float mMaxGainDb;
+    private final float mCeilingDb;
+    private final float mAdaptFrames;
+    private float mGainDb;
+
+    /**
+     * @param maxGainDb  the gain stays between -maxGainDb and maxGainDb
+     * @param ceilingDb  highest output level, in dB of full scale
+     * @param adaptMs    time constant of the gain following the loudness
+     */
+    LoudnessNormalizer(int sampleRate, int channels, float targetLufs, float maxGainDb,
+                       float ceilingDb, float lookaheadMs, float releaseMs, float adaptMs) {
+        mMeter = new LoudnessMeter(sampleRate, channels);
+        mLimiter = new LookaheadLimiter(sampleRate, channels, lookaheadMs, releaseMs, ceilingDb);
+        mGain = new GainProcessor(channels, 0);
+        mTargetLufs = targetLufs;
+        mMaxGainDb = maxGainDb;
+        mCeilingDb = ceilingDb;
+        mAdaptFrames = adaptMs * sampleRate / 1000;
+    }
+
+    @Override
+    public void process(ShortBuffer buffer, int offset, int frames) {
+        mMeter.process(buffer, offset, frames);
+        double loudness = mMeter.getShortTermLoudness();
+        if (loudness > SILENCE_LUFS) {
+            float target = (float) Math.max(-mMaxGainDb,
+                    Math.min(mMaxGainDb, mTargetLufs - loudness));
+            float rate = frames / mAdaptFrames * (target < mGainDb ? ATTENUATE_SPEEDUP : 1);
+            mGainDb += (target - mGainDb) * Math.min(1f, rate);
+        }
+        // limit before the gain, a boosted peak would be clipped already
+        mLimiter.setCeilingDb(mCeilingDb - mGainDb);
+        mLimiter.process(buffer, offset, frames);
+        mGain.setGainDb(mGainDb);
+        mGain.process(buffer, offset, frames);
+    }
+
+    @Override
+    public int getLatencyFrames() {
+        return mLimiter.getLatencyFrames();
+    }
+
+    /**
+     * Keeps the gain, the program is likely as loud after a pause as before.
+     */
+    @Override
+    public void reset() {
+        mMeter.reset();
+        mLimiter.reset();
+        mGain.reset();
+    }
+}
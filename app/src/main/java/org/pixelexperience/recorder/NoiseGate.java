@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Attenuates audio while its level stays below a threshold, e.g. the fan noise between
+ * words picked up by the microphone. The level is the peak over all channels of a frame,
+ * decaying with {@link #ENVELOPE_DECAY_MS}. The gate opens above the threshold, stays open
+ * for the hold time and closes again once the level fell below half the threshold.
+ */
+class NoiseGate implements AudioProcessor {
+    private static final float ENVELOPE_DECAY_MS = 10;
+    // the gate closes at half the opening threshold, so it doesn't chatter
+    private static final float CLOSE_RATIO = 0.5f;
+
+    private final int mChannels;
+    private final float mOpenThreshold;
+    private final float mCloseThreshold;
+    private final float mFloorGain;
+    private final int mHoldFrames;
+    private final float mEnvelopeDecay;
+    private final float mAttackCoeff;
+    private final float mReleaseCoeff;
+    private float mEnvelope;
+    private float mGain;
+    private int mHoldLeft;
+    private boolean mOpen;
+
+    /**
+     * @param thresholdDb level opening the gate, in dB of full scale
+     * @param rangeDb     attenuation of the closed gate, in dB
+     */
+    NoiseGate(int sampleRate, int channels, float thresholdDb, float rangeDb,
+              float attackMs, float holdMs, float releaseMs) {
+        mChannels = channels;
+        mOpenThreshold = GainProcessor.dbToGain(thresholdDb) * Short.MAX_VALUE;
+        mCloseThreshold = mOpenThreshold * CLOSE_RATIO;
+        mFloorGain = GainProcessor.dbToGain(-rangeDb);
+        mHoldFrames = (int) (holdMs * sampleRate / 1000);
+        mEnvelopeDecay = (float) Math.exp(-1000 / (ENVELOPE_DECAY_MS * sampleRate));
+        mAttackCoeff = coefficient(attackMs, sampleRate);
+        mReleaseCoeff = coefficient(releaseMs, sampleRate);
+        reset();
+    }
+
+    /**
+     * @return share of the distance to the target gain to cover per frame, reaching
+     * 63% of it after {@code ms}
+     */
+    private static float coefficient(float ms, int sampleRate) {
+        return (float) (1 - Math.exp(-1000 / (ms * sampleRate)));
+    }
+
+    @Override
+    public void process(ShortBuffer buffer, int offset, int frames) {
+        float envelope = mEnvelope;
+        float gain = mGain;
+        for (int f = 0, i = offset; f < frames; f++, i += mChannels) {
+            int peak = 0;
+            for (int c = 0; c < mChannels; c++) {
+                peak = Math.max(peak, Math.abs(buffer.get(i + c)));
+            }
+            envelope = Math.max(peak, envelope * mEnvelopeDecay);
+            if (envelope > (mOpen ? mCloseThreshold : mOpenThreshold)) {
+                mOpen = true;
+                mHoldLeft = mHoldFrames;
+            } else if (mHoldLeft > 0) {
+                mHoldLeft--;
+            } else {
+                mOpen = false;
+            }
+            if (mOpen) {
+                gain += (1 - gain) * mAttackCoeff;
+            } else {
+                gain += (mFloorGain - gain) * mReleaseCoeff;
+            }
+            if (gain < 0.9999f) {
+                for (int c = 0; c < mChannels; c++) {
+                    buffer.put(i + c, (short) (buffer.get(i + c) * gain));
+                }
+            }
+        }
+        mEnvelope = envelope;
+        mGain = gain;
+    }
+
+    @Override
+    public int getLatencyFrames() {
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0;
+        mGain = mFloorGain;
+        mHoldLeft = 0;
+        mOpen = false;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of PCM audio between a capture thread and an encoding thread, sized in
+ * milliseconds, so capturing never waits for the encoder. Data that doesn't fit is
+ * dropped and counted as overrun, a read finding no data at all counts as underrun.
+ * <p>
+ * Every write passes the capture time of its end, {@link #getCaptureTimeNanos(long)} maps
+ * a position in the stream back to the time it was captured at.
+ * <p>
+ * Writes from one producer thread, reads from one consumer thread. Only whole frames
+ * are written and read. Pure Java, never allocates after construction.
+ */
+class PcmRing {
+    private final byte[] mData;
+    private final int mFrameSize;
+    private final int mSampleRate;
+    private final long mBytesPerSecond;
+    // stream position of the next byte to read, advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // stream position of the next byte to write, advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    // odd while the producer updates the anchor
+    private final AtomicInteger mAnchorSequence = new AtomicInteger();
+    private volatile long mAnchorPosition;
+    private volatile long mAnchorTimeNanos;
+
+    private volatile long mOverruns;
+    private volatile long mOverrunFrames;
+    private volatile long mUnderruns;
+
+    /**
+     * @param frameSize bytes per frame, i.e. channels * bytes per sample
+     */
+    PcmRing(int durationMs, int sampleRate, int frameSize) {
+        long frames = (long) sampleRate * durationMs / 1000;
+        if (frames <= 0 || frames * frameSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad ring size: " + durationMs + "ms");
+        }
+        mData = new byte[(int) (frames * frameSize)];
+        mFrameSize = frameSize;
+        mSampleRate = sampleRate;
+        mBytesPerSecond = (long) sampleRate * frameSize;
+    }
+
+    /**
+     * Consumes all remaining bytes of {@code src}. What doesn't fit is dropped.
+     *
+     * @param endTimeNanos capture time of the end of the data
+     * @return bytes written
+     */
+    int write(ByteBuffer src, long endTimeNanos) {
+        int size = src.remaining() / mFrameSize * mFrameSize;
+        long tail = mTail.get();
+        int count = fit(tail, size);
+        int start = (int) (tail % mData.length);
+        int first = Math.min(count, mData.length - start);
+        src.get(mData, start, first);
+        src.get(mData, 0, count - first);
+        src.position(src.limit());
+        publish(tail, count, size, endTimeNanos);
+        return count;
+    }
+
+    /**
+     * Writes {@code frames} frames of 16 bit samples from {@code src}, interleaved, in
+     * native (little endian) order. What doesn't fit is dropped.
+     *
+     * @param endTimeNanos capture time of the end of the data
+     * @return bytes written
+     */
+    int write(short[] src, int frames, long endTimeNanos) {
+        int size = frames * mFrameSize;
+        long tail = mTail.get();
+        int count = fit(tail, size);
+        // the capacity is a multiple of the frame size, samples never wrap
+        int position = (int) (tail % mData.length);
+        for (int i = 0; i < count / 2; i++) {
+            short sample = src[i];
+            mData[position] = (byte) sample;
+            mData[position + 1] = (byte) (sample >> 8);
+            position += 2;
+            if (position == mData.length) {
+                position = 0;
+            }
+        }
+        publish(tail, count, size, endTimeNanos);
+        return count;
+    }
+
+    /**
+     * Writes {@code frames} frames of silence, e.g. in place of audio the capture lost.
+     * What doesn't fit is dropped.
+     *
+     * @param endTimeNanos time the end of the silence stands for
+     * @return bytes written
+     */
+    int writeSilence(int frames, long endTimeNanos) {
+        int size = frames * mFrameSize;
+        long tail = mTail.get();
+        int count = fit(tail, size);
+        int start = (int) (tail % mData.length);
+        int first = Math.min(count, mData.length - start);
+        Arrays.fill(mData, start, start + first, (byte) 0);
+        Arrays.fill(mData, 0, count - first, (byte) 0);
+        publish(tail, count, size, endTimeNanos);
+        return count;
+    }
+
+    /**
+     * @return how many of {@code size} bytes fit behind {@code tail}, counts the rest
+     * as overrun
+     */
+    private int fit(long tail, int size) {
+        int free = mData.length - (int) (tail - mHead.get());
+        int count = Math.min(size, free);
+        if (count < size) {
+            mOverruns++;
+            mOverrunFrames += (size - count) / mFrameSize;
+        }
+        return count;
+    }
+
+    private void publish(long tail, int count, int size, long endTimeNanos) {
+        // the written part ends before the dropped one
+        long anchorTimeNanos = endTimeNanos - (size - count) * 1000_000_000L / mBytesPerSecond;
+        mAnchorSequence.incrementAndGet();
+        mAnchorPosition = tail + count;
+        mAnchorTimeNanos = anchorTimeNanos;
+        mAnchorSequence.incrementAndGet();
+        // publishes the data to the consumer
+        mTail.lazySet(tail + count);
+    }
+
+    /**
+     * Fills {@code dst} up to its limit with whole frames, as far as there is data.
+     *
+     * @return bytes read
+     */
+    int read(ByteBuffer dst) {
+        long head = mHead.get();
+        int available = (int) (mTail.get() - head);
+        if (available == 0) {
+            mUnderruns++;
+            return 0;
+        }
+        int count = Math.min(available, dst.remaining() / mFrameSize * mFrameSize);
+        int start = (int) (head % mData.length);
+        int first = Math.min(count, mData.length - start);
+        dst.put(mData, start, first);
+        dst.put(mData, 0, count - first);
+        // hands the space back to the producer
+        mHead.lazySet(head + count);
+        return count;
+    }
+
+    /**
+     * Reads up to {@code frames} whole frames of 16 bit samples in native (little endian)
+     * order into {@code dst} from {@code offset} on, interleaved as captured.
+     *
+     * @return frames read
+     */
+    int read(short[] dst, int offset, int frames) {
+        long head = mHead.get();
+        int available = (int) (mTail.get() - head);
+        if (available == 0) {
+            mUnderruns++;
+            return 0;
+        }
+        int count = Math.min(available / mFrameSize, frames);
+        int samples = count * mFrameSize / 2;
+        // the capacity is a multiple of the frame size, samples never wrap
+        int position = (int) (head % mData.length);
+        for (int i = 0; i < samples; i++) {
+            dst[offset + i] = (short) ((mData[position] & 0xff) | (mData[position + 1] << 8));
+            position += 2;
+            if (position == mData.length) {
+                position = 0;
+            }
+        }
+        mHead.lazySet(head + (long) count * mFrameSize);
+        return count;
+    }
+
+    /**
+     * Drops up to {@code frames} frames from the head.
+     *
+     * @return frames dropped
+     */
+    int skip(int frames) {
+        long head = mHead.get();
+        int count = Math.min((int) (mTail.get() - head) / mFrameSize, frames);
+        mHead.lazySet(head + (long) count * mFrameSize);
+        return count;
+    }
+
+    /**
+     * @return stream position of the next byte {@link #read} returns
+     */
+    long getReadPosition() {
+        return mHead.get();
+    }
+
+    int available() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Drops everything written so far. Consumer only.
+     */
+    void clear() {
+        mHead.lazySet(mTail.get());
+    }
+
+    /**
+     * @return capture time of the byte at stream {@code position}, extrapolated from
+     * the last write
+     */
+    long getCaptureTimeNanos(long position) {
+        int sequence;
+        long anchorPosition;
+        long anchorTimeNanos;
+        do {
+            sequence = mAnchorSequence.get();
+            anchorPosition = mAnchorPosition;
+            anchorTimeNanos = mAnchorTimeNanos;
+        } while ((sequence & 1) != 0 || sequence != mAnchorSequence.get());
+        return anchorTimeNanos - (anchorPosition - position) * 1000_000_000L / mBytesPerSecond;
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getCapacity() {
+        return mData.length;
+    }
+
+    /**
+     * @return number of writes that didn't fit completely
+     */
+    long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * @return number of frames dropped because the ring was full
+     */
+    long getOverrunFrames() {
+        return mOverrunFrames;
+    }
+
+    /**
+     * @return number of reads that found the ring empty
+     */
+    long getUnderrunCount() {
+        return mUnderruns;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder;
+
+/**
+ * Fixed capacity FIFO of encoder output buffers waiting for the muxer to start.
+ * Entries are kept in parallel primitive arrays, offering and polling never allocates.
+ * <p>
+ * Not thread safe, access from the muxing thread only.
+ */
+class PendingBufferQueue {
+    /**
+     * Throw {@link IllegalStateException} when full.
+     */
+    static final int OVERFLOW_THROW = 0;
+    /**
+     * Drop the oldest entries up to the next key frame, so the queue
+     * still starts at a sync sample. If none is left, entries are dropped
+     * as they are offered until the next key frame, for video.
+     */
+    static final int OVERFLOW_DROP_OLDEST = 1;
+    /**
+     * Drop the oldest entry, for audio, where every sample is a sync sample.
+     */
+    static final int OVERFLOW_DROP_OLDEST_SAMPLE = 2;
+    private static final int FLAG_KEY_FRAME = 1; // MediaCodec.BUFFER_FLAG_KEY_FRAME
+    private static final int FLAG_CODEC_CONFIG = 2; // MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+    private static final int FLAG_END_OF_STREAM = 4; // MediaCodec.BUFFER_FLAG_END_OF_STREAM
+
+    private final int[] mIndices;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+    private final int mPolicy;
+    private final OnDropListener mDropListener;
+    private int mHead;
+    private int mCount;
+    private int mHeldBack;
+    private int mDropped;
+    private boolean mAwaitingKeyFrame;
+
+    /**
+     * @param dropListener gets the codec buffer index of dropped entries back,
+     *                     so it can be released to the codec
+     */
+    PendingBufferQueue(int capacity, int policy, OnDropListener dropListener) {
+        mIndices = new int[capacity];
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+        mPolicy = policy;
+        mDropListener = dropListener;
+    }
+
+    /**
+     * @return false if the entry was dropped right away, because an overflow left the
+     * queue without a key frame to start from and {@code flags} don't make one
+     */
+    boolean offer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        if (mAwaitingKeyFrame) {
+            if ((flags & (FLAG_KEY_FRAME | FLAG_CODEC_CONFIG | FLAG_END_OF_STREAM)) == 0) {
+                drop(index);
+                return false;
+            }
+            mAwaitingKeyFrame = (flags & FLAG_KEY_FRAME) == 0;
+        }
+        if (mCount == mIndices.length) {
+            switch (mPolicy) {
+                case OVERFLOW_DROP_OLDEST:
+                    dropOldestGop();
+                    if (mCount == 0 && (flags & FLAG_KEY_FRAME) == 0) {
+                        mAwaitingKeyFrame = true;
+                        if ((flags & (FLAG_CODEC_CONFIG | FLAG_END_OF_STREAM)) == 0) {
+                            drop(index);
+                            return false;
+                        }
+                    }
+                    break;
+                case OVERFLOW_DROP_OLDEST_SAMPLE:
+                    dropHead();
+                    break;
+                default:
+                    throw new IllegalStateException("Pending buffer queue overflow, capacity="
+                            + mIndices.length);
+            }
+        }
+        int slot = (mHead + mCount) % mIndices.length;
+        mIndices[slot] = index;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mFlags[slot] = flags;
+        mCount++;
+        mHeldBack++;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    int peekIndex() {
+        return mIndices[checkHead()];
+    }
+
+    int peekOffset() {
+        return mOffsets[checkHead()];
+    }
+
+    int peekSize() {
+        return mSizes[checkHead()];
+    }
+
+    long peekPresentationTimeUs() {
+        return mPresentationTimesUs[checkHead()];
+    }
+
+    int peekFlags() {
+        return mFlags[checkHead()];
+    }
+
+    void remove() {
+        checkHead();
+        mHead = (mHead + 1) % mIndices.length;
+        mCount--;
+    }
+
+    /**
+     * Forgets all entries without notifying the drop listener.
+     */
+    void clear() {
+        mHead = 0;
+        mCount = 0;
+        mAwaitingKeyFrame = false;
+    }
+
+    /**
+     * @return number of buffers held back because the muxer was not started yet
+     */
+    int getHeldBackCount() {
+        return mHeldBack;
+    }
+
+    /**
+     * @return number of buffers dropped on overflow
+     */
+    int getDroppedCount() {
+        return mDropped;
+    }
+
+    private int checkHead() {
+        if (mCount == 0) {
+            throw new IllegalStateException("Empty queue");
+        }
+        return mHead;
+    }
+
+    private void dropOldestGop() {
+        do {
+            dropHead();
+        } while (mCount > 0 && (mFlags[mHead] & FLAG_KEY_FRAME) == 0);
+    }
+
+    private void dropHead() {
+        int index = mIndices[mHead];
+        remove();
+        drop(index);
+    }
+
+    private void drop(int index) {
+        mDropped++;
+        if (mDropListener != null) {
+            mDropListener.onDrop(index);
+        }
+    }
+
+    interface OnDropListener {
+        void onDrop(int index);
+    }
+}
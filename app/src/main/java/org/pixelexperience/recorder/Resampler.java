@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for interleaved 16 bit PCM, a polyphase FIR filter
+ * of {@link #TAPS} taps per phase.
+ * <p>
+ * The rate ratio is reduced to {@code L / M}, the prototype low-pass is a Kaiser
+ * windowed sinc at {@link #ROLLOFF} of the lower Nyquist frequency, split into
+ * {@code L} phases normalized to unity gain. Output lags the input by {@code TAPS / 2}
+ * input frames, under half a millisecond at common rates.
+ * <p>
+ * Keeps the last {@code TAPS - 1} input frames between calls, so chunks can be of any
+ * size up to {@code maxInputFrames}. Pure Java, never allocates after construction,
+ * not thread safe.
+ */
+class Resampler {
+    static final int TAPS = 32;
+    static final double ROLLOFF = 0.9;
+    private static final double KAISER_BETA = 8.0;
+
+    private final int mChannels;
+    private final int mUp;
+    private final int mDown;
+    private final int mMaxInputFrames;
+    // TAPS coefficients per phase, oldest input frame first
+    private final float[] mTable;
+    // history and new input, interleaved
+    private final float[] mBuffer;
+    private int mFrames;
+    // buffer frame the newest tap of the next output reads
+    private int mIndex;
+    private int mPhase;
+
+    Resampler(int inRate, int outRate, int channels, int maxInputFrames) {
+        if (inRate <= 0 || outRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("Bad resampler: " + inRate + " -> " + outRate
+                    + ", " + channels + " channels");
+        }
+        int gcd = gcd(inRate, outRate);
+        mUp = outRate / gcd;
+        mDown = inRate / gcd;
+        mChannels = channels;
+        mMaxInputFrames = maxInputFrames;
+        mTable = createTable(mUp, mDown);
+        mBuffer = new float[(TAPS - 1 + maxInputFrames) * channels];
+        reset();
+    }
+
+    /**
+     * Drops the history, the next input starts from silence.
+     */
+    void reset() {
+        Arrays.fill(mBuffer, 0, (TAPS - 1) * mChannels, 0f);
+        mFrames = TAPS - 1;
+        mIndex = TAPS - 1;
+        mPhase = 0;
+    }
+
+    /**
+     * @return most frames {@link #process} returns for {@code maxInputFrames} input frames
+     */
+    int getMaxOutputFrames() {
+        return (int) (((long) mMaxInputFrames * mUp + mDown - 1) / mDown) + 1;
+    }
+
+    /**
+     * Converts {@code frames} interleaved frames of {@code in}.
+     *
+     * @param out room for {@link #getMaxOutputFrames()} frames
+     * @return frames written to {@code out}
+     */
+    int process(short[] in, int frames, short[] out) {
+        if (frames > mMaxInputFrames) {
+            throw new IllegalArgumentException("Too many frames: " + frames);
+        }
+        final int channels = mChannels;
+        final float[] buffer = mBuffer;
+        final float[] table = mTable;
+        int samples = frames * channels;
+        int base = mFrames * channels;
+        for (int i = 0; i < samples; i++) {
+            buffer[base + i] = in[i];
+        }
+        mFrames += frames;
+
+        int written = 0;
+        int outSample = 0;
+        while (mIndex < mFrames) {
+            int coefficients = mPhase * TAPS;
+            int first = (mIndex - (TAPS - 1)) * channels;
+            for (int c = 0; c < channels; c++) {
+                float acc = 0;
+                int sample = first + c;
+                for (int k = 0; k < TAPS; k++) {
+                    acc += table[coefficients + k] * buffer[sample];
+                    sample += channels;
+                }
+                int value = Math.round(acc);
+                out[outSample++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            }
+            written++;
+            mPhase += mDown;
+            mIndex += mPhase / mUp;
+            mPhase %= mUp;
+        }
+
+        // keep what the next outputs still read
+        int drop = mIndex - (TAPS - 1);
+        if (drop > 0) {
+            System.arraycopy(buffer, drop * channels, buffer, 0, (mFrames - drop) * channels);
+            mFrames -= drop;
+            mIndex -= drop;
+        }
+        return written;
+    }
+
+    private static float[] createTable(int up, int down) {
+        int length = TAPS * up;
+        double center = length / 2.0;
+        // relative to the input Nyquist frequency
+        double cutoff = ROLLOFF * Math.min(1.0, (double) up / down);
+        double[] prototype = new double[length];
+        for (int t = 0; t < length; t++) {
+            double x = (t - center) / up;
+            double w = (t - center) / center;
+            prototype[t] = cutoff * sinc(cutoff * x)
+                    * bessel0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - w * w))) / bessel0(KAISER_BETA);
+        }
+        float[] table = new float[length];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            for (int k = 0; k < TAPS; k++) {
+                sum += prototype[p + (TAPS - 1 - k) * up];
+            }
+            for (int k = 0; k < TAPS; k++) {
+                table[p * TAPS + k] = (float) (prototype[p + (TAPS - 1 - k) * up] / sum);
+            }
+        }
+        return table;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        return Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /**
+     * Zeroth order modified Bessel function of the first kind, for the Kaiser window.
+     */
+    private static double bessel0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed capacity lock-free FIFO of encoder output buffers, handing them from one
+ * producer thread to one consumer thread. Entries are kept in parallel primitive
+ * arrays, offering and polling never allocates.
+ * <p>
+ * {@link #offer} must only be called from the producer thread, all other methods
+ * from the consumer thread.
+ */
+class SampleRing {
+    private final int[] mIndices;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+    private final int mMask;
+    // next entry to read, advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // next entry to write, advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    private long mProducerHead; // last head seen by the producer
+    private long mConsumerTail; // last tail seen by the consumer
+
+    /**
+     * @param capacity a power of two
+     */
+    SampleRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mIndices = new int[capacity];
+        mOffsets = new int[capacity];
+        mSizes = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        long tail = mTail.get();
+        if (tail - mProducerHead == mIndices.length) {
+            mProducerHead = mHead.get();
+            if (tail - mProducerHead == mIndices.length) {
+                return false;
+            }
+        }
+        int slot = (int) tail & mMask;
+        mIndices[slot] = index;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mFlags[slot] = flags;
+        // publishes the entry to the consumer
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    boolean offer(int index) {
+        return offer(index, 0, 0, 0, 0);
+    }
+
+    boolean isEmpty() {
+        long head = mHead.get();
+        if (head == mConsumerTail) {
+            mConsumerTail = mTail.get();
+        }
+        return head == mConsumerTail;
+    }
+
+    int capacity() {
+        return mIndices.length;
+    }
+
+    int peekIndex() {
+        return mIndices[checkHead()];
+    }
+
+    int peekOffset() {
+        return mOffsets[checkHead()];
+    }
+
+    int peekSize() {
+        return mSizes[checkHead()];
+    }
+
+    long peekPresentationTimeUs() {
+        return mPresentationTimesUs[checkHead()];
+    }
+
+    int peekFlags() {
+        return mFlags[checkHead()];
+    }
+
+    void remove() {
+        long head = mHead.get();
+        checkHead();
+        // hands the slot back to the producer
+        mHead.lazySet(head + 1);
+    }
+
+    private int checkHead() {
+        if (isEmpty()) {
+            throw new IllegalStateException("Empty ring");
+        }
+        return (int) mHead.get() & mMask;
+    }
+}
@@ -27,6 +27,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.pixelexperience.recorder.encoders.AudioEncodeConfig;
@@ -35,10 +36,27 @@ import org.pixelexperience.recorder.encoders.BaseEncoder;
 import org.pixelexperience.recorder.encoders.Encoder;
 import org.pixelexperience.recorder.encoders.VideoEncodeConfig;
 import org.pixelexperience.recorder.encoders.VideoEncoder;
+import org.pixelexperience.recorder.muxer.AsyncMuxer;
+import org.pixelexperience.recorder.muxer.ContainerFormats;
+import org.pixelexperience.recorder.muxer.FragmentedMp4Muxer;
+import org.pixelexperience.recorder.muxer.IdleFrameFilter;
+import org.pixelexperience.recorder.muxer.JournaledMp4Muxer;
+import org.pixelexperience.recorder.muxer.InterleavingMuxer;
+import org.pixelexperience.recorder.muxer.MediaMuxerWrapper;
+import org.pixelexperience.recorder.muxer.Mp4LoudnessBox;
+import org.pixelexperience.recorder.muxer.RawBitstreamSink;
+import org.pixelexperience.recorder.muxer.ReplayMuxer;
+import org.pixelexperience.recorder.muxer.SampleSink;
+import org.pixelexperience.recorder.muxer.SegmentedMuxer;
+import org.pixelexperience.recorder.muxer.TeeSink;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ScreenRecorder {
@@ -48,14 +66,62 @@ public class ScreenRecorder {
     private static final int MSG_START = 0;
     private static final int MSG_STOP = 1;
     private static final int MSG_ERROR = 2;
-    private static final int STOP_WITH_EOS = 1;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_RESUME = 4;
+    private static final int PENDING_BUFFERS_CAPACITY = 64;
+    // internal audio and a separate microphone track
+    private static final int MAX_AUDIO_TRACKS = 2;
+    private static final long MAX_REPLAY_BYTES = 256 * 1024 * 1024;
+    // boosted audio is limited to this before the gain, so it peaks at -1 dBFS
+    private static final float LIMITER_CEILING_DB = -1;
+    private static final float LIMITER_LOOKAHEAD_MS = 5;
+    private static final float LIMITER_RELEASE_MS = 100;
+    // below speech, above the hiss and fan noise of phone microphones
+    private static final float GATE_THRESHOLD_DB = -45;
+    private static final float GATE_RANGE_DB = 30;
+    private static final float GATE_ATTACK_MS = 1;
+    private static final float GATE_HOLD_MS = 100;
+    private static final float GATE_RELEASE_MS = 150;
+    // the level of streaming platforms, louder than the -23 LUFS of broadcast
+    private static final float LOUDNESS_TARGET_LUFS = -16;
+    private static final float LOUDNESS_MAX_GAIN_DB = 12;
+    private static final float LOUDNESS_ADAPT_MS = 3000;
     private String mDstPath;
     private VideoEncoder mVideoEncoder;
-    private AudioRecorder mAudioEncoder;
-    private MediaFormat mVideoOutputFormat = null, mAudioOutputFormat = null;
-    private int mVideoTrackIndex = INVALID_INDEX, mAudioTrackIndex = INVALID_INDEX;
+    private MediaFormat mVideoOutputFormat = null;
+    private int mVideoTrackIndex = INVALID_INDEX;
+    private final AudioEncodeConfig mAudioConfig;
+    // every audio recorder captures and encodes on this thread
+    private HandlerThread mAudioThread;
+    private AudioStream[] mAudioStreams;
+    private int mAudioFormatCount;
+    // tracks that didn't reach the end of stream yet
+    private int mOpenTracks;
     private VirtualDisplay mVirtualDisplay;
-    private MediaMuxer mMuxer;
+    private SampleSink mMuxer;
+    private int mOutputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+    private boolean mFragmentedOutput;
+    private boolean mJournaledOutput;
+    private int mBackpressurePolicy = AsyncMuxer.BACKPRESSURE_BLOCK;
+    private long mReplayDurationUs;
+    private long mSegmentDurationUs, mSegmentSizeBytes;
+    private SegmentCallback mSegmentCallback;
+    private final List<SampleSink> mExtraSinks = new ArrayList<>();
+    private int mMinBitrate, mMaxBitrate;
+    private boolean mRecordMicrophone;
+    private boolean mMicrophoneTrack;
+    private float mAudioBoostDb;
+    private boolean mMicrophoneNoiseGate;
+    private boolean mNormalizeLoudness;
+    // measures the first audio track, null if there is none
+    private LoudnessMeter mLoudnessMeter;
+    private BitrateController mBitrateController;
+    // drops repeated frames in variable frame rate mode, null otherwise
+    private IdleFrameFilter mIdleFrameFilter;
+    // the queue in front of the sink, null if there is none
+    private AsyncMuxer mAsyncMuxer;
+    private volatile ReplayMuxer mReplayMuxer;
+    private final AtomicBoolean mSavingReplay = new AtomicBoolean(false);
     private boolean mMuxerStarted = false;
     private AtomicBoolean mForceQuit = new AtomicBoolean(false);
     private AtomicBoolean mIsRunning = new AtomicBoolean(false);
@@ -63,22 +129,50 @@ public class ScreenRecorder {
     private HandlerThread mWorker;
     private CallbackHandler mHandler;
     private Callback mCallback;
-    private LinkedList<Integer> mPendingVideoEncoderBufferIndices = new LinkedList<>();
-    private LinkedList<Integer> mPendingAudioEncoderBufferIndices = new LinkedList<>();
-    private LinkedList<MediaCodec.BufferInfo> mPendingAudioEncoderBufferInfos = new LinkedList<>();
-    private LinkedList<MediaCodec.BufferInfo> mPendingVideoEncoderBufferInfos = new LinkedList<>();
-    private long mVideoPtsOffset, mAudioPtsOffset;
+    private final PendingBufferQueue mPendingVideoBuffers;
+    private final MediaCodec.BufferInfo mPendingBufferInfo = new MediaCodec.BufferInfo();
+    private boolean mPendingSyncFrameRequested;
+    // audio track i runs on clock CLOCK_VIDEO + 1 + i
+    private static final int CLOCK_VIDEO = 0;
+    private final SessionClock mSessionClock = new SessionClock(1 + MAX_AUDIO_TRACKS);
+    private volatile boolean mPaused;
     private int mVideoOrientation;
+    private boolean mWarmEncoders;
+    private long mRequestTimeMs;
+    private long mFirstFrameLatencyMs = -1;
+    // no virtual display and video encoder, only the audio is recorded
+    private final boolean mAudioOnly;
 
+    /**
+     * @param video null to record the audio only, without a virtual display
+     * @param audio null to record the video only
+     */
     public ScreenRecorder(VideoEncodeConfig video,
                           AudioEncodeConfig audio,
                           String dstPath,
                           MediaProjection mediaProjection) {
+        if (video == null && audio == null) {
+            throw new IllegalArgumentException("Nothing to record");
+        }
         mDstPath = dstPath;
-        mVideoEncoder = new VideoEncoder(video);
-        mAudioEncoder = audio == null ? null : new AudioRecorder(audio, mediaProjection);
-        mVideoOrientation = video.orientation;
+        mAudioOnly = video == null;
+        mVideoEncoder = mAudioOnly ? null : new VideoEncoder(video);
+        mAudioConfig = audio;
+        if (audio == null) {
+            mAudioStreams = new AudioStream[0];
+        } else {
+            mAudioThread = new HandlerThread(AudioRecorder.class.getSimpleName());
+            mAudioStreams = new AudioStream[]{new AudioStream("audio", CLOCK_VIDEO + 1,
+                    new AudioRecorder(audio, new AudioEncoder(audio), mAudioThread, mediaProjection))};
+        }
+        mPendingVideoBuffers = new PendingBufferQueue(PENDING_BUFFERS_CAPACITY,
+                PendingBufferQueue.OVERFLOW_DROP_OLDEST,
+                index -> mVideoEncoder.releaseOutputBuffer(index));
         mMediaProjection = mediaProjection;
+        if (mAudioOnly) {
+            return;
+        }
+        mVideoOrientation = video.orientation;
         mVirtualDisplay = mMediaProjection.createVirtualDisplay(
                 "Recording Display",
                 video.width,
@@ -96,24 +190,247 @@ public class ScreenRecorder {
     public final void quit() {
         mForceQuit.set(true);
         if (!mIsRunning.get()) {
-            release();
+            release(false);
         } else {
-            signalStop(false);
+            signalStop();
         }
     }
 
     public void start() {
-        if (mWorker != null) throw new IllegalStateException();
-        mWorker = new HandlerThread(TAG);
-        mWorker.start();
+        if (mHandler != null) throw new IllegalStateException();
+        // fail now rather than at addTrack() once the encoders run
+        String audioMimeType = mAudioConfig != null ? mAudioConfig.mimeType : null;
+        int audioTracks = mRecordMicrophone && mMicrophoneTrack ? 2 : 1;
+        if (mAudioOnly) {
+            ContainerFormats.check(mOutputFormat, null, audioMimeType, audioTracks);
+        } else {
+            for (VideoEncodeConfig video = mVideoEncoder.getConfig(); video != null;
+                 video = video.fallback) {
+                ContainerFormats.check(mOutputFormat, video.mimeType, audioMimeType, audioTracks);
+            }
+        }
+        if (mWorker == null) {
+            mWorker = new HandlerThread(TAG);
+            mWorker.start();
+        }
         mHandler = new CallbackHandler(mWorker.getLooper());
         mHandler.sendEmptyMessage(MSG_START);
     }
 
+    /**
+     * Stops feeding frames and audio to the encoders, keeping the session alive.
+     * The paused time is left out of the output.
+     */
+    public void pause() {
+        if (mHandler != null && mIsRunning.get()) {
+            mHandler.sendEmptyMessage(MSG_PAUSE);
+        }
+    }
+
+    public void resume() {
+        if (mHandler != null && mIsRunning.get()) {
+            mHandler.sendEmptyMessage(MSG_RESUME);
+        }
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
     public void setCallback(Callback callback) {
         mCallback = callback;
     }
 
+    /**
+     * Record with encoders configured ahead of time instead of creating new ones.
+     * The recorder takes over their threads. Must be called before {@link #start()}.
+     */
+    void setWarmEncoders(EncoderWarmup.Encoders encoders) {
+        if (mHandler != null || mWorker != null || mAudioOnly) throw new IllegalStateException();
+        mVideoEncoder = encoders.video;
+        mWorker = encoders.worker;
+        if (mAudioStreams.length > 0) {
+            mAudioThread = encoders.audioThread;
+            mAudioStreams[0].recorder = new AudioRecorder(encoders.audioConfig, encoders.audio,
+                    encoders.audioThread, mMediaProjection);
+        } else {
+            encoders.audio.release();
+            encoders.audioThread.quitSafely();
+        }
+        mWarmEncoders = true;
+    }
+
+    /**
+     * @param elapsedRealtimeMs {@link SystemClock#elapsedRealtime()} when the user asked
+     *                          to record, to report the latency until the first frame
+     */
+    public void setRequestTime(long elapsedRealtimeMs) {
+        mRequestTimeMs = elapsedRealtimeMs;
+    }
+
+    /**
+     * Write {@code format}, MP4 or WebM of {@link MediaMuxer.OutputFormat}. It has to hold
+     * the configured codecs, see {@link ContainerFormats}. Must be called before {@link #start()}.
+     */
+    public void setOutputFormat(int format) {
+        mOutputFormat = format;
+    }
+
+    /**
+     * Write a fragmented MP4, which stays playable up to the last fragment
+     * if the recording is interrupted. Only applies to AVC video.
+     * Must be called before {@link #start()}.
+     */
+    public void setFragmentedOutput(boolean fragmented) {
+        mFragmentedOutput = fragmented;
+    }
+
+    /**
+     * Write the MP4 with a sample journal next to it, see
+     * {@link org.pixelexperience.recorder.muxer.Mp4Recovery}, so an interrupted recording
+     * can be rebuilt. Ignored for fragmented output, only applies to AVC video.
+     * Must be called before {@link #start()}.
+     */
+    public void setJournaledOutput(boolean journaled) {
+        mJournaledOutput = journaled;
+    }
+
+    /**
+     * What to do with samples while the disk can't keep up, one of the
+     * {@code BACKPRESSURE_*} policies of {@link AsyncMuxer}. Ignored when extra sinks
+     * are attached. Must be called before {@link #start()}.
+     */
+    public void setBackpressurePolicy(int policy) {
+        mBackpressurePolicy = policy;
+    }
+
+    /**
+     * Mix the microphone into the internal audio, see {@link AudioRecorder#setMicrophoneEnabled}.
+     * Must be called before {@link #start()}.
+     */
+    public void setMicrophoneEnabled(boolean enabled) {
+        mRecordMicrophone = enabled;
+    }
+
+    /**
+     * Record the enabled microphone into a track of its own instead of mixing it into
+     * the internal audio, so both can be edited separately.
+     * Must be called before {@link #start()}.
+     */
+    public void setMicrophoneTrack(boolean separate) {
+        mMicrophoneTrack = separate;
+    }
+
+    /**
+     * Amplify the internal audio by {@code gainDb}, limited so the peaks don't clip.
+     * 0 leaves it untouched. Must be called before {@link #start()}.
+     */
+    public void setAudioBoost(float gainDb) {
+        mAudioBoostDb = gainDb;
+    }
+
+    /**
+     * Glide the level of the internal audio towards {@link #LOUDNESS_TARGET_LUFS}, see
+     * {@link LoudnessNormalizer}. Replaces the audio boost.
+     * Must be called before {@link #start()}.
+     */
+    public void setLoudnessNormalization(boolean enabled) {
+        mNormalizeLoudness = enabled;
+    }
+
+    /**
+     * Silence the recorded microphone while nobody speaks, see {@link NoiseGate}.
+     * Must be called before {@link #start()}.
+     */
+    public void setMicrophoneNoiseGate(boolean enabled) {
+        mMicrophoneNoiseGate = enabled;
+    }
+
+    /**
+     * Retune the video bitrate while recording, between {@code minBitrate} and
+     * {@code maxBitrate}, see {@link BitrateController}. 0 keeps the configured bitrate.
+     * Must be called before {@link #start()}.
+     */
+    public void setAdaptiveBitrate(int minBitrate, int maxBitrate) {
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+    }
+
+    /**
+     * Keep only the last {@code durationUs} of the recording in memory instead of
+     * writing {@link #getSavedPath()}, see {@link #saveReplay(String, ReplayCallback)}.
+     * Must be called before {@link #start()}.
+     */
+    public void setReplayDuration(long durationUs) {
+        mReplayDurationUs = durationUs;
+    }
+
+    public boolean isReplayMode() {
+        return mReplayDurationUs > 0;
+    }
+
+    /**
+     * Split the recording into files of at most {@code durationUs} or {@code sizeBytes}
+     * (0 for no limit), named after {@link #getSavedPath()} with a running number, see
+     * {@link #getSegmentPath(int)}. Ignored in replay mode. Must be called before
+     * {@link #start()}.
+     */
+    public void setSegmentation(long durationUs, long sizeBytes, SegmentCallback callback) {
+        mSegmentDurationUs = durationUs;
+        mSegmentSizeBytes = sizeBytes;
+        mSegmentCallback = callback;
+    }
+
+    /**
+     * Also send the encoded samples to {@code sink}, e.g. a {@link RawBitstreamSink}.
+     * Ignored in replay mode. Must be called before {@link #start()}.
+     */
+    public void addSink(SampleSink sink) {
+        mExtraSinks.add(sink);
+    }
+
+    public boolean isSegmented() {
+        return !isReplayMode() && (mSegmentDurationUs > 0 || mSegmentSizeBytes > 0);
+    }
+
+    /**
+     * @return path of segment {@code index}, e.g. name-001.mp4 for index 0
+     */
+    public String getSegmentPath(int index) {
+        int dot = mDstPath.lastIndexOf('.');
+        if (dot < mDstPath.lastIndexOf(File.separatorChar)) {
+            dot = mDstPath.length();
+        }
+        return String.format(Locale.US, "%s-%03d%s", mDstPath.substring(0, dot), index + 1,
+                mDstPath.substring(dot));
+    }
+
+    /**
+     * Writes the replay buffer to {@code path} on a new thread, recording continues.
+     */
+    public void saveReplay(String path, ReplayCallback callback) {
+        final ReplayMuxer muxer = mReplayMuxer;
+        if (muxer == null) {
+            callback.onReplayError(new IllegalStateException("Not recording in replay mode"));
+            return;
+        }
+        if (!mSavingReplay.compareAndSet(false, true)) {
+            callback.onReplayError(new IllegalStateException("Replay is already being saved"));
+            return;
+        }
+        new Thread(() -> {
+            try {
+                long durationUs = muxer.save(path);
+                callback.onReplaySaved(path, durationUs);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save replay", e);
+                callback.onReplayError(e);
+            } finally {
+                mSavingReplay.set(false);
+            }
+        }, "ReplayWriter").start();
+    }
+
     public String getSavedPath() {
         return mDstPath;
     }
@@ -123,86 +440,272 @@ public class ScreenRecorder {
         ByteBuffer buffer = ByteBuffer.allocate(0);
         eos.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
         if (VERBOSE) Log.i(TAG, "Signal EOS to muxer ");
+        // tracks that already ended have an invalid index
         if (mVideoTrackIndex != INVALID_INDEX) {
-            writeSampleData(mVideoTrackIndex, eos, buffer);
-        }
-        if (mAudioTrackIndex != INVALID_INDEX) {
-            writeSampleData(mAudioTrackIndex, eos, buffer);
+            writeSampleData(mVideoTrackIndex, CLOCK_VIDEO, eos, buffer);
         }
         mVideoTrackIndex = INVALID_INDEX;
-        mAudioTrackIndex = INVALID_INDEX;
+        for (AudioStream stream : mAudioStreams) {
+            if (stream.trackIndex != INVALID_INDEX) {
+                writeSampleData(stream.trackIndex, stream.clock, eos, buffer);
+            }
+            stream.trackIndex = INVALID_INDEX;
+        }
     }
 
     private void record() {
         if (mIsRunning.get() || mForceQuit.get()) {
             throw new IllegalStateException();
         }
-        if (mVirtualDisplay == null) {
+        if (mVirtualDisplay == null && !mAudioOnly) {
             throw new IllegalStateException("maybe release");
         }
         mIsRunning.set(true);
 
         try {
+            // create encoder and input surface first, the muxer depends on the codec
+            if (!mAudioOnly) {
+                prepareVideoEncoder();
+            }
+            prepareAudioEncoder();
             // create muxer
-            mMuxer = new MediaMuxer(mDstPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (isReplayMode()) {
+                mReplayMuxer = createReplayMuxer();
+                mMuxer = mReplayMuxer;
+            } else {
+                // order by time on the writer thread, off the codec callbacks
+                SampleSink output = new InterleavingMuxer(createMuxer(),
+                        InterleavingMuxer.DEFAULT_WINDOW_US);
+                if (!mAudioOnly && mVideoEncoder.getConfig().variableFrameRate) {
+                    mIdleFrameFilter = new IdleFrameFilter(output, VideoEncodeConfig.MAX_FRAME_GAP_US);
+                    output = mIdleFrameFilter;
+                }
+                if (mExtraSinks.isEmpty()) {
+                    mAsyncMuxer = new AsyncMuxer(output, AsyncMuxer.DEFAULT_CAPACITY,
+                            mBackpressurePolicy);
+                    mMuxer = mAsyncMuxer;
+                } else {
+                    List<SampleSink> sinks = new ArrayList<>(mExtraSinks);
+                    sinks.add(0, output);
+                    // writes every branch on its own thread
+                    mMuxer = new TeeSink(sinks, TeeSink.DEFAULT_CAPACITY);
+                }
+            }
             mMuxer.setOrientationHint(mVideoOrientation);
-            // create encoder and input surface
-            prepareVideoEncoder();
-            prepareAudioEncoder();
+            if (mMaxBitrate > 0 && !mAudioOnly) {
+                mBitrateController = new BitrateController(mVideoEncoder.getConfig().bitrate,
+                        mMinBitrate, mMaxBitrate);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
+        // both tracks are stamped with System.nanoTime(), start the shared timeline now
+        mSessionClock.start(System.nanoTime() / 1000);
+        if (mAudioOnly) {
+            return;
+        }
         // "turn on" VirtualDisplay after VideoEncoder prepared
         mVirtualDisplay.setSurface(mVideoEncoder.getInputSurface());
         if (VERBOSE) Log.d(TAG, "set surface to display: " + mVirtualDisplay.getDisplay());
     }
 
+    private void pauseRecording() {
+        if (mPaused || !mIsRunning.get() || (mVirtualDisplay == null && !mAudioOnly)) {
+            return;
+        }
+        mPaused = true;
+        long nowUs = System.nanoTime() / 1000;
+        mSessionClock.pause(nowUs);
+        if (mVirtualDisplay != null) {
+            // or it keeps repeating the last frame in variable frame rate mode
+            mVideoEncoder.setSuspended(true, nowUs);
+            mVirtualDisplay.setSurface(null);
+        }
+        for (AudioStream stream : mAudioStreams) {
+            stream.recorder.pause();
+        }
+        Log.i(TAG, "Recording paused");
+    }
+
+    private void resumeRecording() {
+        if (!mPaused || !mIsRunning.get() || (mVirtualDisplay == null && !mAudioOnly)) {
+            return;
+        }
+        long nowUs = System.nanoTime() / 1000;
+        mSessionClock.resume(nowUs);
+        if (mVirtualDisplay != null) {
+            mVideoEncoder.setSuspended(false, nowUs);
+            mVirtualDisplay.setSurface(mVideoEncoder.getInputSurface());
+            // the first frame after the pause shouldn't depend on stale references
+            mVideoEncoder.requestSyncFrame();
+        }
+        for (AudioStream stream : mAudioStreams) {
+            stream.recorder.resume();
+        }
+        mPaused = false;
+        Log.i(TAG, "Recording resumed, paused for " + mSessionClock.getTotalPausedUs() + "us in total");
+    }
+
+    private SampleSink createMuxer() throws IOException {
+        if (isSegmented()) {
+            return new SegmentedMuxer(index -> createFileMuxer(getSegmentPath(index)),
+                    mSegmentDurationUs, mSegmentSizeBytes, new SegmentedMuxer.Listener() {
+                @Override
+                public void onSegmentBoundaryApproaching() {
+                    // called from the muxer writer thread, the encoder may be gone already
+                    VideoEncoder encoder = mVideoEncoder;
+                    if (encoder == null || !mIsRunning.get()) {
+                        return;
+                    }
+                    try {
+                        encoder.requestSyncFrame();
+                    } catch (IllegalStateException | NullPointerException e) {
+                        Log.w(TAG, "Failed to request sync frame", e);
+                    }
+                }
+
+                @Override
+                public void onSegmentFinished(int index, boolean last) {
+                    if (mSegmentCallback != null) {
+                        mSegmentCallback.onSegmentFinished(getSegmentPath(index), index, last);
+                    }
+                }
+
+                @Override
+                public void onSegmentDiscarded(int index) {
+                    new File(getSegmentPath(index)).delete();
+                }
+            });
+        }
+        return createFileMuxer(mDstPath);
+    }
+
+    private SampleSink createFileMuxer(String path) throws IOException {
+        if (mOutputFormat != MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) {
+            return new MediaMuxerWrapper(path, mOutputFormat);
+        }
+        // the pure Java writers only know AVC, see EncoderConfig#setAvcOnly
+        boolean avc = !mAudioOnly
+                && MediaFormat.MIMETYPE_VIDEO_AVC.equals(mVideoEncoder.getConfig().mimeType);
+        if ((mFragmentedOutput || mJournaledOutput) && !avc) {
+            Log.w(TAG, "Crash-safe output needs AVC video, writing a plain MP4");
+        }
+        if (mFragmentedOutput && avc) {
+            return new FragmentedMp4Muxer(path, FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US);
+        }
+        if (mJournaledOutput && avc) {
+            return new JournaledMp4Muxer(path);
+        }
+        return new MediaMuxerWrapper(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    private ReplayMuxer createReplayMuxer() {
+        int bytesPerSecond = 0;
+        int samplesPerSecond = 0;
+        if (!mAudioOnly) {
+            VideoEncodeConfig video = mVideoEncoder.getConfig();
+            bytesPerSecond = video.bitrate / 8;
+            samplesPerSecond = video.framerate;
+        }
+        if (mAudioConfig != null) {
+            bytesPerSecond += mAudioStreams.length * mAudioConfig.bitRate / 8;
+            // one AAC frame per 1024 samples, one Opus frame per 20ms
+            int framesPerSecond = MediaFormat.MIMETYPE_AUDIO_OPUS.equals(mAudioConfig.mimeType)
+                    ? 50 : mAudioConfig.sampleRate / 1024 + 1;
+            samplesPerSecond += mAudioStreams.length * framesPerSecond;
+        }
+        long seconds = (mReplayDurationUs + 999_999) / 1000_000;
+        // leave room for one more GOP and bitrate peaks
+        long capacity = Math.min(bytesPerSecond * (seconds + 2) * 3 / 2, MAX_REPLAY_BYTES);
+        int maxSamples = (int) (samplesPerSecond * (seconds + 2) * 2);
+        return new ReplayMuxer((int) capacity, mReplayDurationUs, maxSamples, mOutputFormat);
+    }
+
     private void muxVideo(int index, MediaCodec.BufferInfo buffer) {
         if (!mIsRunning.get()) {
             Log.w(TAG, "muxVideo: Already stopped!");
             return;
         }
+        if (mFirstFrameLatencyMs < 0 && mRequestTimeMs > 0 && buffer.size > 0
+                && (buffer.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            mFirstFrameLatencyMs = SystemClock.elapsedRealtime() - mRequestTimeMs;
+            Log.i(TAG, "First frame encoded " + mFirstFrameLatencyMs + "ms after the request, "
+                    + (mWarmEncoders ? "warm" : "cold") + " encoders");
+        }
         if (!mMuxerStarted || mVideoTrackIndex == INVALID_INDEX) {
-            mPendingVideoEncoderBufferIndices.add(index);
-            mPendingVideoEncoderBufferInfos.add(buffer);
+            if (mPendingVideoBuffers.offer(index, buffer.offset, buffer.size,
+                    buffer.presentationTimeUs, buffer.flags)) {
+                mPendingSyncFrameRequested = false;
+            } else if (!mPendingSyncFrameRequested) {
+                // an overflow dropped every key frame, don't wait for the next GOP
+                mPendingSyncFrameRequested = true;
+                try {
+                    mVideoEncoder.requestSyncFrame();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Failed to request sync frame", e);
+                }
+            }
             return;
         }
         ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(index);
-        writeSampleData(mVideoTrackIndex, buffer, encodedData);
+        writeSampleData(mVideoTrackIndex, CLOCK_VIDEO, buffer, encodedData);
         mVideoEncoder.releaseOutputBuffer(index);
+        if (mBitrateController != null && buffer.size > 0
+                && (buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+            adaptBitrate(buffer);
+        }
         if ((buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             if (VERBOSE)
                 Log.d(TAG, "Stop encoder and muxer, since the buffer has been marked with EOS");
-            // send release msg
+            // send release msg, the recording can't go on without video
             mVideoTrackIndex = INVALID_INDEX;
-            signalStop(true);
+            mOpenTracks--;
+            signalStop();
         }
     }
 
-    private void muxAudio(int index, MediaCodec.BufferInfo buffer) {
+    private void adaptBitrate(MediaCodec.BufferInfo buffer) {
+        int backlog = mAsyncMuxer == null ? 0
+                : mAsyncMuxer.getQueueDepth() * 100 / AsyncMuxer.DEFAULT_CAPACITY;
+        int bitrate = mBitrateController.onFrame(buffer.presentationTimeUs, buffer.size,
+                (buffer.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0, Math.min(100, backlog));
+        if (bitrate > 0) {
+            if (VERBOSE) Log.d(TAG, "Video bitrate changed to " + bitrate);
+            try {
+                mVideoEncoder.setBitrate(bitrate);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Failed to change bitrate", e);
+            }
+        }
+    }
+
+    private void muxAudio(AudioStream stream, int index, MediaCodec.BufferInfo buffer) {
         if (!mIsRunning.get()) {
             Log.w(TAG, "muxAudio: Already stopped!");
             return;
         }
-        if (!mMuxerStarted || mAudioTrackIndex == INVALID_INDEX) {
-            mPendingAudioEncoderBufferIndices.add(index);
-            mPendingAudioEncoderBufferInfos.add(buffer);
+        if (!mMuxerStarted || stream.trackIndex == INVALID_INDEX) {
+            stream.pending.offer(index, buffer.offset, buffer.size,
+                    buffer.presentationTimeUs, buffer.flags);
             return;
-
         }
-        ByteBuffer encodedData = mAudioEncoder.getOutputBuffer(index);
-        writeSampleData(mAudioTrackIndex, buffer, encodedData);
-        mAudioEncoder.releaseOutputBuffer(index);
+        ByteBuffer encodedData = stream.recorder.getOutputBuffer(index);
+        writeSampleData(stream.trackIndex, stream.clock, buffer, encodedData);
+        stream.recorder.releaseOutputBuffer(index);
         if ((buffer.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            if (VERBOSE)
-                Log.d(TAG, "Stop encoder and muxer, since the buffer has been marked with EOS");
-            mAudioTrackIndex = INVALID_INDEX;
-            signalStop(true);
+            stream.trackIndex = INVALID_INDEX;
+            // the other tracks go on, stop once all of them ended
+            if (--mOpenTracks == 0) {
+                if (VERBOSE)
+                    Log.d(TAG, "Stop encoder and muxer, since all tracks have been marked with EOS");
+                signalStop();
+            }
         }
     }
 
-    private void writeSampleData(int track, MediaCodec.BufferInfo buffer, ByteBuffer encodedData) {
+    private void writeSampleData(int track, int clock, MediaCodec.BufferInfo buffer,
+                                 ByteBuffer encodedData) {
         if ((buffer.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // The codec config data was pulled out and fed to the muxer when we got
             // the INFO_OUTPUT_FORMAT_CHANGED status.
@@ -216,11 +719,17 @@ public class ScreenRecorder {
             encodedData = null;
         } else {
             if (buffer.presentationTimeUs != 0) { // maybe 0 if eos
-                if (track == mVideoTrackIndex) {
-                    resetVideoPts(buffer);
-                } else if (track == mAudioTrackIndex) {
-                    resetAudioPts(buffer);
+                long ptsUs = mSessionClock.toSessionTime(clock, buffer.presentationTimeUs);
+                if (ptsUs == SessionClock.IN_PAUSE) {
+                    // e.g. a frame the encoder repeated before it was suspended
+                    if (VERBOSE) Log.d(TAG, "Dropping sample captured while paused");
+                    buffer.size = 0;
+                    if (!eos) {
+                        return;
+                    }
+                    ptsUs = 0;
                 }
+                buffer.presentationTimeUs = ptsUs;
             }
             if (VERBOSE)
                 Log.d(TAG, "[" + Thread.currentThread().getId() + "] Got buffer, track=" + track
@@ -233,30 +742,12 @@ public class ScreenRecorder {
         if (encodedData != null) {
             encodedData.position(buffer.offset);
             encodedData.limit(buffer.offset + buffer.size);
-            mMuxer.writeSampleData(track, encodedData, buffer);
+            mMuxer.write(track, encodedData, buffer);
             if (VERBOSE)
                 Log.i(TAG, "Sent " + buffer.size + " bytes to MediaMuxer on track " + track);
         }
     }
 
-    private void resetAudioPts(MediaCodec.BufferInfo buffer) {
-        if (mAudioPtsOffset == 0) {
-            mAudioPtsOffset = buffer.presentationTimeUs;
-            buffer.presentationTimeUs = 0;
-        } else {
-            buffer.presentationTimeUs -= mAudioPtsOffset;
-        }
-    }
-
-    private void resetVideoPts(MediaCodec.BufferInfo buffer) {
-        if (mVideoPtsOffset == 0) {
-            mVideoPtsOffset = buffer.presentationTimeUs;
-            buffer.presentationTimeUs = 0;
-        } else {
-            buffer.presentationTimeUs -= mVideoPtsOffset;
-        }
-    }
-
     private void resetVideoOutputFormat(MediaFormat newFormat) {
         // should happen before receiving buffers, and should only happen once
         if (mVideoTrackIndex >= 0 || mMuxerStarted) {
@@ -267,45 +758,70 @@ public class ScreenRecorder {
         mVideoOutputFormat = newFormat;
     }
 
-    private void resetAudioOutputFormat(MediaFormat newFormat) {
+    private void resetAudioOutputFormat(AudioStream stream, MediaFormat newFormat) {
         // should happen before receiving buffers, and should only happen once
-        if (mAudioTrackIndex >= 0 || mMuxerStarted) {
+        if (stream.format != null || mMuxerStarted) {
             throw new IllegalStateException("output format already changed!");
         }
         if (VERBOSE)
-            Log.i(TAG, "Audio output format changed.\n New format: " + newFormat.toString());
-        mAudioOutputFormat = newFormat;
+            Log.i(TAG, "Audio output format of " + stream.name + " changed.\n New format: "
+                    + newFormat.toString());
+        stream.format = newFormat;
+        mAudioFormatCount++;
     }
 
     private void startMuxerIfReady() {
-        if (mMuxerStarted || mVideoOutputFormat == null
-                || (mAudioEncoder != null && mAudioOutputFormat == null)) {
+        if (mMuxerStarted || (mVideoOutputFormat == null && !mAudioOnly)
+                || mAudioFormatCount < mAudioStreams.length) {
             return;
         }
 
-        mVideoTrackIndex = mMuxer.addTrack(mVideoOutputFormat);
-        mAudioTrackIndex = mAudioEncoder == null ? INVALID_INDEX : mMuxer.addTrack(mAudioOutputFormat);
+        if (!mAudioOnly) {
+            mVideoTrackIndex = mMuxer.addTrack(mVideoOutputFormat);
+        }
+        for (AudioStream stream : mAudioStreams) {
+            stream.trackIndex = mMuxer.addTrack(stream.format);
+        }
+        mOpenTracks = (mAudioOnly ? 0 : 1) + mAudioStreams.length;
         mMuxer.start();
         mMuxerStarted = true;
         if (VERBOSE) Log.i(TAG, "Started media muxer, videoIndex=" + mVideoTrackIndex);
-        if (mPendingVideoEncoderBufferIndices.isEmpty() && mPendingAudioEncoderBufferIndices.isEmpty()) {
-            return;
+        StringBuilder heldBack = new StringBuilder("Muxer started, held back video=")
+                .append(mPendingVideoBuffers.getHeldBackCount())
+                .append(" (dropped ").append(mPendingVideoBuffers.getDroppedCount()).append(")");
+        for (AudioStream stream : mAudioStreams) {
+            heldBack.append(", ").append(stream.name).append("=")
+                    .append(stream.pending.getHeldBackCount())
+                    .append(" (dropped ").append(stream.pending.getDroppedCount()).append(")");
         }
+        Log.i(TAG, heldBack.toString());
         if (VERBOSE) Log.i(TAG, "Mux pending video output buffers...");
-        MediaCodec.BufferInfo info;
-        while ((info = mPendingVideoEncoderBufferInfos.poll()) != null) {
-            int index = mPendingVideoEncoderBufferIndices.poll();
-            muxVideo(index, info);
-        }
-        if (mAudioEncoder != null) {
-            while ((info = mPendingAudioEncoderBufferInfos.poll()) != null) {
-                int index = mPendingAudioEncoderBufferIndices.poll();
-                muxAudio(index, info);
+        while (!mPendingVideoBuffers.isEmpty()) {
+            int index = pollPendingBuffer(mPendingVideoBuffers, mPendingBufferInfo);
+            muxVideo(index, mPendingBufferInfo);
+        }
+        for (AudioStream stream : mAudioStreams) {
+            while (!stream.pending.isEmpty()) {
+                int index = pollPendingBuffer(stream.pending, mPendingBufferInfo);
+                muxAudio(stream, index, mPendingBufferInfo);
             }
         }
         if (VERBOSE) Log.i(TAG, "Mux pending video output buffers done.");
     }
 
+    /**
+     * Removes the head of {@code queue} into {@code info}.
+     *
+     * @return the codec buffer index
+     */
+    private static int pollPendingBuffer(PendingBufferQueue queue, MediaCodec.BufferInfo info) {
+        int index = queue.peekIndex();
+        info.set(queue.peekOffset(), queue.peekSize(), queue.peekPresentationTimeUs(),
+                queue.peekFlags());
+        queue.remove();
+        return index;
+    }
+
     // @WorkerThread
     private void prepareVideoEncoder() throws IOException {
         VideoEncoder.Callback callback = new VideoEncoder.Callback() {
@@ -336,21 +852,86 @@ public class ScreenRecorder {
             }
         };
         mVideoEncoder.setCallback(callback);
-        mVideoEncoder.prepare();
+        try {
+            mVideoEncoder.prepare();
+        } catch (IOException | RuntimeException e) {
+            VideoEncodeConfig fallback = mVideoEncoder.getConfig().fallback;
+            if (fallback == null) {
+                throw e;
+            }
+            Log.w(TAG, "Failed to prepare " + mVideoEncoder.getConfig().mimeType
+                    + " encoder, falling back to " + fallback, e);
+            mVideoEncoder.release();
+            mVideoEncoder = new VideoEncoder(fallback);
+            mVirtualDisplay.resize(fallback.width, fallback.height, fallback.densityDpi);
+            mVideoEncoder.setCallback(callback);
+            mVideoEncoder.prepare();
+        }
     }
 
     private void prepareAudioEncoder() throws IOException {
-        final AudioRecorder audioRecorder = mAudioEncoder;
-        if (audioRecorder == null) return;
-        AudioEncoder.Callback callback = new AudioEncoder.Callback() {
+        if (mAudioStreams.length == 0) return;
+        if (mRecordMicrophone && mMicrophoneTrack) {
+            // no projection, records the microphone
+            AudioRecorder microphone = new AudioRecorder(mAudioConfig,
+                    new AudioEncoder(mAudioConfig), mAudioThread, null);
+            mAudioStreams = Arrays.copyOf(mAudioStreams, 2);
+            mAudioStreams[1] = new AudioStream("mic", CLOCK_VIDEO + 2, microphone);
+        }
+        mAudioStreams[0].recorder.setMicrophoneEnabled(mRecordMicrophone && !mMicrophoneTrack);
+        mAudioStreams[0].recorder.setProcessor(createBoost());
+        mLoudnessMeter = new LoudnessMeter(mAudioConfig.sampleRate, mAudioConfig.channelCount);
+        mAudioStreams[0].recorder.setLoudnessMeter(mLoudnessMeter);
+        if (mAudioStreams.length > 1) {
+            mAudioStreams[1].recorder.setProcessor(createNoiseGate());
+        } else if (mRecordMicrophone) {
+            mAudioStreams[0].recorder.setMicrophoneProcessor(createNoiseGate());
+        }
+        // all recorders share mAudioThread and call back on this thread
+        for (AudioStream stream : mAudioStreams) {
+            stream.recorder.setCallback(createAudioCallback(stream));
+            stream.recorder.prepare();
+        }
+    }
+
+    /**
+     * @return loudness normalization, or limiter and gain for {@link #mAudioBoostDb},
+     * null if the level is left alone
+     */
+    private AudioProcessor createBoost() {
+        if (mNormalizeLoudness) {
+            return new LoudnessNormalizer(mAudioConfig.sampleRate, mAudioConfig.channelCount,
+                    LOUDNESS_TARGET_LUFS, LOUDNESS_MAX_GAIN_DB, LIMITER_CEILING_DB,
+                    LIMITER_LOOKAHEAD_MS, LIMITER_RELEASE_MS, LOUDNESS_ADAPT_MS);
+        }
+        if (mAudioBoostDb == 0) {
+            return null;
+        }
+        return new AudioProcessorChain(
+                new LookaheadLimiter(mAudioConfig.sampleRate, mAudioConfig.channelCount,
+                        LIMITER_LOOKAHEAD_MS, LIMITER_RELEASE_MS, LIMITER_CEILING_DB - mAudioBoostDb),
+                new GainProcessor(mAudioConfig.channelCount, mAudioBoostDb));
+    }
+
+    private AudioProcessor createNoiseGate() {
+        if (!mMicrophoneNoiseGate) {
+            return null;
+        }
+        return new NoiseGate(mAudioConfig.sampleRate, mAudioConfig.channelCount,
+                GATE_THRESHOLD_DB, GATE_RANGE_DB, GATE_ATTACK_MS, GATE_HOLD_MS, GATE_RELEASE_MS);
+    }
+
+    private AudioEncoder.Callback createAudioCallback(final AudioStream stream) {
+        return new AudioEncoder.Callback() {
             boolean ranIntoError = false;
 
             @Override
             public void onOutputBufferAvailable(BaseEncoder codec, int index, MediaCodec.BufferInfo info) {
                 if (VERBOSE)
-                    Log.i(TAG, "[" + Thread.currentThread().getId() + "] AudioEncoder output buffer available: index=" + index);
+                    Log.i(TAG, "[" + Thread.currentThread().getId() + "] AudioEncoder output buffer available: track="
+                            + stream.name + ", index=" + index);
                 try {
-                    muxAudio(index, info);
+                    muxAudio(stream, index, info);
                 } catch (Exception e) {
                     Log.e(TAG, "Muxer encountered an error! ", e);
                     Message.obtain(mHandler, MSG_ERROR, e).sendToTarget();
@@ -361,80 +942,133 @@ public class ScreenRecorder {
             public void onOutputFormatChanged(BaseEncoder codec, MediaFormat format) {
                 if (VERBOSE)
                     Log.d(TAG, "[" + Thread.currentThread().getId() + "] AudioEncoder returned new format " + format);
-                resetAudioOutputFormat(format);
+                resetAudioOutputFormat(stream, format);
                 startMuxerIfReady();
             }
 
             @Override
             public void onError(Encoder codec, Exception e) {
                 ranIntoError = true;
-                Log.e(TAG, "audioRecorder ran into an error! ", e);
+                Log.e(TAG, "AudioRecorder of " + stream.name + " ran into an error! ", e);
+                if (dropMicrophoneTrack(stream)) {
+                    return;
+                }
                 Message.obtain(mHandler, MSG_ERROR, e).sendToTarget();
             }
 
 
         };
-        audioRecorder.setCallback(callback);
-        audioRecorder.prepare();
     }
 
-    private void signalStop(boolean stopWithEOS) {
-        Message msg = Message.obtain(mHandler, MSG_STOP, stopWithEOS ? STOP_WITH_EOS : 0, 0);
+    /**
+     * Goes on with the internal audio only if the separate microphone track failed
+     * before the muxer started, like the mixed microphone does.
+     *
+     * @return false if the recording can't go on without {@code stream}
+     */
+    private boolean dropMicrophoneTrack(AudioStream stream) {
+        if (mMuxerStarted || mAudioStreams.length < 2 || stream != mAudioStreams[1]) {
+            return false;
+        }
+        Log.w(TAG, "Microphone track unavailable, recording internal audio only");
+        if (stream.format != null) {
+            mAudioFormatCount--;
+        }
+        stream.pending.clear();
+        try {
+            stream.recorder.stop();
+            stream.recorder.release();
+        } catch (IllegalStateException e) {
+            // ignored, it failed already
+        }
+        mAudioStreams = Arrays.copyOf(mAudioStreams, 1);
+        startMuxerIfReady();
+        return true;
+    }
+
+    private void signalStop() {
+        Message msg = Message.obtain(mHandler, MSG_STOP);
         mHandler.sendMessageAtFrontOfQueue(msg);
     }
 
     private void stopEncoders() {
         mIsRunning.set(false);
-        mPendingAudioEncoderBufferInfos.clear();
-        mPendingAudioEncoderBufferIndices.clear();
-        mPendingVideoEncoderBufferInfos.clear();
-        mPendingVideoEncoderBufferIndices.clear();
+        for (AudioStream stream : mAudioStreams) {
+            stream.pending.clear();
+        }
+        mPendingVideoBuffers.clear();
         // maybe called on an error has been occurred
         try {
             if (mVideoEncoder != null) mVideoEncoder.stop();
         } catch (IllegalStateException e) {
             // ignored
         }
-        try {
-            if (mAudioEncoder != null) mAudioEncoder.stop();
-        } catch (IllegalStateException e) {
-            // ignored
+        for (AudioStream stream : mAudioStreams) {
+            try {
+                stream.recorder.stop();
+            } catch (IllegalStateException e) {
+                // ignored
+            }
         }
 
     }
 
-    private void release() {
+    /**
+     * @param publish report the finished file to {@link Callback#onFinished}
+     */
+    private void release(boolean publish) {
         if (mVirtualDisplay != null) {
             mVirtualDisplay.setSurface(null);
             mVirtualDisplay = null;
         }
 
-        mVideoOutputFormat = mAudioOutputFormat = null;
-        mVideoTrackIndex = mAudioTrackIndex = INVALID_INDEX;
+        mVideoOutputFormat = null;
+        mVideoTrackIndex = INVALID_INDEX;
+        for (AudioStream stream : mAudioStreams) {
+            stream.format = null;
+            stream.trackIndex = INVALID_INDEX;
+        }
+        mAudioFormatCount = 0;
         mMuxerStarted = false;
+        mReplayMuxer = null;
 
         if (mWorker != null) {
             mWorker.quitSafely();
             mWorker = null;
         }
+        logSessionStats();
         if (mVideoEncoder != null) {
             mVideoEncoder.release();
             mVideoEncoder = null;
         }
-        if (mAudioEncoder != null) {
-            mAudioEncoder.release();
-            mAudioEncoder = null;
+        for (AudioStream stream : mAudioStreams) {
+            stream.recorder.release();
+        }
+        mAudioStreams = new AudioStream[0];
+        if (mAudioThread != null) {
+            // after the release messages of the recorders
+            mAudioThread.quitSafely();
+            mAudioThread = null;
         }
 
         if (mMuxer != null) {
+            Throwable error = null;
             try {
                 mMuxer.stop();
                 mMuxer.release();
+                // only a complete file is tagged
+                writeLoudness();
             } catch (Exception e) {
-                // ignored
+                Log.e(TAG, "Failed to finish the muxer", e);
+                error = e;
             }
             mMuxer = null;
+            // replays and segments report their files themselves
+            if (publish && mCallback != null && !isReplayMode() && !isSegmented()) {
+                mCallback.onFinished(error);
+            }
         }
+        mLoudnessMeter = null;
 
         if (mMediaProjection != null) {
             mMediaProjection.stop();
@@ -444,17 +1078,126 @@ public class ScreenRecorder {
         mHandler = null;
     }
 
+    /**
+     * Stores the loudness measured while recording in the finished file, see
+     * {@link Mp4LoudnessBox}.
+     */
+    private void writeLoudness() {
+        if (mLoudnessMeter == null) {
+            return;
+        }
+        double loudness = mLoudnessMeter.getIntegratedLoudness();
+        double truePeak = mLoudnessMeter.getTruePeak();
+        double samplePeak = mLoudnessMeter.getSamplePeak();
+        Log.i(TAG, String.format(Locale.US,
+                "Loudness: integrated=%.1fLUFS, truePeak=%.1fdBTP, samplePeak=%.1fdBFS",
+                loudness, truePeak, samplePeak));
+        // replays and segments hold only a part of what was measured
+        if (Double.isInfinite(loudness) || isReplayMode() || isSegmented()
+                || mOutputFormat != MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) {
+            return;
+        }
+        try {
+            if (!Mp4LoudnessBox.write(new File(mDstPath), loudness, truePeak, samplePeak)) {
+                Log.w(TAG, "No trailing moov to store the loudness in " + mDstPath);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store the loudness in " + mDstPath, e);
+        }
+    }
+
+    private void logSessionStats() {
+        StringBuilder stats = new StringBuilder("Session stats: paused=")
+                .append(mSessionClock.getTotalPausedUs())
+                .append("us, maxTrackSkew=").append(mSessionClock.getMaxTrackSkewUs()).append("us");
+        for (AudioStream stream : mAudioStreams) {
+            AudioRecorder recorder = stream.recorder;
+            AudioDriftCorrector clock = recorder.getDriftCorrector();
+            String name = stream.name;
+            stats.append(", ").append(name).append(": maxAvSkew=").append(clock.getMaxSkewUs())
+                    .append("us, ").append(name).append("Drift=").append(clock.getDriftPpm())
+                    .append("ppm, ").append(name).append("Correction=").append(clock.getTotalCorrectionUs())
+                    .append("us, ").append(name).append("Resyncs=").append(clock.getResyncCount())
+                    .append(", ").append(name).append("Overruns=").append(recorder.getOverrunCount())
+                    .append(", ").append(name).append("OverrunFrames=").append(recorder.getOverrunFrames())
+                    .append(", ").append(name).append("Underruns=").append(recorder.getUnderrunCount())
+                    .append(", ").append(name).append("Gaps=").append(recorder.getCaptureGapCount())
+                    .append(", ").append(name).append("GapFrames=").append(recorder.getCaptureGapFrames());
+        }
+        if (mIdleFrameFilter != null) {
+            stats.append(", effectiveFps=").append(mIdleFrameFilter.getEffectiveFrameRate())
+                    .append(", droppedFrames=").append(mIdleFrameFilter.getDroppedFrames())
+                    .append(", savedBytes=").append(mIdleFrameFilter.getDroppedBytes());
+        }
+        if (mFirstFrameLatencyMs >= 0) {
+            stats.append(", firstFrameLatency=").append(mFirstFrameLatencyMs)
+                    .append("ms, warmEncoders=").append(mWarmEncoders);
+        }
+        if (mBitrateController != null) {
+            stats.append(", bitrate=").append(mBitrateController.getBitrate())
+                    .append(", bitrateIncreases=").append(mBitrateController.getIncreases())
+                    .append(", bitrateDecreases=").append(mBitrateController.getDecreases());
+        }
+        Log.i(TAG, stats.toString());
+    }
+
     @Override
     protected void finalize() {
-        if (mVirtualDisplay != null) {
+        if (mVirtualDisplay != null || mAudioStreams.length > 0) {
             Log.e(TAG, "release() not called!");
-            release();
+            release(false);
+        }
+    }
+
+    /**
+     * Bookkeeping of one audio track: its recorder, the output buffers held back until
+     * the muxer starts and the session clock track its timestamps are rebased on.
+     */
+    private static final class AudioStream {
+        final String name;
+        final int clock;
+        final PendingBufferQueue pending;
+        AudioRecorder recorder;
+        MediaFormat format;
+        int trackIndex = INVALID_INDEX;
+
+        AudioStream(String name, int clock, AudioRecorder recorder) {
+            this.name = name;
+            this.clock = clock;
+            this.recorder = recorder;
+            this.pending = new PendingBufferQueue(PENDING_BUFFERS_CAPACITY,
+                    PendingBufferQueue.OVERFLOW_DROP_OLDEST_SAMPLE,
+                    index -> this.recorder.releaseOutputBuffer(index));
         }
     }
 
+    public interface SegmentCallback {
+        /**
+         * Called from the muxer writer thread once segment {@code index} is complete.
+         *
+         * @param last whether this is the final segment of the recording
+         */
+        void onSegmentFinished(String path, int index, boolean last);
+    }
+
+    public interface ReplayCallback {
+        void onReplaySaved(String path, long durationUs);
+
+        void onReplayError(Throwable error);
+    }
+
     public interface Callback {
         void onStop(Throwable error);
 
+        /**
+         * Called on the worker thread once the muxer finished and closed the file of a
+         * recording that stopped without an error, so it can be published. Not called
+         * for replays and segmented recordings.
+         *
+         * @param error why the file couldn't be completed, null if it is
+         */
+        void onFinished(Throwable error);
+
         void onStart();
 
         void onRecording(long presentationTimeUs);
@@ -468,6 +1211,12 @@ public class ScreenRecorder {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
+                case MSG_PAUSE:
+                    pauseRecording();
+                    break;
+                case MSG_RESUME:
+                    resumeRecording();
+                    break;
                 case MSG_START:
                     try {
                         record();
@@ -480,12 +1229,14 @@ public class ScreenRecorder {
                     }
                 case MSG_STOP:
                 case MSG_ERROR:
+                    mPaused = false;
                     stopEncoders();
-                    if (msg.arg1 != STOP_WITH_EOS) signalEndOfStream();
+                    // ends the tracks that didn't reach EOS themselves
+                    signalEndOfStream();
                     if (mCallback != null) {
                         mCallback.onStop((Throwable) msg.obj);
                     }
-                    release();
+                    release(msg.obj == null);
                     break;
             }
         }
@@ -23,10 +23,12 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
+import android.media.MediaMuxer;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
@@ -41,13 +43,19 @@ import android.util.Size;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import org.pixelexperience.recorder.encoders.AudioEncodeConfig;
 import org.pixelexperience.recorder.encoders.EncoderConfig;
+import org.pixelexperience.recorder.encoders.VideoEncodeConfig;
+import org.pixelexperience.recorder.muxer.ContainerFormats;
+import org.pixelexperience.recorder.muxer.Mp4Recovery;
+import org.pixelexperience.recorder.muxer.RawBitstreamSink;
 import org.pixelexperience.recorder.utils.LastRecordHelper;
 import org.pixelexperience.recorder.utils.MediaProviderHelper;
 import org.pixelexperience.recorder.utils.PreferenceUtils;
 import org.pixelexperience.recorder.utils.Utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -58,10 +66,19 @@ public class ScreenRecorderService extends Service {
             "org.pixelexperience.recorder.screen.ACTION_START_SCREENCAST";
     public static final String ACTION_STOP_SCREENCAST =
             "org.pixelexperience.recorder.screen.ACTION_STOP_SCREENCAST";
+    public static final String ACTION_SAVE_REPLAY =
+            "org.pixelexperience.recorder.screen.ACTION_SAVE_REPLAY";
+    public static final String ACTION_PAUSE_SCREENCAST =
+            "org.pixelexperience.recorder.screen.ACTION_PAUSE_SCREENCAST";
+    public static final String ACTION_RESUME_SCREENCAST =
+            "org.pixelexperience.recorder.screen.ACTION_RESUME_SCREENCAST";
     public static final int NOTIFICATION_ID = 61;
+    public static final int REPLAY_NOTIFICATION_ID = 62;
     private static final String SCREENCAST_NOTIFICATION_CHANNEL =
             "screencast_notification_channel";
     private static final String TAG = ScreenRecorderService.class.getSimpleName();
+    // debug switch, also writes the elementary streams next to the recording
+    private static final String RAW_DUMP_TAG = "RecorderRawDump";
     private NotificationCompat.Builder mBuilder;
     private ScreenRecorder mRecorder;
     private NotificationManager mNotificationManager;
@@ -83,6 +100,9 @@ public class ScreenRecorderService extends Service {
     private EncoderConfig mEncoderConfig;
     private File mVideoPath;
     private File mTempVideoPath;
+    private int mOutputFormat;
+    // recording the audio only, without a virtual display
+    private boolean mAudioOnly;
     private int mElapsedTimeInSeconds;
     private boolean mShouldUpdateNotification;
     private boolean mVideoSaved = false;
@@ -107,9 +127,20 @@ public class ScreenRecorderService extends Service {
             case ACTION_START_SCREENCAST:
                 return startRecording(intent);
             case ACTION_STOP_SCREENCAST:
-                showSavingNotification();
+                if (mRecorder == null || !mRecorder.isReplayMode()) {
+                    showSavingNotification();
+                }
                 stopRecording(true);
                 return START_STICKY;
+            case ACTION_SAVE_REPLAY:
+                saveReplay();
+                return START_STICKY;
+            case ACTION_PAUSE_SCREENCAST:
+                setPaused(true);
+                return START_STICKY;
+            case ACTION_RESUME_SCREENCAST:
+                setPaused(false);
+                return START_STICKY;
             default:
                 return START_NOT_STICKY;
         }
@@ -133,6 +164,8 @@ public class ScreenRecorderService extends Service {
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         registerReceiver(mBroadcastReceiver, filter);
 
+        recoverInterruptedRecordings();
+
         if (mNotificationManager.getNotificationChannel(
                 SCREENCAST_NOTIFICATION_CHANNEL) != null) {
             return;
@@ -175,13 +208,16 @@ public class ScreenRecorderService extends Service {
             assert mRecorder == null;
 
             // Prepare all the output metadata
+            mOutputFormat = mPreferenceUtils.getOutputFormat();
+            mAudioOnly = intent.getBooleanExtra(Utils.SCREEN_RECORD_INTENT_AUDIO_ONLY, false);
+            String extension = getOutputExtension();
             String videoDate = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.getDefault())
                     .format(new Date());
             // the directory which holds all recording files
             mVideoPath = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES),
-                    "ScreenRecords/ScreenRecord-" + videoDate + ".mp4");
+                    "ScreenRecords/" + getOutputPrefix() + videoDate + extension);
             mTempVideoPath = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES),
-                    "ScreenRecords/ScreenRecord-" + videoDate + "_temp.mp4");
+                    "ScreenRecords/" + getOutputPrefix() + videoDate + "_temp" + extension);
 
             File videoDir = mTempVideoPath.getParentFile();
             if (videoDir == null) {
@@ -197,12 +233,50 @@ public class ScreenRecorderService extends Service {
             Intent mediaProjectionIntentData = intent.getParcelableExtra(Utils.SCREEN_RECORD_INTENT_DATA);
             assert mediaProjectionIntentData != null;
 
-            mBuilder = createNotificationBuilder();
+            mBuilder = createNotificationBuilder(mPreferenceUtils.getReplayDuration() > 0, false);
             startForeground(NOTIFICATION_ID, mBuilder.build());
 
             MediaProjection mediaProjection = mProjectionManager.getMediaProjection(mediaProjectionIntentResult, mediaProjectionIntentData);
 
-            mRecorder = new ScreenRecorder(mEncoderConfig.getVideoConfig(), mEncoderConfig.getAudioConfig(), mTempVideoPath.getAbsolutePath(), mediaProjection);
+            mEncoderConfig.setVariableFrameRate(mPreferenceUtils.getVariableFrameRate());
+            mEncoderConfig.setOutputFormat(mOutputFormat);
+            mEncoderConfig.setAvcOnly(mPreferenceUtils.getFragmentedOutput()
+                    || mPreferenceUtils.getJournaledOutput());
+            // no virtual display, no video encoder
+            VideoEncodeConfig videoConfig = mAudioOnly ? null : mEncoderConfig.getVideoConfig();
+            AudioEncodeConfig audioConfig = mEncoderConfig.getAudioConfig();
+            mRecorder = new ScreenRecorder(videoConfig, audioConfig, mTempVideoPath.getAbsolutePath(), mediaProjection);
+            EncoderWarmup.Encoders warmEncoders = mAudioOnly ? null
+                    : EncoderWarmup.claim(videoConfig, audioConfig);
+            if (warmEncoders != null) {
+                mRecorder.setWarmEncoders(warmEncoders);
+            }
+            mRecorder.setOutputFormat(mOutputFormat);
+            mRecorder.setRequestTime(intent.getLongExtra(Utils.SCREEN_RECORD_INTENT_TIME, 0));
+            mRecorder.setFragmentedOutput(mPreferenceUtils.getFragmentedOutput());
+            mRecorder.setJournaledOutput(mPreferenceUtils.getJournaledOutput());
+            mRecorder.setBackpressurePolicy(mPreferenceUtils.getBackpressurePolicy());
+            mRecorder.setMicrophoneEnabled(mPreferenceUtils.getRecordMicrophone());
+            // WebM holds a single audio track, the microphone is mixed in instead
+            mRecorder.setMicrophoneTrack(mPreferenceUtils.getMicrophoneTrack()
+                    && ContainerFormats.getMaxAudioTracks(mOutputFormat) > 1);
+            mRecorder.setMicrophoneNoiseGate(mPreferenceUtils.getMicrophoneNoiseGate());
+            mRecorder.setAudioBoost(mPreferenceUtils.getAudioBoost());
+            mRecorder.setLoudnessNormalization(mPreferenceUtils.getNormalizeLoudness());
+            if (mPreferenceUtils.getAdaptiveBitrate() && !mAudioOnly) {
+                int bitrate = videoConfig.bitrate;
+                mRecorder.setAdaptiveBitrate(bitrate / 4, bitrate * 2);
+            }
+            if (Log.isLoggable(RAW_DUMP_TAG, Log.DEBUG)) {
+                // adb shell setprop log.tag.RecorderRawDump DEBUG
+                File dump = new File(videoDir, getOutputPrefix() + videoDate + "_raw");
+                Log.d(RAW_DUMP_TAG, "Dumping encoded streams to " + dump + "-*");
+                mRecorder.addSink(new RawBitstreamSink(dump.getAbsolutePath()));
+            }
+            mRecorder.setReplayDuration(mPreferenceUtils.getReplayDuration() * 1000_000L);
+            mRecorder.setSegmentation(mPreferenceUtils.getSplitDurationMinutes() * 60_000_000L,
+                    mPreferenceUtils.getSplitSizeMegabytes() * 1024L * 1024L,
+                    (path, index, last) -> mHandler.post(() -> saveSegment(new File(path), index, last)));
             mRecorder.setCallback(new ScreenRecorder.Callback() {
                 long startTime = 0;
 
@@ -213,16 +287,34 @@ public class ScreenRecorderService extends Service {
                         error.printStackTrace();
                         deleteRecording();
                         notifyError(getString(R.string.unknow_error));
+                    } else if (mRecorder != null && mRecorder.isReplayMode()) {
+                        // nothing was written to disk, replays are saved on demand
+                        stopForeground(true);
+                    } else if (mRecorder != null && mRecorder.isSegmented()) {
+                        // segments are published as they are closed, the last one
+                        // once the muxer stopped
+                        showSavingNotification();
                     } else if (!mVideoSaved){
+                        // published once the muxer finished the file, see onFinished
                         mVideoSaved = true;
                         showSavingNotification();
-                        mHandler.postDelayed(() -> {
-                            saveVideo();
-                        }, 2000);
                     }
                     stopRecording(false);
                 }
 
+                @Override
+                public void onFinished(Throwable error) {
+                    mHandler.post(() -> {
+                        if (error == null) {
+                            saveVideo();
+                            return;
+                        }
+                        deleteRecording();
+                        notifyError(getString(R.string.unknow_error));
+                        stopForeground(true);
+                    });
+                }
+
                 @Override
                 public void onStart() {
                     mElapsedTimeInSeconds = 0;
@@ -245,7 +337,7 @@ public class ScreenRecorderService extends Service {
 
             mRecorder.start();
 
-            Utils.setStatus(Utils.PREF_RECORDING_SCREEN, this);
+            Utils.setStatus(mAudioOnly ? Utils.PREF_RECORDING_AUDIO : Utils.PREF_RECORDING_SCREEN, this);
 
             Utils.refreshShowTouchesState(this);
 
@@ -267,7 +359,7 @@ public class ScreenRecorderService extends Service {
     }
 
     private void saveVideo() {
-        String uri = MediaProviderHelper.addVideoToContentProvider(getContentResolver(), mTempVideoPath, mVideoPath);
+        String uri = addToContentProvider(getContentResolver(), mTempVideoPath, mVideoPath);
         if (uri != null) {
             sendShareNotification(uri);
             stopForeground(false);
@@ -278,6 +370,95 @@ public class ScreenRecorderService extends Service {
         }
     }
 
+    private void saveSegment(File tempSegmentPath, int index, boolean last) {
+        String name = mVideoPath.getName();
+        String extension = getOutputExtension();
+        File segmentPath = new File(mVideoPath.getParentFile(), String.format(Locale.US, "%s-%03d%s",
+                name.substring(0, name.length() - extension.length()), index + 1, extension));
+        String uri = addToContentProvider(getContentResolver(), tempSegmentPath, segmentPath);
+        if (uri == null) {
+            tempSegmentPath.delete();
+            notifyError(getString(R.string.unknow_error));
+        }
+        if (last) {
+            if (uri != null) {
+                sendShareNotification(uri);
+                stopForeground(false);
+            } else {
+                stopForeground(true);
+            }
+        }
+    }
+
+    private void saveReplay() {
+        if (mRecorder == null || !mRecorder.isReplayMode()) {
+            return;
+        }
+        String replayDate = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.getDefault())
+                .format(new Date());
+        String extension = getOutputExtension();
+        File replayPath = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES),
+                "ScreenRecords/Replay-" + replayDate + extension);
+        File tempReplayPath = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES),
+                "ScreenRecords/Replay-" + replayDate + "_temp" + extension);
+        mRecorder.saveReplay(tempReplayPath.getAbsolutePath(), new ScreenRecorder.ReplayCallback() {
+            @Override
+            public void onReplaySaved(String path, long durationUs) {
+                mHandler.post(() -> {
+                    String uri = addToContentProvider(getContentResolver(), tempReplayPath, replayPath);
+                    if (uri != null) {
+                        sendReplayNotification(uri, (int) (durationUs / 1000000));
+                    } else {
+                        tempReplayPath.delete();
+                        notifyError(getString(R.string.unknow_error));
+                    }
+                });
+            }
+
+            @Override
+            public void onReplayError(Throwable error) {
+                Log.e(TAG, "Error saving replay", error);
+                tempReplayPath.delete();
+                notifyError(getString(R.string.unknow_error));
+            }
+        });
+    }
+
+    /**
+     * Rebuilds and publishes recordings a dead process left behind with a journal.
+     */
+    private void recoverInterruptedRecordings() {
+        File videoDir = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), "ScreenRecords");
+        // list now, before a new recording creates its own journal
+        File[] journals = videoDir.listFiles((dir, name) -> name.endsWith(Mp4Recovery.JOURNAL_SUFFIX));
+        if (journals == null || journals.length == 0) {
+            return;
+        }
+        ContentResolver resolver = getContentResolver();
+        new Thread(() -> {
+            for (File journal : journals) {
+                File tempFile = Mp4Recovery.getRecordingFile(journal);
+                try {
+                    if (tempFile != null && tempFile.exists()
+                            && Mp4Recovery.recover(tempFile, journal) > 0) {
+                        File file = new File(videoDir, tempFile.getName().replace("_temp", ""));
+                        // journals are only written for MP4
+                        if (MediaProviderHelper.addVideoToContentProvider(resolver, tempFile, file,
+                                ContainerFormats.getMimeType(MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)) != null) {
+                            continue;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to recover " + tempFile, e);
+                }
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+                journal.delete();
+            }
+        }, "RecordingRecovery").start();
+    }
+
     private void deleteRecording() {
         if (mVideoPath != null && mVideoPath.exists()) {
             Log.d(TAG, "Deleting " + mVideoPath.getAbsolutePath());
@@ -296,8 +477,51 @@ public class ScreenRecorderService extends Service {
         return megAvailable < 100;
     }
 
+    private String getOutputPrefix() {
+        return mAudioOnly ? "AudioRecord-" : "ScreenRecord-";
+    }
+
+    private String getOutputExtension() {
+        return mAudioOnly ? ContainerFormats.getAudioExtension(mOutputFormat)
+                : ContainerFormats.getExtension(mOutputFormat);
+    }
+
+    private String getOutputMimeType() {
+        return mAudioOnly ? ContainerFormats.getAudioMimeType(mOutputFormat)
+                : ContainerFormats.getMimeType(mOutputFormat);
+    }
+
+    private String addToContentProvider(ContentResolver resolver, File tempFile, File file) {
+        return mAudioOnly
+                ? MediaProviderHelper.addAudioToContentProvider(resolver, tempFile, file, getOutputMimeType())
+                : MediaProviderHelper.addVideoToContentProvider(resolver, tempFile, file, getOutputMimeType());
+    }
+
+    private int getLengthMessage(boolean paused) {
+        if (mAudioOnly) {
+            return paused ? R.string.audio_notification_message_paused : R.string.audio_notification_message;
+        }
+        return paused ? R.string.screen_notification_message_paused : R.string.screen_notification_message;
+    }
+
     private void updateNotification() {
-        mBuilder.setContentText(getString(R.string.screen_notification_message,
+        boolean paused = mRecorder != null && mRecorder.isPaused();
+        mBuilder.setContentText(getString(getLengthMessage(paused),
+                DateUtils.formatElapsedTime(mElapsedTimeInSeconds)));
+        mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+    }
+
+    private void setPaused(boolean paused) {
+        if (mRecorder == null || !mShouldUpdateNotification) {
+            return;
+        }
+        if (paused) {
+            mRecorder.pause();
+        } else {
+            mRecorder.resume();
+        }
+        mBuilder = createNotificationBuilder(mRecorder.isReplayMode(), paused);
+        mBuilder.setContentText(getString(getLengthMessage(paused),
                 DateUtils.formatElapsedTime(mElapsedTimeInSeconds)));
         mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
     }
@@ -314,18 +538,31 @@ public class ScreenRecorderService extends Service {
         }
     }
 
-    private NotificationCompat.Builder createNotificationBuilder() {
+    private NotificationCompat.Builder createNotificationBuilder(boolean replayMode, boolean paused) {
         Intent stopRecordingIntent = new Intent(ACTION_STOP_SCREENCAST);
         stopRecordingIntent.setClass(this, ScreenRecorderService.class);
 
-        return new NotificationCompat.Builder(this, SCREENCAST_NOTIFICATION_CHANNEL)
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, SCREENCAST_NOTIFICATION_CHANNEL)
                 .setOngoing(true)
                 .setSmallIcon(R.drawable.ic_notification_screen)
-                .setContentTitle(getString(R.string.screen_notification_title))
-                .setContentText(getString(R.string.screen_notification_message, DateUtils.formatElapsedTime(0)))
+                .setContentTitle(getString(replayMode ? R.string.replay_notification_title
+                        : mAudioOnly ? R.string.audio_notification_title : R.string.screen_notification_title))
+                .setContentText(getString(getLengthMessage(false), DateUtils.formatElapsedTime(0)))
                 .setContentIntent(PendingIntent.getActivity(this, 0, stopRecordingIntent, 0))
                 .addAction(R.drawable.ic_stop, getString(R.string.stop),
                         PendingIntent.getService(this, 0, stopRecordingIntent, 0));
+        Intent pauseResumeIntent = new Intent(paused ? ACTION_RESUME_SCREENCAST : ACTION_PAUSE_SCREENCAST);
+        pauseResumeIntent.setClass(this, ScreenRecorderService.class);
+        builder.addAction(paused ? R.drawable.ic_play : R.drawable.ic_pause,
+                getString(paused ? R.string.resume : R.string.pause),
+                PendingIntent.getService(this, 0, pauseResumeIntent, 0));
+        if (replayMode) {
+            Intent saveReplayIntent = new Intent(ACTION_SAVE_REPLAY);
+            saveReplayIntent.setClass(this, ScreenRecorderService.class);
+            builder.addAction(R.drawable.ic_share, getString(R.string.save_replay),
+                    PendingIntent.getService(this, 0, saveReplayIntent, 0));
+        }
+        return builder;
     }
 
     private void sendShareNotification(String recordingFilePath) {
@@ -333,13 +570,37 @@ public class ScreenRecorderService extends Service {
         mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
     }
 
+    private void sendReplayNotification(String uriStr, int durationInSeconds) {
+        Uri uri = Uri.parse(uriStr);
+        PendingIntent playPIntent = PendingIntent.getActivity(this, 0,
+                LastRecordHelper.getOpenIntent(uri, getOutputMimeType()),
+                PendingIntent.FLAG_CANCEL_CURRENT);
+        PendingIntent sharePIntent = PendingIntent.getActivity(this, 0,
+                LastRecordHelper.getShareIntent(uri, getOutputMimeType()),
+                PendingIntent.FLAG_CANCEL_CURRENT);
+
+        Log.i(TAG, "Replay complete: " + uriStr);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Utils.RECORDING_DONE_NOTIFICATION_CHANNEL)
+                .setWhen(System.currentTimeMillis())
+                .setSmallIcon(R.drawable.ic_notification_screen)
+                .setContentTitle(getString(R.string.replay_saved))
+                .setContentText(getString(getLengthMessage(false),
+                        DateUtils.formatElapsedTime(durationInSeconds)))
+                .addAction(R.drawable.ic_play, getString(R.string.play), playPIntent)
+                .addAction(R.drawable.ic_share, getString(R.string.share), sharePIntent)
+                .setAutoCancel(true)
+                .setContentIntent(playPIntent);
+        mNotificationManager.notify(REPLAY_NOTIFICATION_ID, builder.build());
+    }
+
     private NotificationCompat.Builder createShareNotificationBuilder(String uriStr) {
         Uri uri = Uri.parse(uriStr);
         PendingIntent playPIntent = PendingIntent.getActivity(this, 0,
-                LastRecordHelper.getOpenIntent(uri, "video/mp4"),
+                LastRecordHelper.getOpenIntent(uri, getOutputMimeType()),
                 PendingIntent.FLAG_CANCEL_CURRENT);
         PendingIntent sharePIntent = PendingIntent.getActivity(this, 0,
-                LastRecordHelper.getShareIntent(uri, "video/mp4"),
+                LastRecordHelper.getShareIntent(uri, getOutputMimeType()),
                 PendingIntent.FLAG_CANCEL_CURRENT);
         PendingIntent deletePIntent = PendingIntent.getBroadcast(this, 0,
                 new Intent(this, DeleteVideoReceiver.class),
@@ -347,13 +608,13 @@ public class ScreenRecorderService extends Service {
 
         LastRecordHelper.setLastItem(this, uriStr, mElapsedTimeInSeconds);
 
-        Log.i(TAG, "Video complete: " + uriStr);
+        Log.i(TAG, (mAudioOnly ? "Audio" : "Video") + " complete: " + uriStr);
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Utils.RECORDING_DONE_NOTIFICATION_CHANNEL)
                 .setWhen(System.currentTimeMillis())
                 .setSmallIcon(R.drawable.ic_notification_screen)
                 .setContentTitle(getString(R.string.screen_notification_message_done))
-                .setContentText(getString(R.string.screen_notification_message,
+                .setContentText(getString(getLengthMessage(false),
                         DateUtils.formatElapsedTime(mElapsedTimeInSeconds)))
                 .addAction(R.drawable.ic_play, getString(R.string.play), playPIntent)
                 .addAction(R.drawable.ic_share, getString(R.string.share), sharePIntent)
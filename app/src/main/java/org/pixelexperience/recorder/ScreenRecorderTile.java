@@ -52,8 +52,19 @@ public class ScreenRecorderTile extends TileService {
         }, delayed ? 500 : 0);
     }
 
+    /**
+     * @return whether the tile records the audio only, without the screen
+     */
+    protected boolean isAudioOnly() {
+        return false;
+    }
+
+    private boolean isRecordingThis() {
+        return isAudioOnly() ? Utils.isAudioRecording() : Utils.isScreenRecording();
+    }
+
     private void clickEvent(final boolean locked){
-        if (Utils.isScreenRecording()) {
+        if (Utils.isRecording()) {
             collapseStatusBar(locked);
             new Handler().postDelayed(() -> {
                 Utils.setStatus(Utils.PREF_RECORDING_NOTHING, this);
@@ -63,6 +74,7 @@ public class ScreenRecorderTile extends TileService {
         } else {
             collapseStatusBar(locked);
             Intent intent = new Intent(this, StartScreenRecorder.class);
+            intent.putExtra(Utils.SCREEN_RECORD_INTENT_AUDIO_ONLY, isAudioOnly());
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK);
             intent.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
@@ -74,6 +86,10 @@ public class ScreenRecorderTile extends TileService {
     public void onStartListening() {
         super.onStartListening();
         updateTile();
+        // the user is likely about to tap, get the encoders ready meanwhile
+        if (!isAudioOnly()) {
+            EncoderWarmup.warmUp(this);
+        }
         LocalBroadcastManager.getInstance(this).registerReceiver(mRecordingStateChanged,
                 new IntentFilter(Utils.ACTION_RECORDING_STATE_CHANGED));
     }
@@ -92,10 +108,12 @@ public class ScreenRecorderTile extends TileService {
 
     private void updateTile() {
         Tile qsTile = getQsTile();
-        qsTile.setState(Utils.isScreenRecording()
-                ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
-        qsTile.setLabel(getString(Utils.isScreenRecording() ?
-                R.string.touch_to_stop_message : R.string.main_screen_action));
+        // the other tile is recording
+        boolean busy = Utils.isRecording() && !isRecordingThis();
+        qsTile.setState(isRecordingThis() ? Tile.STATE_ACTIVE
+                : busy ? Tile.STATE_UNAVAILABLE : Tile.STATE_INACTIVE);
+        qsTile.setLabel(getString(isRecordingThis() ? R.string.touch_to_stop_message
+                : isAudioOnly() ? R.string.main_audio_action : R.string.main_screen_action));
         qsTile.updateTile();
     }
 }
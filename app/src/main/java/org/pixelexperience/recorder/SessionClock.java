@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder;
+
+import java.util.Arrays;
+
+/**
+ * Maps capture timestamps of every track onto one session timeline.
+ * <p>
+ * All tracks are stamped in the same clock ({@link System#nanoTime()} in microseconds,
+ * the clock the compositor stamps virtual display frames with) and rebased against the
+ * same origin, so the offset between tracks at startup is preserved. Pauses are left
+ * out: a sample loses the duration of every pause that ended before it was captured.
+ * Samples captured during a pause, e.g. frames an encoder repeated on its own, have no
+ * place on the timeline and are reported as {@link #IN_PAUSE}.
+ * <p>
+ * Pure Java and not thread safe, access from the muxing thread only.
+ */
+class SessionClock {
+    static final long IN_PAUSE = -1;
+
+    private final long[] mPausedUs;
+    private final int[] mAppliedPauses;
+    private final long[] mLastPtsUs;
+    private long mOriginUs = -1;
+    private boolean mPaused;
+    private long mPauseStartUs;
+    private long[] mPauseEndsUs = new long[4];
+    private long[] mPauseDurationsUs = new long[4];
+    private int mPauseCount;
+    private long mTotalPausedUs;
+    private long mMaxTrackSkewUs;
+
+    SessionClock(int trackCount) {
+        mPausedUs = new long[trackCount];
+        mAppliedPauses = new int[trackCount];
+        mLastPtsUs = new long[trackCount];
+        Arrays.fill(mLastPtsUs, -1);
+    }
+
+    /**
+     * Sets the session origin, samples captured earlier are clamped to 0.
+     */
+    void start(long nowUs) {
+        mOriginUs = nowUs;
+    }
+
+    void pause(long nowUs) {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+        mPauseStartUs = nowUs;
+    }
+
+    void resume(long nowUs) {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        if (mPauseCount == mPauseEndsUs.length) {
+            mPauseEndsUs = Arrays.copyOf(mPauseEndsUs, mPauseCount * 2);
+            mPauseDurationsUs = Arrays.copyOf(mPauseDurationsUs, mPauseCount * 2);
+        }
+        mPauseEndsUs[mPauseCount] = nowUs;
+        mPauseDurationsUs[mPauseCount] = nowUs - mPauseStartUs;
+        mPauseCount++;
+        mTotalPausedUs += nowUs - mPauseStartUs;
+    }
+
+    boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @param captureUs capture time of a sample, monotonic within the track
+     * @return presentation time of the sample on the session timeline, or
+     * {@link #IN_PAUSE} if it was captured while paused
+     */
+    long toSessionTime(int track, long captureUs) {
+        if (mOriginUs < 0) {
+            mOriginUs = captureUs;
+        }
+        while (mAppliedPauses[track] < mPauseCount
+                && mPauseEndsUs[mAppliedPauses[track]] <= captureUs) {
+            mPausedUs[track] += mPauseDurationsUs[mAppliedPauses[track]];
+            mAppliedPauses[track]++;
+        }
+        int next = mAppliedPauses[track];
+        if ((next < mPauseCount && captureUs >= mPauseEndsUs[next] - mPauseDurationsUs[next])
+                || (mPaused && captureUs >= mPauseStartUs)) {
+            return IN_PAUSE;
+        }
+        long ptsUs = Math.max(0, captureUs - mOriginUs - mPausedUs[track]);
+        mLastPtsUs[track] = ptsUs;
+        for (long otherPtsUs : mLastPtsUs) {
+            if (otherPtsUs >= 0 && Math.abs(ptsUs - otherPtsUs) > mMaxTrackSkewUs) {
+                mMaxTrackSkewUs = Math.abs(ptsUs - otherPtsUs);
+            }
+        }
+        return ptsUs;
+    }
+
+    long getTotalPausedUs() {
+        return mTotalPausedUs;
+    }
+
+    /**
+     * @return largest distance between the latest timestamps of two tracks,
+     * i.e. how far one track's encoder output ran ahead of another's
+     */
+    long getMaxTrackSkewUs() {
+        return mMaxTrackSkewUs;
+    }
+}
@@ -10,11 +10,13 @@ import android.view.MenuItem;
 
 import androidx.fragment.app.FragmentActivity;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceCategory;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.SwitchPreference;
 
+import org.pixelexperience.recorder.muxer.ContainerFormats;
 import org.pixelexperience.recorder.utils.PreferenceUtils;
 import org.pixelexperience.recorder.utils.Utils;
 
@@ -23,10 +25,6 @@ public class SettingsActivity extends FragmentActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        PreferenceUtils preferenceUtils = new PreferenceUtils(this);
-        if (!preferenceUtils.canControlShowTouches()){ // Remove if more prefs added
-            finish();
-        }
         setContentView(R.layout.settings_activity);
         getSupportFragmentManager()
                 .beginTransaction()
@@ -56,6 +54,19 @@ public class SettingsActivity extends FragmentActivity {
             }
         };
         private SwitchPreference mShowTouches;
+        private SwitchPreference mFragmentedOutput;
+        private SwitchPreference mJournaledOutput;
+        private SwitchPreference mAdaptiveBitrate;
+        private SwitchPreference mVariableFrameRate;
+        private SwitchPreference mRecordMicrophone;
+        private SwitchPreference mMicrophoneTrack;
+        private SwitchPreference mMicrophoneNoiseGate;
+        private SwitchPreference mNormalizeLoudness;
+        private ListPreference mAudioBoost;
+        private ListPreference mReplayDuration;
+        private ListPreference mSplitRecording;
+        private ListPreference mOutputFormat;
+        private ListPreference mBackpressurePolicy;
         private PreferenceUtils mPreferenceUtils;
         private String KEY_SCREEN_CATEGORY = "screen_category";
 
@@ -70,6 +81,46 @@ public class SettingsActivity extends FragmentActivity {
             if (!mPreferenceUtils.canControlShowTouches()) {
                 mScreenCategory.removePreference(mShowTouches);
             }
+            mFragmentedOutput = findPreference(PreferenceUtils.PREF_FRAGMENTED_OUTPUT);
+            mFragmentedOutput.setOnPreferenceChangeListener(this);
+            mFragmentedOutput.setChecked(mPreferenceUtils.getFragmentedOutput());
+            mJournaledOutput = findPreference(PreferenceUtils.PREF_JOURNALED_OUTPUT);
+            mJournaledOutput.setOnPreferenceChangeListener(this);
+            mJournaledOutput.setChecked(mPreferenceUtils.getJournaledOutput());
+            mAdaptiveBitrate = findPreference(PreferenceUtils.PREF_ADAPTIVE_BITRATE);
+            mAdaptiveBitrate.setOnPreferenceChangeListener(this);
+            mAdaptiveBitrate.setChecked(mPreferenceUtils.getAdaptiveBitrate());
+            mVariableFrameRate = findPreference(PreferenceUtils.PREF_VARIABLE_FRAME_RATE);
+            mVariableFrameRate.setOnPreferenceChangeListener(this);
+            mVariableFrameRate.setChecked(mPreferenceUtils.getVariableFrameRate());
+            mRecordMicrophone = findPreference(PreferenceUtils.PREF_RECORD_MICROPHONE);
+            mRecordMicrophone.setOnPreferenceChangeListener(this);
+            mRecordMicrophone.setChecked(mPreferenceUtils.getRecordMicrophone());
+            mMicrophoneTrack = findPreference(PreferenceUtils.PREF_MICROPHONE_TRACK);
+            mMicrophoneTrack.setOnPreferenceChangeListener(this);
+            mMicrophoneTrack.setChecked(mPreferenceUtils.getMicrophoneTrack());
+            mMicrophoneNoiseGate = findPreference(PreferenceUtils.PREF_MICROPHONE_NOISE_GATE);
+            mMicrophoneNoiseGate.setOnPreferenceChangeListener(this);
+            mMicrophoneNoiseGate.setChecked(mPreferenceUtils.getMicrophoneNoiseGate());
+            mNormalizeLoudness = findPreference(PreferenceUtils.PREF_NORMALIZE_LOUDNESS);
+            mNormalizeLoudness.setOnPreferenceChangeListener(this);
+            mNormalizeLoudness.setChecked(mPreferenceUtils.getNormalizeLoudness());
+            mAudioBoost = findPreference(PreferenceUtils.PREF_AUDIO_BOOST);
+            mAudioBoost.setOnPreferenceChangeListener(this);
+            mAudioBoost.setValue(String.valueOf(mPreferenceUtils.getAudioBoost()));
+            mReplayDuration = findPreference(PreferenceUtils.PREF_REPLAY_DURATION);
+            mReplayDuration.setOnPreferenceChangeListener(this);
+            mReplayDuration.setValue(String.valueOf(mPreferenceUtils.getReplayDuration()));
+            mSplitRecording = findPreference(PreferenceUtils.PREF_SPLIT_RECORDING);
+            mSplitRecording.setOnPreferenceChangeListener(this);
+            mSplitRecording.setValue(mPreferenceUtils.getSplitRecording());
+            mOutputFormat = findPreference(PreferenceUtils.PREF_OUTPUT_FORMAT);
+            mOutputFormat.setOnPreferenceChangeListener(this);
+            mOutputFormat.setValue(mPreferenceUtils.getOutputFormatValue());
+            updateMicrophoneTrack(mPreferenceUtils.getOutputFormat());
+            mBackpressurePolicy = findPreference(PreferenceUtils.PREF_BACKPRESSURE_POLICY);
+            mBackpressurePolicy.setOnPreferenceChangeListener(this);
+            mBackpressurePolicy.setValue(String.valueOf(mPreferenceUtils.getBackpressurePolicy()));
             refreshState();
         }
 
@@ -88,9 +139,16 @@ public class SettingsActivity extends FragmentActivity {
             super.onPause();
         }
 
+        private void updateMicrophoneTrack(int outputFormat) {
+            boolean supported = ContainerFormats.getMaxAudioTracks(outputFormat) > 1;
+            mMicrophoneTrack.setEnabled(supported);
+            mMicrophoneTrack.setSummary(supported ? R.string.microphone_track_summary
+                    : R.string.microphone_track_unsupported_summary);
+        }
+
         private void refreshState() {
             if (mScreenCategory != null) {
-                mScreenCategory.setEnabled(!Utils.isScreenRecording());
+                mScreenCategory.setEnabled(!Utils.isRecording());
             }
         }
 
@@ -99,6 +157,41 @@ public class SettingsActivity extends FragmentActivity {
             if (preference == mShowTouches) {
                 boolean value = (Boolean) newValue;
                 mPreferenceUtils.setShouldShowTouches(value);
+            } else if (preference == mFragmentedOutput) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setFragmentedOutput(value);
+            } else if (preference == mJournaledOutput) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setJournaledOutput(value);
+            } else if (preference == mAdaptiveBitrate) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setAdaptiveBitrate(value);
+            } else if (preference == mVariableFrameRate) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setVariableFrameRate(value);
+            } else if (preference == mRecordMicrophone) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setRecordMicrophone(value);
+            } else if (preference == mMicrophoneTrack) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setMicrophoneTrack(value);
+            } else if (preference == mMicrophoneNoiseGate) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setMicrophoneNoiseGate(value);
+            } else if (preference == mNormalizeLoudness) {
+                boolean value = (Boolean) newValue;
+                mPreferenceUtils.setNormalizeLoudness(value);
+            } else if (preference == mAudioBoost) {
+                mPreferenceUtils.setAudioBoost((String) newValue);
+            } else if (preference == mReplayDuration) {
+                mPreferenceUtils.setReplayDuration((String) newValue);
+            } else if (preference == mSplitRecording) {
+                mPreferenceUtils.setSplitRecording((String) newValue);
+            } else if (preference == mOutputFormat) {
+                mPreferenceUtils.setOutputFormatValue((String) newValue);
+                updateMicrophoneTrack(mPreferenceUtils.getOutputFormat());
+            } else if (preference == mBackpressurePolicy) {
+                mPreferenceUtils.setBackpressurePolicy((String) newValue);
             }
             return true;
         }
@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import org.pixelexperience.recorder.utils.PermissionUtils;
@@ -20,6 +21,9 @@ public class StartScreenRecorder extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (!isAudioOnly()) {
+            EncoderWarmup.warmUp(this);
+        }
         if (!PermissionUtils.hasAudioPermission(this)) {
             final String[] permissions = new String[]{Manifest.permission.RECORD_AUDIO};
             requestPermissions(permissions, REQUEST_SCREEN_REC_PERMS_CODE);
@@ -50,6 +54,8 @@ public class StartScreenRecorder extends Activity {
                 Intent recorderService = new Intent(ScreenRecorderService.ACTION_START_SCREENCAST);
                 recorderService.putExtra(Utils.SCREEN_RECORD_INTENT_DATA, data);
                 recorderService.putExtra(Utils.SCREEN_RECORD_INTENT_RESULT, resultCode);
+                recorderService.putExtra(Utils.SCREEN_RECORD_INTENT_TIME, SystemClock.elapsedRealtime());
+                recorderService.putExtra(Utils.SCREEN_RECORD_INTENT_AUDIO_ONLY, isAudioOnly());
                 startService(recorderService.setClass(this, ScreenRecorderService.class));
             } else {
                 Utils.setStatus(Utils.PREF_RECORDING_NOTHING, this);
@@ -58,6 +64,13 @@ public class StartScreenRecorder extends Activity {
         finish();
     }
 
+    /**
+     * @return whether to record the audio only, see {@link Utils#SCREEN_RECORD_INTENT_AUDIO_ONLY}
+     */
+    private boolean isAudioOnly() {
+        return getIntent().getBooleanExtra(Utils.SCREEN_RECORD_INTENT_AUDIO_ONLY, false);
+    }
+
     private void startMediaProjection() {
         MediaProjectionManager mProjectionManager = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
         startActivityForResult(mProjectionManager.createScreenCaptureIntent(), REQUEST_MEDIA_PROJECTION_CODE);
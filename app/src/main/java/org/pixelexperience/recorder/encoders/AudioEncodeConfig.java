@@ -28,24 +28,54 @@ public class AudioEncodeConfig {
     public final int sampleRate;
     public final int channelCount;
     public final int profile;
+    // rate audio is captured at, resampled to sampleRate if different
+    public final int captureSampleRate;
 
     public AudioEncodeConfig(String codecName, String mimeType,
                              int bitRate, int sampleRate, int channelCount, int profile) {
+        this(codecName, mimeType, bitRate, sampleRate, channelCount, profile, sampleRate);
+    }
+
+    public AudioEncodeConfig(String codecName, String mimeType, int bitRate, int sampleRate,
+                             int channelCount, int profile, int captureSampleRate) {
         this.codecName = codecName;
         this.mimeType = Objects.requireNonNull(mimeType);
         this.bitRate = bitRate;
         this.sampleRate = sampleRate;
         this.channelCount = channelCount;
         this.profile = profile;
+        this.captureSampleRate = captureSampleRate;
     }
 
     MediaFormat toFormat() {
         MediaFormat format = MediaFormat.createAudioFormat(mimeType, sampleRate, channelCount);
-        format.setInteger(MediaFormat.KEY_AAC_PROFILE, profile);
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mimeType)) {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, profile);
+        }
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         return format;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof AudioEncodeConfig)) return false;
+        AudioEncodeConfig that = (AudioEncodeConfig) o;
+        return bitRate == that.bitRate &&
+                sampleRate == that.sampleRate &&
+                channelCount == that.channelCount &&
+                profile == that.profile &&
+                captureSampleRate == that.captureSampleRate &&
+                Objects.equals(codecName, that.codecName) &&
+                mimeType.equals(that.mimeType);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(codecName, mimeType, bitRate, sampleRate, channelCount, profile,
+                captureSampleRate);
+    }
+
     @Override
     public String toString() {
         return "AudioEncodeConfig{" +
@@ -55,6 +85,7 @@ public class AudioEncodeConfig {
                 ", sampleRate=" + sampleRate +
                 ", channelCount=" + channelCount +
                 ", profile=" + profile +
+                ", captureSampleRate=" + captureSampleRate +
                 '}';
     }
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ public abstract class BaseEncoder implements Encoder {
     private String mCodecName;
     private MediaCodec mEncoder;
     private Callback mCallback;
+    private boolean mStarted;
     /**
      * let media codec run async mode if mCallback != null
      */
@@ -71,27 +72,28 @@ public abstract class BaseEncoder implements Encoder {
     }
 
     void setCallback(Callback callback) {
-        if (this.mEncoder != null) throw new IllegalStateException("mEncoder is not null");
+        if (this.mStarted) throw new IllegalStateException("mEncoder is started");
+        if (this.mEncoder != null && (this.mCallback == null) != (callback == null)) {
+            // the codec mode is chosen by configure()
+            throw new IllegalStateException("mEncoder is configured");
+        }
         this.mCallback = callback;
     }
 
     /**
-     * Must call in a worker handler thread!
+     * Creates and configures the codec without starting it, so {@link #prepare()}
+     * only has to start it. Callbacks are delivered on the looper of the calling thread.
      */
-    @Override
-    public void prepare() throws IOException {
-        if (Looper.myLooper() == null
-                || Looper.myLooper() == Looper.getMainLooper()) {
-            throw new IllegalStateException("should run in a HandlerThread");
-        }
+    public void configure() throws IOException {
         if (mEncoder != null) {
-            throw new IllegalStateException("prepared!");
+            throw new IllegalStateException("configured!");
         }
         MediaFormat format = createMediaFormat();
         Log.d("Encoder", "Create media format: " + format);
 
         String mimeType = format.getString(MediaFormat.KEY_MIME);
         final MediaCodec encoder = createEncoder(mimeType);
+        onEncoderCreated(encoder, format);
         try {
             if (this.mCallback != null) {
                 // NOTE: MediaCodec maybe crash on some devices due to null callback
@@ -99,14 +101,49 @@ public abstract class BaseEncoder implements Encoder {
             }
             encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             onEncoderConfigured(encoder);
-            encoder.start();
-        } catch (MediaCodec.CodecException e) {
+        } catch (RuntimeException e) {
+            // CodecException, or IllegalArgumentException for an unsupported format
             Log.e("Encoder", "Configure codec failure!\n  with format" + format, e);
+            encoder.release();
             throw e;
         }
         mEncoder = encoder;
     }
 
+    /**
+     * Configures the codec unless {@link #configure()} already did, then starts it.
+     * Must call in a worker handler thread!
+     */
+    @Override
+    public void prepare() throws IOException {
+        if (Looper.myLooper() == null
+                || Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("should run in a HandlerThread");
+        }
+        if (mStarted) {
+            throw new IllegalStateException("prepared!");
+        }
+        if (mEncoder == null) {
+            configure();
+        }
+        try {
+            mEncoder.start();
+        } catch (RuntimeException e) {
+            Log.e("Encoder", "Start codec failure!", e);
+            mEncoder.release();
+            mEncoder = null;
+            throw e;
+        }
+        mStarted = true;
+    }
+
+    /**
+     * call before the new {@link MediaCodec} is configured with {@code format},
+     * to adjust the format to the capabilities of the codec
+     */
+    protected void onEncoderCreated(MediaCodec encoder, MediaFormat format) {
+    }
+
     /**
      * call immediately after {@link #getEncoder() MediaCodec}
      * configure with {@link #createMediaFormat() MediaFormat} success
@@ -192,6 +229,7 @@ public abstract class BaseEncoder implements Encoder {
             mEncoder.release();
             mEncoder = null;
         }
+        mStarted = false;
     }
 
     public static abstract class Callback implements Encoder.Callback {
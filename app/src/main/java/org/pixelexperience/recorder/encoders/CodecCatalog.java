@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.encoders;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoders of the device, ranked once per build and persisted.
+ * <p>
+ * The first lookup after an OTA enumerates {@link MediaCodecList} and ranks the
+ * encoders of every requested MIME type: hardware first, then by the largest standard
+ * performance point they cover, then by their best profile. For a (MIME type, size,
+ * frame rate) request the highest ranked encoder supporting it is picked, scaling the
+ * size down if nothing supports it natively. Rankings and picks are stored in
+ * {@link #PREFS}, later sessions get them from memory without touching the codec list.
+ * Audio encoders are picked the same way by sample rate, see {@link #selectAudio}.
+ */
+public class CodecCatalog {
+    private static final String TAG = "CodecCatalog";
+    private static final String PREFS = "codec_catalog";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_RANKING = "ranking:";
+    private static final String KEY_CHOICE = "choice:";
+    private static final String KEY_AUDIO_CHOICE = "audio_choice:";
+    // bump when the persisted format or the ranking changes
+    private static final int VERSION = 2;
+    // performance points from best to worst, {width, height, fps}
+    private static final int[][] PERFORMANCE_POINTS = {
+            {3840, 2160, 60}, {3840, 2160, 30}, {1920, 1080, 120}, {1920, 1080, 60},
+            {1920, 1080, 30}, {1280, 720, 60}, {1280, 720, 30}, {720, 480, 30}
+    };
+    // profiles from best to worst per MIME type
+    private static final Map<String, int[]> PREFERRED_PROFILES = new HashMap<>();
+    private static final int MIN_SCALED_HEIGHT = 360;
+
+    static {
+        PREFERRED_PROFILES.put(MediaFormat.MIMETYPE_VIDEO_AVC, new int[]{
+                MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline});
+        // the virtual display renders 8 bit SDR, Main10 only if Main is missing
+        PREFERRED_PROFILES.put(MediaFormat.MIMETYPE_VIDEO_HEVC, new int[]{
+                MediaCodecInfo.CodecProfileLevel.HEVCProfileMain,
+                MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10});
+        PREFERRED_PROFILES.put(MediaFormat.MIMETYPE_VIDEO_AV1, new int[]{
+                MediaCodecInfo.CodecProfileLevel.AV1ProfileMain8,
+                MediaCodecInfo.CodecProfileLevel.AV1ProfileMain10});
+        // profile 0 is 8 bit 4:2:0, what the virtual display renders
+        PREFERRED_PROFILES.put(MediaFormat.MIMETYPE_VIDEO_VP9, new int[]{
+                MediaCodecInfo.CodecProfileLevel.VP9Profile0});
+    }
+
+    private static CodecCatalog sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, List<String>> mRankings = new HashMap<>();
+    private final Map<String, Choice> mChoices = new HashMap<>();
+    // encoder names, empty if no encoder fits
+    private final Map<String, String> mAudioChoices = new HashMap<>();
+    private MediaCodecInfo[] mCodecInfos;
+
+    public static synchronized CodecCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CodecCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CodecCatalog(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, 0);
+        String fingerprint = VERSION + "/" + Build.FINGERPRINT;
+        if (!fingerprint.equals(mPrefs.getString(KEY_FINGERPRINT, null))) {
+            Log.i(TAG, "New build, dropping codec catalog");
+            mPrefs.edit().clear().putString(KEY_FINGERPRINT, fingerprint).apply();
+            return;
+        }
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            String value = String.valueOf(entry.getValue());
+            if (key.startsWith(KEY_RANKING)) {
+                mRankings.put(key.substring(KEY_RANKING.length()), split(value));
+            } else if (key.startsWith(KEY_CHOICE)) {
+                Choice choice = Choice.parse(value);
+                if (choice != null) {
+                    mChoices.put(key.substring(KEY_CHOICE.length()), choice);
+                }
+            } else if (key.startsWith(KEY_AUDIO_CHOICE)) {
+                mAudioChoices.put(key.substring(KEY_AUDIO_CHOICE.length()), value);
+            }
+        }
+    }
+
+    /**
+     * @return the best encoder setup for a screen of {@code width} x {@code height} at
+     * {@code frameRate}, or null if no encoder of {@code mimeType} can record it
+     */
+    public synchronized Choice select(String mimeType, int width, int height, int frameRate) {
+        String key = mimeType + "/" + width + "x" + height + "@" + frameRate;
+        if (mChoices.containsKey(key)) {
+            return mChoices.get(key);
+        }
+        long start = System.nanoTime();
+        Choice choice = computeChoice(mimeType, width, height, frameRate);
+        Log.i(TAG, "Selected " + choice + " for " + key + " in "
+                + (System.nanoTime() - start) / 1000_000 + "ms");
+        mChoices.put(key, choice);
+        if (choice != null) {
+            mPrefs.edit().putString(KEY_CHOICE + key, choice.flatten()).apply();
+        }
+        return choice;
+    }
+
+    /**
+     * @return name of the best {@code mimeType} encoder taking {@code sampleRate} with
+     * {@code channelCount} channels, or null if none does
+     */
+    public synchronized String selectAudio(String mimeType, int sampleRate, int channelCount) {
+        String key = mimeType + "/" + sampleRate + "/" + channelCount;
+        String name = mAudioChoices.get(key);
+        if (name == null) {
+            name = computeAudioChoice(mimeType, sampleRate, channelCount);
+            Log.i(TAG, "Selected '" + name + "' for " + key);
+            mAudioChoices.put(key, name);
+            mPrefs.edit().putString(KEY_AUDIO_CHOICE + key, name).apply();
+        }
+        return name.isEmpty() ? null : name;
+    }
+
+    /**
+     * @return encoder names of {@code mimeType}, best first
+     */
+    public synchronized List<String> getRanking(String mimeType) {
+        List<String> ranking = mRankings.get(mimeType);
+        if (ranking == null) {
+            ranking = rank(mimeType);
+            mRankings.put(mimeType, ranking);
+            mPrefs.edit().putString(KEY_RANKING + mimeType, String.join(",", ranking)).apply();
+        }
+        return ranking;
+    }
+
+    private Choice computeChoice(String mimeType, int width, int height, int frameRate) {
+        Choice best = null;
+        for (String name : getRanking(mimeType)) {
+            MediaCodecInfo info = findCodec(name);
+            if (info == null) {
+                continue;
+            }
+            MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mimeType);
+            MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            if (video == null) {
+                continue;
+            }
+            int[] size = fitSize(video, width, height, frameRate);
+            if (size == null) {
+                continue;
+            }
+            Choice choice = new Choice(name, isHardware(info), size[0], size[1], frameRate,
+                    bestProfileLevel(mimeType, caps));
+            if (size[0] == width && size[1] == height) {
+                // ranked order, the first native match wins
+                return choice;
+            }
+            if (best == null || choice.width * choice.height > best.width * best.height) {
+                best = choice;
+            }
+        }
+        return best;
+    }
+
+    private String computeAudioChoice(String mimeType, int sampleRate, int channelCount) {
+        for (String name : getRanking(mimeType)) {
+            MediaCodecInfo info = findCodec(name);
+            if (info == null) {
+                continue;
+            }
+            MediaCodecInfo.AudioCapabilities audio =
+                    info.getCapabilitiesForType(mimeType).getAudioCapabilities();
+            if (audio != null && audio.isSampleRateSupported(sampleRate)
+                    && audio.getMaxInputChannelCount() >= channelCount) {
+                return name;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * @return the largest size with the aspect ratio of {@code width} x {@code height}
+     * the encoder supports at {@code frameRate}, or null
+     */
+    private static int[] fitSize(MediaCodecInfo.VideoCapabilities video, int width, int height,
+                                 int frameRate) {
+        int widthAlignment = Math.max(2, video.getWidthAlignment());
+        int heightAlignment = Math.max(2, video.getHeightAlignment());
+        for (int scaledHeight = height; scaledHeight >= Math.min(height, MIN_SCALED_HEIGHT);
+             scaledHeight = scaledHeight * 7 / 8) {
+            int h = scaledHeight / heightAlignment * heightAlignment;
+            int w = (int) ((long) width * scaledHeight / height) / widthAlignment * widthAlignment;
+            if (h == height && w != width) {
+                // unaligned native size
+                continue;
+            }
+            if (video.areSizeAndRateSupported(w, h, frameRate)) {
+                return new int[]{w, h};
+            }
+        }
+        return null;
+    }
+
+    private static MediaCodecInfo.CodecProfileLevel bestProfileLevel(String mimeType,
+            MediaCodecInfo.CodecCapabilities caps) {
+        int[] preferred = PREFERRED_PROFILES.get(mimeType);
+        if (preferred == null || caps.profileLevels == null) {
+            return null;
+        }
+        for (int profile : preferred) {
+            MediaCodecInfo.CodecProfileLevel best = null;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : caps.profileLevels) {
+                if (profileLevel.profile == profile && (best == null || profileLevel.level > best.level)) {
+                    best = profileLevel;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    private List<String> rank(String mimeType) {
+        List<String> names = new ArrayList<>();
+        List<Long> scores = new ArrayList<>();
+        for (MediaCodecInfo info : getCodecInfos()) {
+            if (!info.isEncoder() || info.isAlias() || !supportsType(info, mimeType)) {
+                continue;
+            }
+            long score = score(info, mimeType);
+            int i = 0;
+            while (i < scores.size() && scores.get(i) >= score) {
+                i++;
+            }
+            names.add(i, info.getName());
+            scores.add(i, score);
+        }
+        Log.i(TAG, "Ranked " + mimeType + " encoders: " + names + " " + scores);
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Hardware support, then the best covered performance point, then the best profile.
+     */
+    private static long score(MediaCodecInfo info, String mimeType) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mimeType);
+        long score = isHardware(info) ? 1 : 0;
+
+        int performance = 0;
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points =
+                video != null ? video.getSupportedPerformancePoints() : null;
+        if (points != null) {
+            for (int i = 0; i < PERFORMANCE_POINTS.length && performance == 0; i++) {
+                int[] p = PERFORMANCE_POINTS[i];
+                MediaCodecInfo.VideoCapabilities.PerformancePoint required =
+                        new MediaCodecInfo.VideoCapabilities.PerformancePoint(p[0], p[1], p[2]);
+                for (MediaCodecInfo.VideoCapabilities.PerformancePoint point : points) {
+                    if (point.covers(required)) {
+                        performance = PERFORMANCE_POINTS.length - i;
+                        break;
+                    }
+                }
+            }
+        }
+        score = score * 100 + performance;
+
+        int profile = 0;
+        int[] preferred = PREFERRED_PROFILES.get(mimeType);
+        if (preferred != null && caps.profileLevels != null) {
+            for (int i = 0; i < preferred.length && profile == 0; i++) {
+                for (MediaCodecInfo.CodecProfileLevel profileLevel : caps.profileLevels) {
+                    if (profileLevel.profile == preferred[i]) {
+                        profile = preferred.length - i;
+                        break;
+                    }
+                }
+            }
+        }
+        return score * 100 + profile;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        return info.isHardwareAccelerated() && !info.isSoftwareOnly();
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mimeType) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MediaCodecInfo findCodec(String name) {
+        for (MediaCodecInfo info : getCodecInfos()) {
+            if (info.getName().equals(name)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private MediaCodecInfo[] getCodecInfos() {
+        if (mCodecInfos == null) {
+            mCodecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        }
+        return mCodecInfos;
+    }
+
+    private static List<String> split(String value) {
+        List<String> list = new ArrayList<>();
+        if (!value.isEmpty()) {
+            Collections.addAll(list, value.split(","));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Encoder setup picked for a screen.
+     */
+    public static final class Choice {
+        public final String codecName;
+        public final boolean hardware;
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        // null if the codec decides
+        public final MediaCodecInfo.CodecProfileLevel profileLevel;
+
+        Choice(String codecName, boolean hardware, int width, int height, int frameRate,
+               MediaCodecInfo.CodecProfileLevel profileLevel) {
+            this.codecName = codecName;
+            this.hardware = hardware;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.profileLevel = profileLevel;
+        }
+
+        String flatten() {
+            return codecName + "," + (hardware ? 1 : 0) + "," + width + "," + height + "," + frameRate + ","
+                    + (profileLevel != null ? profileLevel.profile : 0) + ","
+                    + (profileLevel != null ? profileLevel.level : 0);
+        }
+
+        static Choice parse(String value) {
+            String[] fields = value.split(",");
+            if (fields.length != 7) {
+                return null;
+            }
+            try {
+                MediaCodecInfo.CodecProfileLevel profileLevel = null;
+                int profile = Integer.parseInt(fields[5]);
+                if (profile != 0) {
+                    profileLevel = new MediaCodecInfo.CodecProfileLevel();
+                    profileLevel.profile = profile;
+                    profileLevel.level = Integer.parseInt(fields[6]);
+                }
+                return new Choice(fields[0], "1".equals(fields[1]), Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), profileLevel);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Choice{" + flatten() + "}";
+        }
+    }
+}
@@ -18,30 +18,111 @@
 package org.pixelexperience.recorder.encoders;
 
 import android.content.Context;
+import android.media.AudioManager;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.Surface;
 import android.view.WindowManager;
 
 import static android.media.MediaFormat.MIMETYPE_AUDIO_AAC;
+import static android.media.MediaFormat.MIMETYPE_AUDIO_OPUS;
 
 public class EncoderConfig {
 
+    private static final int AVC_BITRATE = 6000000;
+    // most efficient first, AVC is the fallback
+    private static final String[] EFFICIENT_MIME_TYPES = {
+            MediaFormat.MIMETYPE_VIDEO_AV1, MediaFormat.MIMETYPE_VIDEO_HEVC
+    };
+    // same for WebM, VP8 is the fallback
+    private static final String[] EFFICIENT_WEBM_MIME_TYPES = {
+            MediaFormat.MIMETYPE_VIDEO_VP9
+    };
+    // MediaMuxer writes AV1 to MP4 since Android 14
+    private static final int MIN_SDK_AV1 = 34;
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+    // encoder rates to resample to when the mixer rate isn't supported, best first
+    private static final int[] FALLBACK_SAMPLE_RATES = {48000, 44100};
+    // Opus runs at 48 kHz inside, and is as good at a lower bitrate
+    private static final int[] OPUS_SAMPLE_RATES = {48000};
+    private static final int OPUS_BITRATE = 96 * 1000;
+
     WindowManager mWindowManager;
+    AudioManager mAudioManager;
+    CodecCatalog mCodecCatalog;
+    boolean mVariableFrameRate;
+    boolean mAvcOnly;
+    int mOutputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
 
     public EncoderConfig(Context context) {
         mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mCodecCatalog = CodecCatalog.getInstance(context);
+    }
+
+    /**
+     * Makes {@link #getVideoConfig()} ask for variable frame rate,
+     * see {@link VideoEncodeConfig#variableFrameRate}.
+     */
+    public void setVariableFrameRate(boolean variableFrameRate) {
+        mVariableFrameRate = variableFrameRate;
     }
 
+    /**
+     * Makes {@link #getVideoConfig()} stay with AVC for MP4 output, e.g. for the fragmented
+     * and journaled writers, which don't know HEVC or AV1.
+     */
+    public void setAvcOnly(boolean avcOnly) {
+        mAvcOnly = avcOnly;
+    }
+
+    /**
+     * Makes the configs fit {@code format}, one of {@link MediaMuxer.OutputFormat}:
+     * AVC, HEVC or AV1 with AAC for MP4, VP8 or VP9 with Opus for WebM.
+     */
+    public void setOutputFormat(int format) {
+        mOutputFormat = format;
+    }
+
+    /**
+     * Captures at the rate the audio mixer runs at, so AudioFlinger doesn't resample.
+     * If no AAC encoder takes that rate, the capture is resampled to one that does.
+     */
     public AudioEncodeConfig getAudioConfig() {
-        int bitrate = 128 * 1000;
-        int samplerate = 44100;
+        boolean webm = mOutputFormat == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM;
+        String mimeType = webm ? MIMETYPE_AUDIO_OPUS : MIMETYPE_AUDIO_AAC;
+        int bitrate = webm ? OPUS_BITRATE : 128 * 1000;
         int channelCount = 2;
+        // only AAC has profiles
         int profile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+        int[] fallbackRates = webm ? OPUS_SAMPLE_RATES : FALLBACK_SAMPLE_RATES;
 
-        return new AudioEncodeConfig(null, MIMETYPE_AUDIO_AAC, bitrate, samplerate, channelCount, profile);
+        int captureRate = getNativeSampleRate();
+        String codecName = mCodecCatalog.selectAudio(mimeType, captureRate, channelCount);
+        int samplerate = captureRate;
+        for (int i = 0; i < fallbackRates.length && codecName == null; i++) {
+            samplerate = fallbackRates[i];
+            codecName = mCodecCatalog.selectAudio(mimeType, samplerate, channelCount);
+        }
+        if (codecName == null) {
+            // let MediaCodec pick, as before
+            samplerate = captureRate = webm ? OPUS_SAMPLE_RATES[0] : DEFAULT_SAMPLE_RATE;
+        }
+        return new AudioEncodeConfig(codecName, mimeType, bitrate, samplerate,
+                channelCount, profile, captureRate);
+    }
+
+    private int getNativeSampleRate() {
+        String rate = mAudioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+        try {
+            return rate != null ? Integer.parseInt(rate) : DEFAULT_SAMPLE_RATE;
+        } catch (NumberFormatException e) {
+            return DEFAULT_SAMPLE_RATE;
+        }
     }
 
     public VideoEncodeConfig getVideoConfig() {
@@ -71,9 +152,57 @@ public class EncoderConfig {
         int densityDpi = metrics.densityDpi;
         int frame_rate = 30;
         int iframe_interval = 1;
-        int bitrate = 6000000;
 
-        return new VideoEncodeConfig(width, height, densityDpi, rotation, bitrate,
-                frame_rate, iframe_interval, null, MediaFormat.MIMETYPE_VIDEO_AVC, null);
+        boolean webm = mOutputFormat == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM;
+        VideoEncodeConfig base = createVideoConfig(
+                webm ? MediaFormat.MIMETYPE_VIDEO_VP8 : MediaFormat.MIMETYPE_VIDEO_AVC, width, height,
+                densityDpi, rotation, frame_rate, iframe_interval, null);
+        if (base.codecName == null || (mAvcOnly && !webm)) {
+            return base;
+        }
+        for (String mimeType : webm ? EFFICIENT_WEBM_MIME_TYPES : EFFICIENT_MIME_TYPES) {
+            if (MediaFormat.MIMETYPE_VIDEO_AV1.equals(mimeType) && Build.VERSION.SDK_INT < MIN_SDK_AV1) {
+                continue;
+            }
+            CodecCatalog.Choice choice = mCodecCatalog.select(mimeType, width, height, frame_rate);
+            // only worth it in hardware and at full resolution
+            if (choice != null && choice.hardware && choice.width == width && choice.height == height) {
+                return createVideoConfig(mimeType, width, height, densityDpi, rotation,
+                        frame_rate, iframe_interval, base);
+            }
+        }
+        return base;
+    }
+
+    private VideoEncodeConfig createVideoConfig(String mimeType, int width, int height,
+                                                int densityDpi, int rotation, int frameRate,
+                                                int iframeInterval, VideoEncodeConfig fallback) {
+        CodecCatalog.Choice choice = mCodecCatalog.select(mimeType, width, height, frameRate);
+        if (choice == null) {
+            // let MediaCodec pick, as before
+            return new VideoEncodeConfig(width, height, densityDpi, rotation, AVC_BITRATE,
+                    frameRate, iframeInterval, null, mimeType, null, fallback, mVariableFrameRate);
+        }
+        // same quality needs fewer bits with newer codecs and fewer pixels
+        long bitrate = (long) AVC_BITRATE * bitratePercent(mimeType) / 100
+                * choice.width * choice.height / ((long) width * height);
+        return new VideoEncodeConfig(choice.width, choice.height, densityDpi, rotation,
+                (int) bitrate, choice.frameRate, iframeInterval, choice.codecName, mimeType,
+                choice.profileLevel, fallback, mVariableFrameRate);
+    }
+
+    /**
+     * @return bitrate needed for the quality of AVC at {@link #AVC_BITRATE}, in percent
+     */
+    private static int bitratePercent(String mimeType) {
+        switch (mimeType) {
+            case MediaFormat.MIMETYPE_VIDEO_AV1:
+                return 50;
+            case MediaFormat.MIMETYPE_VIDEO_HEVC:
+            case MediaFormat.MIMETYPE_VIDEO_VP9:
+                return 60;
+            default:
+                return 100;
+        }
     }
 }
@@ -23,6 +23,13 @@ import android.media.MediaFormat;
 import java.util.Objects;
 
 public class VideoEncodeConfig {
+    /**
+     * Longest time without a frame in variable frame rate mode, the encoder repeats
+     * the previous frame after it
+     */
+    public static final long MAX_FRAME_GAP_US = 1000_000;
+    // two layers, without bidirectional prediction
+    private static final String TEMPORAL_LAYERING = "android.generic.2";
     public final int width;
     public final int height;
     public final int densityDpi;
@@ -33,6 +40,8 @@ public class VideoEncodeConfig {
     public final String codecName;
     public final String mimeType;
     public final MediaCodecInfo.CodecProfileLevel codecProfileLevel;
+    public final VideoEncodeConfig fallback;
+    public final boolean variableFrameRate;
 
     /**
      * @param codecName         selected codec name, maybe null
@@ -43,6 +52,20 @@ public class VideoEncodeConfig {
                              int bitrate, int framerate, int iframeInterval,
                              String codecName, String mimeType,
                              MediaCodecInfo.CodecProfileLevel codecProfileLevel) {
+        this(width, height, densityDpi, orientation, bitrate, framerate, iframeInterval,
+                codecName, mimeType, codecProfileLevel, null, false);
+    }
+
+    /**
+     * @param fallback          config to use if the encoder can't be configured, nullable
+     * @param variableFrameRate encode only the frames the display produces, up to
+     *                          {@code framerate}, instead of a constant rate
+     */
+    public VideoEncodeConfig(int width, int height, int densityDpi, int orientation,
+                             int bitrate, int framerate, int iframeInterval,
+                             String codecName, String mimeType,
+                             MediaCodecInfo.CodecProfileLevel codecProfileLevel,
+                             VideoEncodeConfig fallback, boolean variableFrameRate) {
         this.width = width;
         this.height = height;
         this.densityDpi = densityDpi;
@@ -53,6 +76,8 @@ public class VideoEncodeConfig {
         this.codecName = codecName;
         this.mimeType = Objects.requireNonNull(mimeType);
         this.codecProfileLevel = codecProfileLevel;
+        this.fallback = fallback;
+        this.variableFrameRate = variableFrameRate;
     }
 
     MediaFormat toFormat() {
@@ -63,13 +88,48 @@ public class VideoEncodeConfig {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iframeInterval);
         if (codecProfileLevel != null && codecProfileLevel.profile != 0 && codecProfileLevel.level != 0) {
             format.setInteger(MediaFormat.KEY_PROFILE, codecProfileLevel.profile);
-            format.setInteger("level", codecProfileLevel.level);
+            format.setInteger(MediaFormat.KEY_LEVEL, codecProfileLevel.level);
+        }
+        if (variableFrameRate) {
+            // a still screen yields no frames, keep at least one per gap for seeking
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, MAX_FRAME_GAP_US);
+            // high refresh rate displays would otherwise be encoded at their full rate
+            format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, framerate);
+            if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)) {
+                // every other frame on a layer nothing is predicted from, so
+                // IdleFrameFilter can drop the idle ones; ignored by encoders without support
+                format.setString(MediaFormat.KEY_TEMPORAL_LAYERING, TEMPORAL_LAYERING);
+            }
         }
-        // maybe useful
-        // format.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 10_000_000);
         return format;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VideoEncodeConfig)) return false;
+        VideoEncodeConfig that = (VideoEncodeConfig) o;
+        return width == that.width &&
+                height == that.height &&
+                densityDpi == that.densityDpi &&
+                orientation == that.orientation &&
+                bitrate == that.bitrate &&
+                framerate == that.framerate &&
+                iframeInterval == that.iframeInterval &&
+                Objects.equals(codecName, that.codecName) &&
+                mimeType.equals(that.mimeType) &&
+                Objects.equals(codecProfileLevel, that.codecProfileLevel) &&
+                Objects.equals(fallback, that.fallback) &&
+                variableFrameRate == that.variableFrameRate;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(width, height, densityDpi, orientation, bitrate, framerate,
+                iframeInterval, codecName, mimeType, codecProfileLevel, fallback,
+                variableFrameRate);
+    }
+
     @Override
     public String toString() {
         return "VideoEncodeConfig{" +
@@ -80,7 +140,9 @@ public class VideoEncodeConfig {
                 ", framerate=" + framerate +
                 ", iframeInterval=" + iframeInterval +
                 ", codecName='" + codecName + '\'' +
-                ", mimeType='" + mimeType +
+                ", mimeType='" + mimeType + '\'' +
+                ", variableFrameRate=" + variableFrameRate +
+                ", fallback=" + fallback +
                 '}';
     }
 }
\ No newline at end of file
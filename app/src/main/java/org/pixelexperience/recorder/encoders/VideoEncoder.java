@@ -18,7 +18,9 @@
 package org.pixelexperience.recorder.encoders;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
@@ -35,6 +37,18 @@ public class VideoEncoder extends BaseEncoder {
         this.mConfig = config;
     }
 
+    @Override
+    protected void onEncoderCreated(MediaCodec encoder, MediaFormat format) {
+        // variable bitrate can be retuned while recording, see setBitrate()
+        MediaCodecInfo.EncoderCapabilities capabilities = encoder.getCodecInfo()
+                .getCapabilitiesForType(mConfig.mimeType).getEncoderCapabilities();
+        if (capabilities != null && capabilities.isBitrateModeSupported(
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+        }
+    }
+
     @Override
     protected void onEncoderConfigured(MediaCodec encoder) {
         mSurface = encoder.createInputSurface();
@@ -46,6 +60,10 @@ public class VideoEncoder extends BaseEncoder {
         return mConfig.toFormat();
     }
 
+    public VideoEncodeConfig getConfig() {
+        return mConfig;
+    }
+
     /**
      * @throws NullPointerException if prepare() not call
      */
@@ -53,6 +71,36 @@ public class VideoEncoder extends BaseEncoder {
         return Objects.requireNonNull(mSurface, "doesn't prepare()");
     }
 
+    /**
+     * Asks the encoder to emit a sync frame as soon as possible.
+     */
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        getEncoder().setParameters(params);
+    }
+
+    /**
+     * Stops or restarts encoding the frames on the input surface from {@code timeUs} on,
+     * in the time base of the input frames. While suspended the encoder doesn't repeat
+     * the previous frame either.
+     */
+    public void setSuspended(boolean suspended, long timeUs) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        params.putLong(MediaCodec.PARAMETER_KEY_SUSPEND_TIME, timeUs);
+        getEncoder().setParameters(params);
+    }
+
+    /**
+     * Changes the target bitrate of the running encoder.
+     */
+    public void setBitrate(int bitrate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        getEncoder().setParameters(params);
+    }
+
     @Override
     public void release() {
         if (mSurface != null) {
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link SampleSink} decorator moving disk writes off the codec callback thread.
+ * <p>
+ * {@link #write} copies the sample into a pooled direct buffer and returns,
+ * so the caller can release the codec output buffer immediately. A single writer
+ * thread drains the bounded single-producer/single-consumer queue into the wrapped
+ * muxer. When the queue is full the configured backpressure policy applies.
+ * <p>
+ * All methods must be called from the same (producer) thread.
+ */
+public class AsyncMuxer implements SampleSink {
+    private static final String TAG = "AsyncMuxer";
+    /**
+     * Wait for the writer to free a slot.
+     */
+    public static final int BACKPRESSURE_BLOCK = 0;
+    /**
+     * Drop H.264 frames with nal_ref_idc == 0, block on anything else.
+     */
+    public static final int BACKPRESSURE_DROP_NON_REFERENCE = 1;
+    /**
+     * Queue the sample in a heap allocated overflow list until the writer catches up.
+     */
+    public static final int BACKPRESSURE_SPILL = 2;
+    public static final int DEFAULT_CAPACITY = 32;
+    private static final int INITIAL_SLOT_SIZE = 128 * 1024;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final SampleSink mMuxer;
+    private final int mPolicy;
+    private final int mCapacity;
+    // slot storage, owned by the producer between tail and head, by the writer otherwise
+    private final ByteBuffer[] mBuffers;
+    private final int[] mTracks;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPtsUs;
+    private volatile long mHead; // next slot to write, advanced by the writer
+    private volatile long mTail; // next slot to fill, advanced by the producer
+    private final ArrayDeque<Spilled> mSpilled = new ArrayDeque<>();
+    private final boolean[] mAvcTracks = new boolean[8];
+    private final MediaCodec.BufferInfo mWriterInfo = new MediaCodec.BufferInfo();
+    private Thread mWriter;
+    private volatile boolean mStopping;
+    private volatile Throwable mError;
+
+    // metrics
+    private volatile int mMaxQueueDepth;
+    private volatile long mWrittenSamples;
+    private volatile long mTotalWriteNanos;
+    private volatile long mMaxWriteNanos;
+    private volatile long mDroppedSamples;
+    private volatile long mSpilledSamples;
+
+    public AsyncMuxer(SampleSink muxer, int capacity, int policy) {
+        mMuxer = muxer;
+        mPolicy = policy;
+        mCapacity = capacity;
+        mBuffers = new ByteBuffer[capacity];
+        mTracks = new int[capacity];
+        mSizes = new int[capacity];
+        mFlags = new int[capacity];
+        mPtsUs = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(INITIAL_SLOT_SIZE);
+        }
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return addTrack(format, MediaFormat.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME)));
+    }
+
+    /**
+     * @param avc whether the track is H.264, whose non-reference frames may be dropped
+     */
+    int addTrack(MediaFormat format, boolean avc) {
+        int track = mMuxer.addTrack(format);
+        if (track >= 0 && track < mAvcTracks.length) {
+            mAvcTracks[track] = avc;
+        }
+        return track;
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+        mWriter = new Thread(this::drainLoop, TAG);
+        mWriter.start();
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        checkError();
+        boolean spill;
+        synchronized (mSpilled) {
+            // keep ordering: once spilling, everything goes through the overflow list
+            spill = !mSpilled.isEmpty();
+        }
+        if (!spill && mTail - mHead >= mCapacity) {
+            switch (mPolicy) {
+                case BACKPRESSURE_DROP_NON_REFERENCE:
+                    if (isDisposable(trackIndex, byteBuf, bufferInfo)) {
+                        mDroppedSamples++;
+                        return;
+                    }
+                    awaitFreeSlot();
+                    break;
+                case BACKPRESSURE_SPILL:
+                    spill = true;
+                    break;
+                case BACKPRESSURE_BLOCK:
+                default:
+                    awaitFreeSlot();
+                    break;
+            }
+        }
+        if (spill) {
+            Spilled sample = new Spilled(trackIndex, byteBuf, bufferInfo);
+            synchronized (mSpilled) {
+                mSpilled.add(sample);
+            }
+            mSpilledSamples++;
+        } else {
+            int slot = (int) (mTail % mCapacity);
+            mBuffers[slot] = copy(byteBuf, bufferInfo, mBuffers[slot]);
+            mTracks[slot] = trackIndex;
+            mSizes[slot] = bufferInfo.size;
+            mFlags[slot] = bufferInfo.flags;
+            mPtsUs[slot] = bufferInfo.presentationTimeUs;
+            mTail++;
+        }
+        int depth = getQueueDepth();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+        LockSupport.unpark(mWriter);
+    }
+
+    /**
+     * Waits until every queued sample is written, then stops the wrapped muxer.
+     */
+    @Override
+    public void stop() {
+        stopWriter();
+        checkError();
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        stopWriter();
+        mMuxer.release();
+        Log.i(TAG, "Writer stats: samples=" + mWrittenSamples
+                + ", maxQueueDepth=" + mMaxQueueDepth
+                + ", avgWriteUs=" + getAverageWriteLatencyUs()
+                + ", maxWriteUs=" + getMaxWriteLatencyUs()
+                + ", dropped=" + mDroppedSamples
+                + ", spilled=" + mSpilledSamples);
+    }
+
+    public int getQueueDepth() {
+        int spilled;
+        synchronized (mSpilled) {
+            spilled = mSpilled.size();
+        }
+        return (int) (mTail - mHead) + spilled;
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public long getAverageWriteLatencyUs() {
+        long written = mWrittenSamples;
+        return written == 0 ? 0 : mTotalWriteNanos / written / 1000;
+    }
+
+    public long getMaxWriteLatencyUs() {
+        return mMaxWriteNanos / 1000;
+    }
+
+    public long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    public long getSpilledSamples() {
+        return mSpilledSamples;
+    }
+
+    private void stopWriter() {
+        Thread writer = mWriter;
+        if (writer == null) {
+            return;
+        }
+        mStopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter = null;
+    }
+
+    private void checkError() {
+        Throwable error = mError;
+        if (error != null) {
+            throw new IllegalStateException("Muxer writer failed", error);
+        }
+    }
+
+    private void awaitFreeSlot() {
+        while (mTail - mHead >= mCapacity) {
+            checkError();
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            boolean idle = true;
+            try {
+                while (mHead < mTail) {
+                    int slot = (int) (mHead % mCapacity);
+                    setWriterInfo(mSizes[slot], mPtsUs[slot], mFlags[slot]);
+                    writeSample(mTracks[slot], mBuffers[slot], mWriterInfo);
+                    mHead++;
+                    idle = false;
+                }
+                Spilled spilled;
+                while ((spilled = pollSpilled()) != null) {
+                    setWriterInfo(spilled.size, spilled.ptsUs, spilled.flags);
+                    writeSample(spilled.track, spilled.data, mWriterInfo);
+                    idle = false;
+                }
+            } catch (Throwable e) {
+                Log.e(TAG, "Failed to write sample", e);
+                mError = e;
+                return;
+            }
+            if (idle) {
+                if (mStopping) {
+                    return;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS * 10);
+            }
+        }
+    }
+
+    private void setWriterInfo(int size, long ptsUs, int flags) {
+        // assigned field by field, BufferInfo.set() is a stub in local unit tests
+        mWriterInfo.offset = 0;
+        mWriterInfo.size = size;
+        mWriterInfo.presentationTimeUs = ptsUs;
+        mWriterInfo.flags = flags;
+    }
+
+    private Spilled pollSpilled() {
+        synchronized (mSpilled) {
+            return mSpilled.poll();
+        }
+    }
+
+    private void writeSample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        data.position(0);
+        data.limit(info.size);
+        long start = System.nanoTime();
+        mMuxer.write(track, data, info);
+        long elapsed = System.nanoTime() - start;
+        mTotalWriteNanos += elapsed;
+        if (elapsed > mMaxWriteNanos) {
+            mMaxWriteNanos = elapsed;
+        }
+        mWrittenSamples++;
+    }
+
+    private static ByteBuffer copy(ByteBuffer src, MediaCodec.BufferInfo info, ByteBuffer dst) {
+        if (dst.capacity() < info.size) {
+            dst = ByteBuffer.allocateDirect(Math.max(info.size, dst.capacity() * 2));
+        }
+        dst.clear();
+        if (info.size > 0) {
+            ByteBuffer data = src.duplicate();
+            data.limit(info.offset + info.size).position(info.offset);
+            dst.put(data);
+        }
+        return dst;
+    }
+
+    /**
+     * Only H.264 slices with nal_ref_idc == 0 can be dropped without breaking
+     * the decoding of the following frames.
+     */
+    private boolean isDisposable(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (track < 0 || track >= mAvcTracks.length || !mAvcTracks[track]) {
+            return false;
+        }
+        if ((info.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME | MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) != 0) {
+            return false;
+        }
+        return isNonReferenceAvc(data, info.offset, info.size);
+    }
+
+    /**
+     * @return true if the first slice of the Annex B H.264 access unit in {@code data}
+     * has nal_ref_idc == 0, i.e. no other frame is predicted from it
+     */
+    static boolean isNonReferenceAvc(ByteBuffer data, int offset, int size) {
+        int end = offset + size;
+        for (int i = offset; i + 3 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                int header = data.get(i + 3);
+                int type = header & 0x1f;
+                if (type >= 1 && type <= 5) {
+                    return (header & 0x60) == 0;
+                }
+                i += 3;
+            }
+        }
+        return false;
+    }
+
+    private static final class Spilled {
+        final int track;
+        final int size;
+        final int flags;
+        final long ptsUs;
+        final ByteBuffer data;
+
+        Spilled(int track, ByteBuffer src, MediaCodec.BufferInfo info) {
+            this.track = track;
+            this.size = info.size;
+            this.flags = info.flags;
+            this.ptsUs = info.presentationTimeUs;
+            this.data = ByteBuffer.allocate(info.size);
+            if (info.size > 0) {
+                ByteBuffer buffer = src.duplicate();
+                buffer.limit(info.offset + info.size).position(info.offset);
+                this.data.put(buffer);
+            }
+        }
+    }
+}
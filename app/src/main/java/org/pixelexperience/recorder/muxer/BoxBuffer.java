@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable big endian buffer with nested box bookkeeping.
+ */
+final class BoxBuffer {
+    private ByteBuffer mBuffer;
+    private final int[] mStack = new int[16];
+    private int mDepth;
+
+    BoxBuffer(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    void clear() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    ByteBuffer flip() {
+        if (mDepth != 0) throw new IllegalStateException("Unbalanced boxes");
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    int position() {
+        return mBuffer.position();
+    }
+
+    BoxBuffer begin(String type) {
+        mStack[mDepth++] = mBuffer.position();
+        return putInt(0).fourCc(type);
+    }
+
+    BoxBuffer beginFull(String type, int version, int flags) {
+        return begin(type).putInt((version << 24) | (flags & 0xffffff));
+    }
+
+    BoxBuffer end() {
+        int start = mStack[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+        return this;
+    }
+
+    BoxBuffer fourCc(String type) {
+        return putInt(typeCode(type));
+    }
+
+    BoxBuffer put(int value) {
+        ensure(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    BoxBuffer put(byte[] value) {
+        ensure(value.length);
+        mBuffer.put(value);
+        return this;
+    }
+
+    BoxBuffer putShort(int value) {
+        ensure(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    BoxBuffer putInt(int value) {
+        ensure(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    BoxBuffer putLong(long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    void putIntAt(int index, int value) {
+        mBuffer.putInt(index, value);
+    }
+
+    BoxBuffer zeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    BoxBuffer cString(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            put(value.charAt(i));
+        }
+        return put(0);
+    }
+
+    /**
+     * Writes the 3x3 transformation matrix for a clockwise rotation.
+     */
+    BoxBuffer putMatrix(int degrees) {
+        int cos = 0, sin = 0;
+        switch (degrees) {
+            case 90:
+                sin = 0x10000;
+                break;
+            case 180:
+                cos = -0x10000;
+                break;
+            case 270:
+                sin = -0x10000;
+                break;
+            default:
+                cos = 0x10000;
+        }
+        putInt(cos).putInt(sin).putInt(0);
+        putInt(-sin).putInt(cos).putInt(0);
+        return putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    static int typeCode(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private void ensure(int extra) {
+        if (mBuffer.remaining() >= extra) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2,
+                mBuffer.position() + extra));
+        mBuffer.flip();
+        grown.put(mBuffer);
+        mBuffer = grown;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+/**
+ * What the {@link MediaMuxer} output formats the recorder writes can hold, so codecs
+ * and container are checked together before a session starts instead of failing at
+ * {@link SampleSink#addTrack}.
+ */
+public final class ContainerFormats {
+    private static final String[] MP4_TYPES = {
+            MediaFormat.MIMETYPE_VIDEO_AVC, MediaFormat.MIMETYPE_VIDEO_HEVC,
+            MediaFormat.MIMETYPE_VIDEO_AV1, MediaFormat.MIMETYPE_AUDIO_AAC
+    };
+    private static final String[] WEBM_TYPES = {
+            MediaFormat.MIMETYPE_VIDEO_VP8, MediaFormat.MIMETYPE_VIDEO_VP9,
+            MediaFormat.MIMETYPE_AUDIO_OPUS
+    };
+
+    private ContainerFormats() {
+    }
+
+    /**
+     * @param format one of {@link MediaMuxer.OutputFormat}
+     */
+    public static boolean supports(int format, String mimeType) {
+        for (String type : getTypes(format)) {
+            if (type.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how many audio tracks {@code format} holds, {@link MediaMuxer} writes a
+     * single one to WebM
+     */
+    public static int getMaxAudioTracks(int format) {
+        return format == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM ? 1 : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param videoMimeType   null if there is no video
+     * @param audioMimeType   null if there is no audio
+     * @param audioTrackCount audio tracks of {@code audioMimeType}
+     * @throws IllegalArgumentException if {@code format} can't hold one of the tracks
+     */
+    public static void check(int format, String videoMimeType, String audioMimeType,
+                             int audioTrackCount) {
+        if (videoMimeType != null && !supports(format, videoMimeType)) {
+            throw new IllegalArgumentException(getExtension(format) + " can't hold " + videoMimeType);
+        }
+        if (audioMimeType != null && !supports(format, audioMimeType)) {
+            throw new IllegalArgumentException(getExtension(format) + " can't hold " + audioMimeType);
+        }
+        if (audioMimeType != null && audioTrackCount > getMaxAudioTracks(format)) {
+            throw new IllegalArgumentException(getExtension(format) + " can't hold "
+                    + audioTrackCount + " audio tracks");
+        }
+    }
+
+    /**
+     * @return file name extension, with the dot
+     */
+    public static String getExtension(int format) {
+        return format == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM ? ".webm" : ".mp4";
+    }
+
+    public static String getMimeType(int format) {
+        return format == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM ? "video/webm" : "video/mp4";
+    }
+
+    /**
+     * @return file name extension of a file without video, with the dot
+     */
+    public static String getAudioExtension(int format) {
+        return format == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM ? ".webm" : ".m4a";
+    }
+
+    public static String getAudioMimeType(int format) {
+        return format == MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM ? "audio/webm" : "audio/mp4";
+    }
+
+    private static String[] getTypes(int format) {
+        switch (format) {
+            case MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4:
+                return MP4_TYPES;
+            case MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM:
+                return WEBM_TYPES;
+            default:
+                throw new IllegalArgumentException("Unsupported output format " + format);
+        }
+    }
+}
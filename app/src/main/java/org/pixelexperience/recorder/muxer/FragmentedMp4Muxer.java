@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link SampleSink} writing a fragmented MP4 through {@link FragmentedMp4Writer}.
+ * Every closed fragment is synced to disk, an interrupted recording stays playable.
+ */
+public class FragmentedMp4Muxer implements SampleSink {
+    private static final String TAG = "FragmentedMp4Muxer";
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000_000;
+
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4Muxer(String path, long fragmentDurationUs) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        mWriter = new FragmentedMp4Writer(channel, fragmentDurationUs, true);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mWriter.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return mWriter.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    stripStartCode(format.getByteBuffer("csd-0")),
+                    stripStartCode(format.getByteBuffer("csd-1")));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return mWriter.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    toByteArray(format.getByteBuffer("csd-0")));
+        }
+        throw new IllegalArgumentException("Unsupported format: " + format);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && bufferInfo.size == 0) {
+            return;
+        }
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close writer", e);
+        }
+    }
+
+    static byte[] toByteArray(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Missing codec specific data");
+        }
+        ByteBuffer src = buffer.duplicate();
+        byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * MediaCodec hands out SPS/PPS as Annex-B, avcC wants the raw NAL unit.
+     */
+    static byte[] stripStartCode(ByteBuffer buffer) {
+        byte[] bytes = toByteArray(buffer);
+        int offset = 0;
+        while (offset < bytes.length - 1 && bytes[offset] == 0) {
+            offset++;
+        }
+        if (offset >= 2 && bytes[offset] == 1) {
+            offset++;
+        } else {
+            offset = 0;
+        }
+        byte[] nal = new byte[bytes.length - offset];
+        System.arraycopy(bytes, offset, nal, 0, nal.length);
+        return nal;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pure Java fragmented MP4 (ISO/IEC 14496-12) writer for H.264 video and AAC audio.
+ * <p>
+ * The init segment (ftyp + moov) is written by {@link #start()}, then samples are
+ * collected in memory and written out as moof + mdat pairs. A fragment is closed on
+ * the first video key frame once {@code fragmentDurationUs} elapsed (0 closes it on
+ * every key frame), so everything up to the last closed fragment stays playable even
+ * if the process dies. Buffers are reused between fragments, memory is bounded by the
+ * size of a single fragment.
+ * <p>
+ * Not thread safe.
+ */
+public class FragmentedMp4Writer implements Closeable {
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final boolean mSyncEachFragment;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxBuffer mBoxes = new BoxBuffer(1024);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+    private int mOrientation;
+    private int mSequenceNumber;
+    private long mFragmentStartUs = -1;
+    private boolean mStarted;
+    private boolean mClosed;
+
+    /**
+     * @param channel            destination, must be positioned at 0
+     * @param fragmentDurationUs minimal duration of a fragment, 0 to cut on every key frame
+     * @param syncEachFragment   {@link FileChannel#force(boolean) force} each fragment to disk
+     */
+    public FragmentedMp4Writer(FileChannel channel, long fragmentDurationUs, boolean syncEachFragment) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+        mSyncEachFragment = syncEachFragment;
+    }
+
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientation = degrees;
+    }
+
+    /**
+     * @param sps sequence parameter set, without start code
+     * @param pps picture parameter set, without start code
+     * @return the track index
+     */
+    public int addAvcTrack(int width, int height, byte[] sps, byte[] pps) {
+        checkNotStarted();
+        if (sps.length < 4) {
+            throw new IllegalArgumentException("Invalid SPS");
+        }
+        Track track = new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * @param audioSpecificConfig AAC AudioSpecificConfig (MediaFormat csd-0)
+     * @return the track index
+     */
+    public int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        checkNotStarted();
+        Track track = new Track(mTracks.size() + 1, false, sampleRate);
+        track.channelCount = channelCount;
+        track.decoderConfig = audioSpecificConfig;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the init segment.
+     */
+    public void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("No track added");
+        }
+        mBoxes.clear();
+        writeFtyp(mBoxes);
+        writeMoov(mBoxes);
+        writeFully(mBoxes.flip());
+        if (mSyncEachFragment) {
+            mChannel.force(false);
+        }
+        mStarted = true;
+    }
+
+    /**
+     * Appends a sample to the current fragment. H.264 samples may be in Annex-B or
+     * in length prefixed format, Annex-B is converted while copying.
+     *
+     * @param data sample data between position and limit, not modified
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                            boolean keyFrame) throws IOException {
+        if (!mStarted || mClosed) {
+            throw new IllegalStateException("Writer not started");
+        }
+        Track track = mTracks.get(trackIndex);
+        if (data.remaining() == 0) {
+            return;
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+        } else if (shouldCutBefore(track, presentationTimeUs, keyFrame)) {
+            flush();
+            mFragmentStartUs = presentationTimeUs;
+        }
+        long ticks = Math.max(0, presentationTimeUs) * track.timescale / 1000_000L;
+        int size;
+        if (track.video) {
+            // 3 byte start codes grow by one byte
+            track.ensureData(data.remaining() + data.remaining() / 3 + 4);
+            size = copyAsLengthPrefixed(data, track.data);
+        } else {
+            track.ensureData(data.remaining());
+            size = data.remaining();
+            track.data.put(data.duplicate());
+        }
+        track.append(ticks, size, keyFrame || !track.video);
+    }
+
+    private boolean shouldCutBefore(Track track, long presentationTimeUs, boolean keyFrame) {
+        boolean elapsed = presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs;
+        if (hasVideoTrack()) {
+            return track.video && keyFrame && elapsed;
+        }
+        return elapsed && mFragmentDurationUs > 0;
+    }
+
+    private boolean hasVideoTrack() {
+        for (Track track : mTracks) {
+            if (track.video) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes pending samples as a new fragment.
+     */
+    public void flush() throws IOException {
+        long mdatPayload = 0;
+        boolean empty = true;
+        for (Track track : mTracks) {
+            if (track.sampleCount > 0) {
+                empty = false;
+                mdatPayload += track.data.position();
+            }
+        }
+        if (empty) {
+            return;
+        }
+        mSequenceNumber++;
+        mBoxes.clear();
+        writeMoof(mBoxes);
+        writeFully(mBoxes.flip());
+        mMdatHeader.clear();
+        mMdatHeader.putInt((int) (8 + mdatPayload)).putInt(BoxBuffer.typeCode("mdat"));
+        mMdatHeader.flip();
+        writeFully(mMdatHeader);
+        for (Track track : mTracks) {
+            if (track.sampleCount > 0) {
+                track.data.flip();
+                writeFully(track.data);
+                track.reset();
+            }
+        }
+        if (mSyncEachFragment) {
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * Flushes the last fragment and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (mStarted) {
+                flush();
+            }
+        } finally {
+            mClosed = true;
+            mChannel.close();
+        }
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Writer already started");
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private void writeFtyp(BoxBuffer b) {
+        b.begin("ftyp");
+        b.fourCc("isom").putInt(0x200);
+        b.fourCc("isom").fourCc("iso6").fourCc("mp41");
+        b.end();
+    }
+
+    private void writeMoov(BoxBuffer b) {
+        b.begin("moov");
+        b.beginFull("mvhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0);
+        b.putInt(0x00010000).putShort(0x0100).putShort(0).putInt(0).putInt(0);
+        b.putMatrix(0);
+        b.zeros(24);
+        b.putInt(mTracks.size() + 1);
+        b.end();
+        for (Track track : mTracks) {
+            writeTrak(b, track);
+        }
+        b.begin("mvex");
+        for (Track track : mTracks) {
+            b.beginFull("trex", 0, 0);
+            b.putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0);
+            b.end();
+        }
+        b.end();
+        b.end();
+    }
+
+    private void writeTrak(BoxBuffer b, Track track) {
+        b.begin("trak");
+        b.beginFull("tkhd", 0, 0x3);
+        b.putInt(0).putInt(0).putInt(track.id).putInt(0).putInt(0);
+        b.zeros(8);
+        b.putShort(0).putShort(0).putShort(track.video ? 0 : 0x0100).putShort(0);
+        b.putMatrix(track.video ? mOrientation : 0);
+        b.putInt(track.width << 16).putInt(track.height << 16);
+        b.end();
+
+        b.begin("mdia");
+        b.beginFull("mdhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(track.timescale).putInt(0);
+        b.putShort(0x55c4 /* und */).putShort(0);
+        b.end();
+        b.beginFull("hdlr", 0, 0);
+        b.putInt(0).fourCc(track.video ? "vide" : "soun").zeros(12);
+        b.cString(track.video ? "VideoHandler" : "SoundHandler");
+        b.end();
+
+        b.begin("minf");
+        if (track.video) {
+            b.beginFull("vmhd", 0, 1).zeros(8).end();
+        } else {
+            b.beginFull("smhd", 0, 0).zeros(4).end();
+        }
+        b.begin("dinf");
+        b.beginFull("dref", 0, 0).putInt(1);
+        b.beginFull("url ", 0, 1).end();
+        b.end();
+        b.end();
+
+        b.begin("stbl");
+        b.beginFull("stsd", 0, 0).putInt(1);
+        if (track.video) {
+            writeAvc1(b, track.width, track.height, track.sps, track.pps);
+        } else {
+            writeMp4a(b, track.id, track.timescale, track.channelCount, track.decoderConfig);
+        }
+        b.end();
+        b.beginFull("stts", 0, 0).putInt(0).end();
+        b.beginFull("stsc", 0, 0).putInt(0).end();
+        b.beginFull("stsz", 0, 0).putInt(0).putInt(0).end();
+        b.beginFull("stco", 0, 0).putInt(0).end();
+        b.end();
+        b.end();
+        b.end();
+        b.end();
+    }
+
+    static void writeAvc1(BoxBuffer b, int width, int height, byte[] sps, byte[] pps) {
+        b.begin("avc1");
+        b.zeros(6).putShort(1);
+        b.zeros(16);
+        b.putShort(width).putShort(height);
+        b.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1);
+        b.zeros(32);
+        b.putShort(0x0018).putShort(0xffff);
+        b.begin("avcC");
+        b.put(1).put(sps[1]).put(sps[2]).put(sps[3]);
+        b.put(0xff).put(0xe1);
+        b.putShort(sps.length).put(sps);
+        b.put(1).putShort(pps.length).put(pps);
+        b.end();
+        b.end();
+    }
+
+    static void writeMp4a(BoxBuffer b, int trackId, int sampleRate, int channelCount, byte[] asc) {
+        b.begin("mp4a");
+        b.zeros(6).putShort(1);
+        b.zeros(8);
+        b.putShort(channelCount).putShort(16).putShort(0).putShort(0);
+        b.putInt(sampleRate << 16);
+        b.beginFull("esds", 0, 0);
+        b.put(0x03).put(3 + 15 + 2 + asc.length + 3);
+        b.putShort(trackId).put(0);
+        b.put(0x04).put(13 + 2 + asc.length);
+        b.put(0x40).put(0x15).put(0).putShort(0).putInt(0).putInt(0);
+        b.put(0x05).put(asc.length).put(asc);
+        b.put(0x06).put(1).put(0x02);
+        b.end();
+        b.end();
+    }
+
+    private void writeMoof(BoxBuffer b) {
+        int moofStart = b.position();
+        b.begin("moof");
+        b.beginFull("mfhd", 0, 0).putInt(mSequenceNumber).end();
+        for (Track track : mTracks) {
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            b.begin("traf");
+            b.beginFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.id).end();
+            b.beginFull("tfdt", 1, 0).putLong(track.ticks[0]).end();
+            b.beginFull("trun", 0, TRUN_FLAGS).putInt(track.sampleCount);
+            track.dataOffsetPosition = b.position();
+            b.putInt(0);
+            for (int s = 0; s < track.sampleCount; s++) {
+                b.putInt(track.durationOf(s)).putInt(track.sizes[s]);
+                b.putInt(track.sync[s] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            b.end();
+            b.end();
+        }
+        b.end();
+        // data offsets are relative to the first byte of moof
+        int dataOffset = b.position() - moofStart + 8;
+        for (Track track : mTracks) {
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            b.putIntAt(track.dataOffsetPosition, dataOffset);
+            dataOffset += track.data.position();
+        }
+    }
+
+    /**
+     * Copies an H.264 access unit into {@code dst} as 4-byte length prefixed NAL units.
+     *
+     * @return number of bytes written
+     */
+    static int copyAsLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        final int limit = src.limit();
+        final int begin = dst.position();
+        int start = findStartCode(src, src.position(), limit);
+        if (start < 0 || start - src.position() > 4) {
+            // not Annex-B, assume it is already length prefixed
+            dst.put(src.duplicate());
+            return dst.position() - begin;
+        }
+        while (start >= 0) {
+            int next = findStartCode(src, start, limit);
+            int end = limit;
+            if (next >= 0) {
+                end = next - 3;
+                if (end > start && src.get(end - 1) == 0) {
+                    end--;
+                }
+            }
+            dst.putInt(end - start);
+            for (int i = start; i < end; i++) {
+                dst.put(src.get(i));
+            }
+            start = next;
+        }
+        return dst.position() - begin;
+    }
+
+    /**
+     * @return the index following the next 00 00 01 sequence, or -1
+     */
+    private static int findStartCode(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                i += 2;
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        int width, height, channelCount;
+        byte[] sps, pps, decoderConfig;
+
+        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        long[] ticks = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        int sampleCount;
+        int dataOffsetPosition;
+        long lastTicks;
+        int lastDuration;
+
+        Track(int id, boolean video, int timescale) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+            // 30 fps video, 1024 samples per AAC frame
+            this.lastDuration = video ? timescale / 30 : 1024;
+        }
+
+        void ensureData(int extra) {
+            if (data.remaining() >= extra) {
+                return;
+            }
+            int capacity = Math.max(data.capacity() * 2, data.position() + extra);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            data.flip();
+            grown.put(data);
+            data = grown;
+        }
+
+        void append(long sampleTicks, int size, boolean isSync) {
+            if (sampleCount == ticks.length) {
+                int capacity = sampleCount * 2;
+                ticks = Arrays.copyOf(ticks, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                sync = Arrays.copyOf(sync, capacity);
+            }
+            if (sampleTicks < lastTicks) {
+                // keep decode time monotonic
+                sampleTicks = lastTicks;
+            }
+            ticks[sampleCount] = sampleTicks;
+            sizes[sampleCount] = size;
+            sync[sampleCount] = isSync;
+            sampleCount++;
+            lastTicks = sampleTicks;
+        }
+
+        /**
+         * The duration of the last sample is unknown until the next one arrives,
+         * reuse the previous sample duration instead.
+         */
+        int durationOf(int sample) {
+            if (sample + 1 < sampleCount) {
+                lastDuration = (int) (ticks[sample + 1] - ticks[sample]);
+            }
+            return lastDuration;
+        }
+
+        void reset() {
+            data.clear();
+            sampleCount = 0;
+        }
+    }
+}
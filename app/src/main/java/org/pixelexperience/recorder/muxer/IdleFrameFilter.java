@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSink} decorator dropping video frames that repeat the previous picture,
+ * for variable frame rate output of mostly still screens.
+ * <p>
+ * A predicted frame of at most {@link #IDLE_FRAME_MAX_BYTES} codes (nearly) no change.
+ * The first of a run is kept, as it may still finish an update. The following ones are
+ * dropped until {@code maxGapUs} passed since the last written frame, if no other frame is
+ * predicted from them (H.264 nal_ref_idc == 0): dropping a reference frame would corrupt
+ * the ones decoded from it. Encoders only produce such frames with temporal layering,
+ * which {@link org.pixelexperience.recorder.encoders.VideoEncodeConfig} requests for
+ * variable frame rate. The picture stays the same, the previous frame is just shown
+ * longer. Key frames, reference frames, other codecs, codec config, end of stream and
+ * other tracks pass through.
+ * <p>
+ * Not thread safe.
+ */
+public class IdleFrameFilter implements SampleSink {
+    private static final String TAG = "IdleFrameFilter";
+    // a predicted frame with every block skipped takes a few dozen bytes
+    public static final int IDLE_FRAME_MAX_BYTES = 256;
+
+    private final SampleSink mMuxer;
+    private final long mMaxGapUs;
+    private int mVideoTrack = -1;
+    private boolean mVideoAvc;
+    private boolean mLastIdle;
+    private volatile long mLastWrittenUs = -1;
+    private long mFirstUs = -1;
+
+    private volatile long mWrittenFrames;
+    private volatile long mDroppedFrames;
+    private volatile long mDroppedBytes;
+
+    public IdleFrameFilter(SampleSink muxer, long maxGapUs) {
+        mMuxer = muxer;
+        mMaxGapUs = maxGapUs;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return addTrack(format, format.getString(MediaFormat.KEY_MIME));
+    }
+
+    int addTrack(MediaFormat format, String mime) {
+        int track = mMuxer.addTrack(format);
+        if (mVideoTrack < 0 && mime != null && mime.startsWith("video/")) {
+            mVideoTrack = track;
+            mVideoAvc = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime);
+        }
+        return track;
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex != mVideoTrack || bufferInfo.size == 0
+                || (bufferInfo.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) != 0) {
+            mMuxer.write(trackIndex, byteBuf, bufferInfo);
+            return;
+        }
+        long ptsUs = bufferInfo.presentationTimeUs;
+        boolean idle = mVideoAvc
+                && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0
+                && bufferInfo.size <= IDLE_FRAME_MAX_BYTES;
+        // the reference frames of the lower layer don't end the run
+        boolean repeated = idle && mLastIdle;
+        mLastIdle = idle;
+        if (repeated && ptsUs - mLastWrittenUs < mMaxGapUs
+                && AsyncMuxer.isNonReferenceAvc(byteBuf, bufferInfo.offset, bufferInfo.size)) {
+            mDroppedFrames++;
+            mDroppedBytes += bufferInfo.size;
+            return;
+        }
+        if (mFirstUs < 0) {
+            mFirstUs = ptsUs;
+        }
+        mLastWrittenUs = ptsUs;
+        mWrittenFrames++;
+        mMuxer.write(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+        Log.i(TAG, "Idle frame stats: written=" + mWrittenFrames + ", dropped=" + mDroppedFrames
+                + ", savedBytes=" + mDroppedBytes + ", fps=" + getEffectiveFrameRate());
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return bytes of the dropped frames, the container overhead saved comes on top
+     */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * @return written video frames per second of video
+     */
+    public float getEffectiveFrameRate() {
+        long durationUs = mLastWrittenUs - mFirstUs;
+        return durationUs <= 0 ? 0 : (mWrittenFrames - 1) * 1000_000f / durationUs;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link SampleSink} decorator releasing samples of all tracks in presentation time order,
+ * so the file is interleaved by time rather than by callback arrival.
+ * <p>
+ * A sample is held until every other live track has reached its timestamp, or until
+ * it is older than the window behind the newest sample seen, so a stalled track
+ * delays the output by at most the window. The order within a track is never changed.
+ * Samples arriving behind what was already released are written immediately and
+ * counted as late. End of stream of a track and {@link #stop()} flush.
+ * <p>
+ * Samples are copied into pooled direct buffers, not thread safe.
+ */
+public class InterleavingMuxer implements SampleSink {
+    private static final String TAG = "InterleavingMuxer";
+    public static final long DEFAULT_WINDOW_US = 500_000;
+    private static final int INITIAL_CAPACITY = 64;
+    // hard bound on held samples, the oldest is released beyond it
+    private static final int MAX_PENDING = 1024;
+    private static final int INITIAL_SLOT_SIZE = 64 * 1024;
+
+    private final SampleSink mMuxer;
+    private final long mWindowUs;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mTrackCount;
+    private long[] mTrackLastKeyUs;
+    private boolean[] mTrackEnded;
+
+    // pending samples, heap ordered by (key, sequence)
+    private ByteBuffer[] mBuffers = new ByteBuffer[0];
+    private int[] mTracks = new int[0];
+    private int[] mSizes = new int[0];
+    private int[] mFlags = new int[0];
+    private long[] mPtsUs = new long[0];
+    private long[] mKeysUs = new long[0];
+    private long[] mSequences = new long[0];
+    private int[] mHeap = new int[0];
+    private int[] mFreeSlots = new int[0];
+    private int mFreeCount;
+    private int mPending;
+    private long mSequence;
+    private long mNewestKeyUs = Long.MIN_VALUE;
+    private long mReleasedKeyUs = Long.MIN_VALUE;
+
+    private int mMaxPending;
+    private long mLateSamples;
+
+    public InterleavingMuxer(SampleSink muxer, long windowUs) {
+        mMuxer = muxer;
+        mWindowUs = windowUs;
+        grow(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int track = mMuxer.addTrack(format);
+        mTrackCount = Math.max(mTrackCount, track + 1);
+        return track;
+    }
+
+    @Override
+    public void start() {
+        mTrackLastKeyUs = new long[mTrackCount];
+        Arrays.fill(mTrackLastKeyUs, Long.MIN_VALUE);
+        mTrackEnded = new boolean[mTrackCount];
+        mMuxer.start();
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mTrackEnded[trackIndex] = true;
+            flush();
+            mMuxer.write(trackIndex, byteBuf, bufferInfo);
+            return;
+        }
+        if (bufferInfo.size == 0) {
+            return;
+        }
+        // never move a sample before an earlier one of its own track
+        long keyUs = Math.max(bufferInfo.presentationTimeUs, mTrackLastKeyUs[trackIndex]);
+        mTrackLastKeyUs[trackIndex] = keyUs;
+        if (keyUs < mReleasedKeyUs) {
+            mLateSamples++;
+            mMuxer.write(trackIndex, byteBuf, bufferInfo);
+            return;
+        }
+        if (keyUs > mNewestKeyUs) {
+            mNewestKeyUs = keyUs;
+        }
+        push(trackIndex, byteBuf, bufferInfo, keyUs);
+        if (mPending > mMaxPending) {
+            mMaxPending = mPending;
+        }
+        drain();
+    }
+
+    @Override
+    public void stop() {
+        flush();
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+        Log.i(TAG, "Interleaving stats: maxPending=" + mMaxPending + ", late=" + mLateSamples);
+    }
+
+    public int getMaxPendingSamples() {
+        return mMaxPending;
+    }
+
+    /**
+     * @return samples that arrived after later samples were already written
+     */
+    public long getLateSamples() {
+        return mLateSamples;
+    }
+
+    private void drain() {
+        while (mPending > 0) {
+            int slot = mHeap[0];
+            long keyUs = mKeysUs[slot];
+            if (keyUs > watermark() && mNewestKeyUs - keyUs <= mWindowUs && mPending <= MAX_PENDING) {
+                return;
+            }
+            writeHead();
+        }
+    }
+
+    private void flush() {
+        while (mPending > 0) {
+            writeHead();
+        }
+    }
+
+    /**
+     * @return the timestamp every live track has reached
+     */
+    private long watermark() {
+        long watermark = Long.MAX_VALUE;
+        for (int track = 0; track < mTrackCount; track++) {
+            if (!mTrackEnded[track]) {
+                watermark = Math.min(watermark, mTrackLastKeyUs[track]);
+            }
+        }
+        return watermark;
+    }
+
+    private void push(int track, ByteBuffer src, MediaCodec.BufferInfo info, long keyUs) {
+        if (mFreeCount == 0) {
+            grow(mBuffers.length * 2);
+        }
+        int slot = mFreeSlots[--mFreeCount];
+        ByteBuffer dst = mBuffers[slot];
+        if (dst == null || dst.capacity() < info.size) {
+            dst = ByteBuffer.allocateDirect(Math.max(info.size, INITIAL_SLOT_SIZE));
+            mBuffers[slot] = dst;
+        }
+        dst.clear();
+        ByteBuffer data = src.duplicate();
+        data.limit(info.offset + info.size).position(info.offset);
+        dst.put(data);
+        mTracks[slot] = track;
+        mSizes[slot] = info.size;
+        mFlags[slot] = info.flags;
+        mPtsUs[slot] = info.presentationTimeUs;
+        mKeysUs[slot] = keyUs;
+        mSequences[slot] = mSequence++;
+
+        int i = mPending++;
+        mHeap[i] = slot;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!before(mHeap[i], mHeap[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void writeHead() {
+        int slot = mHeap[0];
+        mPending--;
+        mHeap[0] = mHeap[mPending];
+        int i = 0;
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= mPending) {
+                break;
+            }
+            int child = left + 1 < mPending && before(mHeap[left + 1], mHeap[left]) ? left + 1 : left;
+            if (!before(mHeap[child], mHeap[i])) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+        mReleasedKeyUs = Math.max(mReleasedKeyUs, mKeysUs[slot]);
+        ByteBuffer data = mBuffers[slot];
+        data.position(0).limit(mSizes[slot]);
+        mInfo.set(0, mSizes[slot], mPtsUs[slot], mFlags[slot]);
+        mFreeSlots[mFreeCount++] = slot;
+        mMuxer.write(mTracks[slot], data, mInfo);
+    }
+
+    private boolean before(int a, int b) {
+        return mKeysUs[a] < mKeysUs[b] || (mKeysUs[a] == mKeysUs[b] && mSequences[a] < mSequences[b]);
+    }
+
+    private void swap(int i, int j) {
+        int tmp = mHeap[i];
+        mHeap[i] = mHeap[j];
+        mHeap[j] = tmp;
+    }
+
+    private void grow(int capacity) {
+        int old = mBuffers.length;
+        mBuffers = Arrays.copyOf(mBuffers, capacity);
+        mTracks = Arrays.copyOf(mTracks, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mFlags = Arrays.copyOf(mFlags, capacity);
+        mPtsUs = Arrays.copyOf(mPtsUs, capacity);
+        mKeysUs = Arrays.copyOf(mKeysUs, capacity);
+        mSequences = Arrays.copyOf(mSequences, capacity);
+        mHeap = Arrays.copyOf(mHeap, capacity);
+        mFreeSlots = Arrays.copyOf(mFreeSlots, capacity);
+        for (int slot = capacity - 1; slot >= old; slot--) {
+            mFreeSlots[mFreeCount++] = slot;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link SampleSink} writing a regular MP4 through {@link JournaledMp4Writer}, with a
+ * journal next to it so {@link Mp4Recovery} can rebuild the file if recording is
+ * interrupted.
+ */
+public class JournaledMp4Muxer implements SampleSink {
+    private static final String TAG = "JournaledMp4Muxer";
+
+    private final JournaledMp4Writer mWriter;
+
+    public JournaledMp4Muxer(String path) throws IOException {
+        File file = new File(path);
+        File journal = Mp4Recovery.getJournalFile(file);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel journalChannel;
+        try {
+            journalChannel = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        mWriter = new JournaledMp4Writer(channel, journalChannel, journal::delete);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mWriter.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return mWriter.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    FragmentedMp4Muxer.stripStartCode(format.getByteBuffer("csd-0")),
+                    FragmentedMp4Muxer.stripStartCode(format.getByteBuffer("csd-1")));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return mWriter.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    FragmentedMp4Muxer.toByteArray(format.getByteBuffer("csd-0")));
+        }
+        throw new IllegalArgumentException("Unsupported format: " + format);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, data, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close writer", e);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Pure Java progressive MP4 writer for H.264 video and AAC audio, backed by a
+ * {@link SampleJournal}.
+ * <p>
+ * Samples are appended to a single mdat as they arrive and the sample tables are kept
+ * in memory, the moov is written by {@link #close()}. Every sample is also logged to
+ * the journal; each batch of entries is synced after the data it points to, so
+ * {@link Mp4Recovery} can rebuild the moov of a file left behind by a dead process.
+ * The journal is deleted once the file is complete.
+ * <p>
+ * Not thread safe.
+ */
+public class JournaledMp4Writer implements Closeable {
+    private static final String TAG = "JournaledMp4Writer";
+    static final int MDAT_HEADER_SIZE = 16;
+    private static final int MOVIE_TIMESCALE = 1000;
+    // a batch spans at most a second of media or this many samples
+    private static final int BATCH_SAMPLES = 128;
+    private static final long BATCH_DURATION_US = 1000_000;
+
+    private final FileChannel mChannel;
+    private final SampleJournal mJournal;
+    private final Runnable mJournalDeleter;
+    private final List<Mp4Track> mTracks = new ArrayList<>();
+    private ByteBuffer mScratch = ByteBuffer.allocateDirect(256 * 1024);
+    private int mOrientation;
+    private long mMdatPosition;
+    private long mPosition;
+    private long mBatchStartUs = -1;
+    private long mSyncNanos;
+    private boolean mStarted;
+    private boolean mClosed;
+
+    /**
+     * @param channel        destination, must be positioned at 0
+     * @param journal        journal destination, empty
+     * @param journalDeleter deletes the journal once the MP4 is complete
+     */
+    public JournaledMp4Writer(FileChannel channel, FileChannel journal, Runnable journalDeleter) {
+        mChannel = channel;
+        mJournal = new SampleJournal(journal, BATCH_SAMPLES);
+        mJournalDeleter = journalDeleter;
+    }
+
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientation = degrees;
+    }
+
+    /**
+     * @param sps sequence parameter set, without start code
+     * @param pps picture parameter set, without start code
+     * @return the track index
+     */
+    public int addAvcTrack(int width, int height, byte[] sps, byte[] pps) {
+        checkNotStarted();
+        if (sps.length < 4) {
+            throw new IllegalArgumentException("Invalid SPS");
+        }
+        mTracks.add(new Mp4Track(mTracks.size() + 1, Mp4Track.KIND_AVC, width, height, sps, pps));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * @param audioSpecificConfig AAC AudioSpecificConfig (MediaFormat csd-0)
+     * @return the track index
+     */
+    public int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        checkNotStarted();
+        mTracks.add(new Mp4Track(mTracks.size() + 1, Mp4Track.KIND_AAC, sampleRate, channelCount,
+                audioSpecificConfig, null));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes ftyp and the mdat header, then the journal header.
+     */
+    public void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("No track added");
+        }
+        BoxBuffer b = new BoxBuffer(64);
+        writeFtyp(b);
+        mMdatPosition = b.position();
+        // 64 bit size, patched by close()
+        b.putInt(1).fourCc("mdat").putLong(0);
+        mPosition = writeFully(mChannel, b.flip(), 0);
+        mJournal.writeHeader(mOrientation, mMdatPosition, mTracks);
+        mStarted = true;
+    }
+
+    /**
+     * Appends a sample to the mdat. H.264 samples may be in Annex-B or in length
+     * prefixed format, Annex-B is converted while copying.
+     *
+     * @param data sample data between position and limit, not modified
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs,
+                            boolean keyFrame) throws IOException {
+        if (!mStarted || mClosed) {
+            throw new IllegalStateException("Writer not started");
+        }
+        if (data.remaining() == 0) {
+            return;
+        }
+        Mp4Track track = mTracks.get(trackIndex);
+        ByteBuffer sample;
+        if (track.isVideo()) {
+            // 3 byte start codes grow by one byte
+            int capacity = data.remaining() + data.remaining() / 3 + 4;
+            if (mScratch.capacity() < capacity) {
+                mScratch = ByteBuffer.allocateDirect(capacity);
+            }
+            mScratch.clear();
+            FragmentedMp4Writer.copyAsLengthPrefixed(data, mScratch);
+            mScratch.flip();
+            sample = mScratch;
+        } else {
+            sample = data.duplicate();
+        }
+        int size = sample.remaining();
+        long offset = mPosition;
+        mPosition = writeFully(mChannel, sample, mPosition);
+        track.append(presentationTimeUs, offset, size, keyFrame);
+
+        if (mBatchStartUs < 0) {
+            mBatchStartUs = presentationTimeUs;
+        }
+        boolean full = mJournal.append(trackIndex, offset, size, presentationTimeUs, keyFrame);
+        if (full || presentationTimeUs - mBatchStartUs >= BATCH_DURATION_US) {
+            commit();
+            mBatchStartUs = presentationTimeUs;
+        }
+    }
+
+    private void commit() throws IOException {
+        if (mJournal.getPendingEntries() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        // the journal must never point at data that isn't on disk
+        mChannel.force(false);
+        mJournal.commit();
+        mSyncNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the moov, deletes the journal and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mStarted) {
+                commit();
+                finish(mChannel, mMdatPosition, mPosition, mTracks, mOrientation);
+                Log.i(TAG, "Journal: " + mJournal.getBytesWritten() + " bytes for " + mPosition
+                        + " bytes of media (" + String.format(Locale.US, "%.3f", mJournal.getBytesWritten()
+                        * 100.0 / Math.max(1, mPosition)) + "%), " + mJournal.getSyncCount()
+                        + " syncs in " + mSyncNanos / 1000_000 + "ms");
+            }
+        } finally {
+            mChannel.close();
+            mJournal.close();
+        }
+        if (mStarted) {
+            mJournalDeleter.run();
+        }
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Writer already started");
+        }
+    }
+
+    /**
+     * Appends the moov after the last sample, drops anything behind it and patches the
+     * mdat size.
+     *
+     * @param dataEnd end of the last sample
+     */
+    static void finish(FileChannel channel, long mdatPosition, long dataEnd, List<Mp4Track> tracks,
+                       int orientation) throws IOException {
+        BoxBuffer b = new BoxBuffer(64 * 1024);
+        writeMoov(b, tracks, orientation);
+        long end = writeFully(channel, b.flip(), dataEnd);
+        channel.truncate(end);
+        ByteBuffer size = ByteBuffer.allocate(8);
+        size.putLong(dataEnd - mdatPosition).flip();
+        writeFully(channel, size, mdatPosition + 8);
+        channel.force(false);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static void writeFtyp(BoxBuffer b) {
+        b.begin("ftyp");
+        b.fourCc("isom").putInt(0x200);
+        b.fourCc("isom").fourCc("iso2").fourCc("mp41");
+        b.end();
+    }
+
+    private static void writeMoov(BoxBuffer b, List<Mp4Track> tracks, int orientation) {
+        long startUs = Long.MAX_VALUE;
+        long durationMs = 0;
+        for (Mp4Track track : tracks) {
+            if (track.sampleCount > 0) {
+                startUs = Math.min(startUs, track.firstPtsUs);
+            }
+        }
+        for (Mp4Track track : tracks) {
+            if (track.sampleCount > 0) {
+                durationMs = Math.max(durationMs, (track.firstPtsUs - startUs) / 1000
+                        + track.durationTicks() * MOVIE_TIMESCALE / track.timescale);
+            }
+        }
+        b.begin("moov");
+        b.beginFull("mvhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt((int) durationMs);
+        b.putInt(0x00010000).putShort(0x0100).putShort(0).putInt(0).putInt(0);
+        b.putMatrix(0);
+        b.zeros(24);
+        b.putInt(tracks.size() + 1);
+        b.end();
+        for (Mp4Track track : tracks) {
+            if (track.sampleCount > 0) {
+                writeTrak(b, track, (track.firstPtsUs - startUs) / 1000, orientation);
+            }
+        }
+        b.end();
+    }
+
+    private static void writeTrak(BoxBuffer b, Mp4Track track, long delayMs, int orientation) {
+        boolean video = track.isVideo();
+        long mediaDuration = track.durationTicks();
+        long durationMs = mediaDuration * MOVIE_TIMESCALE / track.timescale;
+        b.begin("trak");
+        b.beginFull("tkhd", 0, 0x3);
+        b.putInt(0).putInt(0).putInt(track.id).putInt(0).putInt((int) (delayMs + durationMs));
+        b.zeros(8);
+        b.putShort(0).putShort(0).putShort(video ? 0 : 0x0100).putShort(0);
+        b.putMatrix(video ? orientation : 0);
+        b.putInt(video ? track.param1 << 16 : 0).putInt(video ? track.param2 << 16 : 0);
+        b.end();
+
+        if (delayMs > 0) {
+            // keep the offset between tracks with an empty edit
+            b.begin("edts");
+            b.beginFull("elst", 0, 0).putInt(2);
+            b.putInt((int) delayMs).putInt(-1).putInt(0x00010000);
+            b.putInt((int) durationMs).putInt(0).putInt(0x00010000);
+            b.end();
+            b.end();
+        }
+
+        b.begin("mdia");
+        b.beginFull("mdhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(track.timescale).putInt((int) mediaDuration);
+        b.putShort(0x55c4 /* und */).putShort(0);
+        b.end();
+        b.beginFull("hdlr", 0, 0);
+        b.putInt(0).fourCc(video ? "vide" : "soun").zeros(12);
+        b.cString(video ? "VideoHandler" : "SoundHandler");
+        b.end();
+
+        b.begin("minf");
+        if (video) {
+            b.beginFull("vmhd", 0, 1).zeros(8).end();
+        } else {
+            b.beginFull("smhd", 0, 0).zeros(4).end();
+        }
+        b.begin("dinf");
+        b.beginFull("dref", 0, 0).putInt(1);
+        b.beginFull("url ", 0, 1).end();
+        b.end();
+        b.end();
+
+        b.begin("stbl");
+        b.beginFull("stsd", 0, 0).putInt(1);
+        if (video) {
+            FragmentedMp4Writer.writeAvc1(b, track.param1, track.param2, track.config1, track.config2);
+        } else {
+            FragmentedMp4Writer.writeMp4a(b, track.id, track.param1, track.param2, track.config1);
+        }
+        b.end();
+        writeStts(b, track);
+        if (video) {
+            writeStss(b, track);
+        }
+        b.beginFull("stsz", 0, 0).putInt(0).putInt(track.sampleCount);
+        for (int s = 0; s < track.sampleCount; s++) {
+            b.putInt(track.sizes[s]);
+        }
+        b.end();
+        // one sample per chunk, chunk offsets are the sample offsets
+        b.beginFull("stsc", 0, 0).putInt(1).putInt(1).putInt(1).putInt(1).end();
+        b.beginFull("co64", 0, 0).putInt(track.sampleCount);
+        for (int s = 0; s < track.sampleCount; s++) {
+            b.putLong(track.offsets[s]);
+        }
+        b.end();
+        b.end();
+        b.end();
+        b.end();
+        b.end();
+    }
+
+    private static void writeStts(BoxBuffer b, Mp4Track track) {
+        b.beginFull("stts", 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        int run = 0;
+        int runDuration = -1;
+        for (int s = 0; s < track.sampleCount; s++) {
+            int duration = track.durationOf(s);
+            if (duration != runDuration && run > 0) {
+                b.putInt(run).putInt(runDuration);
+                entries++;
+                run = 0;
+            }
+            runDuration = duration;
+            run++;
+        }
+        if (run > 0) {
+            b.putInt(run).putInt(runDuration);
+            entries++;
+        }
+        b.putIntAt(countPosition, entries);
+        b.end();
+    }
+
+    private static void writeStss(BoxBuffer b, Mp4Track track) {
+        b.beginFull("stss", 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        for (int s = 0; s < track.sampleCount; s++) {
+            if (track.sync[s]) {
+                b.putInt(s + 1);
+                entries++;
+            }
+        }
+        b.putIntAt(countPosition, entries);
+        b.end();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stores the measured loudness of the first audio track of a finished MP4 file in a
+ * loudness box ('ludt' with a 'tlou' entry, ISO/IEC 14496-12, values coded as in
+ * ISO/IEC 23003-4), so players can normalize the playback level.
+ * <p>
+ * The box goes into the user data of the track. Only files ending with their moov are
+ * tagged: growing the moov then doesn't move any sample, the chunk offsets stay valid.
+ * <p>
+ * The file is never left without a complete moov. The tagged moov is appended as a free
+ * box first, then made the moov, and only then the old one is turned into a free box, so
+ * an interrupted write at worst leaves the old moov in front of a second, complete one.
+ */
+public final class Mp4LoudnessBox {
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    // ISO/IEC 23003-4 codes
+    private static final int METHOD_PROGRAM_LOUDNESS = 1;
+    private static final int SYSTEM_BS_1770_4 = 2;
+    private static final int RELIABILITY_ACCURATE = 3;
+
+    private Mp4LoudnessBox() {
+    }
+
+    /**
+     * @param integratedLufs program loudness, see {@code LoudnessMeter}
+     * @param truePeakDb     in dBTP
+     * @param samplePeakDb   in dB of full scale
+     * @return false if the file doesn't end with a moov, has no audio track or was
+     * tagged already
+     * @throws IOException if the file can't be read or written
+     */
+    public static boolean write(File file, double integratedLufs, double truePeakDb,
+                                double samplePeakDb) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long moovPosition = findTrailingMoov(channel);
+            if (moovPosition < 0) {
+                return false;
+            }
+            long moovSize = channel.size() - moovPosition;
+            if (moovSize > MAX_MOOV_SIZE) {
+                return false;
+            }
+            ByteBuffer moov = ByteBuffer.allocate((int) moovSize);
+            while (moov.hasRemaining()) {
+                if (channel.read(moov, moovPosition + moov.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            int trak = findAudioTrack(moov);
+            if (trak < 0) {
+                return false;
+            }
+            int trakEnd = trak + moov.getInt(trak);
+            int udta = findChild(moov, trak + HEADER_SIZE, trakEnd, "udta");
+            if (udta >= 0 && findChild(moov, udta + HEADER_SIZE, udta + moov.getInt(udta),
+                    "ludt") >= 0) {
+                return false;
+            }
+
+            BoxBuffer b = new BoxBuffer(64);
+            if (udta < 0) {
+                b.begin("udta");
+            }
+            writeLudt(b, integratedLufs, truePeakDb, samplePeakDb);
+            if (udta < 0) {
+                b.end();
+            }
+            ByteBuffer box = b.flip();
+            int grow = box.remaining();
+            int insert = udta < 0 ? trakEnd : udta + moov.getInt(udta);
+
+            // the tagged moov: the box at the insert position, the enclosing boxes grown
+            ByteBuffer tagged = ByteBuffer.allocate((int) moovSize + grow);
+            moov.limit(insert).position(0);
+            tagged.put(moov).put(box);
+            moov.limit(moov.capacity()).position(insert);
+            tagged.put(moov).flip();
+            growSize(tagged, udta, grow);
+            growSize(tagged, trak, grow);
+            growSize(tagged, 0, grow);
+
+            long taggedPosition = channel.size();
+            tagged.putInt(4, BoxBuffer.typeCode("free"));
+            writeFully(channel, tagged, taggedPosition);
+            channel.force(false);
+            writeType(channel, taggedPosition, "moov");
+            channel.force(false);
+            writeType(channel, moovPosition, "free");
+            channel.force(false);
+            return true;
+        }
+    }
+
+    private static void writeLudt(BoxBuffer b, double integratedLufs, double truePeakDb,
+                                  double samplePeakDb) {
+        b.begin("ludt");
+        b.beginFull("tlou", 0, 0);
+        // reserved, downmix_ID and DRC_set_ID 0: the track as is
+        b.putShort(0);
+        int peaks = (peakLevel(samplePeakDb) << 12) | peakLevel(truePeakDb);
+        b.put(peaks >> 16).put(peaks >> 8).put(peaks);
+        b.put((SYSTEM_BS_1770_4 << 4) | RELIABILITY_ACCURATE);
+        b.put(1); // measurement_count
+        b.put(METHOD_PROGRAM_LOUDNESS);
+        // -57.75 to 6 LUFS in steps of 0.25
+        b.put((int) Math.max(0, Math.min(255, Math.round((integratedLufs + 57.75) * 4))));
+        b.put((SYSTEM_BS_1770_4 << 4) | RELIABILITY_ACCURATE);
+        b.end();
+        b.end();
+    }
+
+    /**
+     * @return 12 bit peak level, 20 to -107.97dB in steps of 1/32, 0 if unknown
+     */
+    private static int peakLevel(double db) {
+        if (Double.isNaN(db)) {
+            return 0;
+        }
+        return (int) Math.max(1, Math.min(4095, Math.round((20 - db) * 32)));
+    }
+
+    /**
+     * @return position of the last top level box if it is a moov, -1 if not
+     */
+    private static long findTrailingMoov(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long size = channel.size();
+        long position = 0;
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            long boxSize = header.getInt(0) & 0xffffffffL;
+            if (boxSize == 1) {
+                boxSize = header.getLong(8);
+            } else if (boxSize == 0) {
+                boxSize = size - position;
+            }
+            if (boxSize < HEADER_SIZE || position + boxSize > size) {
+                return -1;
+            }
+            if (position + boxSize == size) {
+                // a 64 bit moov size would need patching in a different place
+                return header.getInt(4) == BoxBuffer.typeCode("moov")
+                        && header.getInt(0) == boxSize ? position : -1;
+            }
+            position += boxSize;
+        }
+        return -1;
+    }
+
+    /**
+     * @return position in {@code moov} of the first trak with a sound handler, -1 if none
+     */
+    private static int findAudioTrack(ByteBuffer moov) {
+        int end = moov.getInt(0);
+        int trak = HEADER_SIZE;
+        while ((trak = findChild(moov, trak, end, "trak")) >= 0) {
+            int trakEnd = trak + moov.getInt(trak);
+            int mdia = findChild(moov, trak + HEADER_SIZE, trakEnd, "mdia");
+            if (mdia >= 0) {
+                int hdlr = findChild(moov, mdia + HEADER_SIZE, mdia + moov.getInt(mdia), "hdlr");
+                // size, type, version and flags, pre_defined, then the handler type
+                if (hdlr >= 0 && moov.getInt(hdlr + 16) == BoxBuffer.typeCode("soun")) {
+                    return trak;
+                }
+            }
+            trak = trakEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * @return position of the first {@code type} box between {@code start} and
+     * {@code end}, -1 if there is none
+     */
+    private static int findChild(ByteBuffer buffer, int start, int end, String type) {
+        int code = BoxBuffer.typeCode(type);
+        int position = start;
+        while (position + HEADER_SIZE <= end) {
+            int size = buffer.getInt(position);
+            if (size < HEADER_SIZE || position + size > end) {
+                return -1;
+            }
+            if (buffer.getInt(position + 4) == code) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static void growSize(ByteBuffer moov, int box, int grow) {
+        if (box >= 0) {
+            moov.putInt(box, moov.getInt(box) + grow);
+        }
+    }
+
+    private static void writeType(FileChannel channel, long box, String type)
+            throws IOException {
+        ByteBuffer code = ByteBuffer.allocate(4);
+        code.putInt(0, BoxBuffer.typeCode(type));
+        writeFully(channel, code, box + 4);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position)
+            throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+}
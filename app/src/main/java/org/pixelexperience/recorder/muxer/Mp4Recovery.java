@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Rebuilds MP4 files left behind by an interrupted {@link JournaledMp4Writer} from
+ * their {@link SampleJournal journal} and the samples already in the mdat.
+ * <p>
+ * Pure Java, safe to run again on a file that was already recovered.
+ */
+public final class Mp4Recovery {
+    private static final String TAG = "Mp4Recovery";
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    private Mp4Recovery() {
+    }
+
+    public static File getJournalFile(File file) {
+        return new File(file.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return the MP4 file a journal belongs to, or null if {@code journal} isn't one
+     */
+    public static File getRecordingFile(File journal) {
+        String path = journal.getPath();
+        if (!path.endsWith(JOURNAL_SUFFIX)) {
+            return null;
+        }
+        return new File(path.substring(0, path.length() - JOURNAL_SUFFIX.length()));
+    }
+
+    /**
+     * Writes a new moov covering every journaled sample found in {@code file}, samples
+     * after the last valid journal entry are dropped. The journal is deleted on success.
+     *
+     * @return number of recovered samples, 0 if there was nothing to recover
+     * @throws IOException if the journal is unusable or the file can't be written
+     */
+    public static int recover(File file, File journal) throws IOException {
+        SampleJournal.Contents contents;
+        try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+            contents = SampleJournal.read(channel, file.length());
+            long mdatEnd = getMdatEnd(file, contents.mdatPosition);
+            if (mdatEnd < file.length()) {
+                // recovered or completed before, the moov behind the mdat isn't sample data
+                contents = SampleJournal.read(channel, mdatEnd);
+            }
+        }
+        if (contents.entryCount == 0) {
+            Log.w(TAG, "No sample to recover in " + file);
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            JournaledMp4Writer.finish(channel, contents.mdatPosition, contents.dataEnd,
+                    contents.tracks, contents.orientation);
+        }
+        Log.i(TAG, "Recovered " + contents.entryCount + " samples, " + contents.dataEnd
+                + " bytes of " + file);
+        //noinspection ResultOfMethodCallIgnored
+        journal.delete();
+        return contents.entryCount;
+    }
+
+    /**
+     * @return end of the mdat at {@code mdatPosition}, the file length while its size is
+     * still unset
+     */
+    private static long getMdatEnd(File file, long mdatPosition) throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(8);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // 64 bit size behind the size 1 and the type
+            while (size.hasRemaining()
+                    && channel.read(size, mdatPosition + 8 + size.position()) > 0) {
+                // keep reading
+            }
+        }
+        long mdatSize = size.hasRemaining() ? 0 : size.getLong(0);
+        return mdatSize > 0 ? mdatPosition + mdatSize : file.length();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import java.util.Arrays;
+
+/**
+ * Format and sample table of a track in a progressive MP4, filled by
+ * {@link JournaledMp4Writer} while recording or by {@link Mp4Recovery} from a journal.
+ */
+final class Mp4Track {
+    static final int KIND_AVC = 0;
+    static final int KIND_AAC = 1;
+    static final int VIDEO_TIMESCALE = 90000;
+
+    final int id;
+    final int kind;
+    final int timescale;
+    // width and height for video, sample rate and channel count for audio
+    final int param1, param2;
+    // SPS and PPS for video, AudioSpecificConfig and nothing for audio
+    final byte[] config1, config2;
+
+    long firstPtsUs = -1;
+    long[] ticks = new long[256];
+    long[] offsets = new long[256];
+    int[] sizes = new int[256];
+    boolean[] sync = new boolean[256];
+    int sampleCount;
+    private long mLastTicks;
+
+    Mp4Track(int id, int kind, int param1, int param2, byte[] config1, byte[] config2) {
+        this.id = id;
+        this.kind = kind;
+        this.timescale = kind == KIND_AVC ? VIDEO_TIMESCALE : param1;
+        this.param1 = param1;
+        this.param2 = param2;
+        this.config1 = config1;
+        this.config2 = config2;
+    }
+
+    boolean isVideo() {
+        return kind == KIND_AVC;
+    }
+
+    void append(long ptsUs, long offset, int size, boolean isSync) {
+        if (sampleCount == ticks.length) {
+            int capacity = sampleCount * 2;
+            ticks = Arrays.copyOf(ticks, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            sync = Arrays.copyOf(sync, capacity);
+        }
+        if (firstPtsUs < 0) {
+            firstPtsUs = Math.max(0, ptsUs);
+        }
+        // decode time relative to the first sample, kept monotonic
+        long sampleTicks = Math.max(mLastTicks,
+                (Math.max(0, ptsUs) - firstPtsUs) * timescale / 1000_000L);
+        ticks[sampleCount] = sampleTicks;
+        offsets[sampleCount] = offset;
+        sizes[sampleCount] = size;
+        sync[sampleCount] = isSync || !isVideo();
+        sampleCount++;
+        mLastTicks = sampleTicks;
+    }
+
+    /**
+     * The duration of the last sample is unknown, the previous one is reused.
+     */
+    int durationOf(int sample) {
+        if (sample + 1 < sampleCount) {
+            return (int) (ticks[sample + 1] - ticks[sample]);
+        }
+        if (sampleCount > 1) {
+            return (int) (ticks[sampleCount - 1] - ticks[sampleCount - 2]);
+        }
+        // 30 fps video, 1024 samples per AAC frame
+        return isVideo() ? timescale / 30 : 1024;
+    }
+
+    long durationTicks() {
+        return sampleCount == 0 ? 0 : ticks[sampleCount - 1] + durationOf(sampleCount - 1);
+    }
+}
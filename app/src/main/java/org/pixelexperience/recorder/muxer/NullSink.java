@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSink} discarding every sample, to measure encoder throughput
+ * without any I/O. Only counts what it was given.
+ */
+public class NullSink implements SampleSink {
+    private static final String TAG = "NullSink";
+    private int mTrackCount;
+    private volatile long mSamples;
+    private volatile long mBytes;
+    private long mStartNanos;
+    private long mStopNanos;
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() {
+        mStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mSamples++;
+        mBytes += bufferInfo.size;
+    }
+
+    @Override
+    public void stop() {
+        mStopNanos = System.nanoTime();
+    }
+
+    @Override
+    public void release() {
+        long elapsedMs = Math.max(1, (mStopNanos - mStartNanos) / 1000_000);
+        Log.i(TAG, "Discarded " + mSamples + " samples, " + mBytes + " bytes in " + elapsedMs
+                + "ms (" + mBytes * 8 / elapsedMs + " kbit/s)");
+    }
+
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleSink} dumping every track into its own elementary stream file, for
+ * inspecting encoder output with external tools.
+ * <p>
+ * H.264/H.265 are written as Annex-B with the parameter sets up front, AAC gets an
+ * ADTS header per frame. Other formats are written as is. Files are named
+ * {@code <basePath>-<track>.<extension>}.
+ */
+public class RawBitstreamSink implements SampleSink {
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int[] ADTS_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final String mBasePath;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final ByteBuffer mAdtsHeader = ByteBuffer.allocateDirect(ADTS_HEADER_SIZE);
+
+    public RawBitstreamSink(String basePath) {
+        mBasePath = basePath;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        Track track = new Track();
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            track.extension = "h264";
+        } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            track.extension = "h265";
+        } else if (MediaFormat.MIMETYPE_VIDEO_AV1.equals(mime)) {
+            track.extension = "obu";
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            track.extension = "aac";
+            track.adts = true;
+            track.adtsProfile = format.containsKey(MediaFormat.KEY_AAC_PROFILE)
+                    ? format.getInteger(MediaFormat.KEY_AAC_PROFILE) - 1 : 1; // AAC LC
+            track.adtsSampleRateIndex = sampleRateIndex(format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+            track.adtsChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        } else {
+            track.extension = "bin";
+        }
+        // csd buffers of H.264/H.265 already carry start codes
+        if (!track.adts) {
+            track.header = new ArrayList<>();
+            for (String key : new String[]{"csd-0", "csd-1", "csd-2"}) {
+                ByteBuffer csd = format.getByteBuffer(key);
+                if (csd != null) {
+                    track.header.add(csd.duplicate());
+                }
+            }
+        }
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        try {
+            for (int i = 0; i < mTracks.size(); i++) {
+                Track track = mTracks.get(i);
+                track.channel = FileChannel.open(Paths.get(mBasePath + "-" + i + "." + track.extension),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                if (track.header != null) {
+                    for (ByteBuffer csd : track.header) {
+                        writeFully(track.channel, csd.duplicate());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        Track track = mTracks.get(trackIndex);
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        try {
+            if (track.adts) {
+                putAdtsHeader(track, bufferInfo.size);
+                writeFully(track.channel, mAdtsHeader);
+            }
+            writeFully(track.channel, data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        release();
+    }
+
+    @Override
+    public void release() {
+        for (Track track : mTracks) {
+            if (track.channel != null) {
+                try {
+                    track.channel.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+                track.channel = null;
+            }
+        }
+    }
+
+    private void putAdtsHeader(Track track, int payloadSize) {
+        int frameLength = payloadSize + ADTS_HEADER_SIZE;
+        mAdtsHeader.clear();
+        mAdtsHeader.put((byte) 0xff);
+        mAdtsHeader.put((byte) 0xf1); // MPEG-4, layer 0, no CRC
+        mAdtsHeader.put((byte) ((track.adtsProfile << 6) | (track.adtsSampleRateIndex << 2)
+                | (track.adtsChannels >> 2)));
+        mAdtsHeader.put((byte) (((track.adtsChannels & 3) << 6) | (frameLength >> 11)));
+        mAdtsHeader.put((byte) ((frameLength >> 3) & 0xff));
+        mAdtsHeader.put((byte) (((frameLength & 7) << 5) | 0x1f)); // buffer fullness 0x7ff
+        mAdtsHeader.put((byte) 0xfc);
+        mAdtsHeader.flip();
+    }
+
+    private static int sampleRateIndex(int sampleRate) {
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; i++) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No ADTS sample rate index for " + sampleRate);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private static final class Track {
+        String extension;
+        List<ByteBuffer> header;
+        boolean adts;
+        int adtsProfile;
+        int adtsSampleRateIndex;
+        int adtsChannels;
+        FileChannel channel;
+    }
+}
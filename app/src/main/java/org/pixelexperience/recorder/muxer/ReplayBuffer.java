@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded in-memory ring of encoded samples, keeping roughly the last
+ * {@code maxDurationUs} of a recording.
+ * <p>
+ * Sample data lives in a single direct buffer sized in bytes, metadata in fixed
+ * primitive arrays, so memory use doesn't depend on the session length. Samples are
+ * only evicted in whole GOPs: the oldest retained video sample is always a key frame.
+ * Without a video track every sample is a sync point.
+ * <p>
+ * Writes and reads are synchronized, {@link #dump(SampleConsumer)} may run on another
+ * thread while recording continues. The samples not dumped yet are never evicted, while
+ * they fill the buffer new samples are dropped instead.
+ */
+public class ReplayBuffer {
+    public static final int FLAG_KEY_FRAME = 1; // MediaCodec.BUFFER_FLAG_KEY_FRAME
+
+    private final ByteBuffer mData;
+    private final long mMaxDurationUs;
+    private final int mMaxSamples;
+    private final int[] mTracks;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPtsUs;
+    private final boolean[] mSync;
+    // sequence numbers of retained sync samples, oldest first
+    private final long[] mSyncSequences;
+    private int mSyncHead;
+    private int mSyncCount;
+    private int mVideoTrack = -1;
+    private long mFirstSequence;
+    private long mEndSequence;
+    private int mWritePosition;
+    private long mLatestSyncTrackPtsUs;
+    private long mDroppedSamples;
+    // first sequence the running dump didn't read yet, eviction stops there
+    private long mReadSequence = Long.MAX_VALUE;
+    // a video sample was dropped, the following ones can't be decoded until a key frame
+    private boolean mSkipToSync;
+    private final Object mDumpLock = new Object();
+
+    /**
+     * @param capacityBytes size of the sample data ring
+     * @param maxDurationUs duration to keep, older GOPs are evicted
+     * @param maxSamples    maximum number of retained samples
+     */
+    public ReplayBuffer(int capacityBytes, long maxDurationUs, int maxSamples) {
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mMaxDurationUs = maxDurationUs;
+        mMaxSamples = maxSamples;
+        mTracks = new int[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mFlags = new int[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mSync = new boolean[maxSamples];
+        mSyncSequences = new long[maxSamples];
+    }
+
+    /**
+     * Eviction is aligned to key frames of this track. Must be set before the first write.
+     */
+    public synchronized void setVideoTrack(int track) {
+        mVideoTrack = track;
+    }
+
+    /**
+     * Copies the sample between position and limit of {@code data} into the ring.
+     */
+    public synchronized void write(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+        final int size = data.remaining();
+        if (size > mData.capacity()) {
+            mDroppedSamples++;
+            return;
+        }
+        final boolean sync = mVideoTrack < 0
+                || (track == mVideoTrack && (flags & FLAG_KEY_FRAME) != 0);
+        if (track == mVideoTrack && mSkipToSync && !sync) {
+            mDroppedSamples++;
+            return;
+        }
+        int offset;
+        while ((offset = findSpace(size)) < 0 || mEndSequence - mFirstSequence == mMaxSamples) {
+            if (getOldestGopEnd() > mReadSequence) {
+                // still to be dumped
+                mDroppedSamples++;
+                if (track == mVideoTrack) {
+                    mSkipToSync = true;
+                }
+                return;
+            }
+            evictOldestGop();
+        }
+        if (track == mVideoTrack) {
+            mSkipToSync = false;
+        }
+        if (mFirstSequence == mEndSequence && !sync) {
+            // never start with a sample that can't be decoded on its own
+            mDroppedSamples++;
+            return;
+        }
+        ByteBuffer dst = mData.duplicate();
+        dst.position(offset);
+        dst.put(data.duplicate());
+        mWritePosition = offset + size;
+
+        int slot = (int) (mEndSequence % mMaxSamples);
+        mTracks[slot] = track;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mFlags[slot] = flags;
+        mPtsUs[slot] = presentationTimeUs;
+        mSync[slot] = sync;
+        if (sync) {
+            mSyncSequences[(mSyncHead + mSyncCount) % mMaxSamples] = mEndSequence;
+            mSyncCount++;
+        }
+        mEndSequence++;
+        if (mVideoTrack < 0 || track == mVideoTrack) {
+            mLatestSyncTrackPtsUs = presentationTimeUs;
+            evictExpired();
+        }
+    }
+
+    /**
+     * Writes the retained samples to {@code consumer}, starting at the oldest key frame.
+     * Presentation times are rebased to start at 0 and samples of other tracks older
+     * than the first key frame are skipped. Samples written after the call started are
+     * not included. Concurrent dumps run one after the other.
+     */
+    public void dump(SampleConsumer consumer) throws IOException {
+        synchronized (mDumpLock) {
+            final long first;
+            final long end;
+            synchronized (this) {
+                first = mFirstSequence;
+                end = mEndSequence;
+                mReadSequence = first;
+            }
+            try {
+                Sample sample = new Sample();
+                long basePtsUs = -1;
+                for (long sequence = first; sequence < end; sequence++) {
+                    read(sequence, sample);
+                    if (basePtsUs < 0) {
+                        // the oldest retained sample is always a sync sample
+                        basePtsUs = sample.presentationTimeUs;
+                    }
+                    if (sample.presentationTimeUs < basePtsUs) {
+                        continue;
+                    }
+                    sample.presentationTimeUs -= basePtsUs;
+                    consumer.accept(sample);
+                }
+            } finally {
+                synchronized (this) {
+                    mReadSequence = Long.MAX_VALUE;
+                }
+            }
+        }
+    }
+
+    public synchronized int getSampleCount() {
+        return (int) (mEndSequence - mFirstSequence);
+    }
+
+    /**
+     * @return retained duration of the video track, or of any track without video
+     */
+    public synchronized long getDurationUs() {
+        if (mSyncCount == 0) {
+            return 0;
+        }
+        return mLatestSyncTrackPtsUs - mPtsUs[(int) (mSyncSequences[mSyncHead] % mMaxSamples)];
+    }
+
+    public synchronized long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * Copies the pinned sample {@code sequence} and releases it for eviction.
+     */
+    private synchronized void read(long sequence, Sample out) {
+        int slot = (int) (sequence % mMaxSamples);
+        int size = mSizes[slot];
+        if (out.data == null || out.data.capacity() < size) {
+            out.data = ByteBuffer.allocateDirect(Math.max(size, 64 * 1024));
+        }
+        ByteBuffer src = mData.duplicate();
+        src.limit(mOffsets[slot] + size).position(mOffsets[slot]);
+        out.data.clear();
+        out.data.put(src);
+        out.data.flip();
+        out.track = mTracks[slot];
+        out.flags = mFlags[slot];
+        out.presentationTimeUs = mPtsUs[slot];
+        mReadSequence = sequence + 1;
+    }
+
+    /**
+     * @return offset of a contiguous free region of {@code size} bytes, or -1
+     */
+    private int findSpace(int size) {
+        if (mFirstSequence == mEndSequence) {
+            mWritePosition = 0;
+            return 0;
+        }
+        final int head = mOffsets[(int) (mFirstSequence % mMaxSamples)];
+        final int tail = mWritePosition;
+        if (tail >= head) {
+            if (tail + size <= mData.capacity()) {
+                return tail;
+            }
+            // wrap around, keep head != tail while not empty
+            return size < head ? 0 : -1;
+        }
+        return tail + size < head ? tail : -1;
+    }
+
+    /**
+     * @return sequence after the oldest GOP, which {@link #evictOldestGop()} evicts
+     */
+    private long getOldestGopEnd() {
+        return mSyncCount >= 2 ? mSyncSequences[(mSyncHead + 1) % mMaxSamples] : mEndSequence;
+    }
+
+    private void evictOldestGop() {
+        do {
+            evictFirst();
+        } while (mFirstSequence < mEndSequence && !mSync[(int) (mFirstSequence % mMaxSamples)]);
+    }
+
+    private void evictFirst() {
+        if (mSyncCount > 0 && mSyncSequences[mSyncHead] == mFirstSequence) {
+            mSyncHead = (mSyncHead + 1) % mMaxSamples;
+            mSyncCount--;
+        }
+        mFirstSequence++;
+    }
+
+    /**
+     * Drops the oldest GOP as long as the remaining ones still cover the requested duration.
+     */
+    private void evictExpired() {
+        while (mSyncCount >= 2) {
+            long nextSync = mSyncSequences[(mSyncHead + 1) % mMaxSamples];
+            if (mLatestSyncTrackPtsUs - mPtsUs[(int) (nextSync % mMaxSamples)] < mMaxDurationUs
+                    || nextSync > mReadSequence) {
+                return;
+            }
+            while (mFirstSequence < nextSync) {
+                evictFirst();
+            }
+        }
+    }
+
+    public interface SampleConsumer {
+        void accept(Sample sample) throws IOException;
+    }
+
+    public static final class Sample {
+        public int track;
+        public int flags;
+        public long presentationTimeUs;
+        /**
+         * Sample data between position and limit, reused between samples.
+         */
+        public ByteBuffer data;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleSink} keeping the last seconds of a recording in a {@link ReplayBuffer}
+ * instead of writing a file. {@link #save(String)} writes the buffered samples to a
+ * standalone file of the given output format while recording continues.
+ */
+public class ReplayMuxer implements SampleSink {
+    private final ReplayBuffer mBuffer;
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private final int mOutputFormat;
+    private int mOrientation;
+
+    /**
+     * @param outputFormat one of {@link MediaMuxer.OutputFormat}, for {@link #save(String)}
+     */
+    public ReplayMuxer(int capacityBytes, long durationUs, int maxSamples, int outputFormat) {
+        mBuffer = new ReplayBuffer(capacityBytes, durationUs, maxSamples);
+        mOutputFormat = outputFormat;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mOrientation = degrees;
+    }
+
+    @Override
+    public synchronized int addTrack(MediaFormat format) {
+        int track = mFormats.size();
+        mFormats.add(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("video/")) {
+            mBuffer.setVideoTrack(track);
+        }
+        return track;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        mBuffer.write(trackIndex, data, bufferInfo.presentationTimeUs, bufferInfo.flags);
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * Writes the buffered samples to {@code path}. Blocking, call on a worker thread.
+     *
+     * @return duration of the saved clip in microseconds
+     */
+    public long save(String path) throws IOException {
+        final List<MediaFormat> formats;
+        synchronized (this) {
+            formats = new ArrayList<>(mFormats);
+        }
+        if (formats.isEmpty()) {
+            throw new IOException("Nothing recorded yet");
+        }
+        MediaMuxerWrapper muxer = new MediaMuxerWrapper(path, mOutputFormat);
+        try {
+            muxer.setOrientationHint(mOrientation);
+            for (MediaFormat format : formats) {
+                muxer.addTrack(format);
+            }
+            muxer.start();
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            final long[] lastPtsUs = new long[1];
+            mBuffer.dump(sample -> {
+                info.set(0, sample.data.remaining(), sample.presentationTimeUs, sample.flags);
+                muxer.write(sample.track, sample.data, info);
+                lastPtsUs[0] = Math.max(lastPtsUs[0], sample.presentationTimeUs);
+            });
+            muxer.stop();
+            return lastPtsUs[0];
+        } finally {
+            muxer.release();
+        }
+    }
+}
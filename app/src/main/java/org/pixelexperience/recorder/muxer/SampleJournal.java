@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead log of the samples written to a progressive MP4, enough to rebuild its
+ * moov after the process died.
+ * <p>
+ * The header holds the orientation, the mdat position and the format and codec config
+ * of every track. It is followed by fixed size entries (track and flags, size, file
+ * offset, presentation time), appended in batches with one sync per batch. A torn or
+ * missing tail only loses the last batch.
+ * <p>
+ * Not thread safe.
+ */
+final class SampleJournal implements Closeable {
+    private static final int MAGIC = BoxBuffer.typeCode("PXJ1");
+    private static final int VERSION = 1;
+    private static final int ENTRY_SIZE = 24;
+    private static final int FLAG_SYNC = 0x80000000;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBatch;
+    private int mBatchEntries;
+    private long mBytesWritten;
+    private int mSyncCount;
+
+    SampleJournal(FileChannel channel, int batchCapacity) {
+        mChannel = channel;
+        mBatch = ByteBuffer.allocateDirect(batchCapacity * ENTRY_SIZE);
+    }
+
+    /**
+     * Writes and syncs the header, must be called before any sample is written.
+     */
+    void writeHeader(int orientation, long mdatPosition, List<Mp4Track> tracks) throws IOException {
+        BoxBuffer b = new BoxBuffer(256);
+        b.putInt(MAGIC).putInt(VERSION).putInt(orientation).putLong(mdatPosition);
+        b.putInt(tracks.size());
+        for (Mp4Track track : tracks) {
+            b.putInt(track.kind).putInt(track.param1).putInt(track.param2);
+            putBytes(b, track.config1);
+            putBytes(b, track.config2);
+        }
+        write(b.flip());
+        mChannel.force(false);
+    }
+
+    /**
+     * @return true once the batch is full and must be {@link #commit() committed}
+     */
+    boolean append(int track, long offset, int size, long ptsUs, boolean sync) {
+        mBatch.putInt(sync ? track | FLAG_SYNC : track).putInt(size).putLong(offset).putLong(ptsUs);
+        mBatchEntries++;
+        return !mBatch.hasRemaining();
+    }
+
+    int getPendingEntries() {
+        return mBatchEntries;
+    }
+
+    /**
+     * Writes and syncs the pending entries. The samples they point to must be on disk.
+     */
+    void commit() throws IOException {
+        if (mBatchEntries == 0) {
+            return;
+        }
+        mBatch.flip();
+        write(mBatch);
+        mBatch.clear();
+        mBatchEntries = 0;
+        mChannel.force(false);
+        mSyncCount++;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    int getSyncCount() {
+        return mSyncCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        mBytesWritten += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static void putBytes(BoxBuffer b, byte[] bytes) {
+        if (bytes == null) {
+            b.putInt(0);
+        } else {
+            b.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Content of a journal read back from disk.
+     */
+    static final class Contents {
+        int orientation;
+        long mdatPosition;
+        final List<Mp4Track> tracks = new ArrayList<>();
+        // end of the data of the last valid entry
+        long dataEnd;
+        int entryCount;
+    }
+
+    /**
+     * Reads a journal and fills the sample tables of its tracks. Reading stops at the
+     * first incomplete or inconsistent entry, or at the first one pointing past
+     * {@code dataLimit}, the size of the MP4 file.
+     *
+     * @throws IOException if the header is unreadable
+     */
+    static Contents read(FileChannel channel, long dataLimit) throws IOException {
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Journal too large: " + length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // keep reading
+        }
+        buffer.flip();
+        Contents contents = new Contents();
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a sample journal");
+            }
+            contents.orientation = buffer.getInt();
+            contents.mdatPosition = buffer.getLong();
+            int trackCount = buffer.getInt();
+            if (trackCount <= 0 || trackCount > 16) {
+                throw new IOException("Invalid track count: " + trackCount);
+            }
+            for (int i = 0; i < trackCount; i++) {
+                int kind = buffer.getInt();
+                if (kind != Mp4Track.KIND_AVC && kind != Mp4Track.KIND_AAC) {
+                    throw new IOException("Invalid track kind: " + kind);
+                }
+                int param1 = buffer.getInt();
+                int param2 = buffer.getInt();
+                contents.tracks.add(new Mp4Track(i + 1, kind, param1, param2,
+                        getBytes(buffer), getBytes(buffer)));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated journal header", e);
+        }
+
+        long expectedOffset = contents.mdatPosition + JournaledMp4Writer.MDAT_HEADER_SIZE;
+        contents.dataEnd = expectedOffset;
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            int trackAndFlags = buffer.getInt();
+            int track = trackAndFlags & ~FLAG_SYNC;
+            int size = buffer.getInt();
+            long offset = buffer.getLong();
+            long ptsUs = buffer.getLong();
+            // samples are written back to back, anything else is garbage
+            if (track >= contents.tracks.size() || size <= 0 || offset != expectedOffset
+                    || offset + size > dataLimit) {
+                break;
+            }
+            contents.tracks.get(track).append(ptsUs, offset, size, (trackAndFlags & FLAG_SYNC) != 0);
+            expectedOffset = offset + size;
+            contents.dataEnd = expectedOffset;
+            contents.entryCount++;
+        }
+        return contents;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of encoded samples, shaped after {@link android.media.MediaMuxer} so the
+ * container writer, or no writer at all, can be swapped without touching the encoder
+ * plumbing. Like MediaMuxer, implementations report write failures as unchecked exceptions.
+ * <p>
+ * {@link #write} must not keep a reference to {@code byteBuf} after returning, the
+ * caller releases it to the codec.
+ */
+public interface SampleSink {
+    void setOrientationHint(int degrees);
+
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
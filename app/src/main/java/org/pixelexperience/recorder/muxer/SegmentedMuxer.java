@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link SampleSink} splitting a recording into segments by duration and/or size.
+ * <p>
+ * Shortly before a boundary the next segment muxer is opened and the listener is
+ * asked to request a sync frame. The cut happens on the next video key frame or, without
+ * video, on the next sample of the first track. Every segment starts at presentation
+ * time 0. Samples of the other tracks older than the cut still go to the previous
+ * segment, which is closed as soon as every other track caught up.
+ */
+public class SegmentedMuxer implements SampleSink {
+    private static final String TAG = "SegmentedMuxer";
+    private static final int INVALID_INDEX = -1;
+    // prepare the next segment this long before the duration boundary
+    private static final long PREPARE_LEAD_US = 1000_000;
+    // close the previous segment at the latest this long after the cut
+    private static final long PREVIOUS_SEGMENT_GRACE_US = 500_000;
+
+    private final MuxerFactory mFactory;
+    private final Listener mListener;
+    private final long mDurationUs;
+    private final long mSizeBytes;
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mOrientation;
+    private int mVideoTrack = INVALID_INDEX;
+    // track whose samples decide the cut, the video track if there is one
+    private int mCutTrack = INVALID_INDEX;
+
+    private SampleSink mCurrent;
+    private int mCurrentIndex;
+    private long mSegmentBasePtsUs;
+    private long mSegmentBytes;
+    private SampleSink mNext;
+    private boolean mSyncFrameRequested;
+    private SampleSink mPrevious;
+    private long mPreviousBasePtsUs;
+    private long mCutPtsUs;
+    // tracks that passed the cut, and how many haven't yet
+    private boolean[] mCaughtUp;
+    private int mTracksBehind;
+
+    /**
+     * @param durationUs segment duration, 0 for no limit
+     * @param sizeBytes  segment size, 0 for no limit
+     */
+    public SegmentedMuxer(MuxerFactory factory, long durationUs, long sizeBytes, Listener listener) {
+        mFactory = factory;
+        mDurationUs = durationUs;
+        mSizeBytes = sizeBytes;
+        mListener = listener;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mOrientation = degrees;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int track = mFormats.size();
+        mFormats.add(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack == INVALID_INDEX && mime != null && mime.startsWith("video/")) {
+            mVideoTrack = track;
+        }
+        return track;
+    }
+
+    @Override
+    public void start() {
+        mCaughtUp = new boolean[mFormats.size()];
+        mCutTrack = mVideoTrack != INVALID_INDEX ? mVideoTrack : 0;
+        mCurrent = openSegment(0);
+        mCurrent.start();
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0) {
+            return;
+        }
+        final long pts = bufferInfo.presentationTimeUs;
+        final boolean cutTrack = trackIndex == mCutTrack;
+        if (mPrevious != null) {
+            if (!cutTrack && pts < mCutPtsUs) {
+                writeRebased(mPrevious, mPreviousBasePtsUs, trackIndex, byteBuf, bufferInfo);
+                return;
+            }
+            if (!cutTrack && !mCaughtUp[trackIndex]) {
+                mCaughtUp[trackIndex] = true;
+                mTracksBehind--;
+            }
+            if (mTracksBehind == 0 || pts - mCutPtsUs > PREVIOUS_SEGMENT_GRACE_US) {
+                finishPrevious();
+            }
+        }
+        if (cutTrack) {
+            final long elapsed = pts - mSegmentBasePtsUs;
+            if ((mDurationUs > 0 && elapsed >= mDurationUs - PREPARE_LEAD_US)
+                    || (mSizeBytes > 0 && mSegmentBytes >= mSizeBytes - mSizeBytes / 20)) {
+                prepareNext();
+            }
+            // without video every sample is a possible cut point
+            final boolean keyFrame = mVideoTrack == INVALID_INDEX
+                    || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            if (keyFrame && ((mDurationUs > 0 && elapsed >= mDurationUs)
+                    || (mSizeBytes > 0 && mSegmentBytes >= mSizeBytes))) {
+                cut(pts);
+            }
+        }
+        writeRebased(mCurrent, mSegmentBasePtsUs, trackIndex, byteBuf, bufferInfo);
+        mSegmentBytes += bufferInfo.size;
+    }
+
+    @Override
+    public void stop() {
+        if (mPrevious != null) {
+            finishPrevious();
+        }
+        if (mNext != null) {
+            mNext.release();
+            mNext = null;
+            mListener.onSegmentDiscarded(mCurrentIndex + 1);
+        }
+        if (mCurrent != null) {
+            SampleSink current = mCurrent;
+            mCurrent = null;
+            try {
+                current.stop();
+            } finally {
+                current.release();
+            }
+            mListener.onSegmentFinished(mCurrentIndex, true);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mPrevious != null) {
+            mPrevious.release();
+            mPrevious = null;
+        }
+        if (mNext != null) {
+            mNext.release();
+            mNext = null;
+        }
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+    }
+
+    private void writeRebased(SampleSink muxer, long basePtsUs, int track, ByteBuffer data,
+                              MediaCodec.BufferInfo info) {
+        mInfo.offset = info.offset;
+        mInfo.size = info.size;
+        mInfo.presentationTimeUs = Math.max(0, info.presentationTimeUs - basePtsUs);
+        mInfo.flags = info.flags;
+        muxer.write(track, data, mInfo);
+    }
+
+    private void prepareNext() {
+        if (mNext == null) {
+            mNext = openSegment(mCurrentIndex + 1);
+        }
+        if (!mSyncFrameRequested) {
+            mSyncFrameRequested = true;
+            mListener.onSegmentBoundaryApproaching();
+        }
+    }
+
+    private void cut(long ptsUs) {
+        if (mPrevious != null) {
+            finishPrevious();
+        }
+        if (mNext == null) {
+            mNext = openSegment(mCurrentIndex + 1);
+        }
+        mNext.start();
+        mPrevious = mCurrent;
+        mPreviousBasePtsUs = mSegmentBasePtsUs;
+        mCurrent = mNext;
+        mNext = null;
+        mCurrentIndex++;
+        mSegmentBasePtsUs = ptsUs;
+        mCutPtsUs = ptsUs;
+        Arrays.fill(mCaughtUp, false);
+        mTracksBehind = mFormats.size() - 1;
+        mSegmentBytes = 0;
+        mSyncFrameRequested = false;
+        Log.i(TAG, "Started segment " + mCurrentIndex + " at " + ptsUs + "us");
+    }
+
+    private void finishPrevious() {
+        SampleSink previous = mPrevious;
+        mPrevious = null;
+        try {
+            previous.stop();
+        } finally {
+            previous.release();
+        }
+        mListener.onSegmentFinished(mCurrentIndex - 1, false);
+    }
+
+    private SampleSink openSegment(int index) {
+        try {
+            SampleSink muxer = mFactory.create(index);
+            muxer.setOrientationHint(mOrientation);
+            for (MediaFormat format : mFormats) {
+                muxer.addTrack(format);
+            }
+            return muxer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public interface MuxerFactory {
+        SampleSink create(int segmentIndex) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * A cut is due soon, the video encoder should emit a sync frame.
+         */
+        void onSegmentBoundaryApproaching();
+
+        /**
+         * Segment {@code index} is complete and can be published.
+         */
+        void onSegmentFinished(int index, boolean last);
+
+        /**
+         * Segment {@code index} was prepared but never written.
+         */
+        void onSegmentDiscarded(int index);
+    }
+}
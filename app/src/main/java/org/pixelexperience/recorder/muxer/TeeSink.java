@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SampleSink} sending every sample to several sinks, each on its own writer thread.
+ * <p>
+ * A sample is copied once into a pooled, reference counted buffer that all branches
+ * share; the buffer returns to the pool when the last branch wrote it. When the pool is
+ * exhausted {@link #write} blocks, so the slowest branch sets the pace. A failing branch
+ * stops writing but keeps releasing buffers, the failure is rethrown on the next call.
+ * <p>
+ * All methods must be called from the same (producer) thread.
+ */
+public class TeeSink implements SampleSink {
+    private static final String TAG = "TeeSink";
+    public static final int DEFAULT_CAPACITY = 32;
+    private static final int INITIAL_BUFFER_SIZE = 128 * 1024;
+
+    private final List<Branch> mBranches = new ArrayList<>();
+    private final ArrayBlockingQueue<SharedSample> mPool;
+
+    public TeeSink(List<SampleSink> sinks, int capacity) {
+        if (sinks.isEmpty()) {
+            throw new IllegalArgumentException("No sinks");
+        }
+        mPool = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mPool.add(new SharedSample(mPool));
+        }
+        for (SampleSink sink : sinks) {
+            mBranches.add(new Branch(sink, capacity + 1));
+        }
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        for (Branch branch : mBranches) {
+            branch.sink.setOrientationHint(degrees);
+        }
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int track = -1;
+        for (Branch branch : mBranches) {
+            int index = branch.sink.addTrack(format);
+            if (track >= 0 && index != track) {
+                throw new IllegalStateException("Sinks disagree on track index: " + track + " != " + index);
+            }
+            track = index;
+        }
+        return track;
+    }
+
+    @Override
+    public void start() {
+        for (Branch branch : mBranches) {
+            branch.sink.start();
+        }
+        for (Branch branch : mBranches) {
+            branch.thread.start();
+        }
+    }
+
+    @Override
+    public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        checkError();
+        SharedSample sample = take(mPool);
+        sample.set(trackIndex, byteBuf, bufferInfo, mBranches.size());
+        for (Branch branch : mBranches) {
+            // never blocks, every branch queue can hold the whole pool
+            branch.queue.add(sample);
+        }
+    }
+
+    /**
+     * Waits until every branch wrote its queued samples, then stops all sinks.
+     */
+    @Override
+    public void stop() {
+        stopBranches();
+        checkError();
+        for (Branch branch : mBranches) {
+            branch.sink.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        stopBranches();
+        for (Branch branch : mBranches) {
+            try {
+                branch.sink.release();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to release " + branch.sink, e);
+            }
+        }
+    }
+
+    private void stopBranches() {
+        for (Branch branch : mBranches) {
+            if (branch.thread.isAlive()) {
+                branch.queue.add(SharedSample.END);
+            }
+        }
+        for (Branch branch : mBranches) {
+            try {
+                branch.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkError() {
+        for (Branch branch : mBranches) {
+            Throwable error = branch.error;
+            if (error != null) {
+                throw new IllegalStateException("Sink " + branch.sink + " failed", error);
+            }
+        }
+    }
+
+    private static <T> T take(ArrayBlockingQueue<T> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                // keep the sample order, retry
+            }
+        }
+    }
+
+    /**
+     * Sample data shared by all branches, back in the pool once every branch released it.
+     */
+    static final class SharedSample {
+        static final SharedSample END = new SharedSample(null);
+
+        private final ArrayBlockingQueue<SharedSample> mPool;
+        private final AtomicInteger mReferences = new AtomicInteger();
+        private ByteBuffer mData;
+        int track;
+        int flags;
+        long presentationTimeUs;
+
+        SharedSample(ArrayBlockingQueue<SharedSample> pool) {
+            mPool = pool;
+        }
+
+        void set(int track, ByteBuffer src, MediaCodec.BufferInfo info, int references) {
+            if (mData == null || mData.capacity() < info.size) {
+                mData = ByteBuffer.allocateDirect(Math.max(info.size, INITIAL_BUFFER_SIZE));
+            }
+            mData.clear();
+            if (info.size > 0) {
+                ByteBuffer data = src.duplicate();
+                data.limit(info.offset + info.size).position(info.offset);
+                mData.put(data);
+            }
+            mData.flip();
+            this.track = track;
+            this.flags = info.flags;
+            this.presentationTimeUs = info.presentationTimeUs;
+            mReferences.set(references);
+        }
+
+        /**
+         * @return a view of the data with its own position and limit
+         */
+        ByteBuffer data() {
+            return mData.duplicate();
+        }
+
+        int size() {
+            return mData.limit();
+        }
+
+        void release() {
+            if (mReferences.decrementAndGet() == 0) {
+                mPool.add(this);
+            }
+        }
+    }
+
+    private static final class Branch {
+        final SampleSink sink;
+        final ArrayBlockingQueue<SharedSample> queue;
+        final Thread thread;
+        volatile Throwable error;
+
+        Branch(SampleSink sink, int capacity) {
+            this.sink = sink;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this::drainLoop, TAG + "-" + sink.getClass().getSimpleName());
+        }
+
+        private void drainLoop() {
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            SharedSample sample;
+            while ((sample = take(queue)) != SharedSample.END) {
+                if (error == null) {
+                    try {
+                        info.set(0, sample.size(), sample.presentationTimeUs, sample.flags);
+                        sink.write(sample.track, sample.data(), info);
+                    } catch (Throwable e) {
+                        Log.e(TAG, "Failed to write sample to " + sink, e);
+                        error = e;
+                    }
+                }
+                sample.release();
+            }
+        }
+    }
+}
@@ -22,21 +22,43 @@ public final class MediaProviderHelper {
     public static String addVideoToContentProvider(
             @Nullable ContentResolver cr,
             @Nullable File tempFile,
-            @Nullable File file) {
+            @Nullable File file,
+            String mimeType) {
+        return addToContentProvider(cr, tempFile, file, mimeType,
+                MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY),
+                "Movies/Screen records");
+    }
+
+    public static String addAudioToContentProvider(
+            @Nullable ContentResolver cr,
+            @Nullable File tempFile,
+            @Nullable File file,
+            String mimeType) {
+        return addToContentProvider(cr, tempFile, file, mimeType,
+                MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY),
+                "Music/Screen records");
+    }
+
+    private static String addToContentProvider(
+            @Nullable ContentResolver cr,
+            @Nullable File tempFile,
+            @Nullable File file,
+            String mimeType,
+            Uri collection,
+            String relativePath) {
         if (cr == null || file == null) {
             return null;
         }
 
         ContentValues values = new ContentValues();
-        values.put(MediaStore.Video.Media.DISPLAY_NAME, file.getName());
-        values.put(MediaStore.Video.Media.TITLE, file.getName());
-        values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
-        values.put(MediaStore.Video.Media.DATE_ADDED, System.currentTimeMillis() / 1000L);
-        values.put(MediaStore.Video.Media.RELATIVE_PATH, "Movies/Screen records");
-        values.put(MediaStore.Audio.Media.IS_PENDING, 1);
-
-        final Uri uri = cr.insert(MediaStore.Video.Media.getContentUri(
-                MediaStore.VOLUME_EXTERNAL_PRIMARY), values);
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, file.getName());
+        values.put(MediaStore.MediaColumns.TITLE, file.getName());
+        values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+        values.put(MediaStore.MediaColumns.DATE_ADDED, System.currentTimeMillis() / 1000L);
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+
+        final Uri uri = cr.insert(collection, values);
 
         if (uri == null) {
             Log.e(TAG, "Failed to insert " + file.getAbsolutePath());
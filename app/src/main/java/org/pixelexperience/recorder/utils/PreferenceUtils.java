@@ -2,6 +2,7 @@ package org.pixelexperience.recorder.utils;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.media.MediaMuxer;
 import android.os.UserManager;
 
 public class PreferenceUtils {
@@ -9,6 +10,37 @@ public class PreferenceUtils {
     public static final String PREFS = "preferences";
     public static final String PREF_SHOW_TOUCHES = "show_touches";
     public static final Boolean PREF_SHOW_TOUCHES_DEFAULT = false;
+    public static final String PREF_FRAGMENTED_OUTPUT = "fragmented_output";
+    public static final Boolean PREF_FRAGMENTED_OUTPUT_DEFAULT = false;
+    public static final String PREF_JOURNALED_OUTPUT = "journaled_output";
+    public static final Boolean PREF_JOURNALED_OUTPUT_DEFAULT = false;
+    public static final String PREF_ADAPTIVE_BITRATE = "adaptive_bitrate";
+    public static final Boolean PREF_ADAPTIVE_BITRATE_DEFAULT = false;
+    public static final String PREF_VARIABLE_FRAME_RATE = "variable_frame_rate";
+    public static final Boolean PREF_VARIABLE_FRAME_RATE_DEFAULT = false;
+    public static final String PREF_RECORD_MICROPHONE = "record_microphone";
+    public static final Boolean PREF_RECORD_MICROPHONE_DEFAULT = false;
+    public static final String PREF_MICROPHONE_TRACK = "microphone_track";
+    public static final Boolean PREF_MICROPHONE_TRACK_DEFAULT = false;
+    public static final String PREF_MICROPHONE_NOISE_GATE = "microphone_noise_gate";
+    public static final Boolean PREF_MICROPHONE_NOISE_GATE_DEFAULT = false;
+    public static final String PREF_NORMALIZE_LOUDNESS = "normalize_loudness";
+    public static final Boolean PREF_NORMALIZE_LOUDNESS_DEFAULT = false;
+    public static final String PREF_AUDIO_BOOST = "audio_boost";
+    public static final String PREF_AUDIO_BOOST_DEFAULT = "0";
+    public static final String PREF_REPLAY_DURATION = "replay_duration";
+    public static final String PREF_REPLAY_DURATION_DEFAULT = "0";
+    public static final String PREF_SPLIT_RECORDING = "split_recording";
+    public static final String PREF_SPLIT_RECORDING_DEFAULT = "0";
+    public static final String PREF_OUTPUT_FORMAT = "output_format";
+    public static final String PREF_OUTPUT_FORMAT_DEFAULT = "mp4";
+    public static final String OUTPUT_FORMAT_WEBM = "webm";
+    // values are the AsyncMuxer.BACKPRESSURE_* policies
+    public static final String PREF_BACKPRESSURE_POLICY = "backpressure_policy";
+    public static final String PREF_BACKPRESSURE_POLICY_DEFAULT = "0";
+    // split_recording values are "0", "<minutes>min" or "<megabytes>mb"
+    private static final String SPLIT_SUFFIX_MINUTES = "min";
+    private static final String SPLIT_SUFFIX_MEGABYTES = "mb";
 
     SharedPreferences mSharedPrefs;
     Context mContext;
@@ -30,4 +62,153 @@ public class PreferenceUtils {
     public void setShouldShowTouches(boolean value) {
         mSharedPrefs.edit().putBoolean(PREF_SHOW_TOUCHES, value).apply();
     }
+
+    public boolean getFragmentedOutput() {
+        return mSharedPrefs.getBoolean(PREF_FRAGMENTED_OUTPUT, PREF_FRAGMENTED_OUTPUT_DEFAULT);
+    }
+
+    public void setFragmentedOutput(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_FRAGMENTED_OUTPUT, value).apply();
+    }
+
+    public boolean getJournaledOutput() {
+        return mSharedPrefs.getBoolean(PREF_JOURNALED_OUTPUT, PREF_JOURNALED_OUTPUT_DEFAULT);
+    }
+
+    public void setJournaledOutput(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_JOURNALED_OUTPUT, value).apply();
+    }
+
+    public boolean getAdaptiveBitrate() {
+        return mSharedPrefs.getBoolean(PREF_ADAPTIVE_BITRATE, PREF_ADAPTIVE_BITRATE_DEFAULT);
+    }
+
+    public void setAdaptiveBitrate(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_ADAPTIVE_BITRATE, value).apply();
+    }
+
+    public boolean getVariableFrameRate() {
+        return mSharedPrefs.getBoolean(PREF_VARIABLE_FRAME_RATE, PREF_VARIABLE_FRAME_RATE_DEFAULT);
+    }
+
+    public void setVariableFrameRate(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_VARIABLE_FRAME_RATE, value).apply();
+    }
+
+    public boolean getRecordMicrophone() {
+        return mSharedPrefs.getBoolean(PREF_RECORD_MICROPHONE, PREF_RECORD_MICROPHONE_DEFAULT);
+    }
+
+    public void setRecordMicrophone(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_RECORD_MICROPHONE, value).apply();
+    }
+
+    public boolean getMicrophoneTrack() {
+        return mSharedPrefs.getBoolean(PREF_MICROPHONE_TRACK, PREF_MICROPHONE_TRACK_DEFAULT);
+    }
+
+    public void setMicrophoneTrack(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_MICROPHONE_TRACK, value).apply();
+    }
+
+    public boolean getMicrophoneNoiseGate() {
+        return mSharedPrefs.getBoolean(PREF_MICROPHONE_NOISE_GATE, PREF_MICROPHONE_NOISE_GATE_DEFAULT);
+    }
+
+    public void setMicrophoneNoiseGate(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_MICROPHONE_NOISE_GATE, value).apply();
+    }
+
+    public boolean getNormalizeLoudness() {
+        return mSharedPrefs.getBoolean(PREF_NORMALIZE_LOUDNESS, PREF_NORMALIZE_LOUDNESS_DEFAULT);
+    }
+
+    public void setNormalizeLoudness(boolean value) {
+        mSharedPrefs.edit().putBoolean(PREF_NORMALIZE_LOUDNESS, value).apply();
+    }
+
+    /**
+     * @return dB the internal audio is amplified by, 0 if not
+     */
+    public int getAudioBoost() {
+        return Integer.parseInt(mSharedPrefs.getString(PREF_AUDIO_BOOST, PREF_AUDIO_BOOST_DEFAULT));
+    }
+
+    public void setAudioBoost(String value) {
+        mSharedPrefs.edit().putString(PREF_AUDIO_BOOST, value).apply();
+    }
+
+    /**
+     * @return seconds kept by the instant replay mode, 0 if disabled
+     */
+    public int getReplayDuration() {
+        return Integer.parseInt(mSharedPrefs.getString(PREF_REPLAY_DURATION, PREF_REPLAY_DURATION_DEFAULT));
+    }
+
+    public void setReplayDuration(String value) {
+        mSharedPrefs.edit().putString(PREF_REPLAY_DURATION, value).apply();
+    }
+
+    public String getSplitRecording() {
+        return mSharedPrefs.getString(PREF_SPLIT_RECORDING, PREF_SPLIT_RECORDING_DEFAULT);
+    }
+
+    public void setSplitRecording(String value) {
+        mSharedPrefs.edit().putString(PREF_SPLIT_RECORDING, value).apply();
+    }
+
+    /**
+     * @return segment duration in minutes, 0 if not splitting by duration
+     */
+    public int getSplitDurationMinutes() {
+        return parseSplitValue(SPLIT_SUFFIX_MINUTES);
+    }
+
+    /**
+     * @return segment size in megabytes, 0 if not splitting by size
+     */
+    public int getSplitSizeMegabytes() {
+        return parseSplitValue(SPLIT_SUFFIX_MEGABYTES);
+    }
+
+    public String getOutputFormatValue() {
+        return mSharedPrefs.getString(PREF_OUTPUT_FORMAT, PREF_OUTPUT_FORMAT_DEFAULT);
+    }
+
+    public void setOutputFormatValue(String value) {
+        mSharedPrefs.edit().putString(PREF_OUTPUT_FORMAT, value).apply();
+    }
+
+    /**
+     * @return the container to record into, one of {@link MediaMuxer.OutputFormat}
+     */
+    public int getOutputFormat() {
+        return OUTPUT_FORMAT_WEBM.equals(getOutputFormatValue())
+                ? MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM
+                : MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+    }
+
+    /**
+     * @return one of the {@code BACKPRESSURE_*} policies of
+     * {@link org.pixelexperience.recorder.muxer.AsyncMuxer}
+     */
+    public int getBackpressurePolicy() {
+        return Integer.parseInt(mSharedPrefs.getString(PREF_BACKPRESSURE_POLICY, PREF_BACKPRESSURE_POLICY_DEFAULT));
+    }
+
+    public void setBackpressurePolicy(String value) {
+        mSharedPrefs.edit().putString(PREF_BACKPRESSURE_POLICY, value).apply();
+    }
+
+    private int parseSplitValue(String suffix) {
+        String value = getSplitRecording();
+        if (!value.endsWith(suffix)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.substring(0, value.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
@@ -34,8 +34,11 @@ public class Utils {
     public static final String ACTION_RECORDING_STATE_CHANGED = "org.pixelexperience.recorder.RECORDING_STATE_CHANGED";
     public static final String PREF_RECORDING_NOTHING = "nothing";
     public static final String PREF_RECORDING_SCREEN = "screen";
+    public static final String PREF_RECORDING_AUDIO = "audio";
     public static final String SCREEN_RECORD_INTENT_DATA = "recorder_intent_data";
     public static final String SCREEN_RECORD_INTENT_RESULT = "recorder_intent_result";
+    public static final String SCREEN_RECORD_INTENT_TIME = "recorder_intent_time";
+    public static final String SCREEN_RECORD_INTENT_AUDIO_ONLY = "recorder_intent_audio_only";
     public static final String RECORDING_DONE_NOTIFICATION_CHANNEL =
             "recording_done_notification_channel";
     public static final int NOTIFICATION_ERROR_ID = 6592;
@@ -58,6 +61,17 @@ public class Utils {
         return PREF_RECORDING_SCREEN.equals(getStatus());
     }
 
+    public static boolean isAudioRecording() {
+        return PREF_RECORDING_AUDIO.equals(getStatus());
+    }
+
+    /**
+     * @return whether the screen or the audio only is being recorded
+     */
+    public static boolean isRecording() {
+        return isScreenRecording() || isAudioRecording();
+    }
+
     public static void setShowTouches(Context context, boolean show) {
         try {
             Settings.System.putInt(context.getContentResolver(), "show_touches", show ? 1 : 0);
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link AudioDriftCorrector} with synthetic capture timestamps: an audio clock
+ * off by a fixed rate, scheduling jitter and capture gaps.
+ */
+public class AudioDriftCorrectorTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int FRAMES = 1024;
+    private static final long MAX_SLEW_PPM = 5000;
+    private static final long RESYNC_THRESHOLD_US = 100_000;
+    private static final long START_US = 5_000_000;
+
+    private final AudioDriftCorrector mCorrector =
+            new AudioDriftCorrector(SAMPLE_RATE, MAX_SLEW_PPM, RESYNC_THRESHOLD_US);
+
+    @Test
+    public void exactClockKeepsCountedTime() {
+        for (int i = 0; i < 1000; i++) {
+            long wallUs = START_US + (long) i * FRAMES * 1000_000 / SAMPLE_RATE;
+            assertEquals(wallUs, mCorrector.timestamp(FRAMES, wallUs));
+        }
+        assertEquals(0, mCorrector.getTotalCorrectionUs());
+        assertEquals(0, mCorrector.getResyncCount());
+    }
+
+    @Test
+    public void followsSlowAudioClock() {
+        // the audio clock delivers 100ppm fewer frames than the wall clock expects
+        Stream stream = new Stream(100, 0, 1);
+        stream.run(mCorrector, 10 * 60 * SAMPLE_RATE / FRAMES);
+        assertTrue("lags by " + stream.maxLagUs(1000), stream.maxLagUs(1000) < 2000);
+        assertEquals(100, mCorrector.getDriftPpm(), 5);
+        assertEquals(0, mCorrector.getResyncCount());
+    }
+
+    @Test
+    public void followsFastAudioClock() {
+        Stream stream = new Stream(-300, 0, 1);
+        stream.run(mCorrector, 10 * 60 * SAMPLE_RATE / FRAMES);
+        assertTrue("lags by " + stream.maxLagUs(1000), stream.maxLagUs(1000) < 2000);
+        assertEquals(-300, mCorrector.getDriftPpm(), 10);
+        assertTrue(mCorrector.getTotalCorrectionUs() < 0);
+    }
+
+    @Test
+    public void smoothsJitterWithinSlewLimit() {
+        Stream stream = new Stream(50, 3000, 2);
+        stream.run(mCorrector, 60 * SAMPLE_RATE / FRAMES);
+        long bufferUs = FRAMES * 1000_000L / SAMPLE_RATE;
+        long maxStepUs = FRAMES * MAX_SLEW_PPM / SAMPLE_RATE + 1;
+        for (int i = 1; i < stream.ptsUs.length; i++) {
+            long step = stream.ptsUs[i] - stream.ptsUs[i - 1];
+            assertTrue("step " + step + " at " + i, Math.abs(step - bufferUs) <= maxStepUs);
+        }
+        // jitter of up to 3ms is smoothed, the timestamps never follow it
+        assertTrue("skew " + mCorrector.getMaxSkewUs(), mCorrector.getMaxSkewUs() < 3000);
+        assertEquals(0, mCorrector.getResyncCount());
+    }
+
+    @Test
+    public void resyncsAfterCaptureGap() {
+        long bufferUs = FRAMES * 1000_000L / SAMPLE_RATE;
+        long wallUs = START_US;
+        for (int i = 0; i < 100; i++, wallUs += bufferUs) {
+            mCorrector.timestamp(FRAMES, wallUs);
+        }
+        wallUs += RESYNC_THRESHOLD_US;
+        assertEquals(wallUs, mCorrector.timestamp(FRAMES, wallUs));
+        assertEquals(1, mCorrector.getResyncCount());
+        // counting goes on from the new start
+        assertEquals(wallUs + bufferUs, mCorrector.timestamp(FRAMES, wallUs + bufferUs));
+    }
+
+    @Test
+    public void resetRestartsWithoutResync() {
+        mCorrector.timestamp(FRAMES, START_US);
+        mCorrector.reset();
+        assertEquals(START_US + 10_000_000, mCorrector.timestamp(FRAMES, START_US + 10_000_000));
+        assertEquals(0, mCorrector.getResyncCount());
+    }
+
+    /**
+     * Buffers whose wall clock time runs {@code ppm} ahead of the frames they hold, read
+     * up to {@code jitterUs} late.
+     */
+    private static final class Stream {
+        final long ppm;
+        final long jitterUs;
+        final Random random;
+        long[] ptsUs;
+        long[] idealUs;
+
+        Stream(long ppm, long jitterUs, long seed) {
+            this.ppm = ppm;
+            this.jitterUs = jitterUs;
+            this.random = new Random(seed);
+        }
+
+        void run(AudioDriftCorrector corrector, int buffers) {
+            ptsUs = new long[buffers];
+            idealUs = new long[buffers];
+            for (int i = 0; i < buffers; i++) {
+                long frames = (long) i * FRAMES;
+                idealUs[i] = START_US + frames * (1000_000 + ppm) / SAMPLE_RATE;
+                long jitter = jitterUs > 0 ? (long) (random.nextDouble() * jitterUs) : 0;
+                ptsUs[i] = corrector.timestamp(FRAMES, idealUs[i] + jitter);
+            }
+        }
+
+        /**
+         * @return largest distance to the wall clock once {@code settle} buffers passed
+         */
+        long maxLagUs(int settle) {
+            long max = 0;
+            for (int i = settle; i < ptsUs.length; i++) {
+                max = Math.max(max, Math.abs(ptsUs[i] - idealUs[i]));
+            }
+            return max;
+        }
+    }
+}
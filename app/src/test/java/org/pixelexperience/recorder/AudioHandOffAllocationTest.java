@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts what the steady-state audio hand-off allocates: encoded buffers going through
+ * {@link SampleRing} in both directions and PCM going through {@link PcmRing}. Any object
+ * per frame is at least 16 bytes, so less than a byte per frame means none.
+ */
+public class AudioHandOffAllocationTest {
+    private static final int WARMUP = 50_000;
+    private static final int FRAMES = 200_000;
+    private static final int CHUNK_FRAMES = 480;
+    private static final int CHANNELS = 2;
+
+    private com.sun.management.ThreadMXBean mThreads;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void sampleRingsAllocateNothing() {
+        SampleRing output = new SampleRing(16);
+        SampleRing release = new SampleRing(16);
+        long checksum = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            checksum += roundTrip(output, release, i);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            checksum += roundTrip(output, release, i);
+        }
+        assertAllocationFree(allocatedBytes() - before);
+        assertTrue(checksum != 0);
+    }
+
+    private static long roundTrip(SampleRing output, SampleRing release, int frame) {
+        // record thread: encoder output to the callback thread
+        output.offer(frame & 7, 0, 4096, frame * 21_333L, 0);
+        // callback thread: hands the buffer to the muxer, then releases it
+        int index = output.peekIndex();
+        long sum = output.peekOffset() + output.peekSize() + output.peekPresentationTimeUs()
+                + output.peekFlags();
+        output.remove();
+        release.offer(index);
+        // record thread: gives the buffer back to the encoder
+        sum += release.peekIndex();
+        release.remove();
+        return sum;
+    }
+
+    @Test
+    public void pcmRingAllocatesNothing() {
+        PcmRing ring = new PcmRing(100, 48000, CHANNELS * 2);
+        short[] chunk = new short[CHUNK_FRAMES * CHANNELS];
+        short[] mix = new short[CHUNK_FRAMES * CHANNELS];
+        ByteBuffer input = ByteBuffer.allocate(CHUNK_FRAMES * CHANNELS * 2)
+                .order(ByteOrder.nativeOrder());
+        long checksum = 0;
+        for (int i = 0; i < WARMUP / 10; i++) {
+            checksum += pcmCycle(ring, chunk, mix, input, i);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < FRAMES / 10; i++) {
+            checksum += pcmCycle(ring, chunk, mix, input, i);
+        }
+        assertAllocationFree(allocatedBytes() - before);
+        assertEquals(0, ring.getOverrunCount());
+        assertTrue(checksum != 0);
+    }
+
+    private static long pcmCycle(PcmRing ring, short[] chunk, short[] mix, ByteBuffer input,
+            int cycle) {
+        long timeNanos = cycle * 30_000_000L;
+        chunk[cycle % chunk.length] = (short) cycle;
+        // capture thread: a chunk, a gap filled with silence
+        ring.write(chunk, CHUNK_FRAMES, timeNanos + 10_000_000);
+        ring.writeSilence(CHUNK_FRAMES, timeNanos + 20_000_000);
+        // record thread: mixing reads shorts, plain capture fills codec input
+        long position = ring.getReadPosition();
+        int frames = ring.read(mix, 0, CHUNK_FRAMES);
+        input.clear();
+        int bytes = ring.read(input);
+        return frames + bytes + ring.getCaptureTimeNanos(position) + mix[cycle % mix.length];
+    }
+
+    @Test
+    public void crossThreadHandOffAllocatesNothing() throws InterruptedException {
+        final SampleRing output = new SampleRing(64);
+        final SampleRing release = new SampleRing(64);
+        final AtomicLong consumerBytes = new AtomicLong(-1);
+        final AtomicLong consumed = new AtomicLong();
+        Thread consumer = new Thread(() -> {
+            long before = 0;
+            long expected = 0;
+            for (int i = 0; i < WARMUP + FRAMES; i++) {
+                if (i == WARMUP) {
+                    before = allocatedBytes();
+                }
+                while (output.isEmpty()) {
+                    Thread.yield();
+                }
+                if (output.peekPresentationTimeUs() != expected) {
+                    return;
+                }
+                expected += 21_333;
+                int index = output.peekIndex();
+                output.remove();
+                while (!release.offer(index)) {
+                    Thread.yield();
+                }
+                consumed.lazySet(i + 1);
+            }
+            consumerBytes.set(allocatedBytes() - before);
+        });
+        consumer.start();
+
+        long before = 0;
+        int released = 0;
+        for (int i = 0; i < WARMUP + FRAMES && consumer.isAlive(); i++) {
+            if (i == WARMUP) {
+                before = allocatedBytes();
+            }
+            while (!output.offer(i & 63, 0, 4096, i * 21_333L, 0) && consumer.isAlive()) {
+                Thread.yield();
+            }
+            released += drain(release);
+        }
+        long producerBytes = allocatedBytes() - before;
+        while (consumer.isAlive()) {
+            released += drain(release);
+        }
+
+        assertEquals("frames handed over in order", WARMUP + FRAMES, consumed.get());
+        assertAllocationFree(producerBytes);
+        assertAllocationFree(consumerBytes.get());
+        assertEquals(WARMUP + FRAMES, released + drain(release));
+    }
+
+    private static int drain(SampleRing ring) {
+        int count = 0;
+        while (!ring.isEmpty()) {
+            ring.remove();
+            count++;
+        }
+        return count;
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void assertAllocationFree(long bytes) {
+        assertTrue(bytes + " bytes allocated for " + FRAMES + " frames", bytes < FRAMES);
+    }
+}
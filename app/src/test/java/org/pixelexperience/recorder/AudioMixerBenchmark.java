@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mixes two 10ms stereo chunks of sines, as the recorder does for system audio and the
+ * microphone.
+ */
+public class AudioMixerBenchmark {
+    private static final int SAMPLES = 480 * 2;
+
+    @Test
+    public void mix() {
+        final short[] system = AudioMixerTest.sine(1000, 0.9, SAMPLES);
+        final short[] mic = AudioMixerTest.sine(440, 0.5, SAMPLES);
+        final short[] out = new short[SAMPLES];
+        final AudioMixer mixer = new AudioMixer(1f, 1.5f);
+        double nanos = Benchmarks.nanosPerItem("AudioMixer.mix", SAMPLES, "sample", 1000,
+                () -> mixer.mix(system, mic, out, SAMPLES));
+        // stereo: two samples a frame
+        assertTrue(Benchmarks.realTimeFactor(nanos * 2, 48000) > 10);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mixes synthetic sines. Samples are treated as mono, the mixer doesn't care about
+ * interleaving.
+ */
+public class AudioMixerTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int SAMPLES = SAMPLE_RATE / 10;
+
+    @Test
+    public void passesSumBelowKnee() {
+        short[] a = sine(1000, 0.35, SAMPLES);
+        short[] b = sine(3000, 0.35, SAMPLES);
+        short[] out = new short[SAMPLES];
+        AudioMixer mixer = new AudioMixer(1f, 1f);
+        mixer.mix(a, b, out, SAMPLES);
+        for (int i = 0; i < SAMPLES; i++) {
+            assertEquals(a[i] + b[i], out[i], 1);
+        }
+        assertEquals(0, mixer.getCompressedSamples());
+        // both tones come through at their level
+        assertEquals(0.35, amplitude(out, 1000), 0.001);
+        assertEquals(0.35, amplitude(out, 3000), 0.001);
+    }
+
+    @Test
+    public void appliesGainPerSource() {
+        short[] a = sine(1000, 0.5, SAMPLES);
+        short[] b = sine(3000, 0.2, SAMPLES);
+        short[] out = new short[SAMPLES];
+        new AudioMixer(0.5f, 2f).mix(a, b, out, SAMPLES);
+        assertEquals(0.25, amplitude(out, 1000), 0.001);
+        assertEquals(0.4, amplitude(out, 3000), 0.001);
+    }
+
+    @Test
+    public void softClipsInsteadOfWrapping() {
+        short[] a = sine(1000, 1, SAMPLES);
+        short[] out = new short[SAMPLES];
+        AudioMixer mixer = new AudioMixer(1f, 1f);
+        mixer.mix(a, a, out, SAMPLES);
+        int peak = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            // the sign follows the input, nothing wraps around
+            assertTrue(a[i] == 0 || (out[i] > 0) == (a[i] > 0));
+            peak = Math.max(peak, Math.abs(out[i]));
+        }
+        assertTrue("peak " + peak, peak < 32767 && peak > AudioMixer.KNEE * 32767);
+        assertTrue(mixer.getCompressedSamples() > 0);
+        assertTrue(mixer.getCompressedSamples() < SAMPLES);
+    }
+
+    @Test
+    public void curveIsMonotonicAndSymmetric() {
+        short[] ramp = new short[65536];
+        for (int i = 0; i < ramp.length; i++) {
+            ramp[i] = (short) (i - 32768);
+        }
+        short[] out = new short[ramp.length];
+        new AudioMixer(1.5f, 0f).mix(ramp, new short[ramp.length], out, ramp.length);
+        for (int i = 1; i < ramp.length; i++) {
+            assertTrue("at " + ramp[i], out[i] >= out[i - 1]);
+        }
+        for (int i = 1; i < ramp.length; i++) {
+            assertEquals(-out[i], out[ramp.length - i]);
+        }
+    }
+
+    @Test
+    public void continuousAtKnee() {
+        int knee = (int) (AudioMixer.KNEE * 32767);
+        short[] in = {(short) (knee - 50), (short) knee, (short) (knee + 50)};
+        short[] out = new short[3];
+        new AudioMixer(1f, 1f).mix(in, new short[3], out, 3);
+        // slope 1 on both sides of the knee
+        assertEquals(50, out[1] - out[0], 1);
+        assertEquals(50, out[2] - out[1], 1);
+    }
+
+    /**
+     * @param amplitude of full scale
+     */
+    static short[] sine(double frequency, double amplitude, int samples) {
+        short[] out = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            out[i] = (short) Math.round(amplitude * 32767
+                    * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return out;
+    }
+
+    /**
+     * @return amplitude of {@code frequency} in {@code samples}, of full scale, by
+     * correlation over whole periods
+     */
+    static double amplitude(short[] samples, double frequency) {
+        double re = 0;
+        double im = 0;
+        for (int i = 0; i < samples.length; i++) {
+            double phase = 2 * Math.PI * frequency * i / SAMPLE_RATE;
+            re += samples[i] * Math.cos(phase);
+            im += samples[i] * Math.sin(phase);
+        }
+        return 2 * Math.hypot(re, im) / samples.length / 32767;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Times each {@link AudioProcessor} stage on 48kHz stereo buffers of 1024 frames, set up
+ * like the recorder does. Every call first refills the buffer, {@link #copy()} times that
+ * alone.
+ */
+public class AudioProcessorBenchmark {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES = 1024;
+    private static final int SAMPLES = FRAMES * CHANNELS;
+
+    private final short[] mSource = createSource();
+    private final ShortBuffer mBuffer = ByteBuffer.allocateDirect(SAMPLES * 2)
+            .order(ByteOrder.nativeOrder()).asShortBuffer();
+
+    @Test
+    public void copy() {
+        run("copy", null);
+    }
+
+    @Test
+    public void gain() {
+        run("GainProcessor", new GainProcessor(CHANNELS, 6));
+    }
+
+    @Test
+    public void noiseGate() {
+        run("NoiseGate", new NoiseGate(SAMPLE_RATE, CHANNELS, -45, 30, 1, 100, 150));
+    }
+
+    @Test
+    public void limiter() {
+        run("LookaheadLimiter", new LookaheadLimiter(SAMPLE_RATE, CHANNELS, 5, 100, -7));
+    }
+
+    @Test
+    public void boost() {
+        run("limiter + gain", new AudioProcessorChain(
+                new LookaheadLimiter(SAMPLE_RATE, CHANNELS, 5, 100, -7),
+                new GainProcessor(CHANNELS, 6)));
+    }
+
+    private void run(String name, final AudioProcessor processor) {
+        Benchmarks.nanosPerItem(name, SAMPLES, "sample", 200, new Runnable() {
+            private int mOffset;
+
+            @Override
+            public void run() {
+                mBuffer.clear();
+                mBuffer.put(mSource, mOffset, SAMPLES);
+                mOffset = (mOffset + SAMPLES) % (mSource.length - SAMPLES);
+                if (processor != null) {
+                    processor.process(mBuffer, 0, FRAMES);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a second of a 440Hz tone in bursts, loud for 250ms then quiet, so the gate
+     * and limiter keep changing their gain
+     */
+    private static short[] createSource() {
+        short[] source = new short[SAMPLE_RATE * CHANNELS];
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            double level = (i / (SAMPLE_RATE / 4)) % 2 == 0 ? 0.9 : 0.005;
+            short sample = (short) (level * 32767 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            source[i * CHANNELS] = sample;
+            source[i * CHANNELS + 1] = sample;
+        }
+        return source;
+    }
+}
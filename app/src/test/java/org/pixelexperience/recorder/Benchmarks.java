@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import java.util.Locale;
+
+/**
+ * Times a piece of code for benchmarks: warms it up, then reports the best of a few
+ * runs. Benchmarks only run when gradle is passed {@code -Pbenchmark}.
+ */
+final class Benchmarks {
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final int RUNS = 5;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @param items how many items, e.g. samples, one call of {@code body} processes
+     * @param unit  what an item is, for the report
+     * @return best time per item in nanoseconds
+     */
+    static double nanosPerItem(String name, long items, String unit, int calls,
+            Runnable body) {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS) {
+            body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long runStart = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                body.run();
+            }
+            best = Math.min(best, System.nanoTime() - runStart);
+        }
+        double nanos = (double) best / calls / items;
+        System.out.println(String.format(Locale.US, "%-32s %8.2f ns/%s", name, nanos, unit));
+        return nanos;
+    }
+
+    /**
+     * @return how many times faster than real time {@code nanosPerFrame} is at
+     * {@code sampleRate}
+     */
+    static double realTimeFactor(double nanosPerFrame, int sampleRate) {
+        return 1e9 / sampleRate / nanosPerFrame;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic encoder traces through {@link BitrateController}. The encoder model
+ * spends what the content needs up to the current target, with a key frame every second.
+ */
+public class BitrateControllerTest {
+    private static final int FPS = 60;
+    private static final int MIN = 1_000_000;
+    private static final int MAX = 16_000_000;
+
+    @Test
+    public void staticScreenLowersBitrate() {
+        Trace trace = new Trace(new BitrateController(8_000_000, MIN, MAX));
+        trace.staticContent(30);
+        assertTrue("bitrate " + trace.bitrate(), trace.bitrate() <= 2_000_000);
+        assertEquals(0, trace.controller.getIncreases());
+        assertTrue(trace.controller.getDecreases() > 0);
+    }
+
+    @Test
+    public void motionRampsUpToMax() {
+        Trace trace = new Trace(new BitrateController(4_000_000, MIN, MAX));
+        trace.motion(40_000_000, 30);
+        assertEquals(MAX, trace.bitrate());
+        // 8 steps of 20% held for one interval each, see the class documentation
+        assertEquals(8, trace.controller.getIncreases());
+        assertTrue("reached max after " + trace.secondsTo(MAX), trace.secondsTo(MAX) <= 18);
+        assertEquals(0, trace.controller.getDecreases());
+    }
+
+    @Test
+    public void rampUpFollowsParameters() {
+        Trace slow = new Trace(new BitrateController(4_000_000, MIN, MAX, 20, 2));
+        slow.motion(40_000_000, 60);
+        Trace fast = new Trace(new BitrateController(4_000_000, MIN, MAX, 50, 0));
+        fast.motion(40_000_000, 60);
+        assertEquals(MAX, slow.bitrate());
+        assertEquals(MAX, fast.bitrate());
+        assertTrue(fast.secondsTo(MAX) * 4 < slow.secondsTo(MAX));
+    }
+
+    @Test
+    public void stepsUpFromHighBitrate() {
+        BitrateController controller = new BitrateController(20_000_000, MIN, 40_000_000);
+        Trace trace = new Trace(controller);
+        trace.motion(80_000_000, 3);
+        assertEquals(24_000_000, trace.bitrate());
+    }
+
+    @Test
+    public void holdsAfterChange() {
+        Trace trace = new Trace(new BitrateController(4_000_000, MIN, MAX, 20, 2));
+        trace.motion(40_000_000, 30);
+        for (int i = 1; i < trace.changeSeconds.size(); i++) {
+            int gap = trace.changeSeconds.get(i) - trace.changeSeconds.get(i - 1);
+            assertTrue("changes " + gap + "s apart", gap >= 3);
+        }
+    }
+
+    @Test
+    public void settlesOnSteadyDemand() {
+        Trace trace = new Trace(new BitrateController(4_000_000, MIN, MAX));
+        trace.motion(6_000_000, 60);
+        int changes = trace.changeSeconds.size();
+        trace.motion(6_000_000, 60);
+        // within the utilization band, nothing moves any more
+        assertEquals(changes, trace.changeSeconds.size());
+        assertTrue("bitrate " + trace.bitrate(), trace.bitrate() >= 6_000_000
+                && trace.bitrate() <= 6_000_000 * 100 / 90 * 120 / 100);
+    }
+
+    @Test
+    public void backlogBacksOffWhileHolding() {
+        Trace trace = new Trace(new BitrateController(8_000_000, MIN, MAX));
+        trace.backlogPercent = 80;
+        trace.motion(40_000_000, 12);
+        assertEquals(MIN, trace.bitrate());
+        assertEquals(0, trace.controller.getIncreases());
+        // one step every interval, the hold doesn't apply
+        assertEquals(trace.changeSeconds.size(), trace.controller.getDecreases());
+        assertEquals(1, trace.changeSeconds.get(1) - trace.changeSeconds.get(0));
+    }
+
+    @Test
+    public void replaysIdentically() {
+        Trace first = new Trace(new BitrateController(4_000_000, MIN, MAX));
+        Trace second = new Trace(new BitrateController(4_000_000, MIN, MAX));
+        for (Trace trace : new Trace[] {first, second}) {
+            trace.motion(12_000_000, 20);
+            trace.staticContent(20);
+            trace.motion(30_000_000, 20);
+        }
+        assertEquals(first.changes, second.changes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidBounds() {
+        new BitrateController(4_000_000, MAX, MIN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidStep() {
+        new BitrateController(4_000_000, MIN, MAX, 100, 1);
+    }
+
+    private static final class Trace {
+        final BitrateController controller;
+        final List<Integer> changes = new ArrayList<>();
+        final List<Integer> changeSeconds = new ArrayList<>();
+        int backlogPercent;
+        private int mBitrate;
+        private long mFrame;
+        private int mSecondsToMax = -1;
+
+        Trace(BitrateController controller) {
+            this.controller = controller;
+            mBitrate = controller.getBitrate();
+        }
+
+        /**
+         * Content whose predicted frames are a few hundred bytes, key frames a fixed 60KB.
+         */
+        void staticContent(int seconds) {
+            for (int i = 0; i < seconds * FPS; i++) {
+                frame(isKeyFrame() ? 60_000 : 300);
+            }
+        }
+
+        /**
+         * Content that needs {@code demand} bits per second, key frames three times the
+         * size of a predicted frame.
+         */
+        void motion(int demand, int seconds) {
+            for (int i = 0; i < seconds * FPS; i++) {
+                int frameBytes = Math.min(demand, mBitrate) / 8 / (FPS + 2);
+                frame(isKeyFrame() ? frameBytes * 3 : frameBytes);
+            }
+        }
+
+        private boolean isKeyFrame() {
+            return mFrame % FPS == 0;
+        }
+
+        private void frame(int size) {
+            long ptsUs = mFrame * 1000_000 / FPS;
+            int bitrate = controller.onFrame(ptsUs, size, isKeyFrame(), backlogPercent);
+            if (bitrate > 0) {
+                mBitrate = bitrate;
+                changes.add(bitrate);
+                changeSeconds.add((int) (ptsUs / 1000_000));
+                if (bitrate == MAX && mSecondsToMax < 0) {
+                    mSecondsToMax = (int) (ptsUs / 1000_000);
+                }
+            }
+            mFrame++;
+        }
+
+        int bitrate() {
+            return controller.getBitrate();
+        }
+
+        int secondsTo(int bitrate) {
+            assertEquals(MAX, bitrate);
+            return mSecondsToMax;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link CaptureClock} synthetic reads and (framePosition, nanoTime) pairs as
+ * {@code AudioRecord.getTimestamp()} would report them.
+ */
+public class CaptureClockTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK = 480; // 10ms
+    private static final long CHUNK_NANOS = 10_000_000;
+    private static final long GAP_THRESHOLD_US = 20_000;
+    private static final long MAX_GAP_US = 500_000;
+    private static final long START = 1_000_000_000_000L;
+
+    private final CaptureClock mClock = new CaptureClock(SAMPLE_RATE, GAP_THRESHOLD_US,
+            MAX_GAP_US);
+
+    @Test
+    public void readTimesStandInUntilTimestamped() {
+        mClock.onRead(CHUNK, START);
+        assertEquals(START, mClock.getReadEndNanos());
+        // a late read only moves the line by an eighth
+        mClock.onRead(CHUNK, START + CHUNK_NANOS + 800_000);
+        assertEquals(START + CHUNK_NANOS + 100_000, mClock.getReadEndNanos());
+        assertFalse(mClock.isTimestamped());
+        // reads never detect gaps, their time includes scheduling
+        mClock.onRead(CHUNK, START + 10 * CHUNK_NANOS);
+        assertEquals(0, mClock.takeGapFrames());
+    }
+
+    @Test
+    public void timestampAnchorsReadEnd() {
+        mClock.onRead(CHUNK, START + 30_000_000);
+        mClock.onRead(CHUNK, START + 40_000_000);
+        // the HAL captured frame 0 earlier than the read returned it
+        mClock.onTimestamp(0, START);
+        assertTrue(mClock.isTimestamped());
+        assertEquals(START + 2 * CHUNK_NANOS, mClock.getReadEndNanos());
+        // reads no longer move it
+        mClock.onRead(CHUNK, START + 90_000_000);
+        assertEquals(START + 3 * CHUNK_NANOS, mClock.getReadEndNanos());
+    }
+
+    @Test
+    public void ignoresTimestampFarFromReads() {
+        mClock.onRead(CHUNK, START);
+        mClock.onTimestamp(0, START - 2 * MAX_GAP_US * 1000);
+        assertFalse(mClock.isTimestamped());
+        assertEquals(START, mClock.getReadEndNanos());
+    }
+
+    @Test
+    public void smoothsJitter() {
+        Random random = new Random(7);
+        long maxError = 0;
+        for (int i = 1; i <= 1000; i++) {
+            long ideal = START + i * CHUNK_NANOS;
+            mClock.onRead(CHUNK, ideal + 2_000_000);
+            long jitter = (long) ((random.nextDouble() * 2 - 1) * 3_000_000);
+            mClock.onTimestamp((long) i * CHUNK, ideal + jitter);
+            if (i > 10) {
+                maxError = Math.max(maxError, Math.abs(mClock.getReadEndNanos() - ideal));
+            }
+        }
+        assertTrue("error " + maxError, maxError < 1_500_000);
+        // measured against the line, which is off by the smoothed error
+        assertTrue("jitter " + mClock.getMaxJitterUs(), mClock.getMaxJitterUs() > 2000
+                && mClock.getMaxJitterUs() < 3000 + maxError / 1000);
+        assertEquals(0, mClock.getGapCount());
+    }
+
+    @Test
+    public void followsFastClock() {
+        // the audio clock runs 500ppm fast against nanoTime
+        for (int i = 1; i <= 6000; i++) {
+            mClock.onRead(CHUNK, START + i * CHUNK_NANOS);
+            mClock.onTimestamp((long) i * CHUNK, START + i * CHUNK_NANOS * 9995 / 10000);
+        }
+        long ideal = START + 6000 * CHUNK_NANOS * 9995 / 10000;
+        assertEquals(ideal, mClock.getReadEndNanos(), 100_000);
+        assertEquals(0, mClock.getGapCount());
+    }
+
+    @Test
+    public void fillsLostFrames() {
+        long position = timestampedChunks(10);
+        // 50ms of audio never made it to the reads
+        mClock.onRead(CHUNK, START + 70_000_000);
+        position += CHUNK;
+        mClock.onTimestamp(position, START + 11 * CHUNK_NANOS + 50_000_000);
+        assertEquals(2400, mClock.takeGapFrames());
+        assertEquals(0, mClock.takeGapFrames());
+        assertEquals(1, mClock.getGapCount());
+        assertEquals(2400, mClock.getFilledFrames());
+        // counting goes on from the timestamp
+        assertEquals(START + 11 * CHUNK_NANOS + 50_000_000, mClock.getReadEndNanos());
+    }
+
+    @Test
+    public void leavesSmallLagToSmoothing() {
+        long position = timestampedChunks(10);
+        mClock.onRead(CHUNK, START + 11 * CHUNK_NANOS);
+        mClock.onTimestamp(position + CHUNK, START + 11 * CHUNK_NANOS + 15_000_000);
+        assertEquals(0, mClock.takeGapFrames());
+    }
+
+    @Test
+    public void onlyMovesOnLongGap() {
+        long position = timestampedChunks(10);
+        mClock.onRead(CHUNK, START + 11 * CHUNK_NANOS);
+        long late = START + 11 * CHUNK_NANOS + 2 * MAX_GAP_US * 1000;
+        mClock.onTimestamp(position + CHUNK, late);
+        assertEquals(0, mClock.takeGapFrames());
+        assertEquals(late, mClock.getReadEndNanos());
+    }
+
+    @Test
+    public void onlyMovesOnEarlyTimestamp() {
+        long position = timestampedChunks(10);
+        mClock.onRead(CHUNK, START + 11 * CHUNK_NANOS);
+        long early = START + 11 * CHUNK_NANOS - 30_000_000;
+        mClock.onTimestamp(position + CHUNK, early);
+        assertEquals(0, mClock.takeGapFrames());
+        assertEquals(early, mClock.getReadEndNanos());
+    }
+
+    @Test
+    public void restartForgetsLine() {
+        long position = timestampedChunks(10);
+        mClock.restart();
+        assertFalse(mClock.isTimestamped());
+        // resumed 5s later, frames kept counting from where they were
+        long resume = START + 5_000_000_000L;
+        mClock.onRead(CHUNK, resume);
+        assertEquals(resume, mClock.getReadEndNanos());
+        mClock.onTimestamp(position + CHUNK, resume - 1_000_000);
+        assertEquals(0, mClock.takeGapFrames());
+        assertEquals(resume - 1_000_000, mClock.getReadEndNanos());
+    }
+
+    /**
+     * Reads and timestamps {@code chunks} chunks on time.
+     *
+     * @return frame position of the end
+     */
+    private long timestampedChunks(int chunks) {
+        for (int i = 1; i <= chunks; i++) {
+            mClock.onRead(CHUNK, START + i * CHUNK_NANOS + 1_000_000);
+            mClock.onTimestamp((long) i * CHUNK, START + i * CHUNK_NANOS);
+        }
+        assertEquals(START + chunks * CHUNK_NANOS, mClock.getReadEndNanos());
+        return (long) chunks * CHUNK;
+    }
+}
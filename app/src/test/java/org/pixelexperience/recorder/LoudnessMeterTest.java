@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The minimum requirements of EBU Tech 3341 for loudness meters, with the synthetic
+ * stereo sines it describes, at 48kHz and 44.1kHz. Loudness must be within 0.1 LU,
+ * true peak within +0.2/-0.4 dB.
+ */
+public class LoudnessMeterTest {
+    private static final int[] SAMPLE_RATES = {48000, 44100};
+    private static final double LU = 0.1;
+
+    @Test
+    public void case1SteadyAtTarget() {
+        for (int rate : SAMPLE_RATES) {
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -23, 20, 1000, 0);
+            assertEquals(-23, meter.getMomentaryLoudness(), LU);
+            assertEquals(-23, meter.getShortTermLoudness(), LU);
+            assertEquals(-23, meter.getIntegratedLoudness(), LU);
+        }
+    }
+
+    @Test
+    public void case2SteadyBelowTarget() {
+        for (int rate : SAMPLE_RATES) {
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -33, 20, 1000, 0);
+            assertEquals(-33, meter.getIntegratedLoudness(), LU);
+        }
+    }
+
+    @Test
+    public void case3RelativeGate() {
+        for (int rate : SAMPLE_RATES) {
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -36, 10, 1000, 0);
+            sine(meter, rate, 2, -23, 60, 1000, 0);
+            sine(meter, rate, 2, -36, 10, 1000, 0);
+            assertEquals(-23, meter.getIntegratedLoudness(), LU);
+        }
+    }
+
+    @Test
+    public void case4AbsoluteGate() {
+        for (int rate : SAMPLE_RATES) {
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -72, 10, 1000, 0);
+            sine(meter, rate, 2, -36, 10, 1000, 0);
+            sine(meter, rate, 2, -23, 60, 1000, 0);
+            sine(meter, rate, 2, -36, 10, 1000, 0);
+            sine(meter, rate, 2, -72, 10, 1000, 0);
+            assertEquals(-23, meter.getIntegratedLoudness(), LU);
+        }
+    }
+
+    @Test
+    public void case5LevelSteps() {
+        for (int rate : SAMPLE_RATES) {
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -26, 20, 1000, 0);
+            sine(meter, rate, 2, -20, 20.1, 1000, 0);
+            sine(meter, rate, 2, -26, 20, 1000, 0);
+            assertEquals(-23, meter.getIntegratedLoudness(), LU);
+        }
+    }
+
+    @Test
+    public void momentaryAndShortTermWindows() {
+        LoudnessMeter meter = new LoudnessMeter(48000, 2);
+        sine(meter, 48000, 2, -23, 10, 1000, 0);
+        // momentary covers the last 400ms, short-term the last 3s
+        sine(meter, 48000, 2, -33, 1, 1000, 0);
+        assertEquals(-33, meter.getMomentaryLoudness(), LU);
+        double shortTerm = 10 * Math.log10((2 * Math.pow(10, -23 / 10.0)
+                + Math.pow(10, -33 / 10.0)) / 3);
+        assertEquals(shortTerm, meter.getShortTermLoudness(), LU);
+    }
+
+    @Test
+    public void monoCountsOneChannel() {
+        LoudnessMeter meter = new LoudnessMeter(48000, 1);
+        sine(meter, 48000, 1, -23, 20, 1000, 0);
+        assertEquals(-26, meter.getIntegratedLoudness(), LU);
+    }
+
+    @Test
+    public void silenceHasNoLoudness() {
+        LoudnessMeter meter = new LoudnessMeter(48000, 2);
+        sine(meter, 48000, 2, -80, 5, 1000, 0);
+        assertEquals(Double.NEGATIVE_INFINITY, meter.getIntegratedLoudness(), 0);
+    }
+
+    @Test
+    public void resetKeepsProgramLoudness() {
+        LoudnessMeter meter = new LoudnessMeter(48000, 2);
+        sine(meter, 48000, 2, -23, 10, 1000, 0);
+        meter.reset();
+        sine(meter, 48000, 2, -23, 10, 1000, 0);
+        assertEquals(-23, meter.getIntegratedLoudness(), LU);
+    }
+
+    @Test
+    public void truePeakBetweenSamples() {
+        for (int rate : SAMPLE_RATES) {
+            // every sample lands 45 degrees off the crest
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -6, 5, rate / 4.0, Math.PI / 4);
+            assertEquals(-9.01, meter.getSamplePeak(), 0.05);
+            assertTruePeak(-6, meter.getTruePeak());
+
+            meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, 0, 5, rate / 6.0, Math.PI / 6);
+            assertTruePeak(0, meter.getTruePeak());
+
+            meter = new LoudnessMeter(rate, 2);
+            sine(meter, rate, 2, -6, 5, 1000, 0.3);
+            assertTruePeak(-6, meter.getTruePeak());
+        }
+    }
+
+    private static void assertTruePeak(double expected, double truePeak) {
+        assertEquals(expected - 0.1, truePeak, 0.3);
+    }
+
+    /**
+     * Feeds {@code seconds} of a sine at {@code dbfs} on every channel in 1024 frame
+     * buffers.
+     */
+    private static void sine(LoudnessMeter meter, int rate, int channels, double dbfs,
+            double seconds, double frequency, double phase) {
+        int frames = (int) (seconds * rate);
+        double amplitude = Math.pow(10, dbfs / 20) * 32767;
+        short[] samples = new short[1024 * channels];
+        ShortBuffer buffer = ShortBuffer.wrap(samples);
+        for (int done = 0; done < frames; ) {
+            int count = Math.min(1024, frames - done);
+            for (int i = 0; i < count; i++) {
+                short value = (short) Math.round(amplitude
+                        * Math.sin(2 * Math.PI * frequency * (done + i) / rate + phase));
+                for (int c = 0; c < channels; c++) {
+                    samples[i * channels + c] = value;
+                }
+            }
+            meter.process(buffer, 0, count);
+            done += count;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_SIZE = CHANNELS * 2;
+    // 10ms, 480 frames
+    private static final int CAPACITY_FRAMES = 480;
+
+    private final PcmRing mRing = new PcmRing(10, SAMPLE_RATE, FRAME_SIZE);
+
+    @Test
+    public void sizedInMilliseconds() {
+        assertEquals(CAPACITY_FRAMES * FRAME_SIZE, mRing.getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new PcmRing(0, SAMPLE_RATE, FRAME_SIZE);
+    }
+
+    @Test
+    public void shortsSurviveWrapAround() {
+        short[] out = new short[300 * CHANNELS];
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 10; round++) {
+            short[] in = ramp(next, 300);
+            next += in.length;
+            assertEquals(300 * FRAME_SIZE, mRing.write(in, 300, 0));
+            assertEquals(300, mRing.read(out, 0, 300));
+            for (short sample : out) {
+                assertEquals((short) expected++, sample);
+            }
+        }
+        assertEquals(0, mRing.getOverrunCount());
+    }
+
+    @Test
+    public void bytesAndShortsAgree() {
+        ByteBuffer in = ByteBuffer.allocate(400 * FRAME_SIZE).order(ByteOrder.nativeOrder());
+        in.asShortBuffer().put(ramp(-1000, 400));
+        mRing.read(new short[200 * CHANNELS], 0, 0);
+        mRing.write(ramp(0, 200), 200, 0);
+        mRing.skip(200);
+        // starts in the middle, wraps
+        assertEquals(400 * FRAME_SIZE, mRing.write(in, 0));
+        short[] out = new short[400 * CHANNELS];
+        assertEquals(400, mRing.read(out, 0, 400));
+        assertArrayEquals(ramp(-1000, 400), out);
+    }
+
+    @Test
+    public void readsWholeFramesOnly() {
+        ByteBuffer in = ByteBuffer.allocate(10 * FRAME_SIZE + 3);
+        assertEquals(10 * FRAME_SIZE, mRing.write(in, 0));
+        assertEquals(0, in.remaining());
+        ByteBuffer out = ByteBuffer.allocate(4 * FRAME_SIZE + 1);
+        assertEquals(4 * FRAME_SIZE, mRing.read(out));
+        assertEquals(6 * FRAME_SIZE, mRing.available());
+    }
+
+    @Test
+    public void overrunDropsNewestAndCounts() {
+        assertEquals(400 * FRAME_SIZE, mRing.write(ramp(0, 400), 400, 0));
+        assertEquals(80 * FRAME_SIZE, mRing.write(ramp(800, 200), 200, 0));
+        assertEquals(1, mRing.getOverrunCount());
+        assertEquals(120, mRing.getOverrunFrames());
+        // full, the whole write is dropped
+        assertEquals(0, mRing.writeSilence(50, 0));
+        assertEquals(2, mRing.getOverrunCount());
+        assertEquals(170, mRing.getOverrunFrames());
+
+        // what was kept is the oldest data, in order
+        short[] out = new short[CAPACITY_FRAMES * CHANNELS];
+        assertEquals(CAPACITY_FRAMES, mRing.read(out, 0, CAPACITY_FRAMES));
+        for (int i = 0; i < out.length; i++) {
+            assertEquals((short) i, out[i]);
+        }
+        // room again
+        assertEquals(50 * FRAME_SIZE, mRing.writeSilence(50, 0));
+        assertEquals(2, mRing.getOverrunCount());
+    }
+
+    @Test
+    public void underrunCountsEmptyReads() {
+        assertEquals(0, mRing.read(ByteBuffer.allocate(FRAME_SIZE)));
+        assertEquals(0, mRing.read(new short[CHANNELS], 0, 1));
+        assertEquals(2, mRing.getUnderrunCount());
+        mRing.write(ramp(0, 1), 1, 0);
+        assertEquals(1, mRing.read(new short[CHANNELS * 4], 0, 4));
+        assertEquals(2, mRing.getUnderrunCount());
+    }
+
+    @Test
+    public void silenceOverwritesOldData() {
+        mRing.write(ramp(1, CAPACITY_FRAMES), CAPACITY_FRAMES, 0);
+        mRing.clear();
+        assertEquals(0, mRing.available());
+        mRing.writeSilence(CAPACITY_FRAMES, 0);
+        short[] out = new short[CAPACITY_FRAMES * CHANNELS];
+        mRing.read(out, 0, CAPACITY_FRAMES);
+        assertArrayEquals(new short[out.length], out);
+    }
+
+    @Test
+    public void mapsPositionsToCaptureTime() {
+        // 480 frames are 10ms
+        mRing.write(ramp(0, 240), 240, 1_005_000_000);
+        assertEquals(1_000_000_000, mRing.getCaptureTimeNanos(0));
+        mRing.read(new short[120 * CHANNELS], 0, 120);
+        assertEquals(1_002_500_000, mRing.getCaptureTimeNanos(mRing.getReadPosition()));
+
+        // the anchor moves with the latest write
+        mRing.writeSilence(48, 1_007_000_000);
+        assertEquals(1_006_000_000, mRing.getCaptureTimeNanos(240 * FRAME_SIZE));
+    }
+
+    @Test
+    public void overrunKeepsCaptureTimeOfKeptData() {
+        mRing.write(ramp(0, 400), 400, 0);
+        mRing.skip(400);
+        mRing.write(ramp(0, 400), 400, 2_000_000_000L);
+        // 320 frames, 6.667ms, dropped at the end of the write
+        mRing.write(ramp(0, 400), 400, 2_010_000_000L);
+        assertEquals(320, mRing.getOverrunFrames());
+        long end = 880L * FRAME_SIZE;
+        assertEquals(2_010_000_000L - 6_666_666, mRing.getCaptureTimeNanos(end));
+    }
+
+    @Test
+    public void concurrentProducerLosesOnlyCountedFrames() throws InterruptedException {
+        final int chunks = 20_000;
+        final int chunkFrames = 64;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < chunks; i++) {
+                mRing.write(ramp(i * chunkFrames * CHANNELS, chunkFrames), chunkFrames, i);
+                if (i % 16 == 0) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        short[] out = new short[100 * CHANNELS];
+        long read = 0;
+        boolean whole = true;
+        while (producer.isAlive() || mRing.available() > 0) {
+            int frames = mRing.read(out, 0, 100);
+            for (int i = 0; i < frames * CHANNELS; i += CHANNELS) {
+                // frames are never torn
+                whole &= out[i + 1] == (short) (out[i] + 1);
+            }
+            read += frames;
+            if (frames == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        assertTrue(whole);
+        assertEquals((long) chunks * chunkFrames, read + mRing.getOverrunFrames());
+    }
+
+    private static short[] ramp(int start, int frames) {
+        short[] samples = new short[frames * CHANNELS];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (start + i);
+        }
+        return samples;
+    }
+}
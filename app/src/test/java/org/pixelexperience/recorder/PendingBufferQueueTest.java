@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PendingBufferQueueTest {
+    private static final int KEY = 1;
+    private static final int CONFIG = 2;
+    private static final int EOS = 4;
+    private static final int CAPACITY = 8;
+
+    private final List<Integer> mDropped = new ArrayList<>();
+
+    private PendingBufferQueue create(int policy) {
+        return new PendingBufferQueue(CAPACITY, policy, mDropped::add);
+    }
+
+    private static boolean offer(PendingBufferQueue queue, int index, int flags) {
+        return queue.offer(index, 0, 100, index * 33_333L, flags);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsOnOverflow() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_THROW);
+        for (int i = 0; i <= CAPACITY; i++) {
+            offer(queue, i, 0);
+        }
+    }
+
+    @Test
+    public void overflowDropsOldestGop() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_DROP_OLDEST);
+        // GOPs of 4: 0 and 4 are key frames
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(offer(queue, i, i % 4 == 0 ? KEY : 0));
+        }
+        assertTrue(offer(queue, 8, 0));
+        assertEquals(5, queue.size());
+        assertEquals(4, queue.peekIndex());
+        assertEquals(KEY, queue.peekFlags());
+        assertEquals(Arrays.asList(0, 1, 2, 3), mDropped);
+        assertEquals(4, queue.getDroppedCount());
+    }
+
+    @Test
+    public void waitsForKeyFrameAfterOverflowWithoutOne() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_DROP_OLDEST);
+        // a GOP longer than the queue
+        offer(queue, 0, KEY);
+        for (int i = 1; i < CAPACITY; i++) {
+            offer(queue, i, 0);
+        }
+        assertFalse(offer(queue, 8, 0));
+        assertEquals(0, queue.size());
+        assertFalse(offer(queue, 9, 0));
+        assertFalse(offer(queue, 10, 0));
+        assertEquals(0, queue.size());
+        assertEquals(11, queue.getDroppedCount());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10), mDropped);
+
+        assertTrue(offer(queue, 11, KEY));
+        assertTrue(offer(queue, 12, 0));
+        assertEquals(2, queue.size());
+        assertEquals(11, queue.peekIndex());
+        assertEquals(KEY, queue.peekFlags());
+    }
+
+    @Test
+    public void keepsEndOfStreamAndConfigWhileWaitingForKeyFrame() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_DROP_OLDEST);
+        for (int i = 0; i < CAPACITY; i++) {
+            offer(queue, i, i == 0 ? KEY : 0);
+        }
+        assertFalse(offer(queue, 8, 0));
+        assertTrue(offer(queue, 9, CONFIG));
+        assertFalse(offer(queue, 10, 0));
+        assertTrue(offer(queue, 11, EOS));
+        assertEquals(2, queue.size());
+        assertEquals(9, queue.peekIndex());
+        queue.remove();
+        assertEquals(11, queue.peekIndex());
+    }
+
+    @Test
+    public void headIsAlwaysKeyFrameAfterOverflow() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_DROP_OLDEST);
+        int gop = 3;
+        for (int i = 0; i < 1000; i++) {
+            offer(queue, i, i % gop == 0 ? KEY : 0);
+            if (queue.size() > 0 && queue.getDroppedCount() > 0) {
+                assertEquals(KEY, queue.peekFlags() & KEY);
+            }
+            if (i % 100 == 99) {
+                // GOPs outgrowing the queue and back
+                gop = gop == 3 ? CAPACITY + 5 : 3;
+            }
+        }
+        assertEquals(1000, queue.getDroppedCount() + queue.size());
+    }
+
+    @Test
+    public void audioOverflowDropsSingleOldestSample() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_DROP_OLDEST_SAMPLE);
+        for (int i = 0; i < CAPACITY + 3; i++) {
+            assertTrue(offer(queue, i, 0));
+        }
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(3, queue.peekIndex());
+        assertEquals(Arrays.asList(0, 1, 2), mDropped);
+        assertEquals(CAPACITY + 3, queue.getHeldBackCount());
+    }
+
+    @Test
+    public void clearStopsWaitingForKeyFrame() {
+        PendingBufferQueue queue = create(PendingBufferQueue.OVERFLOW_DROP_OLDEST);
+        for (int i = 0; i <= CAPACITY; i++) {
+            offer(queue, i, i == 0 ? KEY : 0);
+        }
+        queue.clear();
+        assertTrue(offer(queue, 20, 0));
+        assertEquals(20, queue.peekIndex());
+        assertEquals(CAPACITY + 1, mDropped.size());
+    }
+}
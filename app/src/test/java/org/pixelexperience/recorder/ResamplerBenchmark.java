@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Converts 10ms chunks of stereo audio at the capture rates the recorder meets.
+ */
+public class ResamplerBenchmark {
+    @Test
+    public void from44100() {
+        run(44100, 441);
+    }
+
+    @Test
+    public void from16000() {
+        run(16000, 160);
+    }
+
+    private static void run(int inRate, final int frames) {
+        final short[] in = ResamplerTest.sine(1000, 0.5, inRate, frames, 2);
+        final Resampler resampler = new Resampler(inRate, 48000, 2, frames);
+        final short[] out = new short[resampler.getMaxOutputFrames() * 2];
+        // per output frame, that's what has to keep up with the encoder
+        double nanos = Benchmarks.nanosPerItem("Resampler " + inRate + " -> 48000", 480,
+                "frame", 1000,
+                () -> resampler.process(in, frames, out));
+        assertTrue(Benchmarks.realTimeFactor(nanos, 48000) > 10);
+    }
+}
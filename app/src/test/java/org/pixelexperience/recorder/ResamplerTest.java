@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resamples synthetic sines and measures the result against an ideal sine at the
+ * output rate.
+ */
+public class ResamplerTest {
+    private static final int CHUNK = 441;
+
+    @Test
+    public void upsamples44100To48000Cleanly() {
+        assertClean(44100, 48000, 1000);
+    }
+
+    @Test
+    public void downsamples48000To44100Cleanly() {
+        assertClean(48000, 44100, 1000);
+    }
+
+    @Test
+    public void upsamples16000To48000Cleanly() {
+        assertClean(16000, 48000, 1000);
+    }
+
+    @Test
+    public void keepsHighTonesInPassband() {
+        Tone tone = measure(44100, 48000, 15000);
+        assertEquals(0.5, tone.amplitude, 0.5 * 0.01);
+        assertTrue("SNR " + tone.snrDb, tone.snrDb > 75);
+    }
+
+    @Test
+    public void rejectsTonesAboveOutputNyquist() {
+        // 23kHz can't be represented at 44.1kHz and would alias to 21.1kHz
+        short[] in = sine(23000, 0.5, 48000, 48000, 2);
+        short[] out = resample(48000, 44100, in, 2);
+        double alias = amplitude(out, 2, 0, 21100, 44100, 4000, 4410 * 4);
+        assertTrue("alias " + toDb(alias / 0.5), toDb(alias / 0.5) < -40);
+    }
+
+    @Test
+    public void producesOutputAtRatio() {
+        short[] in = sine(1000, 0.5, 44100, 44100, 2);
+        short[] out = resample(44100, 48000, in, 2);
+        assertEquals(48000, out.length / 2, 2);
+    }
+
+    @Test
+    public void outputDoesNotDependOnChunking() {
+        short[] in = sine(3000, 0.5, 44100, 10000, 2);
+        Resampler whole = new Resampler(44100, 48000, 2, 10000);
+        short[] expected = new short[whole.getMaxOutputFrames() * 2];
+        int frames = whole.process(in, 10000, expected);
+        short[] chunked = resample(44100, 48000, in, 2);
+        assertEquals(frames, chunked.length / 2);
+        assertArrayEquals(Arrays.copyOf(expected, frames * 2), chunked);
+    }
+
+    @Test
+    public void keepsChannelsApart() {
+        short[] in = sine(1000, 0.5, 44100, 44100, 2);
+        for (int i = 1; i < in.length; i += 2) {
+            in[i] = 0;
+        }
+        short[] out = resample(44100, 48000, in, 2);
+        for (int i = 1; i < out.length; i += 2) {
+            assertEquals(0, out[i]);
+        }
+    }
+
+    private static void assertClean(int inRate, int outRate, double frequency) {
+        Tone tone = measure(inRate, outRate, frequency);
+        assertEquals(0.5, tone.amplitude, 0.5 * 0.001);
+        // 16 bit quantization alone leaves about 92dB for a half scale sine
+        assertTrue("SNR " + tone.snrDb, tone.snrDb > 80);
+        assertTrue("THD " + tone.thdDb, tone.thdDb < -80);
+    }
+
+    private static Tone measure(int inRate, int outRate, double frequency) {
+        short[] in = sine(frequency, 0.5, inRate, inRate, 1);
+        short[] out = resample(inRate, outRate, in, 1);
+        // skip the filter's start, analyze whole periods
+        int skip = outRate / 10;
+        int length = outRate / 2;
+        Tone tone = new Tone();
+        tone.amplitude = amplitude(out, 1, 0, frequency, outRate, skip, length);
+        double harmonics = 0;
+        for (int h = 2; h * frequency < outRate / 2.0 * Resampler.ROLLOFF; h++) {
+            double a = amplitude(out, 1, 0, h * frequency, outRate, skip, length);
+            harmonics += a * a;
+        }
+        tone.thdDb = 10 * Math.log10(harmonics) - 20 * Math.log10(tone.amplitude);
+        tone.snrDb = snrDb(out, frequency, outRate, skip, length);
+        return tone;
+    }
+
+    static short[] resample(int inRate, int outRate, short[] in, int channels) {
+        Resampler resampler = new Resampler(inRate, outRate, channels, CHUNK);
+        short[] chunk = new short[CHUNK * channels];
+        short[] buffer = new short[resampler.getMaxOutputFrames() * channels];
+        short[] out = new short[(int) ((long) in.length * outRate / inRate) + buffer.length];
+        int written = 0;
+        for (int offset = 0; offset < in.length; offset += chunk.length) {
+            int samples = Math.min(chunk.length, in.length - offset);
+            System.arraycopy(in, offset, chunk, 0, samples);
+            int frames = resampler.process(chunk, samples / channels, buffer);
+            System.arraycopy(buffer, 0, out, written, frames * channels);
+            written += frames * channels;
+        }
+        return Arrays.copyOf(out, written);
+    }
+
+    static short[] sine(double frequency, double amplitude, int rate, int frames,
+            int channels) {
+        short[] out = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) Math.round(amplitude * 32767
+                    * Math.sin(2 * Math.PI * frequency * i / rate));
+            for (int c = 0; c < channels; c++) {
+                out[i * channels + c] = value;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return amplitude of {@code frequency}, of full scale, by correlation
+     */
+    private static double amplitude(short[] samples, int channels, int channel,
+            double frequency, int rate, int skip, int length) {
+        double re = 0;
+        double im = 0;
+        for (int i = skip; i < skip + length; i++) {
+            double phase = 2 * Math.PI * frequency * i / rate;
+            re += samples[i * channels + channel] * Math.cos(phase);
+            im += samples[i * channels + channel] * Math.sin(phase);
+        }
+        return 2 * Math.hypot(re, im) / length / 32767;
+    }
+
+    /**
+     * @return power of the sine fitted at {@code frequency} over the power of what's left
+     */
+    private static double snrDb(short[] samples, double frequency, int rate, int skip,
+            int length) {
+        double re = 0;
+        double im = 0;
+        for (int i = skip; i < skip + length; i++) {
+            double phase = 2 * Math.PI * frequency * i / rate;
+            re += samples[i] * Math.cos(phase);
+            im += samples[i] * Math.sin(phase);
+        }
+        re = 2 * re / length;
+        im = 2 * im / length;
+        double signal = 0;
+        double noise = 0;
+        for (int i = skip; i < skip + length; i++) {
+            double phase = 2 * Math.PI * frequency * i / rate;
+            double fitted = re * Math.cos(phase) + im * Math.sin(phase);
+            signal += fitted * fitted;
+            noise += (samples[i] - fitted) * (samples[i] - fitted);
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    private static double toDb(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+
+    private static final class Tone {
+        double amplitude;
+        double snrDb;
+        double thdDb;
+    }
+}
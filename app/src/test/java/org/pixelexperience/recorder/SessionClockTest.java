@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionClockTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private final SessionClock mClock = new SessionClock(2);
+
+    @Test
+    public void keepsOffsetBetweenTracks() {
+        mClock.start(1_000_000);
+        assertEquals(20_000, mClock.toSessionTime(AUDIO, 1_020_000));
+        assertEquals(50_000, mClock.toSessionTime(VIDEO, 1_050_000));
+        assertEquals(30_000, mClock.getMaxTrackSkewUs());
+    }
+
+    @Test
+    public void clampsSamplesBeforeOrigin() {
+        mClock.start(1_000_000);
+        assertEquals(0, mClock.toSessionTime(AUDIO, 990_000));
+    }
+
+    @Test
+    public void firstSampleIsOriginWithoutStart() {
+        assertEquals(0, mClock.toSessionTime(VIDEO, 7_000_000));
+        assertEquals(40_000, mClock.toSessionTime(AUDIO, 7_040_000));
+    }
+
+    @Test
+    public void leavesPausesOut() {
+        mClock.start(0);
+        assertEquals(1_000_000, mClock.toSessionTime(VIDEO, 1_000_000));
+        mClock.pause(2_000_000);
+        mClock.resume(5_000_000);
+        mClock.pause(6_000_000);
+        mClock.resume(7_000_000);
+        assertEquals(4_000_000, mClock.getTotalPausedUs());
+        // audio captured before the pause, muxed late, keeps its time
+        assertEquals(1_900_000, mClock.toSessionTime(AUDIO, 1_900_000));
+        assertEquals(2_500_000, mClock.toSessionTime(AUDIO, 5_500_000));
+        assertEquals(3_000_000, mClock.toSessionTime(VIDEO, 7_000_000));
+        assertEquals(3_000_000, mClock.toSessionTime(AUDIO, 7_000_000));
+    }
+
+    @Test
+    public void dropsSamplesCapturedWhilePaused() {
+        mClock.start(0);
+        mClock.toSessionTime(VIDEO, 1_000_000);
+        mClock.pause(2_000_000);
+        // the encoder repeated a frame before the pause took effect, muxed during it
+        assertEquals(SessionClock.IN_PAUSE, mClock.toSessionTime(VIDEO, 2_100_000));
+        mClock.resume(5_000_000);
+        // muxed after the resume
+        assertEquals(SessionClock.IN_PAUSE, mClock.toSessionTime(VIDEO, 3_000_000));
+        assertEquals(2_000_000, mClock.toSessionTime(VIDEO, 5_000_000));
+        // audio captured right before the pause is still in
+        assertEquals(1_990_000, mClock.toSessionTime(AUDIO, 1_990_000));
+    }
+
+    @Test
+    public void variableFrameRateStaysMonotonicAcrossPauses() {
+        mClock.start(0);
+        long lastPtsUs = -1;
+        int dropped = 0;
+        long captureUs = 0;
+        long[] pauses = {3_000_000, 7_000_000, 7_500_000, 9_000_000};
+        int pause = 0;
+        while (captureUs < 12_000_000) {
+            if (pause < pauses.length && captureUs >= pauses[pause]) {
+                if (pause % 2 == 0) {
+                    mClock.pause(pauses[pause]);
+                } else {
+                    mClock.resume(pauses[pause]);
+                }
+                pause++;
+            }
+            long ptsUs = mClock.toSessionTime(VIDEO, captureUs);
+            if (ptsUs == SessionClock.IN_PAUSE) {
+                dropped++;
+            } else {
+                assertTrue(ptsUs + " after " + lastPtsUs, ptsUs > lastPtsUs);
+                lastPtsUs = ptsUs;
+            }
+            // bursts of 60fps, then the encoder repeats the still frame once a second
+            boolean still = (captureUs / 1_000_000) % 2 == 1;
+            captureUs += still ? 1_000_000 : 16_667;
+        }
+        assertTrue(dropped > 0);
+        assertEquals(5_500_000, mClock.getTotalPausedUs());
+    }
+}
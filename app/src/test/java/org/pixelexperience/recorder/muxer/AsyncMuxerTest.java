@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncMuxerTest {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    @Test
+    public void nonReferenceSlice() {
+        assertTrue(isNonReference(0x01));
+    }
+
+    @Test
+    public void referenceSlice() {
+        assertFalse(isNonReference(0x21));
+        assertFalse(isNonReference(0x41));
+        assertFalse(isNonReference(0x65));
+    }
+
+    @Test
+    public void looksPastOtherUnits() {
+        // access unit delimiter and SEI, then the slice
+        ByteBuffer data = accessUnit(new int[] {0x09, 0x06, 0x01});
+        assertTrue(AsyncMuxer.isNonReferenceAvc(data, 0, data.limit()));
+        data = accessUnit(new int[] {0x09, 0x06, 0x41});
+        assertFalse(AsyncMuxer.isNonReferenceAvc(data, 0, data.limit()));
+    }
+
+    @Test
+    public void noSliceIsNotDisposable() {
+        ByteBuffer data = accessUnit(new int[] {0x09, 0x06});
+        assertFalse(AsyncMuxer.isNonReferenceAvc(data, 0, data.limit()));
+    }
+
+    @Test
+    public void readsFromOffset() {
+        ByteBuffer reference = accessUnit(new int[] {0x41});
+        ByteBuffer disposable = accessUnit(new int[] {0x01});
+        ByteBuffer data = ByteBuffer.allocate(reference.limit() + disposable.limit());
+        data.put(reference).put(disposable);
+        assertTrue(AsyncMuxer.isNonReferenceAvc(data, reference.limit(), disposable.limit()));
+        assertFalse(AsyncMuxer.isNonReferenceAvc(data, 0, reference.limit()));
+    }
+
+    @Test
+    public void dropsNonReferenceFramesWhenFull() throws Exception {
+        GatedSink sink = new GatedSink();
+        AsyncMuxer muxer = new AsyncMuxer(sink, 2, AsyncMuxer.BACKPRESSURE_DROP_NON_REFERENCE);
+        int video = muxer.addTrack(null, true);
+        muxer.start();
+        write(muxer, video, 0x65, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0);
+        write(muxer, video, 0x41, 0, 1);
+        // the writer is stuck on the first sample, the queue is full
+        write(muxer, video, 0x01, 0, 2);
+        assertEquals(1, muxer.getDroppedSamples());
+        sink.open();
+        write(muxer, video, 0x41, 0, 3);
+        muxer.stop();
+        muxer.release();
+        assertEquals(Arrays.asList(0L, 1L, 3L), sink.mWritten);
+    }
+
+    @Test
+    public void blocksOnReferenceFramesWhenFull() throws Exception {
+        GatedSink sink = new GatedSink();
+        AsyncMuxer muxer = new AsyncMuxer(sink, 2, AsyncMuxer.BACKPRESSURE_DROP_NON_REFERENCE);
+        int video = muxer.addTrack(null, true);
+        int audio = muxer.addTrack(null, false);
+        muxer.start();
+        write(muxer, video, 0x65, MediaCodec.BUFFER_FLAG_KEY_FRAME, 0);
+        write(muxer, video, 0x41, 0, 1);
+        // neither a reference frame nor a sample of another track is dropped
+        Thread producer = new Thread(() -> {
+            write(muxer, video, 0x41, 0, 2);
+            write(muxer, audio, 0x01, 0, 3);
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        sink.open();
+        producer.join();
+        muxer.stop();
+        muxer.release();
+        assertEquals(0, muxer.getDroppedSamples());
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), sink.mWritten);
+    }
+
+    @Test
+    public void spillsInOrderWhenFull() {
+        GatedSink sink = new GatedSink();
+        AsyncMuxer muxer = new AsyncMuxer(sink, 2, AsyncMuxer.BACKPRESSURE_SPILL);
+        int video = muxer.addTrack(null, true);
+        muxer.start();
+        for (int i = 0; i < 5; i++) {
+            write(muxer, video, 0x41, 0, i);
+        }
+        // returned without waiting for the writer
+        assertEquals(3, muxer.getSpilledSamples());
+        assertEquals(5, muxer.getQueueDepth());
+        sink.open();
+        write(muxer, video, 0x41, 0, 5);
+        muxer.stop();
+        muxer.release();
+        assertEquals(0, muxer.getDroppedSamples());
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L), sink.mWritten);
+    }
+
+    private static void write(AsyncMuxer muxer, int track, int header, int flags, long ptsUs) {
+        ByteBuffer data = accessUnit(new int[] {header});
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // BufferInfo.set() is a stub in local unit tests
+        info.offset = 0;
+        info.size = data.limit();
+        info.presentationTimeUs = ptsUs;
+        info.flags = flags;
+        muxer.write(track, data, info);
+    }
+
+    private static boolean isNonReference(int header) {
+        ByteBuffer data = accessUnit(new int[] {header});
+        return AsyncMuxer.isNonReferenceAvc(data, 0, data.limit());
+    }
+
+    /**
+     * @return Annex B units with the given header bytes and a few bytes of payload each
+     */
+    private static ByteBuffer accessUnit(int[] headers) {
+        ByteBuffer data = ByteBuffer.allocate(headers.length * 8);
+        for (int header : headers) {
+            data.put(START_CODE).put((byte) header).put(new byte[] {(byte) 0x88, 0x12, 0x34});
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Holds the writer in its first write until {@link #open()}, records the written times.
+     */
+    private static class GatedSink implements SampleSink {
+        final List<Long> mWritten = new ArrayList<>();
+        private final CountDownLatch mGate = new CountDownLatch(1);
+        private int mTracks;
+
+        void open() {
+            mGate.countDown();
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            mWritten.add(bufferInfo.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the output with reference files, run with -Drecorder.updateGolden=<dir> to
+ * write new ones into {@code dir} after checking them with a player and an MP4 parser.
+ */
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40,
+            0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x0f, (byte) 0xc8};
+    // AAC LC, 44.1kHz, stereo
+    private static final byte[] ASC = {0x12, 0x10};
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void avcAndAacMatchReference() throws IOException {
+        assertGolden("fragmented_avc_aac.mp4", write(true, 0));
+    }
+
+    @Test
+    public void aacOnlyMatchesReference() throws IOException {
+        assertGolden("fragmented_aac.mp4", write(false, 100_000));
+    }
+
+    @Test
+    public void cutsFragmentsOnKeyFrames() throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(write(true, 0));
+        List<Mp4Boxes> boxes = Mp4Boxes.topLevel(file);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"),
+                Mp4Boxes.types(boxes));
+        long[] videoStartTicks = new long[2];
+        for (int f = 0; f < 2; f++) {
+            Mp4Boxes moof = boxes.get(2 + f * 2);
+            Mp4Boxes mdat = boxes.get(3 + f * 2);
+            assertEquals(f + 1, file.getInt(Mp4Boxes.find(file, moof, "mfhd").offset + 12));
+            int payload = 0;
+            for (Mp4Boxes traf : Mp4Boxes.children(file, moof)) {
+                if (!traf.type.equals("traf")) continue;
+                int trackId = file.getInt(Mp4Boxes.find(file, traf, "tfhd").offset + 12);
+                Mp4Boxes trun = Mp4Boxes.find(file, traf, "trun");
+                int samples = file.getInt(trun.offset + 12);
+                int dataOffset = file.getInt(trun.offset + 16);
+                // data offsets are relative to the moof, every sample lies in the mdat
+                assertEquals(mdat.offset + 8 + payload, moof.offset + dataOffset);
+                for (int s = 0; s < samples; s++) {
+                    payload += file.getInt(trun.offset + 24 + s * 12);
+                }
+                if (trackId == 1) {
+                    assertEquals(SAMPLE_FLAGS_SYNC, file.getInt(trun.offset + 28));
+                    videoStartTicks[f] = file.getLong(Mp4Boxes.find(file, traf, "tfdt").offset + 12);
+                }
+            }
+            assertEquals(mdat.size - 8, payload);
+        }
+        // the second GOP starts at frame 3, 99999us in the 90kHz timescale
+        assertEquals(0, videoStartTicks[0]);
+        assertEquals(8999, videoStartTicks[1]);
+    }
+
+    @Test
+    public void describesTracksInMoov() throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(write(true, 0));
+        Mp4Boxes moov = Mp4Boxes.topLevel(file).get(1);
+        assertEquals(Arrays.asList("mvhd", "trak", "trak", "mvex"),
+                Mp4Boxes.types(Mp4Boxes.children(file, moov)));
+        Mp4Boxes avcC = Mp4Boxes.find(file, Mp4Boxes.children(file, moov).get(1),
+                "mdia/minf/stbl/stsd");
+        // version and flags, entry count, then the avc1 sample entry
+        Mp4Boxes avc1 = Mp4Boxes.children(file, avcC.offset + 16, avcC.end()).get(0);
+        assertEquals("avc1", avc1.type);
+        assertEquals(320, file.getShort(avc1.offset + 32));
+        assertEquals(240, file.getShort(avc1.offset + 34));
+    }
+
+    @Test
+    public void convertsAnnexBToLengthPrefixed() {
+        ByteBuffer src = ByteBuffer.wrap(new byte[]{0, 0, 1, 0x06, (byte) 0xaa, 0, 0, 0, 1,
+                0x65, (byte) 0xbb, (byte) 0xcc});
+        ByteBuffer dst = ByteBuffer.allocate(32);
+        assertEquals(13, FragmentedMp4Writer.copyAsLengthPrefixed(src, dst));
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x06, (byte) 0xaa, 0, 0, 0, 3, 0x65,
+                (byte) 0xbb, (byte) 0xcc}, Arrays.copyOf(dst.array(), dst.position()));
+        assertEquals("source left alone", 0, src.position());
+    }
+
+    @Test
+    public void keepsLengthPrefixedAsIs() {
+        byte[] sample = {0, 0, 0, 3, 0x65, 0x11, 0x22};
+        ByteBuffer dst = ByteBuffer.allocate(32);
+        assertEquals(sample.length,
+                FragmentedMp4Writer.copyAsLengthPrefixed(ByteBuffer.wrap(sample), dst));
+        assertArrayEquals(sample, Arrays.copyOf(dst.array(), dst.position()));
+    }
+
+    /**
+     * Two GOPs of 3 frames at 30fps and one AAC frame per video frame, or 8 AAC frames.
+     */
+    private byte[] write(boolean video, long fragmentDurationUs) throws IOException {
+        File file = mFolder.newFile();
+        try (FragmentedMp4Writer writer = new FragmentedMp4Writer(
+                FileChannel.open(file.toPath(), StandardOpenOption.WRITE), fragmentDurationUs,
+                false)) {
+            int videoTrack = -1;
+            if (video) {
+                writer.setOrientationHint(90);
+                videoTrack = writer.addAvcTrack(320, 240, SPS, PPS);
+            }
+            int audioTrack = writer.addAacTrack(44100, 2, ASC);
+            writer.start();
+            for (int frame = 0; frame < (video ? 6 : 8); frame++) {
+                if (video) {
+                    boolean key = frame % 3 == 0;
+                    writer.writeSample(videoTrack, accessUnit(key, frame), frame * 33_333L, key);
+                }
+                writer.writeSample(audioTrack, payload(0x20 + frame, 6 + frame),
+                        frame * 23_220L, true);
+            }
+        }
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Annex-B access unit, key frames with an SEI behind a 3 byte start code.
+     */
+    private static ByteBuffer accessUnit(boolean key, int frame) {
+        ByteBuffer au = ByteBuffer.allocate(64);
+        if (key) {
+            au.put(new byte[]{0, 0, 1, 0x06, 0x05, 0x01, (byte) 0x80});
+        }
+        au.put(new byte[]{0, 0, 0, 1, (byte) (key ? 0x65 : 0x41)});
+        au.put(payload(frame, 10 + frame));
+        au.flip();
+        return au;
+    }
+
+    private static ByteBuffer payload(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // no start code emulation
+            data[i] = (byte) (0x10 + (seed * 7 + i) % 0x60);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private void assertGolden(String name, byte[] actual) throws IOException {
+        String update = System.getProperty("recorder.updateGolden");
+        if (update != null) {
+            Files.write(Paths.get(update, name), actual);
+        }
+        try (InputStream in = getClass().getResourceAsStream(name)) {
+            assertNotNull("Missing reference " + name, in);
+            byte[] expected = new byte[actual.length + 1];
+            int read = 0;
+            for (int n; read < expected.length
+                    && (n = in.read(expected, read, expected.length - read)) > 0; ) {
+                read += n;
+            }
+            assertArrayEquals(name, Arrays.copyOf(expected, read), actual);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class IdleFrameFilterTest {
+    private static final long FRAME_US = 16_667;
+    private static final int REFERENCE = 0x41;
+    private static final int NON_REFERENCE = 0x01;
+
+    private final RecordingSink mSink = new RecordingSink();
+    private final IdleFrameFilter mFilter = new IdleFrameFilter(mSink, 1000_000);
+    private final int mVideo = mFilter.addTrack(null, MediaFormat.MIMETYPE_VIDEO_AVC);
+
+    @Test
+    public void dropsIdleFramesOfTheUpperLayer() {
+        // two temporal layers: reference and non-reference frames alternate
+        for (int i = 0; i < 6; i++) {
+            write(mVideo, i % 2 == 0 ? REFERENCE : NON_REFERENCE, 32, i);
+        }
+        assertEquals(Arrays.asList(0L, 2L, 4L), mSink.mWritten);
+        assertEquals(3, mFilter.getDroppedFrames());
+        assertEquals(3 * 32, mFilter.getDroppedBytes());
+    }
+
+    @Test
+    public void keepsTheFirstIdleFrame() {
+        write(mVideo, REFERENCE, 4096, 0);
+        write(mVideo, NON_REFERENCE, 32, 1);
+        write(mVideo, NON_REFERENCE, 32, 2);
+        assertEquals(Arrays.asList(0L, 1L), mSink.mWritten);
+    }
+
+    @Test
+    public void keepsReferenceAndChangingFrames() {
+        write(mVideo, REFERENCE, 32, 0);
+        write(mVideo, REFERENCE, 32, 1);
+        write(mVideo, NON_REFERENCE, 4096, 2);
+        write(mVideo, NON_REFERENCE, 4096, 3);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), mSink.mWritten);
+        assertEquals(0, mFilter.getDroppedFrames());
+    }
+
+    @Test
+    public void keepsOneFramePerGap() {
+        write(mVideo, REFERENCE, 32, 0);
+        for (int i = 1; i <= 120; i++) {
+            write(mVideo, NON_REFERENCE, 32, i);
+        }
+        // 60 frames are just over a second
+        assertEquals(Arrays.asList(0L, 60L, 120L), mSink.mWritten);
+    }
+
+    @Test
+    public void passesOtherTracks() {
+        int audio = mFilter.addTrack(null, MediaFormat.MIMETYPE_AUDIO_AAC);
+        write(mVideo, REFERENCE, 32, 0);
+        write(audio, NON_REFERENCE, 32, 1);
+        write(audio, NON_REFERENCE, 32, 2);
+        assertEquals(Arrays.asList(0L, 1L, 2L), mSink.mWritten);
+    }
+
+    /**
+     * Writes a frame of {@code size} bytes, starting with a slice of the given NAL header, at
+     * the {@code frame}th frame time. The written frames are recorded by frame number.
+     */
+    private void write(int track, int header, int size, int frame) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        data.put(new byte[] {0, 0, 0, 1, (byte) header});
+        data.clear();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // BufferInfo.set() is a stub in local unit tests
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = frame * FRAME_US;
+        mFilter.write(track, data, info);
+    }
+
+    private static class RecordingSink implements SampleSink {
+        final List<Long> mWritten = new ArrayList<>();
+        private int mTracks;
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mTracks++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            mWritten.add(bufferInfo.presentationTimeUs / FRAME_US);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Walks the boxes of an MP4 file in memory, for checking the layout in tests.
+ */
+final class Mp4Boxes {
+    final String type;
+    final int offset;
+    final int size;
+    // 16 for a 64 bit size
+    final int header;
+
+    private Mp4Boxes(String type, int offset, int size, int header) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.header = header;
+    }
+
+    int end() {
+        return offset + size;
+    }
+
+    /**
+     * @return the boxes between {@code start} and {@code end}, which they must fill exactly
+     */
+    static List<Mp4Boxes> children(ByteBuffer file, int start, int end) {
+        List<Mp4Boxes> boxes = new ArrayList<>();
+        int position = start;
+        while (position < end) {
+            long size = file.getInt(position) & 0xffffffffL;
+            int header = 8;
+            if (size == 1) {
+                size = file.getLong(position + 8);
+                header = 16;
+            }
+            assertTrue("box at " + position + " of size " + size + " overflows " + end,
+                    size >= header && position + size <= end);
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                type[i] = file.get(position + 4 + i);
+            }
+            boxes.add(new Mp4Boxes(new String(type), position, (int) size, header));
+            position += size;
+        }
+        return boxes;
+    }
+
+    static List<Mp4Boxes> children(ByteBuffer file, Mp4Boxes parent) {
+        return children(file, parent.offset + parent.header, parent.end());
+    }
+
+    static List<Mp4Boxes> topLevel(ByteBuffer file) {
+        return children(file, 0, file.limit());
+    }
+
+    /**
+     * @return the child at {@code path} below {@code parent}, e.g. "mdia/minf/stbl"
+     */
+    static Mp4Boxes find(ByteBuffer file, Mp4Boxes parent, String path) {
+        Mp4Boxes box = parent;
+        for (String type : path.split("/")) {
+            Mp4Boxes found = null;
+            for (Mp4Boxes child : children(file, box)) {
+                if (child.type.equals(type)) {
+                    found = child;
+                    break;
+                }
+            }
+            if (found == null) {
+                fail("No " + type + " in " + box.type + " at " + box.offset);
+            }
+            box = found;
+        }
+        return box;
+    }
+
+    static List<String> types(List<Mp4Boxes> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Mp4Boxes box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+}
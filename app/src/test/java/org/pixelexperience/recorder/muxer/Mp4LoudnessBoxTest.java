@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4LoudnessBoxTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40,
+            0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x0f, (byte) 0xc8};
+    private static final byte[] ASC = {0x12, 0x10};
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+    private File mFile;
+
+    @Before
+    public void record() throws IOException {
+        mFile = record("recording.mp4", true);
+    }
+
+    private File record(String name, boolean audio) throws IOException {
+        File file = mFolder.newFile(name);
+        File journal = Mp4Recovery.getJournalFile(file);
+        JournaledMp4Writer writer = new JournaledMp4Writer(
+                FileChannel.open(file.toPath(), StandardOpenOption.WRITE),
+                FileChannel.open(journal.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE), journal::delete);
+        int video = writer.addAvcTrack(320, 240, SPS, PPS);
+        int sound = audio ? writer.addAacTrack(44100, 2, ASC) : -1;
+        writer.start();
+        for (int i = 0; i < 30; i++) {
+            writer.writeSample(video, ByteBuffer.wrap(sample(0x65, 120)), i * 33_333L, i == 0);
+            if (audio) {
+                writer.writeSample(sound, ByteBuffer.wrap(sample(0x21, 40)), i * 23_220L, true);
+            }
+        }
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void tagsTheAudioTrack() throws IOException {
+        byte[] before = Files.readAllBytes(mFile.toPath());
+        assertTrue(Mp4LoudnessBox.write(mFile, -23.0, -1.0, -3.0));
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+
+        List<Mp4Boxes> boxes = Mp4Boxes.topLevel(file);
+        assertEquals(Arrays.asList("ftyp", "mdat", "free", "moov"), Mp4Boxes.types(boxes));
+        // samples and chunk offsets stay where they were
+        Mp4Boxes mdat = boxes.get(1);
+        assertArrayEquals(Arrays.copyOf(before, mdat.end()), Arrays.copyOf(file.array(), mdat.end()));
+
+        List<Mp4Boxes> traks = Mp4Boxes.children(file, boxes.get(3));
+        int tagged = 0;
+        for (Mp4Boxes trak : traks) {
+            if (!"trak".equals(trak.type)) {
+                continue;
+            }
+            String handler = handler(file, trak);
+            boolean hasUdta = Mp4Boxes.types(Mp4Boxes.children(file, trak)).contains("udta");
+            assertEquals(handler, "soun".equals(handler), hasUdta);
+            if (hasUdta) {
+                Mp4Boxes tlou = Mp4Boxes.find(file, trak, "udta/ludt/tlou");
+                int p = tlou.offset + 12 + 2;
+                int peaks = (file.get(p) & 0xff) << 16 | (file.get(p + 1) & 0xff) << 8
+                        | file.get(p + 2) & 0xff;
+                assertEquals((20 + 3) * 32, peaks >> 12);
+                assertEquals((20 + 1) * 32, peaks & 0xfff);
+                // measurement_count 1, program loudness, (-23 + 57.75) * 4
+                assertEquals(1, file.get(p + 4));
+                assertEquals(1, file.get(p + 5));
+                assertEquals(139, file.get(p + 6) & 0xff);
+                tagged++;
+            }
+        }
+        assertEquals(1, tagged);
+    }
+
+    @Test
+    public void keepsTheOldMoovUntilTheNewOneIsComplete() throws IOException {
+        byte[] before = Files.readAllBytes(mFile.toPath());
+        List<Mp4Boxes> boxes = Mp4Boxes.topLevel(ByteBuffer.wrap(before));
+        Mp4Boxes moov = boxes.get(boxes.size() - 1);
+        assertTrue(Mp4LoudnessBox.write(mFile, -23.0, -1.0, -3.0));
+        byte[] after = Files.readAllBytes(mFile.toPath());
+
+        // only the type of the old moov changed
+        assertEquals("free", new String(after, moov.offset + 4, 4));
+        byte[] old = Arrays.copyOfRange(after, moov.offset, moov.end());
+        System.arraycopy("moov".getBytes(), 0, old, 4, 4);
+        assertArrayEquals(Arrays.copyOfRange(before, moov.offset, moov.end()), old);
+    }
+
+    @Test
+    public void tagsOnlyOnce() throws IOException {
+        assertTrue(Mp4LoudnessBox.write(mFile, -23.0, -1.0, -3.0));
+        byte[] tagged = Files.readAllBytes(mFile.toPath());
+        assertFalse(Mp4LoudnessBox.write(mFile, -20.0, -1.0, -3.0));
+        assertArrayEquals(tagged, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void leavesFilesWithoutAudioAlone() throws IOException {
+        File silent = record("silent.mp4", false);
+        byte[] before = Files.readAllBytes(silent.toPath());
+        assertFalse(Mp4LoudnessBox.write(silent, -23.0, -1.0, -3.0));
+        assertArrayEquals(before, Files.readAllBytes(silent.toPath()));
+    }
+
+    private static String handler(ByteBuffer file, Mp4Boxes trak) {
+        Mp4Boxes hdlr = Mp4Boxes.find(file, trak, "mdia/hdlr");
+        return new String(file.array(), hdlr.offset + 16, 4);
+    }
+
+    private static byte[] sample(int type, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.putInt(size - 4).put((byte) type);
+        return sample.array();
+    }
+}
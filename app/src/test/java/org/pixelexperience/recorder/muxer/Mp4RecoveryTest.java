@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.pixelexperience.recorder.muxer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Kills a {@link JournaledMp4Writer} mid recording, cuts the file and the journal at
+ * arbitrary offsets and checks that {@link Mp4Recovery} always leaves a valid MP4 holding
+ * a prefix of the written samples.
+ */
+public class Mp4RecoveryTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40,
+            0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x0f, (byte) 0xc8};
+    private static final byte[] ASC = {0x12, 0x10};
+    private static final int SECONDS = 3;
+    private static final int MEDIA_STEP = 97;
+    private static final int JOURNAL_STEP = 7;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private byte[] mMedia;
+    private byte[] mJournal;
+    // payloads in the order they were written, per track
+    private final List<List<byte[]>> mWritten = new ArrayList<>();
+
+    @Before
+    public void recordAndDie() throws IOException {
+        File media = mFolder.newFile("interrupted.mp4");
+        File journal = Mp4Recovery.getJournalFile(media);
+        FileChannel mediaChannel = FileChannel.open(media.toPath(), StandardOpenOption.WRITE);
+        FileChannel journalChannel = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        JournaledMp4Writer writer = new JournaledMp4Writer(mediaChannel, journalChannel,
+                () -> {
+                    throw new AssertionError("The journal must survive");
+                });
+        int video = writer.addAvcTrack(320, 240, SPS, PPS);
+        int audio = writer.addAacTrack(44100, 2, ASC);
+        mWritten.add(new ArrayList<>());
+        mWritten.add(new ArrayList<>());
+        writer.start();
+        // 30fps video and 1024 sample AAC frames, interleaved by time
+        int frames = SECONDS * 30;
+        int audioFrames = SECONDS * 44100 / 1024;
+        for (int v = 0, a = 0; v < frames || a < audioFrames; ) {
+            long videoUs = v * 1000_000L / 30;
+            long audioUs = a * 1024 * 1000_000L / 44100;
+            if (v < frames && (a >= audioFrames || videoUs <= audioUs)) {
+                write(writer, video, sample(0x65, v, 150 + v % 50), videoUs, v % 30 == 0);
+                v++;
+            } else {
+                write(writer, audio, sample(0x21, a, 40 + a % 9), audioUs, true);
+                a++;
+            }
+        }
+        // the process dies: nothing is closed by the writer
+        mediaChannel.close();
+        journalChannel.close();
+        mMedia = Files.readAllBytes(media.toPath());
+        mJournal = Files.readAllBytes(journal.toPath());
+    }
+
+    @Test
+    public void recoversCommittedSamples() throws IOException {
+        int recovered = recover(mMedia.length, mJournal.length);
+        // at most the uncommitted last second is lost
+        assertTrue("recovered " + recovered, recovered >= (SECONDS - 1) * (30 + 43));
+    }
+
+    @Test
+    public void truncatedMediaRecoversPrefix() throws IOException {
+        int previous = 0;
+        for (int length = 0; length <= mMedia.length; length += MEDIA_STEP) {
+            int recovered = recover(length, mJournal.length);
+            assertTrue("fewer samples with more data at " + length, recovered >= previous);
+            previous = recovered;
+        }
+    }
+
+    @Test
+    public void truncatedJournalRecoversPrefix() throws IOException {
+        int previous = 0;
+        // the header is needed to recover anything, see truncatedJournalHeaderFails
+        int header = findHeaderLength();
+        for (int length = header; length <= mJournal.length; length += JOURNAL_STEP) {
+            int recovered = recover(mMedia.length, length);
+            assertTrue("fewer samples with more entries at " + length, recovered >= previous);
+            previous = recovered;
+        }
+    }
+
+    @Test
+    public void truncatedJournalHeaderFails() throws IOException {
+        for (int length = 0; length < findHeaderLength(); length += 3) {
+            File media = copy("media.mp4", mMedia, mMedia.length);
+            File journal = copy("media.mp4" + Mp4Recovery.JOURNAL_SUFFIX, mJournal, length);
+            try {
+                Mp4Recovery.recover(media, journal);
+                throw new AssertionError("recovered with a header of " + length + " bytes");
+            } catch (IOException e) {
+                assertTrue("journal kept", journal.exists());
+            }
+        }
+    }
+
+    /**
+     * @return bytes of the journal before the first entry, where recovery starts working
+     */
+    private int findHeaderLength() throws IOException {
+        for (int length = 0; length <= mJournal.length; length++) {
+            try {
+                recover(mMedia.length, length);
+                return length;
+            } catch (IOException e) {
+                // header still incomplete
+            }
+        }
+        throw new AssertionError("No usable journal");
+    }
+
+    /**
+     * Recovers the first {@code mediaLength} bytes of the file with the first
+     * {@code journalLength} bytes of the journal, checks the result and that a second
+     * recovery leaves it alone.
+     *
+     * @return number of recovered samples
+     */
+    private int recover(int mediaLength, int journalLength) throws IOException {
+        File media = copy("media.mp4", mMedia, mediaLength);
+        File journal = copy("media.mp4" + Mp4Recovery.JOURNAL_SUFFIX, mJournal, journalLength);
+        int recovered = Mp4Recovery.recover(media, journal);
+        if (recovered == 0) {
+            assertTrue("journal kept", journal.exists());
+            return 0;
+        }
+        assertFalse("journal deleted", journal.exists());
+        byte[] result = Files.readAllBytes(media.toPath());
+        assertEquals(recovered, checkValid(result));
+
+        File again = copy("media.mp4" + Mp4Recovery.JOURNAL_SUFFIX, mJournal, journalLength);
+        assertEquals(recovered, Mp4Recovery.recover(media, again));
+        assertArrayEquals("second recovery changed the file at " + mediaLength + "/"
+                + journalLength, result, Files.readAllBytes(media.toPath()));
+        return recovered;
+    }
+
+    /**
+     * Checks the box layout and that every track holds the first samples written to it.
+     *
+     * @return number of samples in the file
+     */
+    private int checkValid(byte[] bytes) {
+        ByteBuffer file = ByteBuffer.wrap(bytes);
+        List<Mp4Boxes> boxes = Mp4Boxes.topLevel(file);
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), Mp4Boxes.types(boxes));
+        Mp4Boxes mdat = boxes.get(1);
+        int samples = 0;
+        for (Mp4Boxes trak : Mp4Boxes.children(file, boxes.get(2))) {
+            if (!trak.type.equals("trak")) continue;
+            int trackId = file.getInt(Mp4Boxes.find(file, trak, "tkhd").offset + 20);
+            List<byte[]> written = mWritten.get(trackId - 1);
+            Mp4Boxes stbl = Mp4Boxes.find(file, trak, "mdia/minf/stbl");
+            Mp4Boxes stsz = Mp4Boxes.find(file, stbl, "stsz");
+            Mp4Boxes co64 = Mp4Boxes.find(file, stbl, "co64");
+            int count = file.getInt(stsz.offset + 16);
+            assertEquals(count, file.getInt(co64.offset + 12));
+            assertTrue(count <= written.size());
+            for (int s = 0; s < count; s++) {
+                int size = file.getInt(stsz.offset + 20 + s * 4);
+                long offset = file.getLong(co64.offset + 16 + s * 8);
+                assertTrue(offset >= mdat.offset + mdat.header && offset + size <= mdat.end());
+                assertArrayEquals("track " + trackId + " sample " + s, written.get(s),
+                        Arrays.copyOfRange(bytes, (int) offset, (int) offset + size));
+            }
+            samples += count;
+        }
+        return samples;
+    }
+
+    private void write(JournaledMp4Writer writer, int track, byte[] sample, long ptsUs,
+                       boolean keyFrame) throws IOException {
+        mWritten.get(track).add(sample);
+        writer.writeSample(track, ByteBuffer.wrap(sample), ptsUs, keyFrame);
+    }
+
+    /**
+     * Length prefixed NAL unit or AAC frame numbered {@code index}, stored as is.
+     */
+    private static byte[] sample(int type, int index, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.putInt(size - 4).put((byte) type).putShort((short) index);
+        while (sample.hasRemaining()) {
+            sample.put((byte) (0x10 + (index + sample.position()) % 0x60));
+        }
+        return sample.array();
+    }
+
+    private File copy(String name, byte[] data, int length) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        Files.write(file.toPath(), Arrays.copyOf(data, length));
+        return file;
+    }
+}
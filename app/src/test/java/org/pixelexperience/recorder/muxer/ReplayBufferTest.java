@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.pixelexperience.recorder.muxer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReplayBufferTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 100_000;
+    private static final int SAMPLE_BYTES = 100;
+
+    @Test
+    public void keepsWholeGopsOfTheDuration() throws Exception {
+        ReplayBuffer buffer = newBuffer(10_000, 1000_000);
+        // a key frame every 5 frames
+        for (int i = 0; i < 30; i++) {
+            writeVideo(buffer, i);
+        }
+        // the GOP at 1.5s is the oldest still needed to cover 1s
+        assertEquals(15, first(dumpFrames(buffer)));
+    }
+
+    @Test
+    public void dumpIsNotEvictedByExpiry() throws Exception {
+        ReplayBuffer buffer = newBuffer(10_000, 1000_000);
+        for (int i = 0; i < 15; i++) {
+            writeVideo(buffer, i);
+        }
+        final int[] next = {15};
+        List<Integer> frames = new ArrayList<>();
+        buffer.dump(sample -> {
+            frames.add(frameOf(sample));
+            // recording goes on for seconds while the first sample is saved
+            while (next[0] < 60) {
+                writeVideo(buffer, next[0]++);
+            }
+        });
+        assertEquals(range(0, 15), frames);
+        // expired GOPs are evicted once the dump is done
+        writeVideo(buffer, 60);
+        assertEquals(50, first(dumpFrames(buffer)));
+    }
+
+    @Test
+    public void dropsNewSamplesWhileTheDumpFillsTheBuffer() throws Exception {
+        // room for 12 samples
+        ReplayBuffer buffer = newBuffer(12 * SAMPLE_BYTES + 1, 10_000_000);
+        for (int i = 0; i < 10; i++) {
+            writeVideo(buffer, i);
+        }
+        final int[] next = {10};
+        final int[] dumped = {0};
+        List<Integer> frames = new ArrayList<>();
+        buffer.dump(sample -> {
+            frames.add(frameOf(sample));
+            if (++dumped[0] == 7) {
+                // the first GOP was read and may go, the second one is still pinned
+                while (next[0] < 20) {
+                    writeVideo(buffer, next[0]++);
+                }
+            }
+        });
+        assertEquals(range(0, 10), frames);
+        // frames 10 to 15 fit in place of the first GOP, 16 doesn't and the frames up to
+        // the next key frame can't be decoded without it
+        assertEquals(4, buffer.getDroppedSamples());
+        writeVideo(buffer, 20);
+        assertEquals(Arrays.asList(10, 11, 12, 13, 14, 15, 20), dumpFrames(buffer));
+    }
+
+    @Test
+    public void audioOnlyDumpIsPinned() throws Exception {
+        ReplayBuffer buffer = newBuffer(5 * SAMPLE_BYTES + 1, 10_000_000);
+        for (int i = 0; i < 5; i++) {
+            write(buffer, AUDIO, i, 0);
+        }
+        List<Integer> frames = new ArrayList<>();
+        buffer.dump(sample -> {
+            frames.add(frameOf(sample));
+            if (frames.size() == 2) {
+                write(buffer, AUDIO, 5, 0);
+                write(buffer, AUDIO, 6, 0);
+            }
+        });
+        assertEquals(range(0, 5), frames);
+        // the two samples read make room for one
+        assertEquals(1, buffer.getDroppedSamples());
+        assertEquals(Arrays.asList(2, 3, 4, 5), dumpFrames(buffer));
+    }
+
+    private static ReplayBuffer newBuffer(int capacityBytes, long durationUs) {
+        return new ReplayBuffer(capacityBytes, durationUs, 1000);
+    }
+
+    private static void writeVideo(ReplayBuffer buffer, int frame) {
+        buffer.setVideoTrack(VIDEO);
+        write(buffer, VIDEO, frame, frame % 5 == 0 ? ReplayBuffer.FLAG_KEY_FRAME : 0);
+    }
+
+    private static void write(ReplayBuffer buffer, int track, int frame, int flags) {
+        ByteBuffer data = ByteBuffer.allocate(SAMPLE_BYTES);
+        // dumped times are rebased, the data keeps the frame number
+        data.putInt(0, frame);
+        buffer.write(track, data, frame * FRAME_US, flags);
+    }
+
+    private static int frameOf(ReplayBuffer.Sample sample) {
+        return sample.data.getInt(sample.data.position());
+    }
+
+    private static List<Integer> dumpFrames(ReplayBuffer buffer) throws Exception {
+        List<Integer> frames = new ArrayList<>();
+        buffer.dump(sample -> frames.add(frameOf(sample)));
+        return frames;
+    }
+
+    private static int first(List<Integer> frames) {
+        return frames.get(0);
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> frames = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            frames.add(i);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 PixelExperience
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package org.pixelexperience.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedMuxerTest {
+    private static final long SAMPLE_US = 20_000;
+    private static final long MIC_DELAY_US = 40_000;
+
+    private final List<RecordingSink> mSegments = new ArrayList<>();
+    // pts written to the current segment when the previous one was finished
+    private final List<Long> mFinishedAtUs = new ArrayList<>();
+    private final List<Integer> mFinished = new ArrayList<>();
+
+    @Test
+    public void cutsAudioOnlyOnTheFirstTrack() {
+        SegmentedMuxer muxer = newMuxer(2000_000);
+        // internal audio and a separate microphone track arriving a bit later
+        int internal = muxer.addTrack(new MediaFormat());
+        int mic = muxer.addTrack(new MediaFormat());
+        muxer.start();
+        for (long ptsUs = 0; ptsUs < 5000_000; ptsUs += SAMPLE_US) {
+            write(muxer, internal, ptsUs);
+            if (ptsUs >= MIC_DELAY_US) {
+                write(muxer, mic, ptsUs - MIC_DELAY_US);
+            }
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(3, mSegments.size());
+        assertEquals(Arrays.asList(0, 1, 2), mFinished);
+        // the microphone samples before the cut stay in the previous segment
+        assertEquals(1980_000L, last(mSegments.get(0).ptsOf(mic)));
+        assertEquals(1980_000L, last(mSegments.get(0).ptsOf(internal)));
+        for (RecordingSink segment : mSegments.subList(1, 3)) {
+            assertContiguous(segment.ptsOf(internal));
+            assertContiguous(segment.ptsOf(mic));
+        }
+        // closed once the microphone caught up, not after the grace period
+        assertTrue(mFinishedAtUs.get(0) <= MIC_DELAY_US);
+    }
+
+    @Test
+    public void singleAudioTrackFinishesRightAfterTheCut() {
+        SegmentedMuxer muxer = newMuxer(2000_000);
+        int internal = muxer.addTrack(new MediaFormat());
+        muxer.start();
+        for (long ptsUs = 0; ptsUs < 3000_000; ptsUs += SAMPLE_US) {
+            write(muxer, internal, ptsUs);
+        }
+        assertEquals(Arrays.asList(0), mFinished);
+        assertEquals(0L, (long) mFinishedAtUs.get(0));
+        muxer.stop();
+        muxer.release();
+        assertContiguous(mSegments.get(1).ptsOf(internal));
+        assertEquals(50, mSegments.get(1).ptsOf(internal).size());
+    }
+
+    private SegmentedMuxer newMuxer(long durationUs) {
+        return new SegmentedMuxer(index -> {
+            RecordingSink segment = new RecordingSink();
+            mSegments.add(segment);
+            return segment;
+        }, durationUs, 0, new SegmentedMuxer.Listener() {
+            @Override
+            public void onSegmentBoundaryApproaching() {
+            }
+
+            @Override
+            public void onSegmentFinished(int index, boolean last) {
+                mFinished.add(index);
+                if (!last) {
+                    mFinishedAtUs.add(last(mSegments.get(index + 1).mPtsUs));
+                }
+            }
+
+            @Override
+            public void onSegmentDiscarded(int index) {
+            }
+        });
+    }
+
+    private static void write(SegmentedMuxer muxer, int track, long ptsUs) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // BufferInfo.set() is a stub in local unit tests
+        info.offset = 0;
+        info.size = 4;
+        info.presentationTimeUs = ptsUs;
+        muxer.write(track, ByteBuffer.allocate(4), info);
+    }
+
+    /**
+     * Every sample follows the previous one, starting at 0: none was clamped to the start.
+     */
+    private static void assertContiguous(List<Long> ptsUs) {
+        for (int i = 0; i < ptsUs.size(); i++) {
+            assertEquals(i * SAMPLE_US, (long) ptsUs.get(i));
+        }
+    }
+
+    private static long last(List<Long> values) {
+        return values.get(values.size() - 1);
+    }
+
+    private static class RecordingSink implements SampleSink {
+        final List<Integer> mTracks = new ArrayList<>();
+        final List<Long> mPtsUs = new ArrayList<>();
+        private int mTrackCount;
+
+        List<Long> ptsOf(int track) {
+            List<Long> ptsUs = new ArrayList<>();
+            for (int i = 0; i < mTracks.size(); i++) {
+                if (mTracks.get(i) == track) {
+                    ptsUs.add(mPtsUs.get(i));
+                }
+            }
+            return ptsUs;
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void write(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+            mTracks.add(trackIndex);
+            mPtsUs.add(bufferInfo.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}